@@ -31,6 +31,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.Properties;
 
+import org.apache.phoenix.query.QueryServices;
 import org.junit.Test;
 
 public class UpsertSelectAutoCommitIT extends BaseHBaseManagedTimeIT {
@@ -132,4 +133,33 @@ public class UpsertSelectAutoCommitIT extends BaseHBaseManagedTimeIT {
         conn.commit();
     }
     
+    @Test
+    public void testPipelinedUpsertSelect() throws Exception {
+        Properties props = new Properties(TEST_PROPERTIES);
+        props.setProperty(QueryServices.PIPELINED_UPSERT_SELECT_ATTRIB, Boolean.TRUE.toString());
+        props.setProperty(QueryServices.MUTATE_BATCH_SIZE_ATTRIB, Integer.toString(7));
+        props.setProperty(QueryServices.MAX_PENDING_MUTATE_BATCHES_ATTRIB, Integer.toString(2));
+        Connection conn = DriverManager.getConnection(getUrl(), props);
+        conn.setAutoCommit(true);
+        conn.createStatement().execute("CREATE TABLE PIPELINE_SOURCE (K INTEGER NOT NULL PRIMARY KEY, V VARCHAR)");
+        conn.createStatement().execute("CREATE TABLE PIPELINE_TARGET (K INTEGER NOT NULL PRIMARY KEY, V VARCHAR) SPLIT ON (25, 50, 75)");
+        PreparedStatement stmt = conn.prepareStatement("UPSERT INTO PIPELINE_SOURCE VALUES (?, ?)");
+        int nRows = 100;
+        for (int i = 0; i < nRows; i++) {
+            stmt.setInt(1, i);
+            stmt.setString(2, "v" + i);
+            stmt.execute();
+        }
+        
+        assertEquals(nRows, conn.createStatement().executeUpdate("UPSERT INTO PIPELINE_TARGET SELECT * FROM PIPELINE_SOURCE"));
+        ResultSet rs = conn.createStatement().executeQuery("SELECT K, V FROM PIPELINE_TARGET");
+        for (int i = 0; i < nRows; i++) {
+            assertTrue(rs.next());
+            assertEquals(i, rs.getInt(1));
+            assertEquals("v" + i, rs.getString(2));
+        }
+        assertFalse(rs.next());
+        conn.close();
+    }
+    
 }
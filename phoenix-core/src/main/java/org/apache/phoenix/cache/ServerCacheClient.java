@@ -28,9 +28,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,6 +48,7 @@ import org.apache.hadoop.hbase.ipc.ServerRpcController;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.HBaseZeroCopyByteString;
 
@@ -63,6 +67,7 @@ import org.apache.phoenix.coprocessor.generated.ServerCachingProtos.RemoveServer
 import org.apache.phoenix.coprocessor.generated.ServerCachingProtos.ServerCachingService;
 import org.apache.phoenix.jdbc.PhoenixConnection;
 import org.apache.phoenix.job.JobManager.JobCallable;
+import org.apache.phoenix.memory.MemoryManager.ChunkType;
 import org.apache.phoenix.memory.MemoryManager.MemoryChunk;
 import org.apache.phoenix.query.ConnectionQueryServices;
 import org.apache.phoenix.query.QueryServices;
@@ -83,6 +88,7 @@ public class ServerCacheClient {
     public static final int UUID_LENGTH = Bytes.SIZEOF_LONG;
     private static final Log LOG = LogFactory.getLog(ServerCacheClient.class);
     private static final Random RANDOM = new Random();
+    private static final ConcurrentMap<String,ServerBroadcastMetrics> SERVER_BROADCAST_METRICS = Maps.newConcurrentMap();
     private final PhoenixConnection connection;
     private final Map<Integer, TableRef> cacheUsingTableRefMap = new HashMap<Integer, TableRef>();
 
@@ -134,6 +140,22 @@ public class ServerCacheClient {
             return id;
         }
 
+        /**
+         * Determines whether the cache was sent to every server hosting a region of the
+         * table that will use the cache that intersects with the key ranges, in which case
+         * it may be used by a scan over those key ranges.
+         */
+        public boolean covers(ScanRanges keyRanges, TableRef cacheUsingTableRef) throws SQLException {
+            List<HRegionLocation> locations = connection.getQueryServices().getAllTableRegions(cacheUsingTableRef.getTable().getPhysicalName().getBytes());
+            for (HRegionLocation entry : locations) {
+                if (!servers.contains(entry) &&
+                        keyRanges.intersect(entry.getRegionInfo().getStartKey(), entry.getRegionInfo().getEndKey())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         /**
          * Call to free up cache on region servers when no longer needed
          */
@@ -144,14 +166,63 @@ public class ServerCacheClient {
 
     }
     
+    /**
+     * Number of times a server cache was sent to a region server, the number of bytes sent
+     * and the time spent sending them
+     */
+    public static class ServerBroadcastMetrics {
+        private final AtomicLong broadcastCount = new AtomicLong();
+        private final AtomicLong byteCount = new AtomicLong();
+        private final AtomicLong broadcastTimeMs = new AtomicLong();
+
+        private void update(int bytes, long timeMs) {
+            broadcastCount.incrementAndGet();
+            byteCount.addAndGet(bytes);
+            broadcastTimeMs.addAndGet(timeMs);
+        }
+
+        public long getBroadcastCount() {
+            return broadcastCount.get();
+        }
+
+        public long getByteCount() {
+            return byteCount.get();
+        }
+
+        public long getBroadcastTimeMs() {
+            return broadcastTimeMs.get();
+        }
+    }
+
+    private static ServerBroadcastMetrics getServerBroadcastMetrics(String serverName) {
+        ServerBroadcastMetrics metrics = SERVER_BROADCAST_METRICS.get(serverName);
+        if (metrics == null) {
+            ServerBroadcastMetrics newMetrics = new ServerBroadcastMetrics();
+            metrics = SERVER_BROADCAST_METRICS.putIfAbsent(serverName, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Get the metrics of the server caches sent to each region server by this JVM, keyed
+     * by the host and port of the region server
+     */
+    public static Map<String,ServerBroadcastMetrics> getServerBroadcastMetrics() {
+        return SERVER_BROADCAST_METRICS;
+    }
+
     public ServerCache addServerCache(ScanRanges keyRanges, final ImmutableBytesWritable cachePtr, final ServerCacheFactory cacheFactory, final TableRef cacheUsingTableRef) throws SQLException {
         ConnectionQueryServices services = connection.getQueryServices();
-        MemoryChunk chunk = services.getMemoryManager().allocate(cachePtr.getLength());
+        final byte[] cacheId = generateId();
+        MemoryChunk chunk = services.getMemoryManager().allocate(cachePtr.getLength(), cachePtr.getLength(),
+                ChunkType.SERVER_CACHE, Bytes.toStringBinary(cacheId));
         List<Closeable> closeables = new ArrayList<Closeable>();
         closeables.add(chunk);
         ServerCache hashCacheSpec = null;
         SQLException firstException = null;
-        final byte[] cacheId = generateId();
         /**
          * Execute EndPoint in parallel on each server to send compressed hash cache 
          */
@@ -164,75 +235,77 @@ public class ServerCacheClient {
             List<HRegionLocation> locations = services.getAllTableRegions(cacheUsingTableRef.getTable().getPhysicalName().getBytes());
             int nRegions = locations.size();
             // Size these based on worst case
-            futures = new ArrayList<Future<Boolean>>(nRegions);
+            final List<HRegionLocation> targets = new ArrayList<HRegionLocation>(nRegions);
             Set<HRegionLocation> servers = new HashSet<HRegionLocation>(nRegions);
             for (HRegionLocation entry : locations) {
                 // Keep track of servers we've sent to and only send once
                 if ( ! servers.contains(entry) && 
                         keyRanges.intersect(entry.getRegionInfo().getStartKey(), entry.getRegionInfo().getEndKey())) {  // Call RPC once per server
                     servers.add(entry);
+                    targets.add(entry);
                     if (LOG.isDebugEnabled()) {LOG.debug("Adding cache entry to be sent for " + entry);}
-                    final byte[] key = entry.getRegionInfo().getStartKey();
-                    final HTableInterface htable = services.getTable(cacheUsingTableRef.getTable().getPhysicalName().getBytes());
-                    closeables.add(htable);
-                    futures.add(executor.submit(new JobCallable<Boolean>() {
-                        
-                        @Override
-                        public Boolean call() throws Exception {
-                            final Map<byte[], AddServerCacheResponse> results;
-                            try {
-                                results = htable.coprocessorService(ServerCachingService.class, key, key, 
-                                            new Batch.Call<ServerCachingService, AddServerCacheResponse>() {
-                                                @Override
-                                                public AddServerCacheResponse call(ServerCachingService instance) throws IOException {
-                                                    ServerRpcController controller = new ServerRpcController();
-                                                    BlockingRpcCallback<AddServerCacheResponse> rpcCallback =
-                                                            new BlockingRpcCallback<AddServerCacheResponse>();
-                                                    AddServerCacheRequest.Builder builder = AddServerCacheRequest.newBuilder();
-                                                    if(connection.getTenantId() != null){
-                                                        builder.setTenantId(HBaseZeroCopyByteString.wrap(connection.getTenantId().getBytes()));
-                                                    }
-                                                    builder.setCacheId(HBaseZeroCopyByteString.wrap(cacheId));
-                                                    builder.setCachePtr(org.apache.phoenix.protobuf.ProtobufUtil.toProto(cachePtr));
-                                                    ServerCacheFactoryProtos.ServerCacheFactory.Builder svrCacheFactoryBuider = ServerCacheFactoryProtos.ServerCacheFactory.newBuilder();
-                                                    svrCacheFactoryBuider.setClassName(cacheFactory.getClass().getName());
-                                                    builder.setCacheFactory(svrCacheFactoryBuider.build());
-                                                    instance.addServerCache(controller, builder.build(), rpcCallback);
-                                                    if(controller.getFailedOn() != null) {
-                                                        throw controller.getFailedOn();
-                                                    }
-                                                    return rpcCallback.get(); 
-                                                }
-                                              });
-                            } catch (Throwable t) {
-                                throw new Exception(t);
-                            }
-                            if(results != null && results.size() == 1){
-                                return results.values().iterator().next().getReturn();
-                            }
-                            return false;
-                        }
-
-                        /**
-                         * Defines the grouping for round robin behavior.  All threads spawned to process
-                         * this scan will be grouped together and time sliced with other simultaneously
-                         * executing parallel scans.
-                         */
-                        @Override
-                        public Object getJobId() {
-                            return ServerCacheClient.this;
-                        }
-                    }));
                 } else {
                     if (LOG.isDebugEnabled()) {LOG.debug("NOT adding cache entry to be sent for " + entry + " since one already exists for that entry");}
                 }
             }
+            // Build the request once, wrapping the cache without copying it, and share it across
+            // the calls to all servers
+            AddServerCacheRequest.Builder builder = AddServerCacheRequest.newBuilder();
+            if(connection.getTenantId() != null){
+                builder.setTenantId(HBaseZeroCopyByteString.wrap(connection.getTenantId().getBytes()));
+            }
+            builder.setCacheId(HBaseZeroCopyByteString.wrap(cacheId));
+            builder.setCachePtr(org.apache.phoenix.protobuf.ProtobufUtil.toProto(cachePtr));
+            ServerCacheFactoryProtos.ServerCacheFactory.Builder svrCacheFactoryBuider = ServerCacheFactoryProtos.ServerCacheFactory.newBuilder();
+            svrCacheFactoryBuider.setClassName(cacheFactory.getClass().getName());
+            builder.setCacheFactory(svrCacheFactoryBuider.build());
+            final AddServerCacheRequest request = builder.build();
+            
+            // Each call in flight holds its own serialized copy of the request, so bound the
+            // number of servers being sent to at once, each thread taking the next server not yet taken
+            int maxConcurrency = services.getProps().getInt(QueryServices.MAX_SERVER_CACHE_BROADCAST_CONCURRENCY_ATTRIB,
+                    QueryServicesOptions.DEFAULT_MAX_SERVER_CACHE_BROADCAST_CONCURRENCY);
+            int nThreads = Math.min(targets.size(), Math.max(1, maxConcurrency));
+            final AtomicInteger nextTarget = new AtomicInteger();
+            futures = new ArrayList<Future<Boolean>>(nThreads);
+            for (int i = 0; i < nThreads; i++) {
+                final HTableInterface htable = services.getTable(cacheUsingTableRef.getTable().getPhysicalName().getBytes());
+                closeables.add(htable);
+                futures.add(executor.submit(new JobCallable<Boolean>() {
+                    
+                    @Override
+                    public Boolean call() throws Exception {
+                        boolean allAdded = true;
+                        int index;
+                        while ((index = nextTarget.getAndIncrement()) < targets.size()) {
+                            HRegionLocation entry = targets.get(index);
+                            long startTime = System.currentTimeMillis();
+                            allAdded &= addServerCache(htable, entry.getRegionInfo().getStartKey(), request);
+                            long timeMs = System.currentTimeMillis() - startTime;
+                            getServerBroadcastMetrics(entry.getHostnamePort()).update(cachePtr.getLength(), timeMs);
+                            if (LOG.isDebugEnabled()) {LOG.debug("Cache " + idToString(cacheId) + " of " + cachePtr.getLength() + " bytes sent to " + entry.getHostnamePort() + " in " + timeMs + " ms");}
+                        }
+                        return allAdded;
+                    }
+
+                    /**
+                     * Defines the grouping for round robin behavior.  All threads spawned to process
+                     * this scan will be grouped together and time sliced with other simultaneously
+                     * executing parallel scans.
+                     */
+                    @Override
+                    public Object getJobId() {
+                        return ServerCacheClient.this;
+                    }
+                }));
+            }
             
             hashCacheSpec = new ServerCache(cacheId,servers,cachePtr.getLength());
-            // Execute in parallel
+            // Execute in parallel, giving up once the timeout has passed for all of them together
             int timeoutMs = services.getProps().getInt(QueryServices.THREAD_TIMEOUT_MS_ATTRIB, QueryServicesOptions.DEFAULT_THREAD_TIMEOUT_MS);
+            long deadline = System.currentTimeMillis() + timeoutMs;
             for (Future<Boolean> future : futures) {
-                future.get(timeoutMs, TimeUnit.MILLISECONDS);
+                future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
             }
             
             cacheUsingTableRefMap.put(Bytes.mapKey(cacheId), cacheUsingTableRef);
@@ -267,6 +340,36 @@ public class ServerCacheClient {
         return hashCacheSpec;
     }
     
+    /**
+     * Send the cache to the region server hosting the region with the given start key
+     * @return true if the cache was added
+     */
+    private static boolean addServerCache(HTableInterface htable, byte[] key, final AddServerCacheRequest request) throws Exception {
+        final Map<byte[], AddServerCacheResponse> results;
+        try {
+            results = htable.coprocessorService(ServerCachingService.class, key, key, 
+                        new Batch.Call<ServerCachingService, AddServerCacheResponse>() {
+                            @Override
+                            public AddServerCacheResponse call(ServerCachingService instance) throws IOException {
+                                ServerRpcController controller = new ServerRpcController();
+                                BlockingRpcCallback<AddServerCacheResponse> rpcCallback =
+                                        new BlockingRpcCallback<AddServerCacheResponse>();
+                                instance.addServerCache(controller, request, rpcCallback);
+                                if(controller.getFailedOn() != null) {
+                                    throw controller.getFailedOn();
+                                }
+                                return rpcCallback.get(); 
+                            }
+                          });
+        } catch (Throwable t) {
+            throw new Exception(t);
+        }
+        if(results != null && results.size() == 1){
+            return results.values().iterator().next().getReturn();
+        }
+        return false;
+    }
+    
     /**
      * Remove the cached table from all region servers
      * @param cacheId unique identifier for the hash join (returned from {@link #addHashCache(HTable, Scan, Set)})
@@ -23,11 +23,13 @@ import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
 
 import com.google.common.cache.*;
 import org.apache.phoenix.coprocessor.ServerCachingProtocol.ServerCacheFactory;
 import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
 import org.apache.phoenix.memory.MemoryManager;
+import org.apache.phoenix.memory.MemoryManager.ChunkType;
 import org.apache.phoenix.memory.MemoryManager.MemoryChunk;
 import org.apache.phoenix.util.Closeables;
 
@@ -81,7 +83,8 @@ public class TenantCacheImpl implements TenantCache {
     
     @Override
     public Closeable addServerCache(ImmutableBytesPtr cacheId, ImmutableBytesWritable cachePtr, ServerCacheFactory cacheFactory) throws SQLException {
-        MemoryChunk chunk = this.getMemoryManager().allocate(cachePtr.getLength());
+        MemoryChunk chunk = this.getMemoryManager().allocate(cachePtr.getLength(), cachePtr.getLength(),
+                ChunkType.SERVER_CACHE, Bytes.toStringBinary(cacheId.get(), cacheId.getOffset(), cacheId.getLength()));
         boolean success = false;
         try {
             Closeable element = cacheFactory.newCache(cachePtr, chunk);
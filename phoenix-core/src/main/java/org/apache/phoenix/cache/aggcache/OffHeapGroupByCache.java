@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.cache.aggcache;
+
+import static org.apache.phoenix.query.QueryConstants.AGG_TIMESTAMP;
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN;
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_FAMILY;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.cache.GlobalCache;
+import org.apache.phoenix.coprocessor.BaseRegionScanner;
+import org.apache.phoenix.coprocessor.GroupByCache;
+import org.apache.phoenix.expression.aggregator.Aggregator;
+import org.apache.phoenix.expression.aggregator.FixedWidthAggregator;
+import org.apache.phoenix.expression.aggregator.ServerAggregators;
+import org.apache.phoenix.memory.InsufficientMemoryException;
+import org.apache.phoenix.memory.MemoryManager;
+import org.apache.phoenix.memory.MemoryManager.ChunkType;
+import org.apache.phoenix.memory.MemoryManager.MemoryChunk;
+import org.apache.phoenix.util.DirectBufferUtil;
+import org.apache.phoenix.util.KeyValueUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.Closeables;
+
+/**
+ *
+ * Cache for distinct values and their aggregations kept in direct buffers outside of the
+ * Java heap, so that a region with millions of distinct groups doesn't fill the heap with
+ * a key and an aggregator object graph per group. Only usable when the state of every
+ * aggregator is of fixed width (see {@link FixedWidthAggregator}), as the state of a
+ * group is stored inline with its key.
+ *
+ * The groups are kept in two buffers:
+ * <ul>
+ * <li>an entry buffer to which each new group is appended as its key length, key bytes
+ * and aggregator states, and</li>
+ * <li>an open addressing hash table with linear probing, in which each slot holds the
+ * hash of a key and the offset of its entry plus one, with zero denoting an empty slot.</li>
+ * </ul>
+ * A single set of aggregators is used for all groups: {@link #cache(ImmutableBytesWritable)}
+ * reads the state of the group into them, and the state is written back into the entry
+ * buffer on the next call. Growing either buffer charges the memory manager for the exact
+ * number of bytes of the new buffer before allocating it, so the memory used is accounted
+ * for exactly rather than estimated. Buffers are freed as soon as they're replaced or the
+ * cache is closed, rather than once they're garbage collected. Like the in-memory cache, it doesn't spill and throws
+ * if the memory manager can't provide enough memory.
+ *
+ *
+ * @since 4.1
+ */
+public class OffHeapGroupByCache implements GroupByCache {
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapGroupByCache.class);
+    // Hash of the key, followed by the entry offset plus one
+    private static final int SLOT_SIZE = Bytes.SIZEOF_INT * 2;
+    private static final int MIN_SLOTS = 16;
+    // Largest table that may still be doubled within the capacity of a buffer
+    private static final int MAX_SLOTS = 1 << 27;
+    private static final int EST_KEY_SIZE = 16;
+    // Grow the table when it's half full, to keep probe sequences short
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final ServerAggregators aggregators;
+    private final Aggregator[] rowAggregators;
+    private final int[] stateOffsets;
+    private final int stateSize;
+    private final MemoryChunk chunk;
+
+    private ByteBuffer slots;
+    private int slotMask;
+    private ByteBuffer entries;
+    private int entriesLength;
+    private int size;
+    // Offset of the entry whose state is held by the row aggregators, or -1 if none
+    private int currentEntry = -1;
+
+    /**
+     * Whether or not the state of all of the aggregators is of fixed width, which is
+     * required for the groups to be kept off heap
+     */
+    public static boolean isSupported(Aggregator[] aggregators) {
+        for (Aggregator aggregator : aggregators) {
+            if (!(aggregator instanceof FixedWidthAggregator) || ((FixedWidthAggregator)aggregator).getStateByteSize() < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public OffHeapGroupByCache(RegionCoprocessorEnvironment env, ImmutableBytesWritable tenantId, ServerAggregators aggregators, int estDistVals) {
+        this(GlobalCache.getTenantCache(env, tenantId).getMemoryManager(), aggregators,
+                aggregators.newAggregators(env.getConfiguration()), estDistVals);
+    }
+
+    OffHeapGroupByCache(MemoryManager memoryManager, ServerAggregators aggregators, Aggregator[] rowAggregators, int estDistVals) {
+        if (!isSupported(rowAggregators)) {
+            throw new IllegalArgumentException("Aggregators must have state of fixed width: " + aggregators);
+        }
+        this.aggregators = aggregators;
+        this.rowAggregators = rowAggregators;
+        this.stateOffsets = new int[rowAggregators.length];
+        int stateSize = 0;
+        for (int i = 0; i < rowAggregators.length; i++) {
+            stateOffsets[i] = stateSize;
+            stateSize += ((FixedWidthAggregator)rowAggregators[i]).getStateByteSize();
+        }
+        this.stateSize = stateSize;
+        int nSlots = MIN_SLOTS;
+        while (nSlots * LOAD_FACTOR < estDistVals && nSlots < MAX_SLOTS) {
+            nSlots <<= 1;
+        }
+        int entriesCapacity = (int)Math.min(Integer.MAX_VALUE,
+                (long)Math.max(MIN_SLOTS, estDistVals) * (Bytes.SIZEOF_INT + EST_KEY_SIZE + stateSize));
+        long nBytes = (long)nSlots * SLOT_SIZE + entriesCapacity;
+        this.chunk = memoryManager.allocate(nBytes, nBytes, ChunkType.GROUP_BY, null);
+        this.slots = ByteBuffer.allocateDirect(nSlots * SLOT_SIZE);
+        this.slotMask = nSlots - 1;
+        this.entries = ByteBuffer.allocateDirect(entriesCapacity);
+    }
+
+    private static int hash(byte[] b, int offset, int length) {
+        int hash = Bytes.hashCode(b, offset, length);
+        // Spread the high bits down, as only the low bits select the slot
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean isKeyEqual(int entry, byte[] b, int offset, int length) {
+        if (entries.getInt(entry) != length) {
+            return false;
+        }
+        int keyOffset = entry + Bytes.SIZEOF_INT;
+        for (int i = 0; i < length; i++) {
+            if (entries.get(keyOffset + i) != b[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getStateOffset(int entry) {
+        return entry + Bytes.SIZEOF_INT + entries.getInt(entry);
+    }
+
+    private void readState(int entry) {
+        int stateOffset = getStateOffset(entry);
+        for (int i = 0; i < rowAggregators.length; i++) {
+            ((FixedWidthAggregator)rowAggregators[i]).readState(entries, stateOffset + stateOffsets[i]);
+        }
+    }
+
+    private void writeCurrentState() {
+        if (currentEntry < 0) {
+            return;
+        }
+        int stateOffset = getStateOffset(currentEntry);
+        for (int i = 0; i < rowAggregators.length; i++) {
+            ((FixedWidthAggregator)rowAggregators[i]).writeState(entries, stateOffset + stateOffsets[i]);
+        }
+        currentEntry = -1;
+    }
+
+    /**
+     * Replace a buffer by a bigger one, charging the memory manager for both while the
+     * contents are copied and for only the new one afterwards.
+     */
+    private ByteBuffer grow(ByteBuffer buffer, long newCapacity, int length) {
+        if (newCapacity > Integer.MAX_VALUE) {
+            throw new InsufficientMemoryException("Unable to grow the off-heap group by cache beyond " + Integer.MAX_VALUE + " bytes");
+        }
+        long otherCapacity = slots.capacity() + entries.capacity() - buffer.capacity();
+        chunk.resize(otherCapacity + buffer.capacity() + newCapacity);
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect((int)newCapacity);
+        ByteBuffer source = buffer.duplicate();
+        source.position(0);
+        source.limit(length);
+        newBuffer.put(source);
+        DirectBufferUtil.free(buffer);
+        chunk.resize(otherCapacity + newCapacity);
+        return newBuffer;
+    }
+
+    private int addEntry(byte[] b, int offset, int length) {
+        int entrySize = Bytes.SIZEOF_INT + length + stateSize;
+        long requiredCapacity = (long)entriesLength + entrySize;
+        if (requiredCapacity > entries.capacity()) {
+            long newCapacity = Math.max(requiredCapacity, Math.min(Integer.MAX_VALUE, (long)entries.capacity() * 2));
+            entries = grow(entries, newCapacity, entriesLength);
+        }
+        int entry = entriesLength;
+        entries.putInt(entry, length);
+        for (int i = 0; i < length; i++) {
+            entries.put(entry + Bytes.SIZEOF_INT + i, b[offset + i]);
+        }
+        entriesLength += entrySize;
+        return entry;
+    }
+
+    private void rehash() {
+        if (slotMask + 1 >= MAX_SLOTS) {
+            throw new InsufficientMemoryException("Unable to grow the off-heap group by cache beyond " + MAX_SLOTS + " slots");
+        }
+        int nSlots = (slotMask + 1) * 2;
+        long otherCapacity = entries.capacity();
+        chunk.resize(otherCapacity + slots.capacity() + (long)nSlots * SLOT_SIZE);
+        ByteBuffer newSlots = ByteBuffer.allocateDirect(nSlots * SLOT_SIZE);
+        int newSlotMask = nSlots - 1;
+        for (int slot = 0; slot < slots.capacity(); slot += SLOT_SIZE) {
+            int entryRef = slots.getInt(slot + Bytes.SIZEOF_INT);
+            if (entryRef != 0) {
+                int hash = slots.getInt(slot);
+                int index = hash & newSlotMask;
+                while (newSlots.getInt(index * SLOT_SIZE + Bytes.SIZEOF_INT) != 0) {
+                    index = (index + 1) & newSlotMask;
+                }
+                newSlots.putInt(index * SLOT_SIZE, hash);
+                newSlots.putInt(index * SLOT_SIZE + Bytes.SIZEOF_INT, entryRef);
+            }
+        }
+        DirectBufferUtil.free(slots);
+        slots = newSlots;
+        slotMask = newSlotMask;
+        chunk.resize(otherCapacity + slots.capacity());
+    }
+
+    @Override
+    public Aggregator[] cache(ImmutableBytesWritable cacheKey) {
+        writeCurrentState();
+        byte[] b = cacheKey.get();
+        int offset = cacheKey.getOffset();
+        int length = cacheKey.getLength();
+        int hash = hash(b, offset, length);
+        int index = hash & slotMask;
+        int entryRef;
+        while ((entryRef = slots.getInt(index * SLOT_SIZE + Bytes.SIZEOF_INT)) != 0) {
+            if (slots.getInt(index * SLOT_SIZE) == hash && isKeyEqual(entryRef - 1, b, offset, length)) {
+                currentEntry = entryRef - 1;
+                readState(currentEntry);
+                return rowAggregators;
+            }
+            index = (index + 1) & slotMask;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Adding new aggregate bucket for row key "
+                    + Bytes.toStringBinary(b, offset, length));
+        }
+        int entry = addEntry(b, offset, length);
+        slots.putInt(index * SLOT_SIZE, hash);
+        slots.putInt(index * SLOT_SIZE + Bytes.SIZEOF_INT, entry + 1);
+        if (++size > (slotMask + 1) * LOAD_FACTOR) {
+            rehash();
+        }
+        aggregators.reset(rowAggregators);
+        currentEntry = entry;
+        return rowAggregators;
+    }
+
+    @Override
+    public RegionScanner getScanner(final RegionScanner s) {
+        writeCurrentState();
+        // Release the hash table, as the groups are only iterated over from here on
+        final long entriesCapacity = entries.capacity();
+        DirectBufferUtil.free(slots);
+        slots = null;
+        chunk.resize(entriesCapacity);
+
+        return new BaseRegionScanner() {
+            private int entry = 0;
+
+            @Override
+            public HRegionInfo getRegionInfo() {
+                return s.getRegionInfo();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    s.close();
+                } finally {
+                    Closeables.closeQuietly(OffHeapGroupByCache.this);
+                }
+            }
+
+            @Override
+            public boolean next(List<Cell> results) throws IOException {
+                if (entry >= entriesLength) {
+                    return false;
+                }
+                int length = entries.getInt(entry);
+                byte[] key = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    key[i] = entries.get(entry + Bytes.SIZEOF_INT + i);
+                }
+                readState(entry);
+                byte[] value = aggregators.toBytes(rowAggregators);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Adding new distinct group: " + Bytes.toStringBinary(key)
+                            + " with aggregators " + Arrays.asList(rowAggregators).toString()
+                            + " value = " + Bytes.toStringBinary(value));
+                }
+                results.add(KeyValueUtil.newKeyValue(key, 0, key.length, SINGLE_COLUMN_FAMILY,
+                        SINGLE_COLUMN, AGG_TIMESTAMP, value, 0, value.length));
+                entry += Bytes.SIZEOF_INT + length + stateSize;
+                return entry < entriesLength;
+            }
+
+            @Override
+            public long getMaxResultSize() {
+                return s.getMaxResultSize();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of bytes of off-heap memory currently charged to the memory manager
+     */
+    long getChargedSize() {
+        return chunk.getSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Free the direct buffers right away, as they take too little heap space for a
+        // garbage collection to be likely to free them before the direct memory runs out
+        DirectBufferUtil.free(slots);
+        DirectBufferUtil.free(entries);
+        slots = null;
+        entries = null;
+        chunk.close();
+    }
+}
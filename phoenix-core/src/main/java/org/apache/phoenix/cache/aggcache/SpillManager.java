@@ -45,6 +45,8 @@ import org.apache.phoenix.schema.ValueBitSet;
 import org.apache.phoenix.schema.tuple.SingleKeyValueTuple;
 import org.apache.phoenix.schema.tuple.Tuple;
 import org.apache.phoenix.util.KeyValueUtil;
+import org.apache.phoenix.util.SpillCodec;
+import org.apache.phoenix.util.SpillCodec.SpillType;
 import org.apache.phoenix.util.TupleUtil;
 
 /**
@@ -115,11 +117,14 @@ public class SpillManager implements Closeable {
             // Ensure that a single element fits onto a page!!!
             Preconditions.checkArgument(SpillFile.DEFAULT_PAGE_SIZE > estValueSize);
 
+            // Spilled pages are checksummed, but not compressed, since pages are fixed size and
+            // rewritten in place, so compressing them would not reduce the bytes written to disk
+            SpillCodec codec = SpillCodec.getCodec(conf, SpillType.GROUP_BY);
             // Create a list of spillFiles
             // Each Spillfile only handles up to 2GB data
             for (int i = 0; i < numSpillFiles; i++) {
                 SpillFile file = SpillFile.createSpillFile();
-                spillMaps.add(new SpillMap(file, SpillFile.DEFAULT_PAGE_SIZE, estValueSize, cache));
+                spillMaps.add(new SpillMap(file, SpillFile.DEFAULT_PAGE_SIZE, estValueSize, cache, codec));
             }
         } catch (IOException ioe) {
             throw new RuntimeException("Could not init the SpillManager");
@@ -23,6 +23,7 @@ import java.nio.BufferOverflowException;
 import java.nio.MappedByteBuffer;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -38,6 +39,7 @@ import com.google.common.hash.BloomFilter;
 import com.google.common.hash.Funnels;
 
 import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
+import org.apache.phoenix.util.SpillCodec;
 
 /**
  * Class implements an active spilled partition serialized tuples are first written into an in-memory data structure
@@ -57,13 +59,16 @@ public class SpillMap extends AbstractMap<ImmutableBytesPtr, byte[]> implements
     // Directory of hash buckets --> extendible hashing implementation
     private MappedByteBufferMap[] directory;
     private final SpillableGroupByCache.QueryCache cache;
+    private final SpillCodec codec;
 
-    public SpillMap(SpillFile file, int thresholdBytes, int estValueSize, SpillableGroupByCache.QueryCache cache)
-            throws IOException {
-        this.thresholdBytes = thresholdBytes - Bytes.SIZEOF_INT;
+    public SpillMap(SpillFile file, int thresholdBytes, int estValueSize, SpillableGroupByCache.QueryCache cache,
+            SpillCodec codec) throws IOException {
+        // Leave room for the page header: checksum, payload length and number of elements
+        this.thresholdBytes = thresholdBytes - 3 * Bytes.SIZEOF_INT;
         this.pageInserts = thresholdBytes / estValueSize;
         this.spillFile = file;
         this.cache = cache;
+        this.codec = codec;
 
         // Init the e-hashing directory structure
         globalDepth = 1;
@@ -71,7 +76,7 @@ public class SpillMap extends AbstractMap<ImmutableBytesPtr, byte[]> implements
 
         for (int i = 0; i < directory.length; i++) {
             // Create an empty bucket list
-            directory[i] = new MappedByteBufferMap(i, this.thresholdBytes, pageInserts, file);
+            directory[i] = new MappedByteBufferMap(i, this.thresholdBytes, pageInserts, file, codec);
             directory[i].flushBuffer();
         }
         directory[0].pageIn();
@@ -119,8 +124,8 @@ public class SpillMap extends AbstractMap<ImmutableBytesPtr, byte[]> implements
         int b2Index = Math.max(index, tmpIndex);
 
         // Create two new split buckets
-        MappedByteBufferMap b1 = new MappedByteBufferMap(b1Index, thresholdBytes, pageInserts, spillFile);
-        MappedByteBufferMap b2 = new MappedByteBufferMap(b2Index, thresholdBytes, pageInserts, spillFile);
+        MappedByteBufferMap b1 = new MappedByteBufferMap(b1Index, thresholdBytes, pageInserts, spillFile, codec);
+        MappedByteBufferMap b2 = new MappedByteBufferMap(b2Index, thresholdBytes, pageInserts, spillFile, codec);
 
         // redistribute old elements into b1 and b2
         for (Entry<ImmutableBytesPtr, byte[]> element : byteMap.pageMap.entrySet()) {
@@ -310,6 +315,7 @@ public class SpillMap extends AbstractMap<ImmutableBytesPtr, byte[]> implements
      */
     private static class MappedByteBufferMap {
         private SpillFile spillFile;
+        private final SpillCodec codec;
         private int pageIndex;
         private final int thresholdBytes;
         private long totalResultSize;
@@ -323,8 +329,9 @@ public class SpillMap extends AbstractMap<ImmutableBytesPtr, byte[]> implements
         // Used to determine is an element was written to this page before or not
         BloomFilter<byte[]> bFilter;
 
-        public MappedByteBufferMap(int id, int thresholdBytes, int pageInserts, SpillFile spillFile) {
+        public MappedByteBufferMap(int id, int thresholdBytes, int pageInserts, SpillFile spillFile, SpillCodec codec) {
             this.spillFile = spillFile;
+            this.codec = codec;
             // size threshold of a page
             this.thresholdBytes = thresholdBytes;
             this.pageIndex = id;
@@ -369,16 +376,23 @@ public class SpillMap extends AbstractMap<ImmutableBytesPtr, byte[]> implements
                 // Only flush if page was changed
                 if (dirtyPage) {
                     Collection<byte[]> values = pageMap.values();
-                    buffer = spillFile.getPage(pageIndex);
-                    buffer.clear();
-                    // number of elements
-                    buffer.putInt(values.size());
+                    // Serialize the page first so that we can checksum it
+                    int pageSize = Bytes.SIZEOF_INT;
+                    for (byte[] value : values) {
+                        pageSize += Bytes.SIZEOF_INT + value.length;
+                    }
+                    byte[] page = new byte[pageSize];
+                    int offset = Bytes.putInt(page, 0, values.size());
                     for (byte[] value : values) {
-                        // element length
-                        buffer.putInt(value.length);
-                        // element
-                        buffer.put(value, 0, value.length);
+                        offset = Bytes.putInt(page, offset, value.length);
+                        offset = Bytes.putBytes(page, offset, value, 0, value.length);
                     }
+                    buffer = spillFile.getPage(pageIndex);
+                    buffer.clear();
+                    buffer.putInt(codec.checksum(page, 0, offset));
+                    buffer.putInt(offset);
+                    buffer.put(page, 0, offset);
+                    codec.trackBytes(offset, offset + 2 * Bytes.SIZEOF_INT);
                 }
                 buffer = null;
                 // Reset page stats
@@ -394,11 +408,22 @@ public class SpillMap extends AbstractMap<ImmutableBytesPtr, byte[]> implements
             if (!pagedIn) {
                 // Map the memory region
                 MappedByteBuffer buffer = spillFile.getPage(pageIndex);
-                int numElements = buffer.getInt();
+                int checksum = buffer.getInt();
+                byte[] page = new byte[buffer.getInt()];
+                buffer.get(page);
+                try {
+                    codec.verifyChecksum(page, 0, page.length, checksum);
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+                // A page that was never flushed is empty
+                int numElements = page.length == 0 ? 0 : Bytes.toInt(page, 0);
+                int offset = Bytes.SIZEOF_INT;
                 for (int i = 0; i < numElements; i++) {
-                    int kvSize = buffer.getInt();
-                    byte[] data = new byte[kvSize];
-                    buffer.get(data, 0, kvSize);
+                    int kvSize = Bytes.toInt(page, offset);
+                    offset += Bytes.SIZEOF_INT;
+                    byte[] data = Arrays.copyOfRange(page, offset, offset + kvSize);
+                    offset += kvSize;
                     try {
                         pageMap.put(SpillManager.getKey(data), data);
                         totalResultSize += (data.length + Bytes.SIZEOF_INT);
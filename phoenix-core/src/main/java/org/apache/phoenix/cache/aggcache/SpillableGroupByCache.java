@@ -55,6 +55,7 @@ import org.apache.phoenix.expression.aggregator.Aggregator;
 import org.apache.phoenix.expression.aggregator.ServerAggregators;
 import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
 import org.apache.phoenix.memory.InsufficientMemoryException;
+import org.apache.phoenix.memory.MemoryManager.ChunkType;
 import org.apache.phoenix.memory.MemoryManager.MemoryChunk;
 import org.apache.phoenix.util.KeyValueUtil;
 
@@ -148,7 +149,8 @@ public class SpillableGroupByCache implements GroupByCache {
         final int maxCacheSize = Math.max(minSizeNum, Math.min(maxSizeNum, estSizeNum));
         final int estSize = GroupedAggregateRegionObserver.sizeOfUnorderedGroupByMap(maxCacheSize, estValueSize);
         try {
-            this.chunk = tenantCache.getMemoryManager().allocate(estSize);
+            this.chunk = tenantCache.getMemoryManager().allocate(estSize, estSize, ChunkType.GROUP_BY,
+                    env.getRegion().getRegionNameAsString());
         } catch (InsufficientMemoryException ime) {
             logger.error("Requested Map size exceeds memory limit, please decrease max size via config paramter: "
                     + GROUPBY_MAX_CACHE_SIZE_ATTRIB);
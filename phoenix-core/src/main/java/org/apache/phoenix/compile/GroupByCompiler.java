@@ -35,6 +35,8 @@ import org.apache.phoenix.expression.Expression;
 import org.apache.phoenix.parse.AliasedNode;
 import org.apache.phoenix.parse.ParseNode;
 import org.apache.phoenix.parse.SelectStatement;
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.query.QueryServicesOptions;
 import org.apache.phoenix.schema.AmbiguousColumnException;
 import org.apache.phoenix.schema.ColumnNotFoundException;
 import org.apache.phoenix.schema.PDataType;
@@ -259,10 +261,57 @@ public class GroupByCompiler {
         // Set attribute with serialized expressions for coprocessor
         // FIXME: what if group by is empty (i.e. only literals)?
         GroupedAggregateRegionObserver.serializeIntoScan(context.getScan(), groupExprAttribName, keyExpressions);
+        if (BaseScannerRegionObserver.UNORDERED_GROUP_BY_EXPRESSIONS.equals(groupExprAttribName)) {
+            long partialFlushThreshold = context.getConnection().getQueryServices().getProps().getLong(
+                    QueryServices.GROUPBY_PARTIAL_FLUSH_THRESHOLD_ATTRIB, QueryServicesOptions.DEFAULT_GROUPBY_PARTIAL_FLUSH_THRESHOLD);
+            // Rather than spilling, have the server send partial aggregates whenever its cache is full,
+            // since the client merges the groups from the different regions anyway
+            if (partialFlushThreshold > 0 && estimateDistinctValues(expressions) > partialFlushThreshold) {
+                context.getScan().setAttribute(BaseScannerRegionObserver.GROUP_BY_PARTIAL_FLUSH, PDataType.TRUE_BYTES);
+            }
+        }
         GroupBy groupBy = new GroupBy.GroupByBuilder().setScanAttribName(groupExprAttribName).setExpressions(expressions).setKeyExpressions(keyExpressions).build();
         return groupBy;
     }
     
+    /**
+     * Estimate the number of distinct groups from the number of distinct values of the
+     * types of the group by expressions.
+     * @return the estimate, or Long.MAX_VALUE if the number of distinct groups is unbounded
+     */
+    static long estimateDistinctValues(List<Expression> expressions) {
+        long estimate = 1;
+        for (Expression expression : expressions) {
+            long distinctValues = getDistinctValueCount(expression.getDataType());
+            if (distinctValues == Long.MAX_VALUE) {
+                return Long.MAX_VALUE;
+            }
+            if (expression.isNullable()) {
+                distinctValues++;
+            }
+            if (estimate > Long.MAX_VALUE / distinctValues) {
+                return Long.MAX_VALUE;
+            }
+            estimate *= distinctValues;
+        }
+        return estimate;
+    }
+    
+    private static long getDistinctValueCount(PDataType type) {
+        switch (type) {
+        case BOOLEAN:
+            return 2;
+        case TINYINT:
+        case UNSIGNED_TINYINT:
+            return 1L << Byte.SIZE;
+        case SMALLINT:
+        case UNSIGNED_SMALLINT:
+            return 1L << Short.SIZE;
+        default:
+            return Long.MAX_VALUE;
+        }
+    }
+    
     private static PDataType getKeyType(Expression expression) {
         PDataType type = expression.getDataType();
         if (!expression.isNullable() || !type.isFixedWidth()) {
@@ -612,7 +612,45 @@ public class JoinCompiler {
             return NODE_FACTORY.select(from, hint, false, select, getPreFiltersCombined(), null, null, null, null, 0, false);
         }
         
+        /**
+         * Returns the subquery for this table ordered by its side of the join conditions,
+         * in the order the conditions appear in. Not supported if the table is itself a subquery.
+         */
+        public SelectStatement getAsSubqueryOrderedByJoinKey() throws SQLException {
+            if (subquery != null)
+                throw new SQLFeatureNotSupportedException("Subqueries not supported.");
+            
+            List<TableNode> from = new ArrayList<TableNode>(1);
+            from.add(tableNode);
+            return NODE_FACTORY.select(from, hint, false, select, getPreFiltersCombined(), null, null, getJoinKeyOrderBy(false), null, 0, false);
+        }
+        
+        /**
+         * Returns an ascending, nulls first ORDER BY on either side of the join conditions,
+         * in the order the conditions appear in.
+         * @param left true for the side of the tables to the left of this table, and
+         * false for the side of this table
+         */
+        public List<OrderByNode> getJoinKeyOrderBy(boolean left) {
+            List<OrderByNode> orderBy = new ArrayList<OrderByNode>(conditions.size());
+            for (ParseNode condition : conditions) {
+                EqualParseNode equalNode = (EqualParseNode) condition;
+                orderBy.add(NODE_FACTORY.orderBy(left ? equalNode.getLHS() : equalNode.getRHS(), false, true));
+            }
+            return orderBy;
+        }
+        
         public Pair<List<Expression>, List<Expression>> compileJoinConditions(StatementContext context, ColumnResolver leftResolver, ColumnResolver rightResolver) throws SQLException {
+            return compileJoinConditions(context, leftResolver, rightResolver, true);
+        }
+        
+        /**
+         * Compiles both sides of the join conditions.
+         * @param sortByWidth true to sort the conditions so that fixed width expressions come
+         * first, which leads to a more compact hash key, and false to keep the conditions in
+         * the order they appear in
+         */
+        public Pair<List<Expression>, List<Expression>> compileJoinConditions(StatementContext context, ColumnResolver leftResolver, ColumnResolver rightResolver, boolean sortByWidth) throws SQLException {
         	ColumnResolver resolver = context.getResolver();
             List<Pair<Expression, Expression>> compiled = new ArrayList<Pair<Expression, Expression>>(conditions.size());
         	context.setResolver(leftResolver);
@@ -644,30 +682,32 @@ public class JoinCompiler {
                 p.setSecond(right);
             }
             context.setResolver(resolver); // recover the resolver
-            Collections.sort(compiled, new Comparator<Pair<Expression, Expression>>() {
-                @Override
-                public int compare(Pair<Expression, Expression> o1, Pair<Expression, Expression> o2) {
-                    Expression e1 = o1.getFirst();
-                    Expression e2 = o2.getFirst();
-                    boolean isFixed1 = e1.getDataType().isFixedWidth();
-                    boolean isFixed2 = e2.getDataType().isFixedWidth();
-                    boolean isFixedNullable1 = e1.isNullable() &&isFixed1;
-                    boolean isFixedNullable2 = e2.isNullable() && isFixed2;
-                    if (isFixedNullable1 == isFixedNullable2) {
-                        if (isFixed1 == isFixed2) {
-                            return 0;
-                        } else if (isFixed1) {
-                            return -1;
-                        } else {
+            if (sortByWidth) {
+                Collections.sort(compiled, new Comparator<Pair<Expression, Expression>>() {
+                    @Override
+                    public int compare(Pair<Expression, Expression> o1, Pair<Expression, Expression> o2) {
+                        Expression e1 = o1.getFirst();
+                        Expression e2 = o2.getFirst();
+                        boolean isFixed1 = e1.getDataType().isFixedWidth();
+                        boolean isFixed2 = e2.getDataType().isFixedWidth();
+                        boolean isFixedNullable1 = e1.isNullable() &&isFixed1;
+                        boolean isFixedNullable2 = e2.isNullable() && isFixed2;
+                        if (isFixedNullable1 == isFixedNullable2) {
+                            if (isFixed1 == isFixed2) {
+                                return 0;
+                            } else if (isFixed1) {
+                                return -1;
+                            } else {
+                                return 1;
+                            }
+                        } else if (isFixedNullable1) {
                             return 1;
+                        } else {
+                            return -1;
                         }
-                    } else if (isFixedNullable1) {
-                        return 1;
-                    } else {
-                        return -1;
                     }
-                }
-            });
+                });
+            }
             List<Expression> lConditions = new ArrayList<Expression>(compiled.size());
             List<Expression> rConditions = new ArrayList<Expression>(compiled.size());
             for (Pair<Expression, Expression> pair : compiled) {
@@ -1102,6 +1142,12 @@ public class JoinCompiler {
         return NODE_FACTORY.select(statement.getFrom().subList(0, 1), statement.getHint(), statement.isDistinct(), statement.getSelect(), join.getPreFiltersCombined(), statement.getGroupBy(), statement.getHaving(), statement.getOrderBy(), statement.getLimit(), statement.getBindCount(), statement.isAggregate());
     }
     
+    // Get the main table select statement with fixed-up select and where nodes, ordered by its side of the join conditions of the first join table.
+    public static SelectStatement getSubqueryForMainTableOrderedByJoinKey(SelectStatement statement, JoinSpec join) {
+        List<OrderByNode> orderBy = join.getJoinTables().get(0).getJoinKeyOrderBy(true);
+        return NODE_FACTORY.select(statement.getFrom().subList(0, 1), statement.getHint(), false, join.getSelect(), join.getPreFiltersCombined(), null, null, orderBy, null, statement.getBindCount(), false);
+    }
+    
     // Get the last join table select statement with fixed-up select and where nodes.
     // Currently does NOT support last join table as a subquery.
     public static SelectStatement getSubqueryForLastJoinTable(SelectStatement statement, JoinSpec join) throws SQLException {
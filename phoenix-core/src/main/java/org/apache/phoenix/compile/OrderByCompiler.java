@@ -77,6 +77,18 @@ public class OrderByCompiler {
     public static OrderBy compile(StatementContext context,
                                   FilterableStatement statement,
                                   GroupBy groupBy, Integer limit) throws SQLException {
+        return compile(context, statement, groupBy, limit, true);
+    }
+
+    /**
+     * Same as {@link #compile(StatementContext, FilterableStatement, GroupBy, Integer)}
+     * @param isInRowKeyOrder true if the rows being ordered come in row key order, in
+     * which case an ORDER BY that matches the row key is optimized out, and false if they
+     * don't, as is the case for the rows of a join done on the client
+     */
+    public static OrderBy compile(StatementContext context,
+                                  FilterableStatement statement,
+                                  GroupBy groupBy, Integer limit, boolean isInRowKeyOrder) throws SQLException {
         List<OrderByNode> orderByNodes = statement.getOrderBy();
         if (orderByNodes.isEmpty()) {
             return OrderBy.EMPTY_ORDER_BY;
@@ -114,7 +126,7 @@ public class OrderByCompiler {
             return OrderBy.EMPTY_ORDER_BY;
         }
         // If we're ordering by the order returned by the scan, we don't need an order by
-        if (visitor.isOrderPreserving()) {
+        if (isInRowKeyOrder && visitor.isOrderPreserving()) {
             if (visitor.isReverse()) {
                 if (context.getConnection().getQueryServices().supportsFeature(Feature.REVERSE_SCAN)) {
                     return OrderBy.REV_ROW_KEY_ORDER_BY;
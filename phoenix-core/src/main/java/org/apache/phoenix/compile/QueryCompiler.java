@@ -19,6 +19,7 @@ package org.apache.phoenix.compile;
 
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -34,7 +35,10 @@ import org.apache.phoenix.compile.OrderByCompiler.OrderBy;
 import org.apache.phoenix.execute.AggregatePlan;
 import org.apache.phoenix.execute.BasicQueryPlan;
 import org.apache.phoenix.execute.HashJoinPlan;
+import org.apache.phoenix.execute.HashJoinPlan.FallbackPlanCompiler;
 import org.apache.phoenix.execute.ScanPlan;
+import org.apache.phoenix.execute.SortMergeJoinPlan;
+import org.apache.phoenix.expression.CoerceExpression;
 import org.apache.phoenix.expression.Expression;
 import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
 import org.apache.phoenix.iterate.ParallelIterators.ParallelIteratorFactory;
@@ -53,6 +57,7 @@ import org.apache.phoenix.schema.AmbiguousColumnException;
 import org.apache.phoenix.schema.ColumnNotFoundException;
 import org.apache.phoenix.schema.PDatum;
 import org.apache.phoenix.schema.PTable;
+import org.apache.phoenix.schema.SortOrder;
 import org.apache.phoenix.schema.TableRef;
 import org.apache.phoenix.util.ScanUtil;
 
@@ -144,6 +149,12 @@ public class QueryCompiler {
         
         boolean[] starJoinVector = join.getStarJoinVector();
         if (starJoinVector != null) {
+            if (!asSubquery && select.getHint().hasHint(Hint.USE_SORT_MERGE_JOIN)) {
+                QueryPlan plan = compileSortMergeJoinQuery(context, select, binds, join);
+                if (plan != null) {
+                    return plan;
+                }
+            }
             ProjectedPTableWrapper initialProjectedTable = join.createProjectedTable(join.getMainTable(), !asSubquery);
             PTableWrapper projectedTable = initialProjectedTable;
             int count = joinTables.size();
@@ -190,6 +201,21 @@ public class QueryCompiler {
                     fieldPositions[i + 1] = fieldPositions[i] + (tables[i] == null ? 0 : (tables[i].getColumns().size() - tables[i].getPKColumns().size()));
                 }
             }
+            // Fall back to a sort merge join if the hash table turns out not to fit in the server cache
+            FallbackPlanCompiler fallbackPlanCompiler = null;
+            if (!asSubquery && count == 1) {
+                final ColumnResolver fallbackResolver = context.getResolver();
+                final SelectStatement fallbackSelect = select;
+                final List<Object> fallbackBinds = new ArrayList<Object>(binds);
+                final JoinSpec fallbackJoin = join;
+                fallbackPlanCompiler = new FallbackPlanCompiler() {
+                    @Override
+                    public QueryPlan compile() throws SQLException {
+                        StatementContext fallbackContext = new StatementContext(statement, fallbackResolver, ScanUtil.newScan(originalScan));
+                        return compileSortMergeJoinQuery(fallbackContext, fallbackSelect, fallbackBinds, fallbackJoin);
+                    }
+                };
+            }
             if (needsProject) {
                 ScanProjector.serializeProjectorIntoScan(context.getScan(), JoinCompiler.getScanProjector(initialProjectedTable));
             }
@@ -199,7 +225,7 @@ public class QueryCompiler {
             BasicQueryPlan plan = compileSingleQuery(context, JoinCompiler.getSubqueryWithoutJoin(select, join), binds, parallelIteratorFactory);
             Expression postJoinFilterExpression = join.compilePostFilterExpression(context);
             HashJoinInfo joinInfo = new HashJoinInfo(projectedTable.getTable(), joinIds, joinExpressions, joinTypes, starJoinVector, tables, fieldPositions, postJoinFilterExpression);
-            return new HashJoinPlan(plan, joinInfo, hashExpressions, joinPlans);
+            return new HashJoinPlan(plan, joinInfo, hashExpressions, joinPlans, fallbackPlanCompiler);
         }
         
         JoinTable lastJoinTable = joinTables.get(joinTables.size() - 1);
@@ -238,6 +264,72 @@ public class QueryCompiler {
         throw new SQLFeatureNotSupportedException("Joins with pattern 'A right join B left join C' not supported.");
     }
     
+    /**
+     * Compiles a join of the main table with a single other table as a sort merge join
+     * @return the plan, or null if the join can't be done as a sort merge join
+     */
+    protected QueryPlan compileSortMergeJoinQuery(StatementContext context, SelectStatement select, List<Object> binds, JoinSpec join) throws SQLException {
+        List<JoinTable> joinTables = join.getJoinTables();
+        if (joinTables.size() != 1 || select.isAggregate() || select.isDistinct())
+            return null;
+        
+        JoinTable joinTable = joinTables.get(0);
+        JoinType type = joinTable.getType();
+        if ((type != JoinType.Inner && type != JoinType.Left) || joinTable.getSubquery() != null)
+            return null;
+        
+        ProjectedPTableWrapper lhsProjTable = join.createProjectedTable(join.getMainTable(), true);
+        ProjectedPTableWrapper rhsProjTable = join.createProjectedTable(joinTable.getTable(), false);
+        ColumnResolver lhsResolver = join.getColumnResolver(lhsProjTable);
+        ColumnResolver rhsResolver = join.getColumnResolver(rhsProjTable);
+        // Keep the conditions in the order of the ORDER BY of each side
+        Pair<List<Expression>, List<Expression>> joinConditions = joinTable.compileJoinConditions(context, lhsResolver, rhsResolver, false);
+        List<Expression> lhsKeyExpressions = getAscendingKeyExpressions(joinConditions.getFirst());
+        List<Expression> rhsKeyExpressions = getAscendingKeyExpressions(joinConditions.getSecond());
+        
+        Scan lhsScan = ScanUtil.newScan(originalScan);
+        ScanProjector.serializeProjectorIntoScan(lhsScan, JoinCompiler.getScanProjector(lhsProjTable));
+        StatementContext lhsCtx = new StatementContext(statement, lhsResolver, lhsScan);
+        lhsCtx.setCurrentTable(join.getMainTable());
+        join.projectColumns(lhsScan, join.getMainTable());
+        QueryPlan lhsPlan = compileSingleQuery(lhsCtx, JoinCompiler.getSubqueryForMainTableOrderedByJoinKey(select, join), binds, null);
+        
+        Scan rhsScan = ScanUtil.newScan(originalScan);
+        ScanProjector.serializeProjectorIntoScan(rhsScan, JoinCompiler.getScanProjector(rhsProjTable));
+        StatementContext rhsCtx = new StatementContext(statement, rhsResolver, rhsScan);
+        rhsCtx.setCurrentTable(joinTable.getTable());
+        join.projectColumns(rhsScan, joinTable.getTable());
+        QueryPlan rhsPlan = compileSingleQuery(rhsCtx, joinTable.getAsSubqueryOrderedByJoinKey(), binds, null);
+        
+        boolean hasPostReference = join.hasPostReference(joinTable.getTable());
+        PTableWrapper projectedTable = hasPostReference ? JoinCompiler.mergeProjectedTables(lhsProjTable, rhsProjTable, type == JoinType.Inner) : lhsProjTable;
+        int fieldPosition = lhsProjTable.getTable().getColumns().size() - lhsProjTable.getTable().getPKColumns().size();
+        context.setCurrentTable(join.getMainTable());
+        context.setResolver(join.getColumnResolver(projectedTable));
+        SelectStatement mainSelect = JoinCompiler.getSubqueryWithoutJoin(select, join);
+        BasicQueryPlan plan = compileSingleQuery(context, mainSelect, binds, null);
+        // The joined rows are in join key order rather than row key order
+        OrderBy orderBy = OrderByCompiler.compile(context, mainSelect, GroupBy.EMPTY_GROUP_BY, plan.getLimit(), false);
+        Expression postJoinFilterExpression = join.compilePostFilterExpression(context);
+        return new SortMergeJoinPlan(plan, orderBy, type, lhsPlan, rhsPlan, lhsKeyExpressions, rhsKeyExpressions,
+                projectedTable.getTable(), lhsProjTable.getTable(), hasPostReference ? rhsProjTable.getTable() : null, fieldPosition, postJoinFilterExpression);
+    }
+    
+    /**
+     * Coerce descending join key expressions to ascending, so that comparing the bytes of
+     * the keys of both sides orders them as each side is sorted.
+     */
+    private static List<Expression> getAscendingKeyExpressions(List<Expression> expressions) throws SQLException {
+        List<Expression> ascending = new ArrayList<Expression>(expressions.size());
+        for (Expression expression : expressions) {
+            if (expression.getSortOrder() == SortOrder.DESC) {
+                expression = CoerceExpression.create(expression, expression.getDataType(), SortOrder.ASC, expression.getMaxLength());
+            }
+            ascending.add(expression);
+        }
+        return ascending;
+    }
+    
     protected BasicQueryPlan compileSingleQuery(StatementContext context, SelectStatement select, List<Object> binds, ParallelIteratorFactory parallelIteratorFactory) throws SQLException{
         PhoenixConnection connection = statement.getConnection();
         ColumnResolver resolver = context.getResolver();
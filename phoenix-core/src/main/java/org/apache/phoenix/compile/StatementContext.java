@@ -21,12 +21,14 @@ import java.sql.SQLException;
 import java.text.Format;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.util.Pair;
 import org.apache.phoenix.jdbc.PhoenixConnection;
 import org.apache.phoenix.jdbc.PhoenixStatement;
+import org.apache.phoenix.job.JobManager.JobGroup;
 import org.apache.phoenix.query.*;
 import org.apache.phoenix.schema.*;
 import org.apache.phoenix.util.*;
@@ -60,6 +62,8 @@ public class StatementContext {
 
     private TableRef currentTable;
     private List<Pair<byte[], byte[]>> whereConditionColumns;
+    private JobGroup jobGroup;
+    private final AtomicLong queueWaitTimeMs = new AtomicLong();
     
     public StatementContext(PhoenixStatement statement) {
         this(statement, FromCompiler.EMPTY_TABLE_RESOLVER, new Scan());
@@ -226,4 +230,28 @@ public class StatementContext {
     public List<Pair<byte[], byte[]>> getWhereCoditionColumns() {
         return whereConditionColumns;
     }
+
+    /**
+     * Get the job id under which the parallel scans of the statement are scheduled,
+     * or null if the scans haven't been started.
+     */
+    public JobGroup getJobGroup() {
+        return jobGroup;
+    }
+
+    public void setJobGroup(JobGroup jobGroup) {
+        this.jobGroup = jobGroup;
+    }
+
+    public void addQueueWaitTime(long waitTimeMs) {
+        queueWaitTimeMs.addAndGet(waitTimeMs);
+    }
+
+    /**
+     * Get the total time the tasks of the statement spent queued in the executor
+     * before starting to execute.
+     */
+    public long getQueueWaitTimeMs() {
+        return queueWaitTimeMs.get();
+    }
 }
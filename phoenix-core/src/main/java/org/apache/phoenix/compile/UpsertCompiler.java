@@ -41,6 +41,7 @@ import org.apache.phoenix.exception.SQLExceptionCode;
 import org.apache.phoenix.exception.SQLExceptionInfo;
 import org.apache.phoenix.execute.AggregatePlan;
 import org.apache.phoenix.execute.MutationState;
+import org.apache.phoenix.execute.PipelinedMutationWriter;
 import org.apache.phoenix.expression.Expression;
 import org.apache.phoenix.expression.LiteralExpression;
 import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
@@ -86,6 +87,7 @@ import org.apache.phoenix.schema.TypeMismatchException;
 import org.apache.phoenix.schema.tuple.Tuple;
 import org.apache.phoenix.util.ByteUtil;
 import org.apache.phoenix.util.MetaDataUtil;
+import org.apache.phoenix.util.SQLCloseables;
 import org.apache.phoenix.util.SchemaUtil;
 
 import com.google.common.collect.Lists;
@@ -117,12 +119,16 @@ public class UpsertCompiler {
     private static MutationState upsertSelect(PhoenixStatement statement, 
             TableRef tableRef, RowProjector projector, ResultIterator iterator, int[] columnIndexes,
             int[] pkSlotIndexes) throws SQLException {
+        PipelinedMutationWriter writer = null;
         try {
             PhoenixConnection connection = statement.getConnection();
             ConnectionQueryServices services = connection.getQueryServices();
             int maxSize = services.getProps().getInt(QueryServices.MAX_MUTATION_SIZE_ATTRIB,QueryServicesOptions.DEFAULT_MAX_MUTATION_SIZE);
             int batchSize = Math.min(connection.getMutateBatchSize(), maxSize);
             boolean isAutoCommit = connection.getAutoCommit();
+            if (isAutoCommit && services.getProps().getBoolean(QueryServices.PIPELINED_UPSERT_SELECT_ATTRIB, QueryServicesOptions.DEFAULT_PIPELINED_UPSERT_SELECT)) {
+                writer = new PipelinedMutationWriter(connection, tableRef, maxSize);
+            }
             byte[][] values = new byte[columnIndexes.length][];
             int rowCount = 0;
             Map<ImmutableBytesPtr,Map<PColumn,byte[]>> mutation = Maps.newHashMapWithExpectedSize(batchSize);
@@ -157,16 +163,32 @@ public class UpsertCompiler {
                 rowCount++;
                 // Commit a batch if auto commit is true and we're at our batch size
                 if (isAutoCommit && rowCount % batchSize == 0) {
-                    MutationState state = new MutationState(tableRef, mutation, 0, maxSize, connection);
-                    connection.getMutationState().join(state);
-                    connection.commit();
-                    mutation.clear();
+                    if (writer != null) {
+                        // Keep selecting while the batch is written in the background
+                        writer.write(mutation);
+                        mutation = Maps.newHashMapWithExpectedSize(batchSize);
+                    } else {
+                        MutationState state = new MutationState(tableRef, mutation, 0, maxSize, connection);
+                        connection.getMutationState().join(state);
+                        connection.commit();
+                        mutation.clear();
+                    }
                 }
             }
+            if (writer != null) {
+                writer.close();
+            }
             // If auto commit is true, this last batch will be committed upon return
             return new MutationState(tableRef, mutation, rowCount / batchSize * batchSize, maxSize, connection);
         } finally {
-            iterator.close();
+            try {
+                iterator.close();
+            } finally {
+                if (writer != null) {
+                    // Only reached with batches pending if the select failed, which takes precedence
+                    SQLCloseables.closeAllQuietly(Collections.singletonList(writer));
+                }
+            }
         }
     }
 
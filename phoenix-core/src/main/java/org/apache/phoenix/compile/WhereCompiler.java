@@ -140,6 +140,45 @@ public class WhereCompiler {
         }
     }
 
+    /**
+     * Create the filter that evaluates a boolean expression against the rows of a table,
+     * choosing the cheapest one based on the key value columns referenced by the expression.
+     * @param table the table being scanned
+     * @param expression the boolean expression that must be true for a row to be returned
+     * @param disambiguateWithFamily true if the column family must be used to identify a column
+     */
+    public static Filter newFilter(PTable table, Expression expression, boolean disambiguateWithFamily) {
+        final Counter counter = new Counter();
+        expression.accept(new KeyValueExpressionVisitor() {
+
+            @Override
+            public Iterator<Expression> defaultIterator(Expression node) {
+                // Stop traversal once we've found multiple KeyValue columns
+                if (counter.getCount() == Counter.Count.MULTIPLE) {
+                    return Iterators.emptyIterator();
+                }
+                return super.defaultIterator(node);
+            }
+
+            @Override
+            public Void visit(KeyValueColumnExpression expression) {
+                counter.increment(expression);
+                return null;
+            }
+        });
+        switch (counter.getCount()) {
+        case NONE:
+            byte[] essentialCF = table.getType() == PTableType.VIEW 
+                    ? ByteUtil.EMPTY_BYTE_ARRAY 
+                    : SchemaUtil.getEmptyColumnFamily(table);
+            return new RowKeyComparisonFilter(expression, essentialCF);
+        case SINGLE:
+            return disambiguateWithFamily ? new SingleCFCQKeyValueComparisonFilter(expression) : new SingleCQKeyValueComparisonFilter(expression);
+        default:
+            return disambiguateWithFamily ? new MultiCFCQKeyValueComparisonFilter(expression) : new MultiCQKeyValueComparisonFilter(expression);
+        }
+    }
+
     /**
      * Sets the start/stop key range based on the whereClause expression.
      * @param context the shared context during query compilation
@@ -153,39 +192,7 @@ public class WhereCompiler {
         if (LiteralExpression.isFalse(whereClause)) {
             context.setScanRanges(ScanRanges.NOTHING);
         } else if (whereClause != null && !LiteralExpression.isTrue(whereClause)) {
-            final Counter counter = new Counter();
-            whereClause.accept(new KeyValueExpressionVisitor() {
-
-                @Override
-                public Iterator<Expression> defaultIterator(Expression node) {
-                    // Stop traversal once we've found multiple KeyValue columns
-                    if (counter.getCount() == Counter.Count.MULTIPLE) {
-                        return Iterators.emptyIterator();
-                    }
-                    return super.defaultIterator(node);
-                }
-
-                @Override
-                public Void visit(KeyValueColumnExpression expression) {
-                    counter.increment(expression);
-                    return null;
-                }
-            });
-            switch (counter.getCount()) {
-            case NONE:
-                PTable table = context.getResolver().getTables().get(0).getTable();
-                byte[] essentialCF = table.getType() == PTableType.VIEW 
-                        ? ByteUtil.EMPTY_BYTE_ARRAY 
-                        : SchemaUtil.getEmptyColumnFamily(table);
-                filter = new RowKeyComparisonFilter(whereClause, essentialCF);
-                break;
-            case SINGLE:
-                filter = disambiguateWithFamily ? new SingleCFCQKeyValueComparisonFilter(whereClause) : new SingleCQKeyValueComparisonFilter(whereClause);
-                break;
-            case MULTIPLE:
-                filter = disambiguateWithFamily ? new MultiCFCQKeyValueComparisonFilter(whereClause) : new MultiCQKeyValueComparisonFilter(whereClause);
-                break;
-            }
+            filter = newFilter(context.getResolver().getTables().get(0).getTable(), whereClause, disambiguateWithFamily);
         }
 
         scan.setFilter(filter);
@@ -33,6 +33,7 @@ abstract public class BaseScannerRegionObserver extends BaseRegionObserver {
     public static final String UNORDERED_GROUP_BY_EXPRESSIONS = "_UnorderedGroupByExpressions";
     public static final String KEY_ORDERED_GROUP_BY_EXPRESSIONS = "_OrderedGroupByExpressions";
     public static final String ESTIMATED_DISTINCT_VALUES = "_EstDistinctValues";
+    public static final String GROUP_BY_PARTIAL_FLUSH = "_GroupByPartialFlush";
     public static final String NON_AGGREGATE_QUERY = "_NonAggregateQuery";
     public static final String TOPN = "_TopN";
     public static final String UNGROUPED_AGG = "_UngroupedAgg";
@@ -21,8 +21,12 @@ import static org.apache.phoenix.query.QueryConstants.AGG_TIMESTAMP;
 import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN;
 import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_FAMILY;
 import static org.apache.phoenix.query.QueryServices.GROUPBY_ESTIMATED_DISTINCT_VALUES_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.GROUPBY_MAX_CACHE_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.GROUPBY_OFF_HEAP_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.GROUPBY_SPILLABLE_ATTRIB;
 import static org.apache.phoenix.query.QueryServicesOptions.DEFAULT_GROUPBY_ESTIMATED_DISTINCT_VALUES;
+import static org.apache.phoenix.query.QueryServicesOptions.DEFAULT_GROUPBY_MAX_CACHE_MAX;
+import static org.apache.phoenix.query.QueryServicesOptions.DEFAULT_GROUPBY_OFF_HEAP;
 import static org.apache.phoenix.query.QueryServicesOptions.DEFAULT_GROUPBY_SPILLABLE;
 
 import java.io.ByteArrayInputStream;
@@ -52,6 +56,7 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.phoenix.cache.GlobalCache;
 import org.apache.phoenix.cache.TenantCache;
+import org.apache.phoenix.cache.aggcache.OffHeapGroupByCache;
 import org.apache.phoenix.cache.aggcache.SpillableGroupByCache;
 import org.apache.phoenix.expression.Expression;
 import org.apache.phoenix.expression.ExpressionType;
@@ -61,6 +66,8 @@ import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
 import org.apache.phoenix.join.HashJoinInfo;
 import org.apache.phoenix.join.ScanProjector;
 import org.apache.phoenix.memory.GlobalMemoryManager;
+import org.apache.phoenix.memory.MemoryManager;
+import org.apache.phoenix.memory.MemoryManager.ChunkType;
 import org.apache.phoenix.memory.MemoryManager.MemoryChunk;
 import org.apache.phoenix.query.QueryConstants;
 import org.apache.phoenix.schema.tuple.MultiKeyValueTuple;
@@ -124,6 +131,9 @@ public class GroupedAggregateRegionObserver extends BaseScannerRegionObserver {
         if (keyOrdered) { // Optimize by taking advantage that the rows are
                           // already in the required group by key order
             return scanOrdered(c, scan, innerScanner, expressions, aggregators);
+        } else if (scan.getAttribute(BaseScannerRegionObserver.GROUP_BY_PARTIAL_FLUSH) != null) {
+            // Collect them up in memory, sending partial aggregates whenever the map is full
+            return scanUnorderedWithPartialFlush(c, scan, innerScanner, expressions, aggregators);
         } else { // Otherwse, collect them all up in an in memory map
             return scanUnordered(c, scan, innerScanner, expressions, aggregators);
         }
@@ -209,7 +219,8 @@ public class GroupedAggregateRegionObserver extends BaseScannerRegionObserver {
             this.estDistVals = estDistVals;
             this.aggregators = aggregators;
             this.aggregateMap = Maps.newHashMapWithExpectedSize(estDistVals);
-            this.chunk = tenantCache.getMemoryManager().allocate(estSize);
+            this.chunk = tenantCache.getMemoryManager().allocate(estSize, estSize, ChunkType.GROUP_BY,
+                    env.getRegion().getRegionNameAsString());
         }
         
         @Override
@@ -318,16 +329,155 @@ public class GroupedAggregateRegionObserver extends BaseScannerRegionObserver {
         }
         
         GroupByCache newCache(RegionCoprocessorEnvironment env, ImmutableBytesWritable tenantId, ServerAggregators aggregators, int estDistVals) {
+            return newCache(env, tenantId, aggregators, estDistVals, true);
+        }
+        
+        GroupByCache newCache(RegionCoprocessorEnvironment env, ImmutableBytesWritable tenantId, ServerAggregators aggregators, int estDistVals, boolean isSpillAllowed) {
             Configuration conf = env.getConfiguration();
+            boolean offHeapEnabled =
+                    conf.getBoolean(GROUPBY_OFF_HEAP_ATTRIB, DEFAULT_GROUPBY_OFF_HEAP);
+            if (offHeapEnabled && OffHeapGroupByCache.isSupported(aggregators.getAggregators())) {
+                return new OffHeapGroupByCache(env, tenantId, aggregators, estDistVals);
+            }
             boolean spillableEnabled =
                     conf.getBoolean(GROUPBY_SPILLABLE_ATTRIB, DEFAULT_GROUPBY_SPILLABLE);
-            if (spillableEnabled) {
+            if (spillableEnabled && isSpillAllowed) {
                 return new SpillableGroupByCache(env, tenantId, aggregators, estDistVals);
             } 
             
             return new InMemoryGroupByCache(env, tenantId, aggregators, estDistVals);
         }
     }
+    private static int getEstimatedDistinctValues(Configuration conf, Scan scan) {
+        int estDistVals = conf.getInt(GROUPBY_ESTIMATED_DISTINCT_VALUES_ATTRIB, DEFAULT_GROUPBY_ESTIMATED_DISTINCT_VALUES);
+        byte[] estDistValsBytes = scan.getAttribute(BaseScannerRegionObserver.ESTIMATED_DISTINCT_VALUES);
+        if (estDistValsBytes != null) {
+            // Allocate 1.5x estimation
+            estDistVals = Math.min(MIN_DISTINCT_VALUES, 
+                            (int) (Bytes.toInt(estDistValsBytes) * 1.5f));
+        }
+        return estDistVals;
+    }
+    
+    /**
+     * Used for an aggregate query in which the key order does not necessarily match the group by
+     * key order and the number of distinct groups is expected to be too large to hold all of them
+     * in memory. Distinct groups are collected into a map, aggregating as we go, until the map
+     * holds as many groups as fit in the memory available to it. The partially aggregated groups
+     * are then returned and the map is cleared before continuing with the next rows. The same
+     * group may thus be returned more than once, which is fine as the client does the final
+     * aggregation of the groups returned by the different regions anyway.
+     */
+    private RegionScanner scanUnorderedWithPartialFlush(final ObserverContext<RegionCoprocessorEnvironment> c, Scan scan,
+            final RegionScanner s, final List<Expression> expressions,
+            final ServerAggregators aggregators) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Grouped aggregation with partial flush over unordered rows with scan " + scan
+                    + ", group by " + expressions + ", aggregators " + aggregators);
+        }
+        final RegionCoprocessorEnvironment env = c.getEnvironment();
+        final ImmutableBytesWritable tenantId = ScanUtil.getTenantId(scan);
+        final int estDistVals = getEstimatedDistinctValues(env.getConfiguration(), scan);
+        final long maxCacheSize = env.getConfiguration().getLong(GROUPBY_MAX_CACHE_SIZE_ATTRIB, DEFAULT_GROUPBY_MAX_CACHE_MAX);
+        final MemoryManager memoryManager = GlobalCache.getTenantCache(env, tenantId).getMemoryManager();
+        // Estimated size of a group, including its key
+        final int groupSize = sizeOfUnorderedGroupByMap(1, aggregators.getEstimatedByteSize());
+        
+        return new BaseRegionScanner() {
+            private GroupByCache groupByCache;
+            private RegionScanner groupScanner;
+            private boolean hasMoreRows = true;
+            private int flushCount;
+
+            @Override
+            public HRegionInfo getRegionInfo() {
+                return s.getRegionInfo();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    s.close();
+                } finally {
+                    closeGroupByCache();
+                }
+            }
+            
+            private void closeGroupByCache() {
+                groupScanner = null;
+                if (groupByCache != null) {
+                    Closeables.closeQuietly(groupByCache);
+                    groupByCache = null;
+                }
+            }
+            
+            /**
+             * Aggregate rows until either there are no more or the map is full
+             */
+            private void aggregateRows() throws IOException {
+                // Base the size of the map on the memory available now, so that less is used under memory pressure
+                long maxBytes = Math.min(maxCacheSize, memoryManager.getAvailableMemory() / 2);
+                int maxGroups = (int)Math.min(Integer.MAX_VALUE, Math.max(MIN_DISTINCT_VALUES, maxBytes / groupSize));
+                groupByCache = GroupByCacheFactory.INSTANCE.newCache(env, tenantId, aggregators,
+                        Math.min(estDistVals, maxGroups), false);
+                MultiKeyValueTuple result = new MultiKeyValueTuple();
+                List<Cell> kvs = new ArrayList<Cell>();
+                HRegion region = env.getRegion();
+                region.startRegionOperation();
+                try {
+                    do {
+                        kvs.clear();
+                        // Results are potentially returned even when the return
+                        // value of s.next is false since this is an indication of
+                        // whether or not there are more values after the ones returned
+                        hasMoreRows = s.nextRaw(kvs);
+                        if (!kvs.isEmpty()) {
+                            result.setKeyValues(kvs);
+                            ImmutableBytesWritable key = TupleUtil.getConcatenatedValue(result, expressions);
+                            Aggregator[] rowAggregators = groupByCache.cache(key);
+                            aggregators.aggregate(rowAggregators, result);
+                        }
+                    } while (hasMoreRows && groupByCache.size() < maxGroups);
+                } finally {
+                    region.closeRegionOperation();
+                }
+                if (hasMoreRows) {
+                    flushCount++;
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Sending " + groupByCache.size() + " partially aggregated groups (flush #" + flushCount
+                                + ") for region " + s.getRegionInfo().getRegionNameAsString());
+                    }
+                }
+                groupScanner = groupByCache.getScanner(s);
+            }
+
+            @Override
+            public boolean next(List<Cell> results) throws IOException {
+                while (true) {
+                    if (groupScanner == null) {
+                        if (!hasMoreRows) {
+                            return false;
+                        }
+                        aggregateRows();
+                    }
+                    // The scanner of the map is not closed, as that would close the underlying scanner
+                    if (groupScanner.next(results)) {
+                        return true;
+                    }
+                    closeGroupByCache();
+                    if (!results.isEmpty()) {
+                        return hasMoreRows;
+                    }
+                }
+            }
+
+            @Override
+            public long getMaxResultSize() {
+                return s.getMaxResultSize();
+            }
+        };
+    }
+
     /**
      * Used for an aggregate query in which the key order does not necessarily match the group by
      * key order. In this case, we must collect all distinct groups within a region into a map,
@@ -342,13 +492,7 @@ public class GroupedAggregateRegionObserver extends BaseScannerRegionObserver {
         }
         RegionCoprocessorEnvironment env = c.getEnvironment();
         Configuration conf = env.getConfiguration();
-        int estDistVals = conf.getInt(GROUPBY_ESTIMATED_DISTINCT_VALUES_ATTRIB, DEFAULT_GROUPBY_ESTIMATED_DISTINCT_VALUES);
-        byte[] estDistValsBytes = scan.getAttribute(BaseScannerRegionObserver.ESTIMATED_DISTINCT_VALUES);
-        if (estDistValsBytes != null) {
-            // Allocate 1.5x estimation
-            estDistVals = Math.min(MIN_DISTINCT_VALUES, 
-                            (int) (Bytes.toInt(estDistValsBytes) * 1.5f));
-        }
+        int estDistVals = getEstimatedDistinctValues(conf, scan);
 
         final boolean spillableEnabled =
                 conf.getBoolean(GROUPBY_SPILLABLE_ATTRIB, DEFAULT_GROUPBY_SPILLABLE);
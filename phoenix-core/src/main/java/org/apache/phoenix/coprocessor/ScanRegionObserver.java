@@ -19,12 +19,14 @@ package org.apache.phoenix.coprocessor;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.HRegionInfo;
@@ -33,6 +35,8 @@ import org.apache.hadoop.hbase.KeyValue.Type;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.coprocessor.ObserverContext;
 import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.regionserver.HRegion;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
@@ -44,13 +48,18 @@ import org.apache.phoenix.expression.Expression;
 import org.apache.phoenix.expression.KeyValueColumnExpression;
 import org.apache.phoenix.expression.OrderByExpression;
 import org.apache.phoenix.expression.function.ArrayIndexFunction;
+import org.apache.phoenix.filter.TopNThresholdFilter;
 import org.apache.phoenix.iterate.OrderedResultIterator;
 import org.apache.phoenix.iterate.RegionScannerResultIterator;
 import org.apache.phoenix.iterate.ResultIterator;
+import org.apache.phoenix.iterate.TopNThreshold;
 import org.apache.phoenix.join.HashJoinInfo;
 import org.apache.phoenix.join.ScanProjector;
+import org.apache.phoenix.memory.MemoryManager.ChunkType;
 import org.apache.phoenix.memory.MemoryManager.MemoryChunk;
 import org.apache.phoenix.query.QueryConstants;
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.query.QueryServicesOptions;
 import org.apache.phoenix.schema.KeyValueSchema;
 import org.apache.phoenix.schema.KeyValueSchema.KeyValueSchemaBuilder;
 import org.apache.phoenix.schema.PDataType;
@@ -59,6 +68,8 @@ import org.apache.phoenix.schema.tuple.MultiKeyValueTuple;
 import org.apache.phoenix.schema.tuple.Tuple;
 import org.apache.phoenix.util.ScanUtil;
 import org.apache.phoenix.util.ServerUtil;
+import org.apache.phoenix.util.SpillCodec;
+import org.apache.phoenix.util.SpillCodec.SpillType;
 
 import com.google.common.collect.Lists;
 
@@ -100,7 +111,11 @@ public class ScanRegionObserver extends BaseScannerRegionObserver {
         }
     }
     
-    public static OrderedResultIterator deserializeFromScan(Scan scan, RegionScanner s) {
+    public static OrderedResultIterator deserializeFromScan(Scan scan, RegionScanner s, Configuration conf) {
+        return deserializeFromScan(scan, s, conf, null);
+    }
+    
+    public static OrderedResultIterator deserializeFromScan(Scan scan, RegionScanner s, Configuration conf, TopNThreshold threshold) {
         byte[] topN = scan.getAttribute(BaseScannerRegionObserver.TOPN);
         if (topN == null) {
             return null;
@@ -111,15 +126,12 @@ public class ScanRegionObserver extends BaseScannerRegionObserver {
             int thresholdBytes = WritableUtils.readVInt(input);
             int limit = WritableUtils.readVInt(input);
             int estimatedRowSize = WritableUtils.readVInt(input);
-            int size = WritableUtils.readVInt(input);
-            List<OrderByExpression> orderByExpressions = Lists.newArrayListWithExpectedSize(size);           
-            for (int i = 0; i < size; i++) {
-                OrderByExpression orderByExpression = new OrderByExpression();
-                orderByExpression.readFields(input);
-                orderByExpressions.add(orderByExpression);
-            }
+            List<OrderByExpression> orderByExpressions = readOrderByExpressions(input);
             ResultIterator inner = new RegionScannerResultIterator(s);
-            return new OrderedResultIterator(inner, orderByExpressions, thresholdBytes, limit >= 0 ? limit : null, estimatedRowSize);
+            return new OrderedResultIterator(inner, orderByExpressions, thresholdBytes, limit >= 0 ? limit : null, estimatedRowSize,
+                    SpillCodec.getCodec(conf, SpillType.ORDER_BY),
+                    conf.getInt(QueryServices.SORT_MERGE_FAN_IN_ATTRIB, QueryServicesOptions.DEFAULT_SORT_MERGE_FAN_IN),
+                    threshold);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
@@ -131,6 +143,60 @@ public class ScanRegionObserver extends BaseScannerRegionObserver {
         }
     }
     
+    /**
+     * Create the filter dropping the rows that can't make it into the TopN of the region.
+     * @return the filter, or null if the scan isn't a TopN scan with a limit
+     */
+    private static TopNThresholdFilter deserializeTopNThresholdFilterFromScan(Scan scan) {
+        byte[] topN = scan.getAttribute(BaseScannerRegionObserver.TOPN);
+        if (topN == null) {
+            return null;
+        }
+        ByteArrayInputStream stream = new ByteArrayInputStream(topN);
+        try {
+            DataInputStream input = new DataInputStream(stream);
+            WritableUtils.readVInt(input); // thresholdBytes
+            int limit = WritableUtils.readVInt(input);
+            if (limit < 0) {
+                return null;
+            }
+            WritableUtils.readVInt(input); // estimatedRowSize
+            List<OrderByExpression> orderByExpressions = readOrderByExpressions(input);
+            return new TopNThresholdFilter(orderByExpressions, new TopNThreshold(), ScanUtil.isReversed(scan));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+    
+    private static List<OrderByExpression> readOrderByExpressions(DataInput input) throws IOException {
+        int size = WritableUtils.readVInt(input);
+        List<OrderByExpression> orderByExpressions = Lists.newArrayListWithExpectedSize(size);           
+        for (int i = 0; i < size; i++) {
+            OrderByExpression orderByExpression = new OrderByExpression();
+            orderByExpression.readFields(input);
+            orderByExpressions.add(orderByExpression);
+        }
+        return orderByExpressions;
+    }
+    
+    private static TopNThreshold getTopNThreshold(Scan scan) {
+        Filter filter = scan.getFilter();
+        if (filter instanceof FilterList) {
+            for (Filter f : ((FilterList)filter).getFilters()) {
+                if (f instanceof TopNThresholdFilter) {
+                    return ((TopNThresholdFilter)f).getThreshold();
+                }
+            }
+        }
+        return filter instanceof TopNThresholdFilter ? ((TopNThresholdFilter)filter).getThreshold() : null;
+    }
+    
     private Expression[] deserializeArrayPostionalExpressionInfoFromScan(Scan scan, RegionScanner s,
             List<KeyValueColumnExpression> arrayKVRefs) {
         byte[] specificArrayIdx = scan.getAttribute(BaseScannerRegionObserver.SPECIFIC_ARRAY_INDEX);
@@ -169,6 +235,34 @@ public class ScanRegionObserver extends BaseScannerRegionObserver {
         }
     }
 
+    /**
+     * Add a filter to a TopN scan with a limit that drops the rows which sort after the
+     * worst row currently kept in the TopN of the region before they're returned by the
+     * region scanner. Not done for joins or when array elements are projected, since
+     * then the rows are transformed after the filter is applied and before they're sorted.
+     */
+    @Override
+    public RegionScanner preScannerOpen(final ObserverContext<RegionCoprocessorEnvironment> c, final Scan scan, final RegionScanner s) throws IOException {
+        try {
+            byte[] isScanQuery = scan.getAttribute(BaseScannerRegionObserver.NON_AGGREGATE_QUERY);
+            if (isScanQuery == null || Bytes.compareTo(PDataType.FALSE_BYTES, isScanQuery) == 0
+                    || scan.getAttribute(BaseScannerRegionObserver.SPECIFIC_ARRAY_INDEX) != null
+                    || ScanProjector.deserializeProjectorFromScan(scan) != null
+                    || HashJoinInfo.deserializeHashJoinFromScan(scan) != null) {
+                return s;
+            }
+            TopNThresholdFilter topNFilter = deserializeTopNThresholdFilterFromScan(scan);
+            if (topNFilter != null) {
+                Filter filter = scan.getFilter();
+                scan.setFilter(filter == null ? topNFilter : new FilterList(filter, topNFilter));
+            }
+            return s;
+        } catch (Throwable t) {
+            ServerUtil.throwIOException(c.getEnvironment().getRegion().getRegionNameAsString(), t);
+            return null; // impossible
+        }
+    }
+
     @Override
     protected RegionScanner doPostScannerOpen(final ObserverContext<RegionCoprocessorEnvironment> c, final Scan scan, final RegionScanner s) throws Throwable {
         byte[] isScanQuery = scan.getAttribute(BaseScannerRegionObserver.NON_AGGREGATE_QUERY);
@@ -186,7 +280,7 @@ public class ScanRegionObserver extends BaseScannerRegionObserver {
             innerScanner = new HashJoinRegionScanner(s, p, j, tenantId, c.getEnvironment());
         }
         
-        final OrderedResultIterator iterator = deserializeFromScan(scan,innerScanner);
+        final OrderedResultIterator iterator = deserializeFromScan(scan,innerScanner,c.getEnvironment().getConfiguration(), getTopNThreshold(scan));
         List<KeyValueColumnExpression> arrayKVRefs = new ArrayList<KeyValueColumnExpression>();
         Expression[] arrayFuncRefs = deserializeArrayPostionalExpressionInfoFromScan(
                 scan, innerScanner, arrayKVRefs);
@@ -208,8 +302,9 @@ public class ScanRegionObserver extends BaseScannerRegionObserver {
         final Tuple firstTuple;
         TenantCache tenantCache = GlobalCache.getTenantCache(c.getEnvironment(), tenantId);
         long estSize = iterator.getEstimatedByteSize();
-        final MemoryChunk chunk = tenantCache.getMemoryManager().allocate(estSize);
         final HRegion region = c.getEnvironment().getRegion();
+        final MemoryChunk chunk = tenantCache.getMemoryManager().allocate(estSize, estSize, ChunkType.ORDER_BY,
+                region.getRegionNameAsString());
         region.startRegionOperation();
         try {
             // Once we return from the first call to next, we've run through and cached
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.coprocessor;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
+import org.apache.hadoop.hbase.regionserver.ScanType;
+import org.apache.hadoop.hbase.regionserver.Store;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.jdbc.PhoenixDatabaseMetaData;
+import org.apache.phoenix.query.QueryConstants;
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.query.QueryServicesOptions;
+import org.apache.phoenix.schema.stat.StatisticsUtil;
+import org.apache.phoenix.util.ByteUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+
+/**
+ *
+ * Region observer that collects guide posts for a column family of a region as it is
+ * major compacted. A guide post is the first row key after each
+ * {@link QueryServices#STATS_GUIDEPOST_WIDTH_BYTES_ATTRIB} bytes of the store, so that
+ * the guide posts split the region into chunks of equal size. Once the compaction
+ * has read the entire store and completed, the guide posts are written to the SYSTEM.STATS table,
+ * from which they're read by the client to split the scans of a query. The guide posts
+ * of the regions that the region was split or merged from are deleted at the same time,
+ * as a region is major compacted after a split or merge to rewrite its reference files.
+ *
+ *
+ * @since 4.1
+ */
+public class StatisticsCollector extends BaseRegionObserver {
+    private static final Logger logger = LoggerFactory.getLogger(StatisticsCollector.class);
+
+    // Scanners of the major compactions in progress, whose guide posts are written once
+    // the compaction has completed
+    private final ConcurrentMap<Store, GuidePostCollectingScanner> collectingScanners =
+            new ConcurrentHashMap<Store, GuidePostCollectingScanner>();
+
+    @Override
+    public InternalScanner preCompact(ObserverContext<RegionCoprocessorEnvironment> c, Store store,
+            InternalScanner scanner, ScanType scanType) throws IOException {
+        // A compaction that keeps delete markers doesn't include all of the store files
+        if (scanType != ScanType.COMPACT_DROP_DELETES) {
+            return scanner;
+        }
+        RegionCoprocessorEnvironment env = c.getEnvironment();
+        long guidePostWidth = env.getConfiguration().getLong(QueryServices.STATS_GUIDEPOST_WIDTH_BYTES_ATTRIB,
+                QueryServicesOptions.DEFAULT_STATS_GUIDEPOST_WIDTH_BYTES);
+        GuidePostCollectingScanner collectingScanner = new GuidePostCollectingScanner(scanner, env, store.getFamily().getName(), guidePostWidth);
+        // Replaces the scanner of a previous compaction of the store that failed, if any
+        collectingScanners.put(store, collectingScanner);
+        return collectingScanner;
+    }
+
+    @Override
+    public void postCompact(ObserverContext<RegionCoprocessorEnvironment> c, Store store,
+            StoreFile resultFile) throws IOException {
+        // Only called once the compaction has completed, so that the guide posts of a failed
+        // or aborted compaction, which may not have read the entire store, are never written
+        GuidePostCollectingScanner collectingScanner = collectingScanners.remove(store);
+        if (collectingScanner != null && collectingScanner.isExhausted()) {
+            collectingScanner.writeGuidePosts();
+        }
+    }
+
+    /**
+     * Compaction scanner that passes through the cells of the store being compacted,
+     * noting a guide post at the first row boundary after every guide post width bytes.
+     */
+    static class GuidePostCollectingScanner implements InternalScanner {
+        private final InternalScanner delegate;
+        private final RegionCoprocessorEnvironment env;
+        private final byte[] family;
+        private final long guidePostWidth;
+        private final List<byte[]> guidePosts = Lists.newArrayList();
+        private long byteCount;
+        private Cell previousCell;
+        private boolean exhausted;
+
+        GuidePostCollectingScanner(InternalScanner delegate, RegionCoprocessorEnvironment env, byte[] family, long guidePostWidth) {
+            this.delegate = delegate;
+            this.env = env;
+            this.family = family;
+            this.guidePostWidth = guidePostWidth;
+        }
+
+        @Override
+        public boolean next(List<Cell> results) throws IOException {
+            int offset = results.size();
+            boolean hasMore = delegate.next(results);
+            collect(results, offset);
+            exhausted = !hasMore;
+            return hasMore;
+        }
+
+        @Override
+        public boolean next(List<Cell> results, int limit) throws IOException {
+            int offset = results.size();
+            boolean hasMore = delegate.next(results, limit);
+            collect(results, offset);
+            exhausted = !hasMore;
+            return hasMore;
+        }
+
+        private void collect(List<Cell> results, int offset) {
+            for (int i = offset; i < results.size(); i++) {
+                Cell cell = results.get(i);
+                // Only place guide posts between rows, as a scan can't start in the middle of a row
+                if (byteCount >= guidePostWidth && previousCell != null && !CellUtil.matchingRow(cell, previousCell)) {
+                    guidePosts.add(CellUtil.cloneRow(cell));
+                    byteCount = 0;
+                }
+                byteCount += cell.getRowLength() + cell.getFamilyLength() + cell.getQualifierLength() + cell.getValueLength();
+                previousCell = cell;
+            }
+        }
+
+        List<byte[]> getGuidePosts() {
+            return guidePosts;
+        }
+
+        /**
+         * @return true if the compaction read the entire store
+         */
+        boolean isExhausted() {
+            return exhausted;
+        }
+
+        @Override
+        public void close() throws IOException {
+            previousCell = null;
+            delegate.close();
+        }
+
+        void writeGuidePosts() {
+            HRegionInfo regionInfo = env.getRegion().getRegionInfo();
+            try {
+                HTableInterface statsTable = env.getTable(TableName.valueOf(PhoenixDatabaseMetaData.STATS_TABLE_NAME_BYTES));
+                try {
+                    Put put = new Put(StatisticsUtil.getRowKey(regionInfo.getTable().getName(), regionInfo.getRegionNameAsString(), family));
+                    put.add(PhoenixDatabaseMetaData.STATS_FAMILY_BYTES, PhoenixDatabaseMetaData.GUIDE_POSTS_BYTES, StatisticsUtil.toBytes(guidePosts));
+                    put.add(PhoenixDatabaseMetaData.STATS_FAMILY_BYTES, QueryConstants.EMPTY_COLUMN_BYTES, ByteUtil.EMPTY_BYTE_ARRAY);
+                    statsTable.put(put);
+                    deleteParentGuidePosts(statsTable, regionInfo);
+                } finally {
+                    statsTable.close();
+                }
+            } catch (IOException e) {
+                // Failing to update the stats shouldn't fail the compaction
+                logger.warn("Unable to write " + guidePosts.size() + " guide posts for " + regionInfo.getRegionNameAsString(), e);
+            }
+        }
+
+        /**
+         * Delete the guide posts of the regions of the table whose start key is within the
+         * given region. As live regions don't overlap, these can only be regions that the
+         * given region was split or merged from.
+         */
+        private static void deleteParentGuidePosts(HTableInterface statsTable, HRegionInfo regionInfo) throws IOException {
+            byte[] startKey = StatisticsUtil.getStartKey(regionInfo.getTable().getName());
+            Scan scan = new Scan(startKey, ByteUtil.nextKey(startKey));
+            scan.addColumn(PhoenixDatabaseMetaData.STATS_FAMILY_BYTES, QueryConstants.EMPTY_COLUMN_BYTES);
+            List<Delete> deletes = Lists.newArrayList();
+            ResultScanner scanner = statsTable.getScanner(scan);
+            try {
+                for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                    String regionName = StatisticsUtil.getRegionName(r.getRow(), startKey.length);
+                    if (isParentRegion(regionInfo, regionName)) {
+                        deletes.add(new Delete(r.getRow()));
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+            if (!deletes.isEmpty()) {
+                statsTable.delete(deletes);
+            }
+        }
+    }
+
+    /**
+     * @return true if the region with the given name is another region whose start key is
+     * within the given region
+     */
+    static boolean isParentRegion(HRegionInfo regionInfo, String regionName) throws IOException {
+        if (regionName.equals(regionInfo.getRegionNameAsString())) {
+            return false;
+        }
+        byte[] regionStartKey = HRegionInfo.parseRegionName(Bytes.toBytesBinary(regionName))[1];
+        return regionInfo.containsRow(regionStartKey);
+    }
+}
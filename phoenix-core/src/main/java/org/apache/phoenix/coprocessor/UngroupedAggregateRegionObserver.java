@@ -21,6 +21,7 @@ import static org.apache.phoenix.query.QueryConstants.AGG_TIMESTAMP;
 import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN;
 import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_FAMILY;
 import static org.apache.phoenix.query.QueryConstants.UNGROUPED_AGG_ROW_KEY;
+import static org.apache.phoenix.query.QueryServices.AGGREGATE_CHUNK_SIZE_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MUTATE_BATCH_SIZE_ATTRIB;
 
 import java.io.ByteArrayInputStream;
@@ -54,7 +55,7 @@ import org.apache.phoenix.exception.ValueTypeIncompatibleException;
 import org.apache.phoenix.expression.Expression;
 import org.apache.phoenix.expression.ExpressionType;
 import org.apache.phoenix.expression.aggregator.Aggregator;
-import org.apache.phoenix.expression.aggregator.Aggregators;
+import org.apache.phoenix.expression.aggregator.BatchAggregator;
 import org.apache.phoenix.expression.aggregator.ServerAggregators;
 import org.apache.phoenix.hbase.index.util.GenericKeyValueBuilder;
 import org.apache.phoenix.hbase.index.util.KeyValueBuilder;
@@ -176,9 +177,11 @@ public class UngroupedAggregateRegionObserver extends BaseScannerRegionObserver
             mutations = Lists.newArrayListWithExpectedSize(1024);
             batchSize = c.getEnvironment().getConfiguration().getInt(MUTATE_BATCH_SIZE_ATTRIB, QueryServicesOptions.DEFAULT_MUTATE_BATCH_SIZE);
         }
-        Aggregators aggregators = ServerAggregators.deserialize(
+        ServerAggregators aggregators = ServerAggregators.deserialize(
                 scan.getAttribute(BaseScannerRegionObserver.AGGREGATORS), c.getEnvironment().getConfiguration());
         Aggregator[] rowAggregators = aggregators.getAggregators();
+        int chunkSize = c.getEnvironment().getConfiguration().getInt(AGGREGATE_CHUNK_SIZE_ATTRIB, QueryServicesOptions.DEFAULT_AGGREGATE_CHUNK_SIZE);
+        BatchAggregator batchAggregator = aggregators.newBatchAggregator(rowAggregators, chunkSize);
         boolean hasMore;
         boolean hasAny = false;
         MultiKeyValueTuple result = new MultiKeyValueTuple();
@@ -188,8 +191,10 @@ public class UngroupedAggregateRegionObserver extends BaseScannerRegionObserver
         long rowCount = 0;
         region.startRegionOperation();
         try {
+            List<Cell> results = new ArrayList<Cell>();
             do {
-                List<Cell> results = new ArrayList<Cell>();
+                // Reuse the list, as neither the mutations nor the aggregators hold on to it
+                results.clear();
                 // Results are potentially returned even when the return value of s.next is false
                 // since this is an indication of whether or not there are more values after the
                 // ones returned
@@ -284,10 +289,11 @@ public class UngroupedAggregateRegionObserver extends BaseScannerRegionObserver
                         logger.error("Failed to create row in " + region.getRegionNameAsString() + " with values " + SchemaUtil.toString(values), e);
                         continue;
                     }
-                    aggregators.aggregate(rowAggregators, result);
+                    batchAggregator.aggregate(result);
                     hasAny = true;
                 }
             } while (hasMore);
+            batchAggregator.flush();
         } finally {
             innerScanner.close();
             region.closeRegionOperation();
@@ -40,18 +40,20 @@ import org.apache.phoenix.iterate.LimitingResultIterator;
 import org.apache.phoenix.iterate.MergeSortRowKeyResultIterator;
 import org.apache.phoenix.iterate.OrderedAggregatingResultIterator;
 import org.apache.phoenix.iterate.OrderedResultIterator;
+import org.apache.phoenix.iterate.ParallelHashAggregatingResultIterator;
 import org.apache.phoenix.iterate.ParallelIterators;
 import org.apache.phoenix.iterate.ParallelIterators.ParallelIteratorFactory;
 import org.apache.phoenix.iterate.PeekingResultIterator;
 import org.apache.phoenix.iterate.ResultIterator;
 import org.apache.phoenix.iterate.SequenceResultIterator;
-import org.apache.phoenix.iterate.SpoolingResultIterator;
 import org.apache.phoenix.iterate.UngroupedAggregatingResultIterator;
 import org.apache.phoenix.parse.FilterableStatement;
 import org.apache.phoenix.query.KeyRange;
 import org.apache.phoenix.query.QueryServices;
 import org.apache.phoenix.query.QueryServicesOptions;
 import org.apache.phoenix.schema.TableRef;
+import org.apache.phoenix.util.SpillCodec;
+import org.apache.phoenix.util.SpillCodec.SpillType;
 
 
 
@@ -96,7 +98,9 @@ public class AggregatePlan extends BasicQueryPlan {
             Expression expression = RowKeyExpression.INSTANCE;
             OrderByExpression orderByExpression = new OrderByExpression(expression, false, true);
             int threshold = services.getProps().getInt(QueryServices.SPOOL_THRESHOLD_BYTES_ATTRIB, QueryServicesOptions.DEFAULT_SPOOL_THRESHOLD_BYTES);
-            return new OrderedResultIterator(scanner, Collections.<OrderByExpression>singletonList(orderByExpression), threshold);
+            return new OrderedResultIterator(scanner, Collections.<OrderByExpression>singletonList(orderByExpression), threshold, null, 0,
+                    SpillCodec.getCodec(services.getProps(), SpillType.ORDER_BY),
+                    services.getProps().getInt(QueryServices.SORT_MERGE_FAN_IN_ATTRIB, QueryServicesOptions.DEFAULT_SORT_MERGE_FAN_IN));
         }
     }
 
@@ -115,11 +119,24 @@ public class AggregatePlan extends BasicQueryPlan {
         }
     }
 
+    /**
+     * @return the number of threads among which to partition the final aggregation of
+     * the groups on the client, or 1 if they are merge sorted instead
+     */
+    private int getClientAggregateThreads() {
+        if (groupBy.isEmpty() || groupBy.isOrderPreserving()) {
+            return 1;
+        }
+        return context.getConnection().getQueryServices().getProps().getInt(
+                QueryServices.GROUPBY_CLIENT_AGGREGATE_THREADS_ATTRIB, QueryServicesOptions.DEFAULT_GROUPBY_CLIENT_AGGREGATE_THREADS);
+    }
+    
     private ParallelIteratorFactory wrapParallelIteratorFactory () {
         ParallelIteratorFactory innerFactory;
         QueryServices services = context.getConnection().getQueryServices();
-        if (groupBy.isEmpty() || groupBy.isOrderPreserving()) {
-            innerFactory = new SpoolingResultIterator.SpoolingResultIteratorFactory(services);
+        // No need to sort the rows of each region when they're aggregated into hash maps
+        if (groupBy.isEmpty() || groupBy.isOrderPreserving() || getClientAggregateThreads() > 1) {
+            innerFactory = ParallelIterators.getDefaultIteratorFactory(services);
         } else {
             innerFactory = new OrderingResultIteratorFactory(services);
         }
@@ -139,9 +156,14 @@ public class AggregatePlan extends BasicQueryPlan {
         splits = parallelIterators.getSplits();
 
         AggregatingResultIterator aggResultIterator;
+        int clientAggregateThreads = getClientAggregateThreads();
         // No need to merge sort for ungrouped aggregation
         if (groupBy.isEmpty()) {
             aggResultIterator = new UngroupedAggregatingResultIterator(new ConcatResultIterator(parallelIterators), aggregators);
+        } else if (clientAggregateThreads > 1) {
+            QueryServices services = context.getConnection().getQueryServices();
+            aggResultIterator = new ParallelHashAggregatingResultIterator(parallelIterators, context.getAggregationManager().getAggregators(),
+                    services.getMemoryManager(), services.getClientAggregateExecutor(), clientAggregateThreads);
         } else {
             aggResultIterator = new GroupedAggregatingResultIterator(new MergeSortRowKeyResultIterator(parallelIterators), aggregators);
         }
@@ -162,7 +184,10 @@ public class AggregatePlan extends BasicQueryPlan {
         } else {
             int thresholdBytes = context.getConnection().getQueryServices().getProps().getInt(
                     QueryServices.SPOOL_THRESHOLD_BYTES_ATTRIB, QueryServicesOptions.DEFAULT_SPOOL_THRESHOLD_BYTES);
-            resultScanner = new OrderedAggregatingResultIterator(aggResultIterator, orderBy.getOrderByExpressions(), thresholdBytes, limit);
+            resultScanner = new OrderedAggregatingResultIterator(aggResultIterator, orderBy.getOrderByExpressions(), thresholdBytes, limit,
+                    SpillCodec.getCodec(context.getConnection().getQueryServices().getProps(), SpillType.ORDER_BY),
+                    context.getConnection().getQueryServices().getProps().getInt(
+                            QueryServices.SORT_MERGE_FAN_IN_ATTRIB, QueryServicesOptions.DEFAULT_SORT_MERGE_FAN_IN));
         }
         if (context.getSequenceManager().getSequenceCount() > 0) {
             resultScanner = new SequenceResultIterator(resultScanner, context.getSequenceManager());
@@ -21,6 +21,7 @@ import java.sql.ParameterMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -29,6 +30,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.phoenix.cache.ServerCacheClient.ServerCache;
 import org.apache.phoenix.compile.ExplainPlan;
 import org.apache.phoenix.compile.GroupByCompiler.GroupBy;
@@ -37,20 +39,30 @@ import org.apache.phoenix.compile.QueryPlan;
 import org.apache.phoenix.compile.RowProjector;
 import org.apache.phoenix.compile.ScanRanges;
 import org.apache.phoenix.compile.StatementContext;
+import org.apache.phoenix.compile.WhereCompiler;
+import org.apache.phoenix.expression.BloomFilterExpression;
 import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.expression.RowKeyColumnExpression;
 import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
 import org.apache.phoenix.iterate.ResultIterator;
 import org.apache.phoenix.job.JobManager.JobCallable;
 import org.apache.phoenix.join.HashCacheClient;
+import org.apache.phoenix.join.HashCacheRegistry;
 import org.apache.phoenix.join.HashJoinInfo;
+import org.apache.phoenix.join.MaxServerCacheSizeExceededException;
+import org.apache.phoenix.parse.JoinTableNode.JoinType;
 import org.apache.phoenix.parse.FilterableStatement;
 import org.apache.phoenix.query.ConnectionQueryServices;
 import org.apache.phoenix.query.KeyRange;
 import org.apache.phoenix.query.QueryServices;
 import org.apache.phoenix.query.QueryServicesOptions;
+import org.apache.phoenix.schema.PTable;
+import org.apache.phoenix.schema.SortOrder;
 import org.apache.phoenix.schema.TableRef;
+import org.apache.phoenix.util.ByteUtil;
 import org.apache.phoenix.util.SQLCloseable;
 import org.apache.phoenix.util.SQLCloseables;
+import org.apache.phoenix.util.ScanUtil;
 
 import com.google.common.collect.Lists;
 
@@ -61,13 +73,43 @@ public class HashJoinPlan implements QueryPlan {
     private HashJoinInfo joinInfo;
     private List<Expression>[] hashExpressions;
     private QueryPlan[] hashPlans;
+    private final FallbackPlanCompiler fallbackPlanCompiler;
+    // Scan filter and key range before any filter on the join keys is added
+    private final Filter baseFilter;
+    private final byte[] baseStartRow;
+    private final byte[] baseStopRow;
     
     public HashJoinPlan(BasicQueryPlan plan, HashJoinInfo joinInfo,
             List<Expression>[] hashExpressions, QueryPlan[] hashPlans) {
+        this(plan, joinInfo, hashExpressions, hashPlans, null);
+    }
+    
+    /**
+     * Compiles the plan to execute instead of the hash join when a hash cache exceeds the
+     * maximum size of the server cache. As that rarely happens, the plan is only compiled then.
+     */
+    public interface FallbackPlanCompiler {
+        /**
+         * @return the plan, or null if the join can't be executed another way
+         */
+        QueryPlan compile() throws SQLException;
+    }
+    
+    /**
+     * @param fallbackPlanCompiler compiles the plan to execute instead if a hash cache exceeds
+     * the maximum size of the server cache, or null to fail in that case
+     */
+    public HashJoinPlan(BasicQueryPlan plan, HashJoinInfo joinInfo,
+            List<Expression>[] hashExpressions, QueryPlan[] hashPlans, FallbackPlanCompiler fallbackPlanCompiler) {
         this.plan = plan;
         this.joinInfo = joinInfo;
         this.hashExpressions = hashExpressions;
         this.hashPlans = hashPlans;
+        this.fallbackPlanCompiler = fallbackPlanCompiler;
+        Scan scan = plan.getContext().getScan();
+        this.baseFilter = scan.getFilter();
+        this.baseStartRow = scan.getStartRow();
+        this.baseStopRow = scan.getStopRow();
     }
 
     @Override
@@ -100,6 +142,17 @@ public class HashJoinPlan implements QueryPlan {
         List<Future<ServerCache>> futures = new ArrayList<Future<ServerCache>>(count);
         List<SQLCloseable> dependencies = new ArrayList<SQLCloseable>(count);
         final int maxServerCacheTimeToLive = services.getProps().getInt(QueryServices.MAX_SERVER_CACHE_TIME_TO_LIVE_MS_ATTRIB, QueryServicesOptions.DEFAULT_MAX_SERVER_CACHE_TIME_TO_LIVE_MS);
+        int maxFilterKeys = services.getProps().getInt(QueryServices.HASH_JOIN_KEY_FILTER_MAX_KEYS_ATTRIB, QueryServicesOptions.DEFAULT_HASH_JOIN_KEY_FILTER_MAX_KEYS);
+        final HashCacheClient.JoinKeys[] joinKeys = new HashCacheClient.JoinKeys[count];
+        for (int i = 0; i < count; i++) {
+            // Only rows of the probe side that match a row of the build side are needed
+            if (maxFilterKeys > 0 && joinInfo.getJoinTypes()[i] == JoinType.Inner && joinInfo.earlyEvaluation()[i]) {
+                joinKeys[i] = new HashCacheClient.JoinKeys(maxFilterKeys);
+            }
+        }
+        final HashCacheRegistry hashCacheRegistry = services.getHashCacheRegistry();
+        // Leases of the hash caches kept for reuse, which take the place of the caches as dependencies
+        final HashCacheRegistry.Lease[] leases = new HashCacheRegistry.Lease[count];
         final AtomicLong firstJobEndTime = new AtomicLong(0);
         SQLException firstException = null;
         for (int i = 0; i < count; i++) {
@@ -109,13 +162,27 @@ public class HashJoinPlan implements QueryPlan {
                 @Override
                 public ServerCache call() throws Exception {
                     QueryPlan hashPlan = hashPlans[index];
+                    String key = hashCacheRegistry.isEnabled() ? HashCacheRegistry.getKey(hashPlan, hashExpressions[index], plan.getTableRef()) : null;
+                    if (key != null) {
+                        HashCacheRegistry.Lease lease = hashCacheRegistry.acquire(key, ranges, plan.getTableRef());
+                        if (lease != null) {
+                            if (joinKeys[index] != null) {
+                                joinKeys[index] = lease.getJoinKeys();
+                            }
+                            leases[index] = lease;
+                            return lease.getServerCache();
+                        }
+                    }
                     ServerCache cache = hashClient.addHashCache(ranges, hashPlan.iterator(), 
-                            hashPlan.getEstimatedSize(), hashExpressions[index], plan.getTableRef());
+                            hashPlan.getEstimatedSize(), hashExpressions[index], plan.getTableRef(), joinKeys[index]);
                     long endTime = System.currentTimeMillis();
                     boolean isSet = firstJobEndTime.compareAndSet(0, endTime);
                     if (!isSet && (endTime - firstJobEndTime.get()) > maxServerCacheTimeToLive) {
                         LOG.warn("Hash plan [" + index + "] execution seems too slow. Earlier hash cache(s) might have expired on servers.");
                     }
+                    if (key != null) {
+                        leases[index] = hashCacheRegistry.register(key, HashCacheRegistry.getTableNames(hashPlan), cache, joinKeys[index]);
+                    }
                     return cache;
                 }
 
@@ -129,7 +196,7 @@ public class HashJoinPlan implements QueryPlan {
             try {
                 ServerCache cache = futures.get(i).get();
                 joinIds[i].set(cache.getId());
-                dependencies.add(cache);
+                dependencies.add(leases[i] == null ? cache : leases[i]);
             } catch (InterruptedException e) {
                 if (firstException == null) {
                     firstException = new SQLException("Hash plan [" + i + "] execution interrupted.", e);
@@ -143,14 +210,96 @@ public class HashJoinPlan implements QueryPlan {
         }
         if (firstException != null) {
             SQLCloseables.closeAllQuietly(dependencies);
+            if (fallbackPlanCompiler != null && firstException.getCause() instanceof MaxServerCacheSizeExceededException) {
+                QueryPlan fallbackPlan = compileFallbackPlan();
+                if (fallbackPlan != null) {
+                    LOG.info("Hash cache too large, falling back to " + fallbackPlan.getClass().getSimpleName() + ": " + firstException.getCause().getMessage());
+                    return fallbackPlan.iterator();
+                }
+            }
             throw firstException;
         }
         
+        addJoinKeyFilters(scan, joinKeys);
         HashJoinInfo.serializeHashJoinIntoScan(scan, joinInfo);
         
         return plan.iterator(dependencies);
     }
     
+    /**
+     * @return the plan to execute instead of the hash join, or null if there's none, in which
+     * case the failure to build the hash cache is thrown
+     */
+    private QueryPlan compileFallbackPlan() {
+        try {
+            return fallbackPlanCompiler.compile();
+        } catch (SQLException e) {
+            LOG.warn("Unable to compile the plan to fall back to for a hash cache too large", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Filter out the rows of the probe side that cannot join with any row of the build side
+     * of an inner join, based on the join keys of the build side. If the join key is the
+     * leading row key column, the scan is also narrowed to the range of the join keys.
+     */
+    private void addJoinKeyFilters(Scan scan, HashCacheClient.JoinKeys[] joinKeys) {
+        // Start from scratch, as the plan may be run more than once
+        scan.setFilter(baseFilter);
+        scan.setStartRow(baseStartRow);
+        scan.setStopRow(baseStopRow);
+        int bitsPerKey = getContext().getConnection().getQueryServices().getProps().getInt(
+                QueryServices.HASH_JOIN_KEY_FILTER_BITS_PER_KEY_ATTRIB, QueryServicesOptions.DEFAULT_HASH_JOIN_KEY_FILTER_BITS_PER_KEY);
+        PTable table = plan.getTableRef().getTable();
+        for (int i = 0; i < joinKeys.length; i++) {
+            Set<ImmutableBytesPtr> keys = joinKeys[i] == null ? null : joinKeys[i].getKeys();
+            if (keys == null) {
+                continue;
+            }
+            List<Expression> joinExpressions = joinInfo.getJoinExpressions()[i];
+            BloomFilterExpression keyFilter = new BloomFilterExpression(joinExpressions, keys, bitsPerKey);
+            ScanUtil.andFilterAtEnd(scan, WhereCompiler.newFilter(table, keyFilter, true));
+            if (!keys.isEmpty() && joinExpressions.size() == 1 && isLeadingRowKeyColumn(table, joinExpressions.get(0))) {
+                narrowScanRange(scan, keys);
+            }
+        }
+    }
+    
+    private static boolean isLeadingRowKeyColumn(PTable table, Expression expression) {
+        return table.getBucketNum() == null
+                && expression instanceof RowKeyColumnExpression
+                && ((RowKeyColumnExpression)expression).getPosition() == 0
+                && expression.getSortOrder() == SortOrder.ASC
+                && expression.getDataType() == table.getPKColumns().get(0).getDataType();
+    }
+    
+    private static void narrowScanRange(Scan scan, Set<ImmutableBytesPtr> keys) {
+        ImmutableBytesPtr minKey = null;
+        ImmutableBytesPtr maxKey = null;
+        for (ImmutableBytesPtr key : keys) {
+            if (minKey == null || key.compareTo(minKey) < 0) {
+                minKey = key;
+            }
+            if (maxKey == null || key.compareTo(maxKey) > 0) {
+                maxKey = key;
+            }
+        }
+        // An empty key is a null key, which doesn't bound the range
+        if (minKey.getLength() == 0) {
+            return;
+        }
+        byte[] stopRow = ByteUtil.nextKey(maxKey.copyBytesIfNecessary());
+        KeyRange keyRange = KeyRange.getKeyRange(minKey.copyBytesIfNecessary(), true,
+                stopRow == null ? KeyRange.UNBOUND : stopRow, false);
+        keyRange = keyRange.intersect(KeyRange.getKeyRange(scan.getStartRow(), scan.getStopRow()));
+        // Leave it up to the filter if there's no overlap
+        if (keyRange != KeyRange.EMPTY_RANGE) {
+            scan.setStartRow(keyRange.getLowerRange());
+            scan.setStopRow(keyRange.getUpperRange());
+        }
+    }
+    
     @Override
     public long getEstimatedSize() {
         return plan.getEstimatedSize();
@@ -17,17 +17,23 @@
  */
 package org.apache.phoenix.execute;
 
-import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.HConstants;
-import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.ServerName;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -41,7 +47,10 @@ import org.apache.phoenix.index.IndexMaintainer;
 import org.apache.phoenix.index.IndexMetaDataCacheClient;
 import org.apache.phoenix.index.PhoenixIndexCodec;
 import org.apache.phoenix.jdbc.PhoenixConnection;
+import org.apache.phoenix.join.HashCacheRegistry;
 import org.apache.phoenix.query.QueryConstants;
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.query.QueryServicesOptions;
 import org.apache.phoenix.schema.IllegalDataException;
 import org.apache.phoenix.schema.MetaDataClient;
 import org.apache.phoenix.schema.PColumn;
@@ -53,7 +62,9 @@ import org.apache.phoenix.schema.TableRef;
 import org.apache.phoenix.util.ByteUtil;
 import org.apache.phoenix.util.IndexUtil;
 import org.apache.phoenix.util.PhoenixRuntime;
+import org.apache.phoenix.util.ReadOnlyProps;
 import org.apache.phoenix.util.SQLCloseable;
+import org.apache.phoenix.util.SQLCloseables;
 import org.apache.phoenix.util.ServerUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,6 +72,8 @@ import org.slf4j.LoggerFactory;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * 
@@ -71,6 +84,9 @@ import com.google.common.collect.Maps;
  */
 public class MutationState implements SQLCloseable {
     private static final Logger logger = LoggerFactory.getLogger(MutationState.class);
+    // Mutations of a table below this count are sent as a single batch, as looking up the
+    // locations of all the regions of the table would cost more than sending them in parallel saves
+    static final int MIN_SPLIT_MUTATION_COUNT = 100;
 
     private PhoenixConnection connection;
     private final long maxSize;
@@ -269,7 +285,7 @@ public class MutationState implements SQLCloseable {
      * @return the server time to use for the upsert
      * @throws SQLException if the table or any columns no longer exist
      */
-    private long[] validate() throws SQLException {
+    long[] validate() throws SQLException {
         int i = 0;
         Long scn = connection.getSCN();
         PName tenantId = connection.getTenantId();
@@ -309,133 +325,346 @@ public class MutationState implements SQLCloseable {
         return timeStamps;
     }
     
-    private static void logMutationSize(HTableInterface htable, List<Mutation> mutations) {
+    private static long estimateSize(List<Mutation> mutations) {
         long byteSize = 0;
-        int keyValueCount = 0;
         for (Mutation mutation : mutations) {
             if (mutation.getFamilyCellMap() != null) { // Not a Delete of the row
                 for (Entry<byte[], List<Cell>> entry : mutation.getFamilyCellMap().entrySet()) {
                     if (entry.getValue() != null) {
                         for (Cell kv : entry.getValue()) {
                             byteSize += CellUtil.estimatedSizeOf(kv);
-                            keyValueCount++;
                         }
                     }
                 }
             }
         }
-        logger.debug("Sending " + mutations.size() + " mutations for " + Bytes.toString(htable.getTableName()) + " with " + keyValueCount + " key values of total size " + byteSize + " bytes");
+        return byteSize;
+    }
+    
+    private static void logMutationSize(HTableInterface htable, List<Mutation> mutations, long byteSize) {
+        logger.debug("Sending " + mutations.size() + " mutations for " + Bytes.toString(htable.getTableName()) + " of total size " + byteSize + " bytes");
+    }
+    
+    /**
+     * Find the region containing the row in a list of regions ordered by start key
+     */
+    static int getRegionIndex(List<HRegionLocation> regions, byte[] row, int offset, int length) {
+        int low = 0;
+        int high = regions.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            byte[] startKey = regions.get(mid).getRegionInfo().getStartKey();
+            if (Bytes.compareTo(startKey, 0, startKey.length, row, offset, length) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * The mutations of a data or index table being committed
+     */
+    private static class TableMutations {
+        private final TableRef tableRef;
+        private final byte[] htableName;
+        private final boolean isDataTable;
+        private List<Mutation> mutations;
+        private List<Mutation> failedMutations = Lists.newArrayList();
+        private ImmutableBytesPtr indexMaintainers;
+        private boolean usesIndexMetaDataCache;
+        private Exception exception;
+        
+        private TableMutations(TableRef tableRef, byte[] htableName, List<Mutation> mutations, boolean isDataTable) {
+            this.tableRef = tableRef;
+            this.htableName = htableName;
+            this.mutations = mutations;
+            this.isDataTable = isDataTable;
+        }
+        
+        private synchronized void fail(Exception e, List<Mutation> mutations) {
+            if (exception == null) {
+                exception = e;
+            }
+            failedMutations.addAll(mutations);
+        }
+    }
+    
+    /**
+     * The mutations of a table destined to a single region server
+     */
+    private class ServerBatch implements Runnable {
+        private final TableMutations table;
+        private final List<Mutation> mutations;
+        private final long byteSize;
+        
+        private ServerBatch(TableMutations table, List<Mutation> mutations) {
+            this.table = table;
+            this.mutations = mutations;
+            this.byteSize = estimateSize(mutations);
+        }
+
+        @Override
+        public void run() {
+            try {
+                HTableInterface hTable = connection.getQueryServices().getTable(table.htableName);
+                try {
+                    if (logger.isDebugEnabled()) logMutationSize(hTable, mutations, byteSize);
+                    long startTime = System.currentTimeMillis();
+                    hTable.batch(mutations);
+                    if (logger.isDebugEnabled()) logger.debug("Total time for batch call of  " + mutations.size() + " mutations into " + table.tableRef.getTable().getName().getString() + ": " + (System.currentTimeMillis() - startTime) + " ms");
+                } finally {
+                    hTable.close();
+                }
+            } catch (Exception e) {
+                SQLException inferredE = ServerUtil.parseServerExceptionOrNull(e);
+                table.fail(inferredE == null ? e : inferredE, mutations);
+            }
+        }
+    }
+    
+    /**
+     * Split the mutations of a table by the region server hosting the region of each row,
+     * using the cached region locations.
+     */
+    private List<ServerBatch> getServerBatches(TableMutations table) throws SQLException {
+        if (table.mutations.size() < MIN_SPLIT_MUTATION_COUNT) {
+            return Collections.singletonList(new ServerBatch(table, table.mutations));
+        }
+        List<HRegionLocation> regions = connection.getQueryServices().getAllTableRegions(table.htableName);
+        Map<ServerName,List<Mutation>> serverMutations = Maps.newLinkedHashMap();
+        for (Mutation mutation : table.mutations) {
+            byte[] row = mutation.getRow();
+            ServerName serverName = regions.get(getRegionIndex(regions, row, 0, row.length)).getServerName();
+            List<Mutation> mutations = serverMutations.get(serverName);
+            if (mutations == null) {
+                mutations = Lists.newArrayList();
+                serverMutations.put(serverName, mutations);
+            }
+            mutations.add(mutation);
+        }
+        List<ServerBatch> batches = Lists.newArrayListWithExpectedSize(serverMutations.size());
+        for (List<Mutation> mutations : serverMutations.values()) {
+            batches.add(new ServerBatch(table, mutations));
+        }
+        return batches;
+    }
+    
+    /**
+     * Send the batches concurrently, limiting the number of batches and bytes in flight.
+     * Failures are recorded on the table of each batch.
+     */
+    private void send(List<ServerBatch> batches) {
+        if (batches.size() == 1) {
+            batches.get(0).run();
+            return;
+        }
+        ReadOnlyProps props = connection.getQueryServices().getProps();
+        final Semaphore batchPermits = new Semaphore(props.getInt(QueryServices.MAX_COMMIT_PARALLELISM_ATTRIB, QueryServicesOptions.DEFAULT_MAX_COMMIT_PARALLELISM));
+        int maxBytesInFlight = props.getInt(QueryServices.MAX_COMMIT_BYTES_IN_FLIGHT_ATTRIB, QueryServicesOptions.DEFAULT_MAX_COMMIT_BYTES_IN_FLIGHT);
+        final Semaphore bytePermits = new Semaphore(maxBytesInFlight);
+        List<Future<?>> futures = Lists.newArrayListWithExpectedSize(batches.size());
+        for (final ServerBatch batch : batches) {
+            // A batch bigger than the limit waits for all the bytes to be available
+            final int byteCount = (int)Math.max(1, Math.min(batch.byteSize, maxBytesInFlight));
+            batchPermits.acquireUninterruptibly();
+            bytePermits.acquireUninterruptibly(byteCount);
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        batch.run();
+                    } finally {
+                        bytePermits.release(byteCount);
+                        batchPermits.release();
+                    }
+                }
+            };
+            try {
+                futures.add(connection.getQueryServices().getCommitExecutor().submit(task));
+            } catch (RejectedExecutionException e) {
+                // All the commit threads are busy, so send the batch on this thread
+                task.run();
+            }
+        }
+        for (Future<?> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause()); // Impossible, as batches record their own failures
+            }
+        }
+    }
+    
+    /**
+     * Attach the index metadata to the mutations of a data table, either directly or through
+     * a server cache, which is returned so that it can be removed once the commit is done.
+     */
+    private ServerCache setIndexMetaData(TableMutations table, byte[] tenantId) throws SQLException {
+        ServerCache cache = null;
+        byte[] attribValue = null;
+        byte[] uuidValue;
+        table.usesIndexMetaDataCache = IndexMetaDataCacheClient.useIndexMetadataCache(connection, table.mutations, table.indexMaintainers.getLength());
+        if (table.usesIndexMetaDataCache) {
+            IndexMetaDataCacheClient client = new IndexMetaDataCacheClient(connection, table.tableRef);
+            cache = client.addIndexMetadataCache(table.mutations, table.indexMaintainers);
+            uuidValue = cache.getId();
+        } else {
+            attribValue = ByteUtil.copyKeyBytesIfNecessary(table.indexMaintainers);
+            uuidValue = ServerCacheClient.generateId();
+        }
+        // Either set the UUID to be able to access the index metadata from the cache
+        // or set the index metadata directly on the Mutation
+        for (Mutation mutation : table.mutations) {
+            if (tenantId != null) {
+                mutation.setAttribute(PhoenixRuntime.TENANT_ID_ATTRIB, tenantId);
+            }
+            mutation.setAttribute(PhoenixIndexCodec.INDEX_UUID, uuidValue);
+            if (attribValue != null) {
+                mutation.setAttribute(PhoenixIndexCodec.INDEX_MD, attribValue);
+            }
+        }
+        return cache;
     }
     
     public void commit() throws SQLException {
+        commit(validate());
+    }
+    
+    /**
+     * Commit the mutations at the given server time stamps, as returned by {@link #validate()}
+     * for the tables of the mutations, without validating the tables again. Doesn't change the
+     * state of the connection, so several threads may commit different mutations of the same
+     * connection at once.
+     */
+    void commit(long[] serverTimeStamps) throws SQLException {
         int i = 0;
         byte[] tenantId = connection.getTenantId() == null ? null : connection.getTenantId().getBytes();
-        long[] serverTimeStamps = validate();
-        Iterator<Map.Entry<TableRef, Map<ImmutableBytesPtr,Map<PColumn,byte[]>>>> iterator = this.mutations.entrySet().iterator();
-        List<Map.Entry<TableRef, Map<ImmutableBytesPtr,Map<PColumn,byte[]>>>> committedList = Lists.newArrayListWithCapacity(this.mutations.size());
-        while (iterator.hasNext()) {
-            Map.Entry<TableRef, Map<ImmutableBytesPtr,Map<PColumn,byte[]>>> entry = iterator.next();
-            Map<ImmutableBytesPtr,Map<PColumn,byte[]>> valuesMap = entry.getValue();
+        // Build the mutations of all data and index tables up front, so that those of all data
+        // tables and then those of all index tables can be sent concurrently, split by region server.
+        List<TableMutations> tables = Lists.newArrayList();
+        for (Map.Entry<TableRef, Map<ImmutableBytesPtr,Map<PColumn,byte[]>>> entry : this.mutations.entrySet()) {
             TableRef tableRef = entry.getKey();
-            PTable table = tableRef.getTable();
-            table.getIndexMaintainers(tempPtr);
-            boolean hasIndexMaintainers = tempPtr.getLength() > 0;
+            ImmutableBytesPtr indexMaintainers = new ImmutableBytesPtr();
+            tableRef.getTable().getIndexMaintainers(indexMaintainers);
             boolean isDataTable = true;
             long serverTimestamp = serverTimeStamps[i++];
-            Iterator<Pair<byte[],List<Mutation>>> mutationsIterator = addRowMutations(tableRef, valuesMap, serverTimestamp, false);
+            Iterator<Pair<byte[],List<Mutation>>> mutationsIterator = addRowMutations(tableRef, entry.getValue(), serverTimestamp, false);
             while (mutationsIterator.hasNext()) {
                 Pair<byte[],List<Mutation>> pair = mutationsIterator.next();
-                byte[] htableName = pair.getFirst();
-                List<Mutation> mutations = pair.getSecond();
-                
-                int retryCount = 0;
-                boolean shouldRetry = false;
-                do {
-                    ServerCache cache = null;
-                    if (hasIndexMaintainers && isDataTable) {
-                        byte[] attribValue = null;
-                        byte[] uuidValue;
-                        if (IndexMetaDataCacheClient.useIndexMetadataCache(connection, mutations, tempPtr.getLength())) {
-                            IndexMetaDataCacheClient client = new IndexMetaDataCacheClient(connection, tableRef);
-                            cache = client.addIndexMetadataCache(mutations, tempPtr);
-                            uuidValue = cache.getId();
-                            // If we haven't retried yet, retry for this case only, as it's possible that
-                            // a split will occur after we send the index metadata cache to all known
-                            // region servers.
-                            shouldRetry = true;
-                        } else {
-                            attribValue = ByteUtil.copyKeyBytesIfNecessary(tempPtr);
-                            uuidValue = ServerCacheClient.generateId();
-                        }
-                        // Either set the UUID to be able to access the index metadata from the cache
-                        // or set the index metadata directly on the Mutation
-                        for (Mutation mutation : mutations) {
-                            if (tenantId != null) {
-                                mutation.setAttribute(PhoenixRuntime.TENANT_ID_ATTRIB, tenantId);
-                            }
-                            mutation.setAttribute(PhoenixIndexCodec.INDEX_UUID, uuidValue);
-                            if (attribValue != null) {
-                                mutation.setAttribute(PhoenixIndexCodec.INDEX_MD, attribValue);
-                            }
-                        }
-                    }
-                    
-                    SQLException sqlE = null;
-                    HTableInterface hTable = connection.getQueryServices().getTable(htableName);
-                    try {
-                        if (logger.isDebugEnabled()) logMutationSize(hTable, mutations);
-                        long startTime = System.currentTimeMillis();
-                        hTable.batch(mutations);
-                        shouldRetry = false;
-                        if (logger.isDebugEnabled()) logger.debug("Total time for batch call of  " + mutations.size() + " mutations into " + table.getName().getString() + ": " + (System.currentTimeMillis() - startTime) + " ms");
-                        committedList.add(entry);
-                    } catch (Exception e) {
-                        SQLException inferredE = ServerUtil.parseServerExceptionOrNull(e);
-                        if (inferredE != null) {
-                            if (shouldRetry && retryCount == 0 && inferredE.getErrorCode() == SQLExceptionCode.INDEX_METADATA_NOT_FOUND.getErrorCode()) {
-                                // Swallow this exception once, as it's possible that we split after sending the index metadata
-                                // and one of the region servers doesn't have it. This will cause it to have it the next go around.
-                                // If it fails again, we don't retry.
-                                logger.warn("Swallowing exception and retrying after clearing meta cache on connection. " + inferredE);
-                                connection.getQueryServices().clearTableRegionCache(htableName);
-                                continue;
-                            }
-                            e = inferredE;
-                        }
-                        // Throw to client with both what was committed so far and what is left to be committed.
-                        // That way, client can either undo what was done or try again with what was not done.
-                        sqlE = new CommitException(e, this, new MutationState(committedList, this.sizeOffset, this.maxSize, this.connection));
-                    } finally {
-                        try {
-                            hTable.close();
-                        } catch (IOException e) {
-                            if (sqlE != null) {
-                                sqlE.setNextException(ServerUtil.parseServerException(e));
-                            } else {
-                                sqlE = ServerUtil.parseServerException(e);
-                            }
-                        } finally {
-                            try {
-                                if (cache != null) {
-                                    cache.close();
-                                }
-                            } finally {
-                                if (sqlE != null) {
-                                    throw sqlE;
-                                }
-                            }
-                        }
-                    }
-                } while (shouldRetry && retryCount++ < 1);
+                TableMutations table = new TableMutations(tableRef, pair.getFirst(), pair.getSecond(), isDataTable);
+                if (isDataTable && indexMaintainers.getLength() > 0) {
+                    table.indexMaintainers = indexMaintainers;
+                }
+                tables.add(table);
                 isDataTable = false;
             }
-            numRows -= entry.getValue().size();
-            iterator.remove(); // Remove batches as we process them
+        }
+        
+        // Write the data tables before their indexes, so that an index never has rows
+        // whose data row failed to be written
+        List<TableMutations> dataTables = Lists.newArrayList();
+        for (TableMutations table : tables) {
+            if (table.isDataTable) {
+                dataTables.add(table);
+            }
+        }
+        sendTables(dataTables, tenantId);
+        Set<TableRef> failedDataTables = Sets.newHashSet();
+        for (TableMutations table : dataTables) {
+            if (table.exception != null) {
+                failedDataTables.add(table.tableRef);
+            }
+        }
+        List<TableMutations> indexTables = Lists.newArrayList();
+        for (TableMutations table : tables) {
+            if (!table.isDataTable && !failedDataTables.contains(table.tableRef)) {
+                indexTables.add(table);
+            }
+        }
+        sendTables(indexTables, tenantId);
+        
+        // Stop reusing hash caches built from the tables written to
+        HashCacheRegistry hashCacheRegistry = connection.getQueryServices().getHashCacheRegistry();
+        for (TableMutations table : tables) {
+            hashCacheRegistry.invalidate(Bytes.toString(table.htableName));
+        }
+        
+        // Remove the tables that were entirely committed, including their indexes, leaving
+        // only what is left to be committed.
+        Map<TableRef,Exception> failedTables = Maps.newHashMap();
+        Exception firstException = null;
+        for (TableMutations table : tables) {
+            if (table.exception != null && !failedTables.containsKey(table.tableRef)) {
+                failedTables.put(table.tableRef, table.exception);
+                if (firstException == null) {
+                    firstException = table.exception;
+                }
+            }
+        }
+        Iterator<Map.Entry<TableRef, Map<ImmutableBytesPtr,Map<PColumn,byte[]>>>> iterator = this.mutations.entrySet().iterator();
+        List<Map.Entry<TableRef, Map<ImmutableBytesPtr,Map<PColumn,byte[]>>>> committedList = Lists.newArrayListWithCapacity(this.mutations.size());
+        while (iterator.hasNext()) {
+            Map.Entry<TableRef, Map<ImmutableBytesPtr,Map<PColumn,byte[]>>> entry = iterator.next();
+            if (!failedTables.containsKey(entry.getKey())) {
+                committedList.add(entry);
+                numRows -= entry.getValue().size();
+                iterator.remove(); // Remove batches as we process them
+            }
+        }
+        if (firstException != null) {
+            // Throw to client with both what was committed and what is left to be committed.
+            // That way, client can either undo what was done or try again with what was not done.
+            throw new CommitException(firstException, this, new MutationState(committedList, this.sizeOffset, this.maxSize, this.connection));
         }
         assert(numRows==0);
         assert(this.mutations.isEmpty());
     }
     
+    /**
+     * Send the mutations of the given tables concurrently, retrying those that failed
+     * because the index metadata they rely on wasn't found. Failures are recorded on the
+     * table of the failed mutations.
+     */
+    private void sendTables(List<TableMutations> tables, byte[] tenantId) throws SQLException {
+        List<TableMutations> pendingTables = tables;
+        for (int retryCount = 0; !pendingTables.isEmpty(); retryCount++) {
+            List<ServerCache> caches = Lists.newArrayList();
+            try {
+                List<ServerBatch> batches = Lists.newArrayList();
+                for (TableMutations table : pendingTables) {
+                    if (table.indexMaintainers != null) {
+                        ServerCache cache = setIndexMetaData(table, tenantId);
+                        if (cache != null) {
+                            caches.add(cache);
+                        }
+                    }
+                    batches.addAll(getServerBatches(table));
+                }
+                send(batches);
+            } finally {
+                SQLCloseables.closeAll(caches);
+            }
+            List<TableMutations> retryTables = Lists.newArrayList();
+            for (TableMutations table : pendingTables) {
+                if (table.usesIndexMetaDataCache && retryCount == 0 && table.exception instanceof SQLException
+                        && ((SQLException)table.exception).getErrorCode() == SQLExceptionCode.INDEX_METADATA_NOT_FOUND.getErrorCode()) {
+                    // Retry the failed mutations once, as it's possible that we split after sending the index metadata
+                    // and one of the region servers doesn't have it. This will cause it to have it the next go around.
+                    // If it fails again, we don't retry.
+                    logger.warn("Swallowing exception and retrying after clearing meta cache on connection. " + table.exception);
+                    connection.getQueryServices().clearTableRegionCache(table.htableName);
+                    table.mutations = table.failedMutations;
+                    table.failedMutations = Lists.newArrayList();
+                    table.exception = null;
+                    retryTables.add(table);
+                }
+            }
+            pendingTables = retryTables;
+        }
+    }
+    
     public void rollback(PhoenixConnection connection) throws SQLException {
         this.mutations.clear();
         numRows = 0;
@@ -0,0 +1,308 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.execute;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
+import org.apache.phoenix.jdbc.PhoenixConnection;
+import org.apache.phoenix.job.JobManager.JobRunnable;
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.query.QueryServicesOptions;
+import org.apache.phoenix.schema.PColumn;
+import org.apache.phoenix.schema.TableRef;
+import org.apache.phoenix.util.SQLCloseable;
+import org.apache.phoenix.util.ServerUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+/**
+ *
+ * Commits the batches of rows produced by an auto commit UPSERT SELECT in the background,
+ * so that the select keeps running while earlier batches are being written. Each batch is
+ * split by the region of the destination table its rows belong to, and each region batch
+ * is committed by the writer assigned to the region. A writer writes its batches one after
+ * the other on the thread pool shared by all pipelined statements, so that a row upserted
+ * more than once is written in the same order as without pipelining. The caller blocks once
+ * {@link QueryServices#MAX_PENDING_MUTATE_BATCHES_ATTRIB} region batches are waiting to be
+ * written, and writes a batch itself when the queue of the shared pool is full.
+ *
+ * The first failure is thrown by the next call to {@link #write(Map)} or by {@link #close()},
+ * after which the remaining batches are discarded.
+ *
+ *
+ * @since 4.1
+ */
+public class PipelinedMutationWriter implements SQLCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(PipelinedMutationWriter.class);
+
+    private final PhoenixConnection connection;
+    private final TableRef tableRef;
+    private final long maxSize;
+    private final long[] serverTimeStamps;
+    private final List<HRegionLocation> regions;
+    private final ExecutorService executor;
+    private final RegionWriter[] writers;
+    private final Semaphore pendingBatches;
+    private final int maxPendingBatches;
+    private final ConcurrentMap<String,RegionWriteMetrics> regionMetrics = Maps.newConcurrentMap();
+    private volatile SQLException failure;
+    private boolean isClosed;
+
+    /**
+     * Rows written to a region of the destination table and the time spent writing them
+     */
+    public static class RegionWriteMetrics {
+        private final AtomicLong batchCount = new AtomicLong();
+        private final AtomicLong rowCount = new AtomicLong();
+        private final AtomicLong writeTimeMs = new AtomicLong();
+
+        private void update(int rows, long timeMs) {
+            batchCount.incrementAndGet();
+            rowCount.addAndGet(rows);
+            writeTimeMs.addAndGet(timeMs);
+        }
+
+        public long getBatchCount() {
+            return batchCount.get();
+        }
+
+        public long getRowCount() {
+            return rowCount.get();
+        }
+
+        public long getWriteTimeMs() {
+            return writeTimeMs.get();
+        }
+
+        /**
+         * Get the number of rows written per second while writing to the region
+         */
+        public long getRowsPerSecond() {
+            long timeMs = writeTimeMs.get();
+            return timeMs == 0 ? rowCount.get() * 1000 : rowCount.get() * 1000 / timeMs;
+        }
+    }
+
+    public PipelinedMutationWriter(PhoenixConnection connection, TableRef tableRef, long maxSize) throws SQLException {
+        this.connection = connection;
+        this.tableRef = tableRef;
+        this.maxSize = maxSize;
+        // Validate the table once up front, on the caller thread, as validating may update the
+        // meta data cache of the connection, which the writer threads must not do concurrently
+        Map<ImmutableBytesPtr,Map<PColumn,byte[]>> noRows = Collections.emptyMap();
+        this.serverTimeStamps = new MutationState(tableRef, noRows, 0, maxSize, connection).validate();
+        this.regions = connection.getQueryServices().getAllTableRegions(tableRef.getTable().getPhysicalName().getBytes());
+        int writerThreads = connection.getQueryServices().getProps().getInt(QueryServices.MUTATE_WRITER_THREADS_ATTRIB,
+                QueryServicesOptions.DEFAULT_MUTATE_WRITER_THREADS);
+        this.executor = connection.getQueryServices().getMutationWriterExecutor();
+        this.writers = new RegionWriter[Math.max(1, Math.min(writerThreads, regions.size()))];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new RegionWriter();
+        }
+        this.maxPendingBatches = connection.getQueryServices().getProps().getInt(QueryServices.MAX_PENDING_MUTATE_BATCHES_ATTRIB,
+                QueryServicesOptions.DEFAULT_MAX_PENDING_MUTATE_BATCHES);
+        this.pendingBatches = new Semaphore(maxPendingBatches);
+    }
+
+    /**
+     * Queue a batch of rows for writing. The map is owned by the writer from then on.
+     * @throws SQLException if an earlier batch failed to be written
+     */
+    public void write(Map<ImmutableBytesPtr,Map<PColumn,byte[]>> rows) throws SQLException {
+        throwIfFailed();
+        Map<Integer,Map<ImmutableBytesPtr,Map<PColumn,byte[]>>> regionRows = Maps.newHashMap();
+        for (Map.Entry<ImmutableBytesPtr,Map<PColumn,byte[]>> entry : rows.entrySet()) {
+            ImmutableBytesPtr key = entry.getKey();
+            // Based on the regions as they were when the writer was created, so a region that has
+            // since split still maps all of its rows to the same writer
+            Integer regionIndex = MutationState.getRegionIndex(regions, key.get(), key.getOffset(), key.getLength());
+            Map<ImmutableBytesPtr,Map<PColumn,byte[]>> batch = regionRows.get(regionIndex);
+            if (batch == null) {
+                batch = Maps.newHashMap();
+                regionRows.put(regionIndex, batch);
+            }
+            batch.put(key, entry.getValue());
+        }
+        for (Map.Entry<Integer,Map<ImmutableBytesPtr,Map<PColumn,byte[]>>> entry : regionRows.entrySet()) {
+            int regionIndex = entry.getKey();
+            try {
+                pendingBatches.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw ServerUtil.parseServerException(e);
+            }
+            writers[regionIndex % writers.length].write(
+                    new RegionBatch(regions.get(regionIndex).getRegionInfo().getRegionNameAsString(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Writes its batches in the order they're queued, running at most one of them at a time
+     * on the shared pool. Each batch is submitted as its own task, so that the writers of
+     * other statements get a turn in between.
+     */
+    private class RegionWriter implements JobRunnable<Void> {
+        private final Queue<RegionBatch> batches = new LinkedList<RegionBatch>();
+        private boolean isScheduled;
+
+        private void write(RegionBatch batch) {
+            synchronized (this) {
+                batches.add(batch);
+                if (isScheduled) {
+                    return;
+                }
+                isScheduled = true;
+            }
+            if (!submit()) {
+                // The queue of the shared pool is full, so write on the caller thread
+                run();
+            }
+        }
+
+        private boolean submit() {
+            try {
+                executor.submit(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                RegionBatch batch;
+                synchronized (this) {
+                    batch = batches.remove();
+                }
+                batch.run();
+                synchronized (this) {
+                    if (batches.isEmpty()) {
+                        isScheduled = false;
+                        return;
+                    }
+                }
+                // Write the next batch on this thread if it can't be submitted
+            } while (!submit());
+        }
+
+        @Override
+        public Object getJobId() {
+            // Round robin between the statements sharing the pool
+            return PipelinedMutationWriter.this;
+        }
+    }
+
+    private class RegionBatch implements Runnable {
+        private final String regionName;
+        private final Map<ImmutableBytesPtr,Map<PColumn,byte[]>> rows;
+
+        private RegionBatch(String regionName, Map<ImmutableBytesPtr,Map<PColumn,byte[]>> rows) {
+            this.regionName = regionName;
+            this.rows = rows;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (failure != null) {
+                    return;
+                }
+                long startTime = System.currentTimeMillis();
+                // The table was validated by the constructor, so the batch is sent without
+                // validating it again
+                new MutationState(tableRef, rows, 0, maxSize, connection).commit(serverTimeStamps);
+                getRegionMetrics(regionName).update(rows.size(), System.currentTimeMillis() - startTime);
+            } catch (Throwable t) {
+                synchronized (PipelinedMutationWriter.this) {
+                    if (failure == null) {
+                        failure = ServerUtil.parseServerException(t);
+                    }
+                }
+            } finally {
+                pendingBatches.release();
+            }
+        }
+    }
+
+    private RegionWriteMetrics getRegionMetrics(String regionName) {
+        RegionWriteMetrics metrics = regionMetrics.get(regionName);
+        if (metrics == null) {
+            RegionWriteMetrics newMetrics = new RegionWriteMetrics();
+            metrics = regionMetrics.putIfAbsent(regionName, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Get the write metrics of each region of the destination table, keyed by region name
+     */
+    public Map<String,RegionWriteMetrics> getRegionMetrics() {
+        return regionMetrics;
+    }
+
+    private void throwIfFailed() throws SQLException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Wait for all queued batches to be written.
+     * @throws SQLException if any of the batches failed to be written
+     */
+    @Override
+    public void close() throws SQLException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            pendingBatches.acquire(maxPendingBatches);
+            pendingBatches.release(maxPendingBatches);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServerUtil.parseServerException(e);
+        }
+        if (logger.isDebugEnabled()) {
+            for (Map.Entry<String,RegionWriteMetrics> entry : regionMetrics.entrySet()) {
+                RegionWriteMetrics metrics = entry.getValue();
+                logger.debug("Wrote " + metrics.getRowCount() + " rows in " + metrics.getBatchCount() + " batches to region "
+                        + entry.getKey() + " in " + metrics.getWriteTimeMs() + " ms (" + metrics.getRowsPerSecond() + " rows/sec)");
+            }
+        }
+        throwIfFailed();
+    }
+}
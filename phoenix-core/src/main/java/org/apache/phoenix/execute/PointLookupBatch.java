@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.execute;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.compile.OrderByCompiler.OrderBy;
+import org.apache.phoenix.compile.QueryPlan;
+import org.apache.phoenix.compile.ScanRanges;
+import org.apache.phoenix.compile.StatementContext;
+import org.apache.phoenix.filter.SkipScanFilter;
+import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
+import org.apache.phoenix.iterate.MaterializedResultIterator;
+import org.apache.phoenix.iterate.ResultIterator;
+import org.apache.phoenix.query.KeyRange;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.ScanUtil;
+import org.apache.phoenix.util.SchemaUtil;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ *
+ * Executes the plans of several queries that each look up rows by their full row key
+ * as a single scan over the keys of all of them, and hands each query the rows it
+ * looked up. Used to execute a batch of the same query with different bind values at
+ * the cost of a single query.
+ *
+ *
+ * @since 4.1
+ */
+public class PointLookupBatch {
+
+    private PointLookupBatch() {
+    }
+
+    /**
+     * @return true if the given plan only looks up rows by their full row key, so that
+     * it may be executed together with other such plans
+     */
+    public static boolean isPointLookup(QueryPlan plan) {
+        if (!(plan instanceof ScanPlan)) {
+            return false;
+        }
+        StatementContext context = plan.getContext();
+        OrderBy orderBy = plan.getOrderBy();
+        Filter filter = context.getScan().getFilter();
+        return context.getScanRanges().isPointLookup()
+                && plan.getLimit() == null
+                && orderBy.getOrderByExpressions().isEmpty()
+                && orderBy != OrderBy.REV_ROW_KEY_ORDER_BY
+                && context.getSequenceManager().getSequenceCount() == 0
+                // Any other filter may depend on the bind values
+                && (filter == null || filter instanceof SkipScanFilter);
+    }
+
+    /**
+     * @return true if the given point lookup plans scan the same table in the same way,
+     * apart from the keys they look up
+     */
+    public static boolean isCombinable(QueryPlan plan1, QueryPlan plan2) {
+        if (!plan1.getTableRef().equals(plan2.getTableRef())
+                || plan1.getTableRef().getTable().getTimeStamp() != plan2.getTableRef().getTable().getTimeStamp()) {
+            return false;
+        }
+        Scan scan1 = plan1.getContext().getScan();
+        Scan scan2 = plan2.getContext().getScan();
+        if (!scan1.getFamilyMap().keySet().equals(scan2.getFamilyMap().keySet())) {
+            return false;
+        }
+        Map<String, byte[]> attributes1 = scan1.getAttributesMap();
+        Map<String, byte[]> attributes2 = scan2.getAttributesMap();
+        if (attributes1.size() != attributes2.size()) {
+            return false;
+        }
+        for (Map.Entry<String, byte[]> entry : attributes1.entrySet()) {
+            if (!Bytes.equals(entry.getValue(), attributes2.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Run a single scan over the keys looked up by all the given combinable point lookup
+     * plans. The scan of the first plan is changed to look up all the keys, so the plans
+     * may not be executed again.
+     * @return the iterators over the rows looked up by each of the plans, in the order of the plans
+     */
+    public static List<ResultIterator> execute(List<QueryPlan> plans) throws SQLException {
+        Map<ImmutableBytesPtr, List<Integer>> planPositionsByKey = Maps.newHashMap();
+        Set<KeyRange> keys = new LinkedHashSet<KeyRange>();
+        for (int i = 0; i < plans.size(); i++) {
+            Iterator<KeyRange> iterator = plans.get(i).getContext().getScanRanges().getPointLookupKeyIterator();
+            while (iterator.hasNext()) {
+                KeyRange key = iterator.next();
+                keys.add(key);
+                ImmutableBytesPtr ptr = new ImmutableBytesPtr(key.getLowerRange());
+                List<Integer> positions = planPositionsByKey.get(ptr);
+                if (positions == null) {
+                    positions = Lists.newArrayListWithExpectedSize(1);
+                    planPositionsByKey.put(ptr, positions);
+                }
+                if (positions.isEmpty() || positions.get(positions.size() - 1) != i) {
+                    positions.add(i);
+                }
+            }
+        }
+
+        // The keys are full row keys, including any salt byte
+        QueryPlan plan = plans.get(0);
+        StatementContext context = plan.getContext();
+        ScanRanges scanRanges = ScanRanges.create(Collections.singletonList(Lists.newArrayList(keys)), SchemaUtil.VAR_BINARY_SCHEMA);
+        context.getScan().setFilter(null);
+        context.setScanRanges(scanRanges);
+        if (scanRanges.useSkipScanFilter()) {
+            ScanUtil.andFilterAtBeginning(context.getScan(), scanRanges.getSkipScanFilter());
+        }
+
+        List<List<Tuple>> results = Lists.newArrayListWithExpectedSize(plans.size());
+        for (int i = 0; i < plans.size(); i++) {
+            results.add(Lists.<Tuple>newArrayList());
+        }
+        ResultIterator iterator = plan.iterator();
+        try {
+            // Rows are handed out in the order of the scan, as each plan would have returned them
+            for (Tuple tuple = iterator.next(); tuple != null; tuple = iterator.next()) {
+                ImmutableBytesPtr key = new ImmutableBytesPtr();
+                tuple.getKey(key);
+                List<Integer> positions = planPositionsByKey.get(key);
+                if (positions != null) {
+                    for (Integer position : positions) {
+                        results.get(position).add(tuple);
+                    }
+                }
+            }
+        } finally {
+            iterator.close();
+        }
+        List<ResultIterator> iterators = Lists.newArrayListWithExpectedSize(plans.size());
+        for (List<Tuple> result : results) {
+            iterators.add(new MaterializedResultIterator(result));
+        }
+        return iterators;
+    }
+}
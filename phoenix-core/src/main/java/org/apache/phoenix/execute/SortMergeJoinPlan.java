@@ -0,0 +1,395 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.execute;
+
+import java.io.IOException;
+import java.sql.ParameterMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.compile.ExplainPlan;
+import org.apache.phoenix.compile.GroupByCompiler.GroupBy;
+import org.apache.phoenix.compile.OrderByCompiler.OrderBy;
+import org.apache.phoenix.compile.QueryPlan;
+import org.apache.phoenix.compile.RowProjector;
+import org.apache.phoenix.compile.StatementContext;
+import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.iterate.LimitingResultIterator;
+import org.apache.phoenix.iterate.LookAheadResultIterator;
+import org.apache.phoenix.iterate.OrderedResultIterator;
+import org.apache.phoenix.iterate.ResultIterator;
+import org.apache.phoenix.iterate.SequenceResultIterator;
+import org.apache.phoenix.join.HashJoinInfo;
+import org.apache.phoenix.join.ScanProjector;
+import org.apache.phoenix.parse.FilterableStatement;
+import org.apache.phoenix.parse.JoinTableNode.JoinType;
+import org.apache.phoenix.query.KeyRange;
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.query.QueryServicesOptions;
+import org.apache.phoenix.schema.IllegalDataException;
+import org.apache.phoenix.schema.KeyValueSchema;
+import org.apache.phoenix.schema.PTable;
+import org.apache.phoenix.schema.TableRef;
+import org.apache.phoenix.schema.ValueBitSet;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.ReadOnlyProps;
+import org.apache.phoenix.util.SQLCloseables;
+import org.apache.phoenix.util.SpillCodec;
+import org.apache.phoenix.util.SpillCodec.SpillType;
+
+import com.google.common.collect.Lists;
+
+/**
+ *
+ * Query plan that joins two tables on the client by merging the rows of both sides,
+ * each sorted on its side of the join key. A side whose join key is a leading part of
+ * its row key is read in row key order, while the other side is sorted by the region
+ * servers, spilling to disk as needed. Unlike a hash join, neither side needs to fit
+ * in the memory of the region servers, only the rows of the right side that share the
+ * same join key are held in memory at a time.
+ *
+ * Rows with a null join key don't join with any row.
+ *
+ *
+ * @since 4.1
+ */
+public class SortMergeJoinPlan implements QueryPlan {
+    private final BasicQueryPlan plan;
+    private final OrderBy orderBy;
+    private final JoinType type;
+    private final QueryPlan lhsPlan;
+    private final QueryPlan rhsPlan;
+    private final List<Expression> lhsKeyExpressions;
+    private final List<Expression> rhsKeyExpressions;
+    private final KeyValueSchema joinedSchema;
+    private final KeyValueSchema lhsSchema;
+    private final KeyValueSchema rhsSchema;
+    private final int rhsFieldPosition;
+    private final Expression postJoinFilterExpression;
+
+    /**
+     * @param plan the plan compiled against the joined table, for its projector, limit and context
+     * @param orderBy the ORDER BY of the query, compiled without assuming row key order
+     * @param type the type of join, either {@link JoinType#Inner} or {@link JoinType#Left}
+     * @param lhsPlan the plan of the left side, ordered by its join key expressions
+     * @param rhsPlan the plan of the right side, ordered by its join key expressions
+     * @param joinedTable the projected table of the joined rows
+     * @param lhsTable the projected table of the left side
+     * @param rhsTable the projected table of the right side, or null if none of its
+     * columns are referenced after the join
+     * @param rhsFieldPosition the position of the first field of the right side in the joined table
+     */
+    public SortMergeJoinPlan(BasicQueryPlan plan, OrderBy orderBy, JoinType type,
+            QueryPlan lhsPlan, QueryPlan rhsPlan, List<Expression> lhsKeyExpressions, List<Expression> rhsKeyExpressions,
+            PTable joinedTable, PTable lhsTable, PTable rhsTable, int rhsFieldPosition, Expression postJoinFilterExpression) {
+        if (type != JoinType.Inner && type != JoinType.Left) {
+            throw new IllegalArgumentException("Sort merge join not supported for " + type + " joins");
+        }
+        this.plan = plan;
+        this.orderBy = orderBy;
+        this.type = type;
+        this.lhsPlan = lhsPlan;
+        this.rhsPlan = rhsPlan;
+        this.lhsKeyExpressions = lhsKeyExpressions;
+        this.rhsKeyExpressions = rhsKeyExpressions;
+        this.joinedSchema = HashJoinInfo.buildSchema(joinedTable);
+        this.lhsSchema = HashJoinInfo.buildSchema(lhsTable);
+        this.rhsSchema = rhsTable == null ? null : HashJoinInfo.buildSchema(rhsTable);
+        this.rhsFieldPosition = rhsFieldPosition;
+        this.postJoinFilterExpression = postJoinFilterExpression;
+    }
+
+    @Override
+    public ResultIterator iterator() throws SQLException {
+        ResultIterator lhsIterator = lhsPlan.iterator();
+        ResultIterator rhsIterator;
+        try {
+            rhsIterator = rhsPlan.iterator();
+        } catch (SQLException e) {
+            lhsIterator.close();
+            throw e;
+        }
+        final ValueBitSet joinedBitSet = ValueBitSet.newInstance(joinedSchema);
+        final ValueBitSet lhsBitSet = ValueBitSet.newInstance(lhsSchema);
+        final ValueBitSet rhsBitSet = rhsSchema == null ? null : ValueBitSet.newInstance(rhsSchema);
+        ResultIterator iterator = new SortMergeJoinIterator(lhsIterator, rhsIterator, lhsKeyExpressions, rhsKeyExpressions, type) {
+            private final ImmutableBytesWritable tempPtr = new ImmutableBytesWritable();
+
+            @Override
+            protected Tuple join(Tuple lhs, Tuple rhs) throws SQLException {
+                Tuple tuple = lhs;
+                if (rhsSchema != null) {
+                    try {
+                        tuple = ScanProjector.mergeProjectedValue(lhs, lhsSchema, lhsBitSet, rhs, rhsSchema, rhsBitSet, joinedBitSet, rhsFieldPosition);
+                    } catch (IOException e) {
+                        throw new SQLException(e);
+                    }
+                }
+                if (postJoinFilterExpression != null) {
+                    try {
+                        if (!postJoinFilterExpression.evaluate(tuple, tempPtr)) {
+                            return null;
+                        }
+                    } catch (IllegalDataException e) {
+                        return null;
+                    }
+                    Boolean b = (Boolean)postJoinFilterExpression.getDataType().toObject(tempPtr);
+                    if (!b.booleanValue()) {
+                        return null;
+                    }
+                }
+                return tuple;
+            }
+        };
+        Integer limit = getLimit();
+        if (orderBy.getOrderByExpressions().isEmpty()) {
+            if (limit != null) {
+                iterator = new LimitingResultIterator(iterator, limit);
+            }
+        } else {
+            ReadOnlyProps props = getContext().getConnection().getQueryServices().getProps();
+            int thresholdBytes = props.getInt(QueryServices.SPOOL_THRESHOLD_BYTES_ATTRIB, QueryServicesOptions.DEFAULT_SPOOL_THRESHOLD_BYTES);
+            iterator = new OrderedResultIterator(iterator, orderBy.getOrderByExpressions(), thresholdBytes, limit, 0,
+                    SpillCodec.getCodec(props, SpillType.ORDER_BY),
+                    props.getInt(QueryServices.SORT_MERGE_FAN_IN_ATTRIB, QueryServicesOptions.DEFAULT_SORT_MERGE_FAN_IN));
+        }
+        StatementContext context = getContext();
+        if (context.getSequenceManager().getSequenceCount() > 0) {
+            iterator = new SequenceResultIterator(iterator, context.getSequenceManager());
+        }
+        return iterator;
+    }
+
+    /**
+     * Evaluate the join key of a row, one value per expression
+     * @return the join key, or null if any part of it is null
+     */
+    private static byte[][] evaluateKey(Tuple tuple, List<Expression> expressions, ImmutableBytesWritable ptr) {
+        byte[][] key = new byte[expressions.size()][];
+        for (int i = 0; i < key.length; i++) {
+            if (!expressions.get(i).evaluate(tuple, ptr) || ptr.getLength() == 0) {
+                return null;
+            }
+            key[i] = ptr.copyBytes();
+        }
+        return key;
+    }
+
+    private static int compareKeys(byte[][] key1, byte[][] key2) {
+        for (int i = 0; i < key1.length; i++) {
+            int c = Bytes.compareTo(key1[i], key2[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Merges the rows of the left side with those of the right side that have the same
+     * join key, both sides being ordered by their join key.
+     */
+    static abstract class SortMergeJoinIterator extends LookAheadResultIterator {
+        private final ResultIterator lhsIterator;
+        private final ResultIterator rhsIterator;
+        private final List<Expression> lhsKeyExpressions;
+        private final List<Expression> rhsKeyExpressions;
+        private final JoinType type;
+        private final ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+        private final Queue<Tuple> resultQueue = new LinkedList<Tuple>();
+        // Rows of the right side with the same join key as the last row of the left side
+        private final List<Tuple> rhsGroup = new ArrayList<Tuple>();
+        private byte[][] rhsGroupKey;
+        // Next row of the right side not yet in a group
+        private Tuple rhsTuple;
+        private byte[][] rhsKey;
+        private boolean initialized;
+
+        SortMergeJoinIterator(ResultIterator lhsIterator, ResultIterator rhsIterator,
+                List<Expression> lhsKeyExpressions, List<Expression> rhsKeyExpressions, JoinType type) {
+            this.lhsIterator = lhsIterator;
+            this.rhsIterator = rhsIterator;
+            this.lhsKeyExpressions = lhsKeyExpressions;
+            this.rhsKeyExpressions = rhsKeyExpressions;
+            this.type = type;
+        }
+
+        /**
+         * Join a row of the left side with a row of the right side
+         * @param rhs the row of the right side, or null for a row of the left side
+         * without any match in a left join
+         * @return the joined row, or null if it's filtered out
+         */
+        abstract protected Tuple join(Tuple lhs, Tuple rhs) throws SQLException;
+
+        private void advanceRhs() throws SQLException {
+            rhsTuple = rhsIterator.next();
+            rhsKey = rhsTuple == null ? null : evaluateKey(rhsTuple, rhsKeyExpressions, ptr);
+        }
+
+        /**
+         * Position the right side on the group of rows with the given join key. As the rows
+         * of the left side come in join key order, rows of the right side with a lower
+         * join key can't join with any remaining row of the left side and are skipped.
+         * @return true if there are rows of the right side with the join key
+         */
+        private boolean seekRhs(byte[][] key) throws SQLException {
+            if (!initialized) {
+                advanceRhs();
+                initialized = true;
+            }
+            if (rhsGroupKey != null && compareKeys(key, rhsGroupKey) == 0) {
+                return true;
+            }
+            rhsGroup.clear();
+            rhsGroupKey = null;
+            while (rhsTuple != null && (rhsKey == null || compareKeys(rhsKey, key) < 0)) {
+                advanceRhs();
+            }
+            if (rhsTuple != null && compareKeys(rhsKey, key) == 0) {
+                rhsGroupKey = rhsKey;
+                do {
+                    rhsGroup.add(rhsTuple);
+                    advanceRhs();
+                } while (rhsTuple != null && rhsKey != null && compareKeys(rhsKey, rhsGroupKey) == 0);
+            }
+            return rhsGroupKey != null;
+        }
+
+        private void offer(Tuple tuple) {
+            if (tuple != null) {
+                resultQueue.offer(tuple);
+            }
+        }
+
+        @Override
+        protected Tuple advance() throws SQLException {
+            while (resultQueue.isEmpty()) {
+                Tuple lhs = lhsIterator.next();
+                if (lhs == null) {
+                    return null;
+                }
+                byte[][] lhsKey = evaluateKey(lhs, lhsKeyExpressions, ptr);
+                if (lhsKey != null && seekRhs(lhsKey)) {
+                    for (Tuple rhs : rhsGroup) {
+                        offer(join(lhs, rhs));
+                    }
+                } else if (type == JoinType.Left) {
+                    offer(join(lhs, null));
+                }
+            }
+            return resultQueue.poll();
+        }
+
+        @Override
+        public void close() throws SQLException {
+            rhsGroup.clear();
+            resultQueue.clear();
+            SQLCloseables.closeAll(Arrays.asList(lhsIterator, rhsIterator));
+        }
+
+        @Override
+        public void explain(List<String> planSteps) {
+        }
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        return lhsPlan.getEstimatedSize() + rhsPlan.getEstimatedSize();
+    }
+
+    @Override
+    public List<KeyRange> getSplits() {
+        return lhsPlan.getSplits();
+    }
+
+    @Override
+    public ExplainPlan getExplainPlan() throws SQLException {
+        List<String> planSteps = Lists.newArrayList();
+        planSteps.add("SORT-MERGE-JOIN (" + type.toString().toUpperCase() + ") TABLES");
+        for (String step : lhsPlan.getExplainPlan().getPlanSteps()) {
+            planSteps.add("    " + step);
+        }
+        planSteps.add("AND");
+        for (String step : rhsPlan.getExplainPlan().getPlanSteps()) {
+            planSteps.add("    " + step);
+        }
+        if (postJoinFilterExpression != null) {
+            planSteps.add("AFTER-JOIN CLIENT FILTER BY " + postJoinFilterExpression.toString());
+        }
+        Integer limit = getLimit();
+        if (!orderBy.getOrderByExpressions().isEmpty()) {
+            planSteps.add("CLIENT" + (limit == null ? "" : " TOP " + limit + " ROW"  + (limit == 1 ? "" : "S"))  + " SORTED BY " + orderBy.getOrderByExpressions().toString());
+        } else if (limit != null) {
+            planSteps.add("CLIENT " + limit + " ROW LIMIT");
+        }
+        return new ExplainPlan(planSteps);
+    }
+
+    @Override
+    public Integer getLimit() {
+        return plan.getLimit();
+    }
+
+    @Override
+    public OrderBy getOrderBy() {
+        return orderBy;
+    }
+
+    @Override
+    public RowProjector getProjector() {
+        return plan.getProjector();
+    }
+
+    @Override
+    public ParameterMetaData getParameterMetaData() {
+        return plan.getParameterMetaData();
+    }
+
+    @Override
+    public StatementContext getContext() {
+        return plan.getContext();
+    }
+
+    @Override
+    public GroupBy getGroupBy() {
+        return plan.getGroupBy();
+    }
+
+    @Override
+    public TableRef getTableRef() {
+        return plan.getTableRef();
+    }
+
+    @Override
+    public FilterableStatement getStatement() {
+        return plan.getStatement();
+    }
+
+    @Override
+    public boolean isDegenerate() {
+        return false;
+    }
+
+}
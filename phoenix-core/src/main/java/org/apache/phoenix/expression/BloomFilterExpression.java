@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.expression;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Hash;
+import org.apache.hadoop.hbase.util.MurmurHash;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
+import org.apache.phoenix.schema.PDataType;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.ByteUtil;
+import org.apache.phoenix.util.TupleUtil;
+
+
+/**
+ *
+ * Expression that is true when the concatenated value of its children, computed in the same
+ * way as the key of a hash join, may be one of a set of keys. The set is represented by a
+ * Bloom filter along with the minimum and maximum key, so false positives are possible but
+ * false negatives are not. Used to filter out the rows of the probe side of a hash join
+ * that cannot possibly join with any row of the build side.
+ *
+ *
+ * @since 4.1
+ */
+public class BloomFilterExpression extends BaseCompoundExpression {
+    private static final Hash HASH = MurmurHash.getInstance();
+    private static final double LN2 = Math.log(2);
+
+    private long[] bits;
+    private int bitCount;
+    private int hashCount;
+    private byte[] minKey;
+    private byte[] maxKey;
+
+    public BloomFilterExpression() {
+    }
+
+    /**
+     * @param children expressions whose concatenated value is tested
+     * @param keys the set of keys
+     * @param bitsPerKey the number of bits of the Bloom filter per key, 10 bits giving a
+     * false positive rate of about 1%
+     */
+    public BloomFilterExpression(List<Expression> children, Collection<ImmutableBytesPtr> keys, int bitsPerKey) {
+        super(children);
+        long nBits = (long)Math.max(1, keys.size()) * Math.max(1, bitsPerKey);
+        this.bitCount = (int)Math.max(Long.SIZE, Math.min(Integer.MAX_VALUE - Long.SIZE, nBits));
+        // Optimal number of hash functions for the number of bits per key
+        this.hashCount = Math.max(1, (int)Math.round(bitsPerKey * LN2));
+        this.bits = new long[(bitCount + Long.SIZE - 1) / Long.SIZE];
+        for (ImmutableBytesPtr key : keys) {
+            add(key);
+            if (minKey == null || Bytes.compareTo(key.get(), key.getOffset(), key.getLength(), minKey, 0, minKey.length) < 0) {
+                minKey = key.copyBytes();
+            }
+            if (maxKey == null || Bytes.compareTo(key.get(), key.getOffset(), key.getLength(), maxKey, 0, maxKey.length) > 0) {
+                maxKey = key.copyBytes();
+            }
+        }
+    }
+
+    private void add(ImmutableBytesWritable key) {
+        int hash1 = HASH.hash(key.get(), key.getOffset(), key.getLength(), 0);
+        int hash2 = HASH.hash(key.get(), key.getOffset(), key.getLength(), hash1);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitCount;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean mightContain(ImmutableBytesWritable key) {
+        if (minKey == null) { // No keys at all
+            return false;
+        }
+        if (Bytes.compareTo(key.get(), key.getOffset(), key.getLength(), minKey, 0, minKey.length) < 0
+                || Bytes.compareTo(key.get(), key.getOffset(), key.getLength(), maxKey, 0, maxKey.length) > 0) {
+            return false;
+        }
+        int hash1 = HASH.hash(key.get(), key.getOffset(), key.getLength(), 0);
+        int hash2 = HASH.hash(key.get(), key.getOffset(), key.getLength(), hash1);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitCount;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean evaluate(Tuple tuple, ImmutableBytesWritable ptr) {
+        boolean mightContain;
+        if (children.size() == 1) {
+            if (!children.get(0).evaluate(tuple, ptr)) {
+                if (!tuple.isImmutable()) {
+                    return false; // Wait until all the columns of the row have been seen
+                }
+                ptr.set(ByteUtil.EMPTY_BYTE_ARRAY);
+            }
+            mightContain = mightContain(ptr);
+        } else {
+            if (!tuple.isImmutable()) {
+                for (int i = 0; i < children.size(); i++) {
+                    if (!children.get(i).evaluate(tuple, ptr)) {
+                        return false;
+                    }
+                }
+            }
+            try {
+                mightContain = mightContain(TupleUtil.getConcatenatedValue(tuple, children));
+            } catch (IOException e) {
+                // Leave it up to the join to handle a key that can't be formed
+                mightContain = true;
+            }
+        }
+        ptr.set(mightContain ? PDataType.TRUE_BYTES : PDataType.FALSE_BYTES);
+        return true;
+    }
+
+    @Override
+    public PDataType getDataType() {
+        return PDataType.BOOLEAN;
+    }
+
+    @Override
+    public boolean isNullable() {
+        return false;
+    }
+
+    @Override
+    public boolean requiresFinalEvaluation() {
+        // A row missing the columns of the key has a null key, which may still be in the set
+        return true;
+    }
+
+    @Override
+    public void readFields(DataInput input) throws IOException {
+        super.readFields(input);
+        bitCount = WritableUtils.readVInt(input);
+        hashCount = WritableUtils.readVInt(input);
+        bits = new long[(bitCount + Long.SIZE - 1) / Long.SIZE];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = input.readLong();
+        }
+        if (input.readBoolean()) {
+            minKey = Bytes.readByteArray(input);
+            maxKey = Bytes.readByteArray(input);
+        }
+    }
+
+    @Override
+    public void write(DataOutput output) throws IOException {
+        super.write(output);
+        WritableUtils.writeVInt(output, bitCount);
+        WritableUtils.writeVInt(output, hashCount);
+        for (int i = 0; i < bits.length; i++) {
+            output.writeLong(bits[i]);
+        }
+        output.writeBoolean(minKey != null);
+        if (minKey != null) {
+            Bytes.writeByteArray(output, minKey);
+            Bytes.writeByteArray(output, maxKey);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return children + " IN BLOOM FILTER(" + bitCount + " BITS)";
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.expression.aggregator;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.schema.PDataType.PDataCodec;
+import org.apache.phoenix.schema.SortOrder;
+import org.apache.phoenix.schema.tuple.Tuple;
+
+
+/**
+ *
+ * Aggregates rows in chunks rather than one at a time. As each row is aggregated, the
+ * inputs of the COUNT and integral or floating point SUM aggregators are decoded into
+ * primitive arrays, one per aggregator, and once a chunk of rows has been collected each
+ * array is summed in a tight loop and the total folded into its aggregator with a single
+ * call. Other aggregators, such as MIN and MAX, whose state depends on the row bytes,
+ * are still aggregated row by row.
+ *
+ * The aggregators only reflect all of the rows aggregated so far once {@link #flush()}
+ * has been called.
+ *
+ *
+ * @since 4.1
+ */
+public class BatchAggregator {
+    private static final int ROW = 0;
+    private static final int COUNT = 1;
+    private static final int LONG_SUM = 2;
+    private static final int DOUBLE_SUM = 3;
+
+    private final Aggregator[] aggregators;
+    private final Expression[] expressions;
+    private final int chunkSize;
+    private final int[] kinds;
+    private final PDataCodec[] codecs;
+    private final SortOrder[] sortOrders;
+    // Number of values collected for each aggregator in the current chunk
+    private final int[] valueCounts;
+    private final long[][] longValues;
+    private final double[][] doubleValues;
+    private final ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+    private int rowCount;
+
+    BatchAggregator(Aggregator[] aggregators, Expression[] expressions, int chunkSize) {
+        this.aggregators = aggregators;
+        this.expressions = expressions;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.kinds = new int[aggregators.length];
+        this.codecs = new PDataCodec[aggregators.length];
+        this.sortOrders = new SortOrder[aggregators.length];
+        this.valueCounts = new int[aggregators.length];
+        this.longValues = new long[aggregators.length][];
+        this.doubleValues = new double[aggregators.length][];
+        for (int i = 0; i < aggregators.length; i++) {
+            Aggregator aggregator = aggregators[i];
+            if (aggregator instanceof CountAggregator) {
+                kinds[i] = COUNT;
+            } else if (aggregator instanceof NumberSumAggregator) {
+                NumberSumAggregator sumAggregator = (NumberSumAggregator)aggregator;
+                kinds[i] = LONG_SUM;
+                codecs[i] = sumAggregator.getInputDataType().getCodec();
+                sortOrders[i] = sumAggregator.sortOrder;
+                longValues[i] = new long[this.chunkSize];
+            } else if (aggregator instanceof DoubleSumAggregator) {
+                DoubleSumAggregator sumAggregator = (DoubleSumAggregator)aggregator;
+                kinds[i] = DOUBLE_SUM;
+                codecs[i] = sumAggregator.getInputDataType().getCodec();
+                sortOrders[i] = sumAggregator.sortOrder;
+                doubleValues[i] = new double[this.chunkSize];
+            } else {
+                kinds[i] = ROW;
+            }
+        }
+    }
+
+    /**
+     * Aggregate a row, folding the current chunk into the aggregators once it's full
+     * @param result the row to aggregate
+     */
+    public void aggregate(Tuple result) {
+        for (int i = 0; i < expressions.length; i++) {
+            if (expressions[i].evaluate(result, ptr)) {
+                switch (kinds[i]) {
+                case COUNT:
+                    valueCounts[i]++;
+                    break;
+                case LONG_SUM:
+                    longValues[i][valueCounts[i]++] = codecs[i].decodeLong(ptr, sortOrders[i]);
+                    break;
+                case DOUBLE_SUM:
+                    doubleValues[i][valueCounts[i]++] = codecs[i].decodeDouble(ptr, sortOrders[i]);
+                    break;
+                default:
+                    aggregators[i].aggregate(result, ptr);
+                }
+            }
+        }
+        if (++rowCount == chunkSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Fold the values collected for the current chunk into the aggregators
+     */
+    public void flush() {
+        for (int i = 0; i < aggregators.length; i++) {
+            int count = valueCounts[i];
+            if (count == 0) {
+                continue;
+            }
+            switch (kinds[i]) {
+            case COUNT:
+                ((CountAggregator)aggregators[i]).add(count);
+                break;
+            case LONG_SUM:
+                ((NumberSumAggregator)aggregators[i]).add(sum(longValues[i], count));
+                break;
+            case DOUBLE_SUM:
+                ((DoubleSumAggregator)aggregators[i]).add(sum(doubleValues[i], count));
+                break;
+            }
+            valueCounts[i] = 0;
+        }
+        rowCount = 0;
+    }
+
+    private static long sum(long[] values, int count) {
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    private static double sum(double[] values, int count) {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.apache.phoenix.expression.aggregator;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.phoenix.expression.function.SingleAggregateFunction;
@@ -35,6 +36,7 @@ import org.apache.phoenix.util.TupleUtil;
  */
 public class ClientAggregators extends Aggregators {
     private final ValueBitSet tempValueSet; 
+    private final int minNullableIndex;
   
     private static Aggregator[] getAggregators(List<SingleAggregateFunction> aggFuncs) {
         Aggregator[] aggregators = new Aggregator[aggFuncs.size()];
@@ -47,6 +49,15 @@ public class ClientAggregators extends Aggregators {
     public ClientAggregators(List<SingleAggregateFunction> functions, int minNullableIndex) {
         super(functions.toArray(new SingleAggregateFunction[functions.size()]), getAggregators(functions), minNullableIndex);
         this.tempValueSet = ValueBitSet.newInstance(schema);
+        this.minNullableIndex = minNullableIndex;
+    }
+    
+    /**
+     * Create aggregators for the same functions that may be used concurrently
+     * with this instance, as instances are not thread safe.
+     */
+    public ClientAggregators copy() {
+        return new ClientAggregators(Arrays.asList(functions), minNullableIndex);
     }
     
     @Override
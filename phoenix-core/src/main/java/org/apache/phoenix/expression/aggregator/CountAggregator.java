@@ -17,6 +17,8 @@
  */
 package org.apache.phoenix.expression.aggregator;
 
+import java.nio.ByteBuffer;
+
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.phoenix.schema.PDataType;
 import org.apache.phoenix.schema.SortOrder;
@@ -30,7 +32,7 @@ import org.apache.phoenix.util.SizedUtil;
  * 
  * @since 0.1
  */
-public class CountAggregator extends BaseAggregator {
+public class CountAggregator extends BaseAggregator implements FixedWidthAggregator {
 
     private long count = 0;
     private byte[] buffer = null;
@@ -49,6 +51,13 @@ public class CountAggregator extends BaseAggregator {
         count++;
     }
 
+    /**
+     * Add the number of rows counted outside of the aggregator
+     */
+    void add(long count) {
+        this.count += count;
+    }
+
     @Override
     public boolean isNullable() {
         return false;
@@ -76,6 +85,21 @@ public class CountAggregator extends BaseAggregator {
         super.reset();
     }
 
+    @Override
+    public int getStateByteSize() {
+        return SizedUtil.LONG_SIZE;
+    }
+
+    @Override
+    public void readState(ByteBuffer buffer, int offset) {
+        count = buffer.getLong(offset);
+    }
+
+    @Override
+    public void writeState(ByteBuffer buffer, int offset) {
+        buffer.putLong(offset, count);
+    }
+
     @Override
     public String toString() {
         return "COUNT [count=" + count + "]";
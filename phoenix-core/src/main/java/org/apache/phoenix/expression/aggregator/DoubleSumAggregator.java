@@ -17,6 +17,8 @@
  */
 package org.apache.phoenix.expression.aggregator;
 
+import java.nio.ByteBuffer;
+
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 
 import org.apache.phoenix.schema.SortOrder;
@@ -24,7 +26,7 @@ import org.apache.phoenix.schema.PDataType;
 import org.apache.phoenix.schema.tuple.Tuple;
 import org.apache.phoenix.util.SizedUtil;
 
-public class DoubleSumAggregator extends BaseAggregator {
+public class DoubleSumAggregator extends BaseAggregator implements FixedWidthAggregator {
     
     private double sum = 0;
     private byte[] buffer;
@@ -54,6 +56,16 @@ public class DoubleSumAggregator extends BaseAggregator {
         }
     }
 
+    /**
+     * Add the sum of one or more values aggregated outside of the aggregator
+     */
+    void add(double sum) {
+        this.sum += sum;
+        if (buffer == null) {
+            initBuffer();
+        }
+    }
+
     @Override
     public boolean evaluate(Tuple tuple, ImmutableBytesWritable ptr) {
         if (buffer == null) {
@@ -72,6 +84,31 @@ public class DoubleSumAggregator extends BaseAggregator {
         return PDataType.DOUBLE;
     }
     
+    @Override
+    public int getStateByteSize() {
+        // Whether or not a value has been aggregated, followed by the sum
+        return 1 + SizedUtil.LONG_SIZE;
+    }
+
+    @Override
+    public void readState(ByteBuffer buffer, int offset) {
+        if (buffer.get(offset) == 0) {
+            this.buffer = null;
+            sum = 0;
+        } else {
+            if (this.buffer == null) {
+                initBuffer();
+            }
+            sum = buffer.getDouble(offset + 1);
+        }
+    }
+
+    @Override
+    public void writeState(ByteBuffer buffer, int offset) {
+        buffer.put(offset, this.buffer == null ? (byte)0 : (byte)1);
+        buffer.putDouble(offset + 1, sum);
+    }
+
     @Override
     public String toString() {
         return "SUM [sum=" + sum + "]";
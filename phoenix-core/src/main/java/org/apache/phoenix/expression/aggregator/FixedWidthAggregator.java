@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.expression.aggregator;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * 
+ * Aggregator whose running state may be kept in a fixed number of bytes outside
+ * of the aggregator, so that a single instance may aggregate any number of groups
+ * by reading in the state of a group, aggregating, and writing it back out.
+ *
+ * 
+ * @since 4.1
+ */
+public interface FixedWidthAggregator extends Aggregator {
+    /**
+     * Get the number of bytes of the state of the aggregator, or -1 if the
+     * state isn't of a fixed width, in which case it may not be read or written.
+     */
+    public int getStateByteSize();
+    
+    /**
+     * Replace the state of the aggregator with the one at the offset of the buffer
+     */
+    public void readState(ByteBuffer buffer, int offset);
+    
+    /**
+     * Write the state of the aggregator at the offset of the buffer
+     */
+    public void writeState(ByteBuffer buffer, int offset);
+}
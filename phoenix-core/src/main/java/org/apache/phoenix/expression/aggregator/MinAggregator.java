@@ -17,9 +17,12 @@
  */
 package org.apache.phoenix.expression.aggregator;
 
+import java.nio.ByteBuffer;
+
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.util.Bytes;
 
+import org.apache.phoenix.schema.PDataType;
 import org.apache.phoenix.schema.SortOrder;
 import org.apache.phoenix.schema.tuple.Tuple;
 import org.apache.phoenix.util.ByteUtil;
@@ -32,9 +35,11 @@ import org.apache.phoenix.util.SizedUtil;
  * 
  * @since 0.1
  */
-abstract public class MinAggregator extends BaseAggregator {
+abstract public class MinAggregator extends BaseAggregator implements FixedWidthAggregator {
     /** Used to store the accumulate the results of the MIN function */
     protected final ImmutableBytesWritable value = new ImmutableBytesWritable(ByteUtil.EMPTY_BYTE_ARRAY);
+    /** Holds the value read in by {@link #readState(ByteBuffer, int)} */
+    private byte[] stateBuffer;
     
     public MinAggregator(SortOrder sortOrder) {
         super(sortOrder);
@@ -80,6 +85,45 @@ abstract public class MinAggregator extends BaseAggregator {
         }
     }
     
+    @Override
+    public int getStateByteSize() {
+        PDataType type = getDataType();
+        if (!type.isFixedWidth() || type.getByteSize() == null) {
+            return -1;
+        }
+        // Whether or not a value has been aggregated, followed by the value
+        return 1 + type.getByteSize();
+    }
+
+    @Override
+    public void readState(ByteBuffer buffer, int offset) {
+        if (buffer.get(offset) == 0) {
+            value.set(ByteUtil.EMPTY_BYTE_ARRAY);
+            return;
+        }
+        if (stateBuffer == null) {
+            stateBuffer = new byte[getDataType().getByteSize()];
+        }
+        for (int i = 0; i < stateBuffer.length; i++) {
+            stateBuffer[i] = buffer.get(offset + 1 + i);
+        }
+        value.set(stateBuffer);
+    }
+
+    @Override
+    public void writeState(ByteBuffer buffer, int offset) {
+        if (isNull()) {
+            buffer.put(offset, (byte)0);
+            return;
+        }
+        buffer.put(offset, (byte)1);
+        byte[] b = value.get();
+        int valueOffset = value.getOffset();
+        for (int i = 0; i < value.getLength(); i++) {
+            buffer.put(offset + 1 + i, b[valueOffset + i]);
+        }
+    }
+
     @Override
     public String toString() {
         return "MIN [value=" + Bytes.toStringBinary(value.get(),value.getOffset(),value.getLength()) + "]";
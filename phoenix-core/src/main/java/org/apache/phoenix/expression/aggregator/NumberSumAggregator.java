@@ -17,6 +17,8 @@
  */
 package org.apache.phoenix.expression.aggregator;
 
+import java.nio.ByteBuffer;
+
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 
 import org.apache.phoenix.schema.SortOrder;
@@ -31,7 +33,7 @@ import org.apache.phoenix.util.SizedUtil;
  * 
  * @since 0.1
  */
-abstract public class NumberSumAggregator extends BaseAggregator {
+abstract public class NumberSumAggregator extends BaseAggregator implements FixedWidthAggregator {
     private long sum = 0;
     private byte[] buffer;
 
@@ -73,6 +75,16 @@ abstract public class NumberSumAggregator extends BaseAggregator {
         }
     }
 
+    /**
+     * Add the sum of one or more values aggregated outside of the aggregator
+     */
+    void add(long sum) {
+        this.sum += sum;
+        if (buffer == null) {
+            initBuffer();
+        }
+    }
+
     @Override
     public boolean evaluate(Tuple tuple, ImmutableBytesWritable ptr) {
         if (buffer == null) {
@@ -98,6 +110,31 @@ abstract public class NumberSumAggregator extends BaseAggregator {
         super.reset();
     }
 
+    @Override
+    public int getStateByteSize() {
+        // Whether or not a value has been aggregated, followed by the sum
+        return 1 + SizedUtil.LONG_SIZE;
+    }
+
+    @Override
+    public void readState(ByteBuffer buffer, int offset) {
+        if (buffer.get(offset) == 0) {
+            this.buffer = null;
+            sum = 0;
+        } else {
+            if (this.buffer == null) {
+                initBuffer();
+            }
+            sum = buffer.getLong(offset + 1);
+        }
+    }
+
+    @Override
+    public void writeState(ByteBuffer buffer, int offset) {
+        buffer.put(offset, this.buffer == null ? (byte)0 : (byte)1);
+        buffer.putLong(offset + 1, sum);
+    }
+
     @Override
     public String toString() {
         return "SUM [sum=" + sum + "]";
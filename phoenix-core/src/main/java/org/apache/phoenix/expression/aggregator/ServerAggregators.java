@@ -63,6 +63,15 @@ public class ServerAggregators extends Aggregators {
         }
     }
     
+    /**
+     * Create a batch aggregator that aggregates rows into the given aggregators in chunks
+     * @param aggregators the aggregators into which the rows are aggregated
+     * @param chunkSize the number of rows whose values are collected before being aggregated
+     */
+    public BatchAggregator newBatchAggregator(Aggregator[] aggregators, int chunkSize) {
+        return new BatchAggregator(aggregators, expressions, chunkSize);
+    }
+    
     /**
      * Serialize an Aggregator into a byte array
      * @param aggFuncs list of aggregator to serialize
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.expression.KeyValueColumnExpression;
+import org.apache.phoenix.expression.OrderByExpression;
+import org.apache.phoenix.expression.RowKeyColumnExpression;
+import org.apache.phoenix.expression.visitor.TraverseAllExpressionVisitor;
+import org.apache.phoenix.iterate.OrderByKeyEncoder;
+import org.apache.phoenix.iterate.TopNThreshold;
+import org.apache.phoenix.schema.SortOrder;
+import org.apache.phoenix.schema.tuple.MultiKeyValueTuple;
+
+/**
+ *
+ * Filter that drops the rows of a TopN scan that can't make it into the top N rows
+ * of the region, based on the {@link TopNThreshold} maintained by the
+ * {@link org.apache.phoenix.iterate.OrderedResultIterator} the scan feeds, so that
+ * such rows are neither returned by the region scanner nor kept by the iterator.
+ * When the scan is ordered by the leading row key column, the region scan ends
+ * once the value of that column goes past the value of the threshold row.
+ *
+ * The filter is added to the scan on the region server and is never serialized.
+ *
+ *
+ * @since 4.1
+ */
+public class TopNThresholdFilter extends FilterBase {
+    private final TopNThreshold threshold;
+    private final OrderByKeyEncoder encoder;
+    private final Set<byte[]> families = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+    private final Expression leadingRowKeyExpression;
+    private final List<Cell> cells = new ArrayList<Cell>();
+    private final ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+    
+    private int thresholdVersion = -1;
+    private ImmutableBytesWritable thresholdLeadingValue;
+    private boolean filterAllRemaining;
+
+    /**
+     * @param reversed whether the region is scanned in reverse row key order
+     */
+    public TopNThresholdFilter(List<OrderByExpression> orderByExpressions, TopNThreshold threshold, boolean reversed) {
+        this.threshold = threshold;
+        this.encoder = new OrderByKeyEncoder(orderByExpressions);
+        TraverseAllExpressionVisitor<Void> visitor = new TraverseAllExpressionVisitor<Void>() {
+            @Override
+            public Void visit(KeyValueColumnExpression expression) {
+                families.add(expression.getColumnFamily());
+                return null;
+            }
+        };
+        for (OrderByExpression orderByExpression : orderByExpressions) {
+            orderByExpression.getExpression().accept(visitor);
+        }
+        this.leadingRowKeyExpression = reversed ? null : getLeadingRowKeyExpression(orderByExpressions.get(0));
+        // Have the value of the threshold row kept along with its sort key
+        threshold.setLeadingValueExpression(leadingRowKeyExpression);
+    }
+
+    /**
+     * Rows are scanned in ascending order of the leading row key column, so once its
+     * value is greater than that of the threshold row, no remaining row of the region
+     * may sort before the threshold. Null values sort first both in the row key and
+     * in an ascending, nulls first ORDER BY.
+     */
+    private static Expression getLeadingRowKeyExpression(OrderByExpression orderByExpression) {
+        Expression expression = orderByExpression.getExpression();
+        if (expression instanceof RowKeyColumnExpression
+                && ((RowKeyColumnExpression)expression).getPosition() == 0
+                && expression.getSortOrder() == SortOrder.ASC
+                && orderByExpression.isAscending() && !orderByExpression.isNullsLast()) {
+            return expression;
+        }
+        return null;
+    }
+
+    public TopNThreshold getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public boolean filterAllRemaining() {
+        return filterAllRemaining;
+    }
+
+    @Override
+    public ReturnCode filterKeyValue(Cell keyValue) {
+        cells.add(keyValue);
+        return ReturnCode.INCLUDE;
+    }
+
+    @Override
+    public boolean filterRow() {
+        ImmutableBytesWritable thresholdKey = threshold.getSortKey();
+        if (thresholdKey == null || cells.isEmpty()) {
+            return false;
+        }
+        MultiKeyValueTuple tuple = new MultiKeyValueTuple(cells);
+        if (OrderByKeyEncoder.KEY_COMPARATOR.compare(encoder.encode(tuple), thresholdKey) < 0) {
+            return false;
+        }
+        if (leadingRowKeyExpression != null) {
+            if (thresholdVersion != threshold.getVersion()) {
+                thresholdVersion = threshold.getVersion();
+                thresholdLeadingValue = threshold.getLeadingValue();
+            }
+            if (thresholdLeadingValue != null && leadingRowKeyExpression.evaluate(tuple, ptr)
+                    && ptr.compareTo(thresholdLeadingValue) > 0) {
+                filterAllRemaining = true;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        cells.clear();
+    }
+
+    @SuppressWarnings("all") // suppressing missing @Override since this doesn't exist for HBase 0.94.4
+    public boolean isFamilyEssential(byte[] name) {
+        // Any family will do to get the row key when only ordering by row key columns
+        return families.isEmpty() || families.contains(name);
+    }
+
+    @Override
+    public String toString() {
+        return "TopNThresholdFilter " + threshold.getSortKey();
+    }
+}
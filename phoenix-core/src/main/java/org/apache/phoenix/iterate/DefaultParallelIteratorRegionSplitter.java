@@ -21,8 +21,10 @@ import java.sql.SQLException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HRegionLocation;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -33,6 +35,7 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.apache.phoenix.compile.StatementContext;
 import org.apache.phoenix.parse.HintNode;
 import org.apache.phoenix.parse.HintNode.Hint;
@@ -57,6 +60,7 @@ public class DefaultParallelIteratorRegionSplitter implements ParallelIteratorRe
     protected final int targetConcurrency;
     protected final int maxConcurrency;
     protected final int maxIntraRegionParallelization;
+    protected final int maxGuidePostSplits;
     protected final StatementContext context;
     protected final TableRef tableRef;
 
@@ -77,6 +81,9 @@ public class DefaultParallelIteratorRegionSplitter implements ParallelIteratorRe
         this.maxIntraRegionParallelization = hintNode.hasHint(Hint.NO_INTRA_REGION_PARALLELIZATION) ? 1 : props.getInt(QueryServices.MAX_INTRA_REGION_PARALLELIZATION_ATTRIB,
                 QueryServicesOptions.DEFAULT_MAX_INTRA_REGION_PARALLELIZATION);
         Preconditions.checkArgument(maxIntraRegionParallelization >= 1 , "Invalid max intra region parallelization: " + maxIntraRegionParallelization);
+        this.maxGuidePostSplits = props.getInt(QueryServices.STATS_GUIDEPOST_MAX_SPLITS_ATTRIB,
+                QueryServicesOptions.DEFAULT_STATS_GUIDEPOST_MAX_SPLITS);
+        Preconditions.checkArgument(maxGuidePostSplits >= 1 , "Invalid max guide post splits: " + maxGuidePostSplits);
     }
 
     // Get the mapping between key range and the regions that contains them.
@@ -145,6 +152,31 @@ public class DefaultParallelIteratorRegionSplitter implements ParallelIteratorRe
         // Create a multi-map of ServerName to List<KeyRange> which we'll use to round robin from to ensure
         // that we keep each region server busy for each query.
         ListMultimap<HRegionLocation,KeyRange> keyRangesPerRegion = ArrayListMultimap.create(regions.size(),regions.size() * splitsPerRegion);;
+        // If guide posts were collected for a region, split it into chunks of equal size at
+        // the guide posts instead, so that no chunk takes much longer to scan than the others.
+        // This is done whatever the number of regions, as it's the regions that are much bigger
+        // than the others that hold up a scan of many regions. The total number of chunks is
+        // capped separately by sharing the max guide post splits between the regions.
+        if (maxIntraRegionParallelization > 1) {
+            List<HRegionLocation> regionsWithoutGuidePosts = Lists.newArrayListWithExpectedSize(regions.size());
+            Map<HRegionLocation,byte[][]> guidePostsPerRegion = Maps.newLinkedHashMap();
+            long totalGuidePosts = 0;
+            for (HRegionLocation region : regions) {
+                byte[][] guidePosts = statsManager.getRegionGuidePosts(tableRef, region.getRegionInfo());
+                if (guidePosts != null && guidePosts.length > 0) {
+                    guidePostsPerRegion.put(region, guidePosts);
+                    totalGuidePosts += guidePosts.length;
+                } else {
+                    regionsWithoutGuidePosts.add(region);
+                }
+            }
+            for (Map.Entry<HRegionLocation,byte[][]> entry : guidePostsPerRegion.entrySet()) {
+                int maxSplits = getMaxGuidePostSplits(entry.getValue().length, totalGuidePosts, maxGuidePostSplits,
+                        splitsPerRegion, maxIntraRegionParallelization);
+                keyRangesPerRegion.putAll(entry.getKey(), getGuidePostKeyRanges(entry.getKey().getRegionInfo(), entry.getValue(), maxSplits));
+            }
+            regions = regionsWithoutGuidePosts;
+        }
         if (splitsPerRegion == 1) {
             for (HRegionLocation region : regions) {
                 keyRangesPerRegion.put(region, ParallelIterators.TO_KEY_RANGE.apply(region));
@@ -220,6 +252,56 @@ public class DefaultParallelIteratorRegionSplitter implements ParallelIteratorRe
         return splits;
     }
 
+    /**
+     * Get the maximum number of key ranges that a region is split into at its guide posts.
+     * The region gets a share of the max guide post splits in proportion to its number of
+     * guide posts, but no less than the splits per region it would have had without guide
+     * posts, and no more than the max intra region parallelization.
+     * @param guidePostCount the number of guide posts of the region
+     * @param totalGuidePosts the number of guide posts of all the regions being scanned
+     * @param maxGuidePostSplits the max number of key ranges for all the regions
+     * @param splitsPerRegion the number of key ranges per region without guide posts
+     * @param maxIntraRegionParallelization the max number of key ranges per region
+     * @return the max number of key ranges for the region
+     */
+    // exposed for tests
+    public static int getMaxGuidePostSplits(int guidePostCount, long totalGuidePosts, int maxGuidePostSplits,
+            int splitsPerRegion, int maxIntraRegionParallelization) {
+        long share = maxGuidePostSplits * (long)guidePostCount / totalGuidePosts;
+        return (int)Math.min(maxIntraRegionParallelization, Math.max(Math.max(1, splitsPerRegion), share));
+    }
+
+    /**
+     * Split a region at its guide posts into at most maxSplits key ranges, skipping guide posts
+     * evenly if there are too many of them.
+     * @param region the region info
+     * @param guidePosts the guide posts of the region in ascending order
+     * @param maxSplits the maximum number of key ranges to return
+     * @return the key ranges covering the region
+     */
+    // exposed for tests
+    public static List<KeyRange> getGuidePostKeyRanges(HRegionInfo region, byte[][] guidePosts, int maxSplits) {
+        byte[] startKey = region.getStartKey();
+        byte[] endKey = region.getEndKey();
+        boolean upperUnbound = Bytes.compareTo(endKey, HConstants.EMPTY_END_ROW) == 0;
+        List<byte[]> boundaries = Lists.newArrayListWithExpectedSize(guidePosts.length);
+        for (byte[] guidePost : guidePosts) {
+            // Ignore guide posts outside of the region, in case they're out of date
+            if (Bytes.compareTo(guidePost, startKey) > 0 && (upperUnbound || Bytes.compareTo(guidePost, endKey) < 0)) {
+                boundaries.add(guidePost);
+            }
+        }
+        int step = (boundaries.size() + maxSplits) / maxSplits;
+        List<KeyRange> keyRanges = Lists.newArrayListWithExpectedSize(boundaries.size() / step + 1);
+        byte[] lowerRange = startKey;
+        for (int i = step - 1; i < boundaries.size(); i += step) {
+            keyRanges.add(KeyRange.getKeyRange(lowerRange, true, boundaries.get(i), false));
+            lowerRange = boundaries.get(i);
+        }
+        keyRanges.add(KeyRange.getKeyRange(lowerRange, true, endKey, false));
+        return keyRanges;
+    }
+
     @Override
     public List<KeyRange> getSplits() throws SQLException {
         return genKeyRanges(getAllRegions());
@@ -17,57 +17,122 @@
  */
 package org.apache.phoenix.iterate;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.AbstractQueue;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.phoenix.iterate.OrderedResultIterator.ResultEntry;
+import org.apache.phoenix.query.QueryServicesOptions;
 import org.apache.phoenix.schema.tuple.ResultTuple;
 import org.apache.phoenix.schema.tuple.Tuple;
 import org.apache.phoenix.util.ResultUtil;
+import org.apache.phoenix.util.SpillCodec;
+import org.apache.phoenix.util.TrustedByteArrayOutputStream;
 
 import com.google.common.collect.MinMaxPriorityQueue;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+/**
+ * Queue that sorts its entries externally once they no longer fit in memory. Entries are
+ * accumulated into runs of at most the threshold size. Each full run is sorted and written
+ * to a temp file by a flush thread shared by all queues while the next run is being filled,
+ * as long as both runs together stay within the threshold size. When the entries are read back, runs are merged in passes of at most the merge fan-in until
+ * few enough remain to be merged in a single final pass.
+ */
 public class MappedByteBufferSortedQueue extends AbstractQueue<ResultEntry> {
+    // Maximum size of a single memory mapping of a run when reading it back
+    private static final long MAX_MAPPED_SEGMENT_SIZE = 256L * 1024 * 1024; // 256m
+    // Threads shared by all queues of the JVM to write their runs. A run is written by the
+    // thread filling the queue instead once all of them are busy and enough runs are waiting.
+    private static final int FLUSH_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int MAX_PENDING_FLUSHES = 16;
+    private static final int FLUSH_THREAD_KEEP_ALIVE_MS = 60000;
+    private static final ExecutorService FLUSH_EXECUTOR;
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(FLUSH_THREADS, FLUSH_THREADS,
+                FLUSH_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING_FLUSHES),
+                new ThreadFactoryBuilder().setNameFormat("phoenix-sort-spill-%s").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        FLUSH_EXECUTOR = executor;
+    }
+
     private Comparator<ResultEntry> comparator;
     private final int limit;
     private final int thresholdBytes;
+    private final SpillCodec codec;
+    private final int mergeFanIn;
+    private final long maxMappedSegmentSize;
+
     private List<MappedByteBufferPriorityQueue> queues = new ArrayList<MappedByteBufferPriorityQueue>();
     private MappedByteBufferPriorityQueue currentQueue = null;
-    private int currentIndex = 0;
+    private Future<Void> pendingFlush;
+    // Run being written by the pending flush, whose memory is held until the flush completes
+    private MappedByteBufferPriorityQueue flushingQueue;
     MinMaxPriorityQueue<IndexedResultEntry> mergedQueue = null;
 
     public MappedByteBufferSortedQueue(Comparator<ResultEntry> comparator,
-            Integer limit, int thresholdBytes) throws IOException {
+            Integer limit, int thresholdBytes, SpillCodec codec) throws IOException {
+        this(comparator, limit, thresholdBytes, codec, QueryServicesOptions.DEFAULT_SORT_MERGE_FAN_IN);
+    }
+
+    public MappedByteBufferSortedQueue(Comparator<ResultEntry> comparator,
+            Integer limit, int thresholdBytes, SpillCodec codec, int mergeFanIn) throws IOException {
+        this(comparator, limit, thresholdBytes, codec, mergeFanIn, MAX_MAPPED_SEGMENT_SIZE);
+    }
+
+    MappedByteBufferSortedQueue(Comparator<ResultEntry> comparator, Integer limit, int thresholdBytes,
+            SpillCodec codec, int mergeFanIn, long maxMappedSegmentSize) throws IOException {
         this.comparator = comparator;
         this.limit = limit == null ? -1 : limit;
         this.thresholdBytes = thresholdBytes;
-        this.currentQueue = new MappedByteBufferPriorityQueue(0,
-                this.limit, thresholdBytes, comparator);
+        this.codec = codec;
+        this.mergeFanIn = Math.max(2, mergeFanIn);
+        this.maxMappedSegmentSize = maxMappedSegmentSize;
+        this.currentQueue = new MappedByteBufferPriorityQueue(
+                this.limit, thresholdBytes, comparator, codec, maxMappedSegmentSize);
         this.queues.add(currentQueue);
     }
 
     @Override
     public boolean offer(ResultEntry e) {
         try {
-            boolean isFlush = this.currentQueue.writeResult(e);
-            if (isFlush) {
-                currentIndex++;
-                currentQueue = new MappedByteBufferPriorityQueue(currentIndex,
-                        limit, thresholdBytes, comparator);
+            boolean isFull = this.currentQueue.writeResult(e);
+            if (!isFull && flushingQueue != null
+                    && flushingQueue.getInMemByteSize() + currentQueue.getInMemByteSize() >= thresholdBytes) {
+                // Wait for the run being flushed to release its memory before taking up more
+                waitForPendingFlush();
+            }
+            if (isFull) {
+                flushInBackground(currentQueue);
+                currentQueue = new MappedByteBufferPriorityQueue(
+                        limit, thresholdBytes, comparator, codec, maxMappedSegmentSize);
                 queues.add(currentQueue);
             }
         } catch (IOException ioe) {
@@ -77,28 +142,103 @@ public class MappedByteBufferSortedQueue extends AbstractQueue<ResultEntry> {
         return true;
     }
 
-    @Override
-    public ResultEntry poll() {
-        if (mergedQueue == null) {
+    private void flushInBackground(final MappedByteBufferPriorityQueue queue) throws IOException {
+        // Wait for the previous run to be written so that at most two runs are held in memory
+        waitForPendingFlush();
+        flushingQueue = queue;
+        pendingFlush = FLUSH_EXECUTOR.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                queue.flush();
+                return null;
+            }
+        });
+    }
+
+    private void waitForPendingFlush() throws IOException {
+        if (pendingFlush == null) {
+            return;
+        }
+        try {
+            pendingFlush.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pendingFlush = null;
+            flushingQueue = null;
+        }
+    }
+
+    private void initMergedQueue() {
+        if (mergedQueue != null) {
+            return;
+        }
+        try {
+            waitForPendingFlush();
+            // Merge runs in passes until few enough remain for the final merge
+            while (queues.size() > mergeFanIn) {
+                List<MappedByteBufferPriorityQueue> mergedRuns = new ArrayList<MappedByteBufferPriorityQueue>();
+                for (int i = 0; i < queues.size(); i += mergeFanIn) {
+                    List<MappedByteBufferPriorityQueue> runs = queues.subList(i, Math.min(i + mergeFanIn, queues.size()));
+                    mergedRuns.add(runs.size() == 1 ? runs.get(0) : mergeRuns(runs));
+                }
+                queues = mergedRuns;
+            }
             mergedQueue = MinMaxPriorityQueue.<ResultEntry> orderedBy(
                     comparator).maximumSize(queues.size()).create();
             for (MappedByteBufferPriorityQueue queue : queues) {
-                try {
-                    IndexedResultEntry next = queue.getNextResult();
-                    if (next != null) {
-                        mergedQueue.add(next);
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                IndexedResultEntry next = queue.getNextResult();
+                if (next != null) {
+                    mergedQueue.add(next);
                 }
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merge the given sorted runs into a single run written to a new temp file.
+     */
+    private MappedByteBufferPriorityQueue mergeRuns(List<MappedByteBufferPriorityQueue> runs) throws IOException {
+        MinMaxPriorityQueue<IndexedResultEntry> heads = MinMaxPriorityQueue.<ResultEntry> orderedBy(
+                comparator).maximumSize(runs.size()).create();
+        for (MappedByteBufferPriorityQueue run : runs) {
+            IndexedResultEntry next = run.getNextResult();
+            if (next != null) {
+                heads.add(next);
+            }
+        }
+        MappedByteBufferPriorityQueue mergedRun = new MappedByteBufferPriorityQueue(
+                -1, thresholdBytes, comparator, codec, maxMappedSegmentSize);
+        EntryWriter writer = mergedRun.startWrite();
+        while (!heads.isEmpty()) {
+            IndexedResultEntry re = heads.pollFirst();
+            writer.write(re);
+            IndexedResultEntry next = re.getQueue().getNextResult();
+            if (next != null) {
+                heads.add(next);
+            }
         }
+        writer.finish();
+        return mergedRun;
+    }
+
+    @Override
+    public ResultEntry poll() {
+        initMergedQueue();
         if (!mergedQueue.isEmpty()) {
             IndexedResultEntry re = mergedQueue.pollFirst();
             if (re != null) {
                 IndexedResultEntry next = null;
                 try {
-                    next = queues.get(re.getIndex()).getNextResult();
+                    next = re.getQueue().getNextResult();
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -113,20 +253,7 @@ public class MappedByteBufferSortedQueue extends AbstractQueue<ResultEntry> {
 
     @Override
     public ResultEntry peek() {
-        if (mergedQueue == null) {
-            mergedQueue = MinMaxPriorityQueue.<ResultEntry> orderedBy(
-                    comparator).maximumSize(queues.size()).create();
-            for (MappedByteBufferPriorityQueue queue : queues) {
-                try {
-                    IndexedResultEntry next = queue.getNextResult();
-                    if (next != null) {
-                        mergedQueue.add(next);
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
+        initMergedQueue();
         if (!mergedQueue.isEmpty()) {
             IndexedResultEntry re = mergedQueue.peekFirst();
             if (re != null) {
@@ -149,12 +276,24 @@ public class MappedByteBufferSortedQueue extends AbstractQueue<ResultEntry> {
         }
         return size;
     }
-    
+
+    /**
+     * @return the memory held by the entries of the run being filled and of the run being flushed
+     */
     public long getByteSize() {
-        return currentQueue.getInMemByteSize();
+        long byteSize = currentQueue.getInMemByteSize();
+        MappedByteBufferPriorityQueue queue = flushingQueue;
+        if (queue != null) {
+            byteSize += queue.getInMemByteSize();
+        }
+        return byteSize;
     }
 
     public void close() {
+        try {
+            waitForPendingFlush();
+        } catch (IOException ignored) {
+        }
         if (queues != null) {
             for (MappedByteBufferPriorityQueue queue : queues) {
                 queue.close();
@@ -163,62 +302,144 @@ public class MappedByteBufferSortedQueue extends AbstractQueue<ResultEntry> {
     }
 
     private static class IndexedResultEntry extends ResultEntry {
-        private int index;
+        private final MappedByteBufferPriorityQueue queue;
 
-        public IndexedResultEntry(int index, ResultEntry resultEntry) {
-            super(resultEntry.sortKeys, resultEntry.result);
-            this.index = index;
+        public IndexedResultEntry(MappedByteBufferPriorityQueue queue, ResultEntry resultEntry) {
+            super(resultEntry.sortKey, resultEntry.result);
+            this.queue = queue;
         }
 
-        public int getIndex() {
-            return this.index;
+        public MappedByteBufferPriorityQueue getQueue() {
+            return this.queue;
         }
     }
 
+    /**
+     * Writes entries in the order given to the temp file of a queue as blocks encoded
+     * by a {@link SpillCodec}.
+     */
+    private static class EntryWriter {
+        // Target size of the blocks of entries written to the temp file
+        private static final int BLOCK_SIZE = 64 * 1024;
+
+        private final MappedByteBufferPriorityQueue queue;
+        // Not closed, since that would close the channel
+        private final OutputStream fileOut;
+        private final TrustedByteArrayOutputStream blockBuffer = new TrustedByteArrayOutputStream(BLOCK_SIZE);
+        private final DataOutputStream blockOut = new DataOutputStream(blockBuffer);
+
+        private EntryWriter(MappedByteBufferPriorityQueue queue) {
+            this.queue = queue;
+            this.fileOut = Channels.newOutputStream(queue.fc);
+        }
+
+        private void write(ResultEntry re) throws IOException {
+            int totalLen = 0;
+            List<KeyValue> keyValues = MappedByteBufferPriorityQueue.toKeyValues(re);
+            for (KeyValue kv : keyValues) {
+                totalLen += (kv.getLength() + Bytes.SIZEOF_INT);
+            }
+            blockOut.writeInt(totalLen);
+            for (KeyValue kv : keyValues) {
+                blockOut.writeInt(kv.getLength());
+                blockOut.write(kv.getBuffer(), kv.getOffset(), kv
+                        .getLength());
+            }
+            ImmutableBytesWritable sortKey = re.sortKey;
+            blockOut.writeInt(sortKey.getLength());
+            blockOut.write(sortKey.get(), sortKey.getOffset(), sortKey.getLength());
+            queue.flushedCount++;
+            if (blockBuffer.size() >= BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (queue.blockCount == queue.blockOffsets.length) {
+                queue.blockOffsets = Arrays.copyOf(queue.blockOffsets, queue.blockCount * 2);
+            }
+            queue.blockOffsets[queue.blockCount++] = queue.fileLength;
+            queue.maxBlockSize = Math.max(queue.maxBlockSize, blockBuffer.size());
+            queue.fileLength += queue.codec.encode(blockBuffer.getBuffer(), 0, blockBuffer.size(), fileOut);
+            blockBuffer.reset();
+        }
+
+        private void finish() throws IOException {
+            if (blockBuffer.size() > 0) {
+                writeBlock();
+            }
+            queue.flushBuffer = true;
+        }
+    }
+
+    /**
+     * A single sorted run. It is held in memory until its threshold is reached, at which point
+     * it is sorted and written to a temp file by {@link #flush()}, and read back through memory
+     * mappings of segments of the file, each holding whole blocks, as a merged run may be too
+     * big to be mapped at once. With no limit, entries are simply appended in memory and sorted once,
+     * while with a limit they're kept in a bounded priority queue.
+     */
     private static class MappedByteBufferPriorityQueue {
-        private static final long DEFAULT_MAPPING_SIZE = 1024;
-        
         private final int limit;
         private final int thresholdBytes;
+        private final Comparator<ResultEntry> comparator;
+        private final SpillCodec codec;
+        private final long maxMappedSegmentSize;
         private long totalResultSize = 0;
         private int maxResultSize = 0;
-        private long mappingSize = 0;
-        private long writeIndex = 0;
-        private long readIndex = 0;
-        private MappedByteBuffer writeBuffer;
+        private int maxBlockSize = 0;
+        private long fileLength = 0;
+        // Offset in the file of each block
+        private long[] blockOffsets = new long[16];
+        private int blockCount;
+        private int nextBlockIndex;
+        private int segmentEndBlockIndex;
         private MappedByteBuffer readBuffer;
+        private byte[] block;
+        private int blockOffset;
+        private int blockLength;
         private FileChannel fc;
         private RandomAccessFile af;
         private File file;
         private boolean isClosed = false;
+        // Used with a limit
         MinMaxPriorityQueue<ResultEntry> results = null;
-        private boolean flushBuffer = false;
-        private int index;
-        private int flushedCount;
+        // Used without a limit
+        List<ResultEntry> unsortedResults = null;
+        private boolean isSorted = false;
+        private int readIndex = 0;
+        private volatile boolean flushBuffer = false;
+        private int count;
+        // Written by the thread flushing the run, while the size of the queue may be asked for
+        // by the thread filling it
+        private volatile int flushedCount;
 
-        public MappedByteBufferPriorityQueue(int index, int limit, int thresholdBytes,
-                Comparator<ResultEntry> comparator) throws IOException {
-            this.index = index;
+        public MappedByteBufferPriorityQueue(int limit, int thresholdBytes,
+                Comparator<ResultEntry> comparator, SpillCodec codec, long maxMappedSegmentSize) throws IOException {
             this.limit = limit;
             this.thresholdBytes = thresholdBytes;
-            results = limit < 0 ? 
-                    MinMaxPriorityQueue.<ResultEntry> orderedBy(comparator).create()
-                  : MinMaxPriorityQueue.<ResultEntry> orderedBy(comparator).maximumSize(limit).create();
+            this.comparator = comparator;
+            this.codec = codec;
+            this.maxMappedSegmentSize = maxMappedSegmentSize;
+            if (limit < 0) {
+                unsortedResults = new ArrayList<ResultEntry>();
+            } else {
+                results = MinMaxPriorityQueue.<ResultEntry> orderedBy(comparator).maximumSize(limit).create();
+            }
         }
-        
+
         public int size() {
-            if (flushBuffer)
-                return flushedCount;
-            return results.size();
+            // Entries are only counted as flushed once the whole run is written
+            return flushBuffer ? flushedCount : count;
         }
-        
+
         public long getInMemByteSize() {
             if (flushBuffer)
                 return 0;
             return totalResultSize;
         }
 
-        private List<KeyValue> toKeyValues(ResultEntry entry) {
+        private static List<KeyValue> toKeyValues(ResultEntry entry) {
             Tuple result = entry.getResult();
             int size = result.size();
             List<KeyValue> kvs = new ArrayList<KeyValue>(size);
@@ -239,126 +460,147 @@ public class MappedByteBufferSortedQueue extends AbstractQueue<ResultEntry> {
             return size;
         }
 
-        private int sizeof(ImmutableBytesWritable[] sortKeys) {
-            int size = Bytes.SIZEOF_INT;
-            if (sortKeys != null) {
-                for (ImmutableBytesWritable sortKey : sortKeys) {
-                    if (sortKey != null) {
-                        size += sortKey.getLength();
-                    }
-                    size += Bytes.SIZEOF_INT;
-                }
-            }
-            return size;
+        private int sizeof(ImmutableBytesWritable sortKey) {
+            return Bytes.SIZEOF_INT + sortKey.getLength();
         }
 
+        /**
+         * Add an entry to the run.
+         * @return true if the run has reached its threshold and should be flushed
+         */
         public boolean writeResult(ResultEntry entry) throws IOException {
             if (flushBuffer)
                 throw new IOException("Results already flushed");
-            
-            int sortKeySize = sizeof(entry.sortKeys);
+
+            int sortKeySize = sizeof(entry.sortKey);
             int resultSize = sizeof(toKeyValues(entry)) + sortKeySize;
-            boolean added = results.add(entry);
+            boolean added;
+            if (limit < 0) {
+                added = unsortedResults.add(entry);
+                count++;
+            } else {
+                added = results.add(entry);
+                count = results.size();
+            }
             if (added) {
                 maxResultSize = Math.max(maxResultSize, resultSize);
                 totalResultSize = limit < 0 ? (totalResultSize + resultSize) : maxResultSize * results.size();
-                if (totalResultSize >= thresholdBytes) {
-                    this.file = File.createTempFile(UUID.randomUUID().toString(), null);
-                    this.af = new RandomAccessFile(file, "rw");
-                    this.fc = af.getChannel();
-                    mappingSize = Math.min(Math.max(maxResultSize, DEFAULT_MAPPING_SIZE), totalResultSize);
-                    writeBuffer = fc.map(MapMode.READ_WRITE, writeIndex, mappingSize);
-                
-                    int resSize = results.size();
-                    for (int i = 0; i < resSize; i++) {                
-                        int totalLen = 0;
-                        ResultEntry re = results.pollFirst();
-                        List<KeyValue> keyValues = toKeyValues(re);
-                        for (KeyValue kv : keyValues) {
-                            totalLen += (kv.getLength() + Bytes.SIZEOF_INT);
-                        }
-                        writeBuffer.putInt(totalLen);
-                        for (KeyValue kv : keyValues) {
-                            writeBuffer.putInt(kv.getLength());
-                            writeBuffer.put(kv.getBuffer(), kv.getOffset(), kv
-                                    .getLength());
-                        }
-                        ImmutableBytesWritable[] sortKeys = re.sortKeys;
-                        writeBuffer.putInt(sortKeys.length);
-                        for (ImmutableBytesWritable sortKey : sortKeys) {
-                            if (sortKey != null) {
-                                writeBuffer.putInt(sortKey.getLength());
-                                writeBuffer.put(sortKey.get(), sortKey.getOffset(),
-                                        sortKey.getLength());
-                            } else {
-                                writeBuffer.putInt(0);
-                            }
-                        }
-                        // buffer close to exhausted, re-map.
-                        if (mappingSize - writeBuffer.position() < maxResultSize) {
-                            writeIndex += writeBuffer.position();
-                            writeBuffer = fc.map(MapMode.READ_WRITE, writeIndex, mappingSize);
-                        }
-                    }
-                    writeBuffer.putInt(-1); // end
-                    flushedCount = results.size();
-                    results.clear();
-                    flushBuffer = true;
+                return totalResultSize >= thresholdBytes;
+            }
+            return false;
+        }
+
+        private EntryWriter startWrite() throws IOException {
+            this.file = File.createTempFile(UUID.randomUUID().toString(), null);
+            this.af = new RandomAccessFile(file, "rw");
+            this.fc = af.getChannel();
+            return new EntryWriter(this);
+        }
+
+        /**
+         * Sort the run and write it to a temp file, releasing the memory it held.
+         */
+        public void flush() throws IOException {
+            EntryWriter writer = startWrite();
+            if (limit < 0) {
+                Collections.sort(unsortedResults, comparator);
+                for (ResultEntry re : unsortedResults) {
+                    writer.write(re);
+                }
+                unsortedResults = null;
+            } else {
+                int resSize = results.size();
+                for (int i = 0; i < resSize; i++) {
+                    writer.write(results.pollFirst());
                 }
+                results.clear();
             }
-            return flushBuffer;
+            writer.finish();
         }
 
         public IndexedResultEntry getNextResult() throws IOException {
             if (isClosed)
                 return null;
-            
+
             if (!flushBuffer) {
-                ResultEntry re = results.poll();
+                ResultEntry re;
+                if (limit < 0) {
+                    if (!isSorted) {
+                        Collections.sort(unsortedResults, comparator);
+                        isSorted = true;
+                    }
+                    re = readIndex < unsortedResults.size() ? unsortedResults.set(readIndex++, null) : null;
+                } else {
+                    re = results.poll();
+                }
                 if (re == null) {
                     reachedEnd();
                     return null;
                 }
-                return new IndexedResultEntry(index, re);
+                return new IndexedResultEntry(this, re);
             }
-            
-            if (readBuffer == null) {
-                readBuffer = this.fc.map(MapMode.READ_ONLY, readIndex, mappingSize);
-            }
-            
-            int length = readBuffer.getInt();
-            if (length < 0) {
-                reachedEnd();
-                return null;
+
+            if (blockOffset >= blockLength) {
+                if (nextBlockIndex == blockCount) {
+                    reachedEnd();
+                    return null;
+                }
+                if (nextBlockIndex == segmentEndBlockIndex) {
+                    // Release the previous segment before mapping the next one
+                    readBuffer = null;
+                    segmentEndBlockIndex = map(nextBlockIndex);
+                }
+                if (block == null) {
+                    block = new byte[maxBlockSize];
+                }
+                blockLength = codec.decode(readBuffer, block);
+                blockOffset = 0;
+                nextBlockIndex++;
             }
-            
-            byte[] rb = new byte[length];
-            readBuffer.get(rb);
+
+            int length = Bytes.toInt(block, blockOffset);
+            blockOffset += Bytes.SIZEOF_INT;
+            byte[] rb = Arrays.copyOfRange(block, blockOffset, blockOffset + length);
+            blockOffset += length;
             Result result = ResultUtil.toResult(new ImmutableBytesWritable(rb));
             ResultTuple rt = new ResultTuple(result);
-            int sortKeySize = readBuffer.getInt();
-            ImmutableBytesWritable[] sortKeys = new ImmutableBytesWritable[sortKeySize];
-            for (int i = 0; i < sortKeySize; i++) {
-                int contentLength = readBuffer.getInt();
-                if (contentLength > 0) {
-                    byte[] sortKeyContent = new byte[contentLength];
-                    readBuffer.get(sortKeyContent);
-                    sortKeys[i] = new ImmutableBytesWritable(sortKeyContent);
-                } else {
-                    sortKeys[i] = null;
-                }
+            int sortKeyLength = Bytes.toInt(block, blockOffset);
+            blockOffset += Bytes.SIZEOF_INT;
+            ImmutableBytesWritable sortKey = new ImmutableBytesWritable(
+                    Arrays.copyOfRange(block, blockOffset, blockOffset + sortKeyLength));
+            blockOffset += sortKeyLength;
+
+            return new IndexedResultEntry(this, new ResultEntry(sortKey, rt));
+        }
+
+        /**
+         * Map the segment of the file starting with the given block, covering as many
+         * whole blocks as fit within the max segment size.
+         * @return the index of the first block past the mapped segment
+         */
+        private int map(int blockIndex) throws IOException {
+            long start = blockOffsets[blockIndex];
+            int endIndex = blockIndex + 1;
+            while (endIndex < blockCount && blockOffsets[endIndex] - start < maxMappedSegmentSize) {
+                endIndex++;
             }
-            // buffer close to exhausted, re-map.
-            if (mappingSize - readBuffer.position() < maxResultSize) {
-                readIndex += readBuffer.position();
-                readBuffer = fc.map(MapMode.READ_ONLY, readIndex, mappingSize);
+            // Always include at least one block, even if it's bigger than the max segment size
+            if (endIndex > blockIndex + 1 && blockOffset(endIndex) - start > maxMappedSegmentSize) {
+                endIndex--;
             }
-            
-            return new IndexedResultEntry(index, new ResultEntry(sortKeys, rt));
+            readBuffer = fc.map(MapMode.READ_ONLY, start, blockOffset(endIndex) - start);
+            return endIndex;
+        }
+
+        private long blockOffset(int blockIndex) {
+            return blockIndex == blockCount ? fileLength : blockOffsets[blockIndex];
         }
 
         private void reachedEnd() {
             this.isClosed = true;
+            this.readBuffer = null;
+            this.block = null;
+            this.unsortedResults = null;
             if (this.fc != null) {
                 try {
                     this.fc.close();
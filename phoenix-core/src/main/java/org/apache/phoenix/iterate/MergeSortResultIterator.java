@@ -21,6 +21,7 @@ import java.sql.SQLException;
 import java.util.List;
 
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
 
 import org.apache.phoenix.schema.tuple.Tuple;
 import org.apache.phoenix.util.SQLCloseables;
@@ -29,7 +30,8 @@ import org.apache.phoenix.util.SQLCloseables;
 /**
  * 
  * Base class for a ResultIterator that does a merge sort on the list of iterators
- * provided.
+ * provided. The iterators are kept in a binary min-heap ordered by their current
+ * head, so that emitting a row costs O(log N) comparisons rather than O(N).
  *
  * 
  * @since 1.2
@@ -38,6 +40,15 @@ public abstract class MergeSortResultIterator implements PeekingResultIterator {
     protected final ResultIterators resultIterators;
     protected final ImmutableBytesWritable tempPtr = new ImmutableBytesWritable();
     private List<PeekingResultIterator> iterators;
+    // Heap of iterators that still have rows, along with their cached current row
+    private PeekingResultIterator[] heap;
+    private Tuple[] heads;
+    // Sort keys of the current rows, if the subclass provides them
+    private ImmutableBytesWritable[] headKeys;
+    private int heapSize;
+    // Set after next() advances the top iterator, so that we only peek it again
+    // once the caller has asked for the following row.
+    private boolean isTopStale;
     
     public MergeSortResultIterator(ResultIterators iterators) {
         this.resultIterators = iterators;
@@ -59,24 +70,107 @@ public abstract class MergeSortResultIterator implements PeekingResultIterator {
 
     abstract protected int compare(Tuple t1, Tuple t2);
     
-    private PeekingResultIterator minIterator() throws SQLException {
+    /**
+     * Get a key for the row whose bytes order the rows the same way as {@link #compare(Tuple, Tuple)}.
+     * The key is computed once as a row becomes the head of its iterator, so that comparisons
+     * in the heap are a single byte comparison. By default no key is computed and rows are
+     * compared with {@link #compare(Tuple, Tuple)} instead.
+     * @return the key or null to use {@link #compare(Tuple, Tuple)}
+     */
+    protected ImmutableBytesWritable getSortKey(Tuple t) {
+        return null;
+    }
+    
+    private int compare(int i, Tuple head, ImmutableBytesWritable headKey) {
+        if (headKey != null) {
+            ImmutableBytesWritable key = headKeys[i];
+            return Bytes.compareTo(headKey.get(), headKey.getOffset(), headKey.getLength(), key.get(), key.getOffset(), key.getLength());
+        }
+        return compare(head, heads[i]);
+    }
+    
+    private void initHeap() throws SQLException {
         List<PeekingResultIterator> iterators = getIterators();
-        Tuple minResult = null;
-        PeekingResultIterator minIterator = EMPTY_ITERATOR;
+        heap = new PeekingResultIterator[iterators.size()];
+        heads = new Tuple[iterators.size()];
+        headKeys = new ImmutableBytesWritable[iterators.size()];
+        heapSize = 0;
         for (int i = iterators.size()-1; i >= 0; i--) {
             PeekingResultIterator iterator = iterators.get(i);
             Tuple r = iterator.peek();
             if (r != null) {
-                if (minResult == null || compare(r, minResult) < 0) {
-                    minResult = r;
-                    minIterator = iterator;
-                }
+                heap[heapSize] = iterator;
+                heads[heapSize] = r;
+                headKeys[heapSize] = getSortKey(r);
+                heapSize++;
                 continue;
             }
             iterator.close();
             iterators.remove(i);
         }
-        return minIterator;
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+    
+    private void siftDown(int i) {
+        PeekingResultIterator iterator = heap[i];
+        Tuple head = heads[i];
+        ImmutableBytesWritable headKey = headKeys[i];
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < heapSize && compare(child, heads[right], headKeys[right]) < 0) {
+                child = right;
+            }
+            if (compare(child, head, headKey) <= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            heads[i] = heads[child];
+            headKeys[i] = headKeys[child];
+            i = child;
+        }
+        heap[i] = iterator;
+        heads[i] = head;
+        headKeys[i] = headKey;
+    }
+    
+    /**
+     * Re-peeks the iterator at the top of the heap after it has been advanced,
+     * either restoring the heap order or dropping the iterator if it's exhausted.
+     */
+    private void refreshTop() throws SQLException {
+        PeekingResultIterator iterator = heap[0];
+        Tuple r = iterator.peek();
+        if (r != null) {
+            heads[0] = r;
+            headKeys[0] = getSortKey(r);
+        } else {
+            iterator.close();
+            iterators.remove(iterator);
+            heapSize--;
+            heap[0] = heap[heapSize];
+            heads[0] = heads[heapSize];
+            headKeys[0] = headKeys[heapSize];
+            heap[heapSize] = null;
+            heads[heapSize] = null;
+            headKeys[heapSize] = null;
+        }
+        if (heapSize > 1) {
+            siftDown(0);
+        }
+    }
+    
+    private PeekingResultIterator minIterator() throws SQLException {
+        if (heap == null) {
+            initHeap();
+        } else if (isTopStale) {
+            isTopStale = false;
+            refreshTop();
+        }
+        return heapSize == 0 ? EMPTY_ITERATOR : heap[0];
     }
     
     @Override
@@ -88,6 +182,8 @@ public abstract class MergeSortResultIterator implements PeekingResultIterator {
     @Override
     public Tuple next() throws SQLException {
         PeekingResultIterator iterator = minIterator();
-        return iterator.next();
+        Tuple next = iterator.next();
+        isTopStale = heapSize > 0;
+        return next;
     }
 }
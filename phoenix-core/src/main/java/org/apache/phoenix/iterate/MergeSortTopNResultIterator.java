@@ -39,6 +39,7 @@ public class MergeSortTopNResultIterator extends MergeSortResultIterator {
     private final int limit;
     private int count = 0;
     private final List<OrderByExpression> orderByColumns;
+    private final OrderByKeyEncoder encoder;
     private final ImmutableBytesWritable ptr1 = new ImmutableBytesWritable();
     private final ImmutableBytesWritable ptr2 = new ImmutableBytesWritable();
     
@@ -46,6 +47,12 @@ public class MergeSortTopNResultIterator extends MergeSortResultIterator {
         super(iterators);
         this.limit = limit == null ? -1 : limit;
         this.orderByColumns = orderByColumns;
+        this.encoder = new OrderByKeyEncoder(orderByColumns);
+    }
+
+    @Override
+    protected ImmutableBytesWritable getSortKey(Tuple t) {
+        return encoder.encode(t);
     }
 
     @Override
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.iterate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.expression.OrderByExpression;
+import org.apache.phoenix.schema.SortOrder;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.ByteUtil;
+
+/**
+ *
+ * Encodes the values of the ORDER BY expressions of a row into a single normalized key,
+ * such that comparing the keys of two rows byte by byte orders them as the ORDER BY
+ * clause would. Each value is preceded by a byte that places nulls first or last, and
+ * is escaped and terminated so that it can't run into the value that follows it. The
+ * escaped bytes of descending values are inverted through {@link SortOrder#invert(byte[], int, byte[], int, int)}.
+ *
+ * With a single ascending, nulls first expression, the evaluated value is used as the
+ * key as is.
+ *
+ * Instances hold a reusable buffer and are not thread safe.
+ *
+ *
+ * @since 4.1
+ */
+public class OrderByKeyEncoder {
+    private static final byte NULL_FIRST = 0x00;
+    private static final byte NOT_NULL = 0x01;
+    private static final byte NULL_LAST = 0x02;
+    // Zero bytes within a value are followed by this byte, while a value is terminated by two zero bytes
+    private static final byte ESCAPE = (byte)0xFF;
+
+    /**
+     * Comparator for the keys produced by {@link #encode(Tuple)}
+     */
+    public static final Comparator<ImmutableBytesWritable> KEY_COMPARATOR = new Comparator<ImmutableBytesWritable>() {
+        @Override
+        public int compare(ImmutableBytesWritable key1, ImmutableBytesWritable key2) {
+            return Bytes.compareTo(key1.get(), key1.getOffset(), key1.getLength(), key2.get(), key2.getOffset(), key2.getLength());
+        }
+    };
+
+    private final OrderByExpression[] orderByExpressions;
+    private final Expression singleExpression;
+    private final ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+    private byte[] buffer = new byte[64];
+    private int length;
+
+    public OrderByKeyEncoder(List<OrderByExpression> orderByExpressions) {
+        checkArgument(!orderByExpressions.isEmpty());
+        this.orderByExpressions = orderByExpressions.toArray(new OrderByExpression[orderByExpressions.size()]);
+        OrderByExpression first = orderByExpressions.get(0);
+        this.singleExpression = orderByExpressions.size() == 1 && first.isAscending() && !first.isNullsLast()
+                ? first.getExpression() : null;
+    }
+
+    /**
+     * Evaluate the ORDER BY expressions against the row and encode the result.
+     * @return a new key, which may point into the buffers of the row
+     */
+    public ImmutableBytesWritable encode(Tuple tuple) {
+        if (singleExpression != null) {
+            ImmutableBytesWritable key = new ImmutableBytesWritable();
+            // A null value is an empty key, which sorts first
+            if (!singleExpression.evaluate(tuple, key)) {
+                key.set(ByteUtil.EMPTY_BYTE_ARRAY);
+            }
+            return key;
+        }
+        length = 0;
+        for (OrderByExpression orderByExpression : orderByExpressions) {
+            if (!orderByExpression.getExpression().evaluate(tuple, ptr) || ptr.getLength() == 0) {
+                ensureCapacity(1);
+                buffer[length++] = orderByExpression.isNullsLast() ? NULL_LAST : NULL_FIRST;
+                continue;
+            }
+            byte[] b = ptr.get();
+            int offset = ptr.getOffset();
+            int valueLength = ptr.getLength();
+            // Worst case of every byte being escaped, plus the null byte and terminator
+            ensureCapacity(2 * valueLength + 3);
+            buffer[length++] = NOT_NULL;
+            int start = length;
+            for (int i = offset; i < offset + valueLength; i++) {
+                buffer[length++] = b[i];
+                if (b[i] == 0) {
+                    buffer[length++] = ESCAPE;
+                }
+            }
+            buffer[length++] = 0;
+            buffer[length++] = 0;
+            if (!orderByExpression.isAscending()) {
+                SortOrder.invert(buffer, start, buffer, start, length - start);
+            }
+        }
+        return new ImmutableBytesWritable(Arrays.copyOf(buffer, length));
+    }
+
+    private void ensureCapacity(int extraLength) {
+        if (length + extraLength > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extraLength));
+        }
+    }
+}
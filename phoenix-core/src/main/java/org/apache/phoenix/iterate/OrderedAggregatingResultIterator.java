@@ -22,6 +22,7 @@ import java.util.List;
 
 import org.apache.phoenix.expression.OrderByExpression;
 import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.SpillCodec;
 
 
 /**
@@ -40,6 +41,18 @@ public class OrderedAggregatingResultIterator extends OrderedResultIterator impl
         super (delegate, orderByExpressions, thresholdBytes, limit);
     }
 
+    public OrderedAggregatingResultIterator(AggregatingResultIterator delegate,
+                                List<OrderByExpression> orderByExpressions,
+                                int thresholdBytes, Integer limit, SpillCodec spillCodec) throws SQLException {
+        super (delegate, orderByExpressions, thresholdBytes, limit, 0, spillCodec);
+    }
+
+    public OrderedAggregatingResultIterator(AggregatingResultIterator delegate,
+                                List<OrderByExpression> orderByExpressions,
+                                int thresholdBytes, Integer limit, SpillCodec spillCodec, int mergeFanIn) throws SQLException {
+        super (delegate, orderByExpressions, thresholdBytes, limit, 0, spillCodec, mergeFanIn);
+    }
+
     @Override
     protected AggregatingResultIterator getDelegate() {
         return (AggregatingResultIterator)super.getDelegate();
@@ -18,24 +18,25 @@
 package org.apache.phoenix.iterate;
 
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.base.Preconditions.checkPositionIndex;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Ordering;
 import org.apache.phoenix.expression.Expression;
 import org.apache.phoenix.expression.OrderByExpression;
+import org.apache.phoenix.query.QueryServicesOptions;
 import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.ReadOnlyProps;
 import org.apache.phoenix.util.SizedUtil;
+import org.apache.phoenix.util.SpillCodec;
+import org.apache.phoenix.util.SpillCodec.SpillType;
 
 /**
  * Result scanner that sorts aggregated rows by columns specified in the ORDER BY clause.
@@ -47,19 +48,21 @@ import org.apache.phoenix.util.SizedUtil;
  */
 public class OrderedResultIterator implements PeekingResultIterator {
 
-    /** A container that holds pointers to a {@link Result} and its sort keys. */
+    /**
+     * A container that holds pointers to a {@link Result} and its sort key, normalized
+     * by {@link OrderByKeyEncoder} from the values of all the ORDER BY columns.
+     */
     protected static class ResultEntry {
-        protected final ImmutableBytesWritable[] sortKeys;
+        protected final ImmutableBytesWritable sortKey;
         protected final Tuple result;
 
-        ResultEntry(ImmutableBytesWritable[] sortKeys, Tuple result) {
-            this.sortKeys = sortKeys;
+        ResultEntry(ImmutableBytesWritable sortKey, Tuple result) {
+            this.sortKey = sortKey;
             this.result = result;
         }
         
-        ImmutableBytesWritable getSortKey(int index) {
-            checkPositionIndex(index, sortKeys.length);
-            return sortKeys[index];
+        ImmutableBytesWritable getSortKey() {
+            return sortKey;
         }
         
         Tuple getResult() {
@@ -67,24 +70,32 @@ public class OrderedResultIterator implements PeekingResultIterator {
         }
     }
     
-    /** A function that returns Nth key for a given {@link ResultEntry}. */
-    private static class NthKey implements Function<ResultEntry, ImmutableBytesWritable> {
-        private final int index;
-
-        NthKey(int index) {
-            this.index = index;
-        }
+    /** Orders entries by their normalized sort key with a single byte comparison. */
+    private static final Comparator<ResultEntry> COMPARATOR = new Comparator<ResultEntry>() {
         @Override
-        public ImmutableBytesWritable apply(ResultEntry entry) {
-            return entry.getSortKey(index);
+        public int compare(ResultEntry entry1, ResultEntry entry2) {
+            return OrderByKeyEncoder.KEY_COMPARATOR.compare(entry1.sortKey, entry2.sortKey);
+        }
+    };
+
+    /**
+     * The sort key of one of the best rows seen so far and the leading value of the
+     * {@link TopNThreshold}, both copied out of the row, which isn't referenced.
+     */
+    private static class ThresholdEntry {
+        private final ImmutableBytesWritable sortKey;
+        private final ImmutableBytesWritable leadingValue;
+
+        ThresholdEntry(ImmutableBytesWritable sortKey, ImmutableBytesWritable leadingValue) {
+            this.sortKey = sortKey;
+            this.leadingValue = leadingValue;
         }
     }
 
-    /** Returns the expression of a given {@link OrderByExpression}. */
-    private static final Function<OrderByExpression, Expression> TO_EXPRESSION = new Function<OrderByExpression, Expression>() {
+    private static final Comparator<ThresholdEntry> THRESHOLD_COMPARATOR = new Comparator<ThresholdEntry>() {
         @Override
-        public Expression apply(OrderByExpression column) {
-            return column.getExpression();
+        public int compare(ThresholdEntry entry1, ThresholdEntry entry2) {
+            return OrderByKeyEncoder.KEY_COMPARATOR.compare(entry1.sortKey, entry2.sortKey);
         }
     };
 
@@ -93,8 +104,13 @@ public class OrderedResultIterator implements PeekingResultIterator {
     private final ResultIterator delegate;
     private final List<OrderByExpression> orderByExpressions;
     private final long estimatedByteSize;
+    private final SpillCodec spillCodec;
+    private final int mergeFanIn;
+    private final TopNThreshold threshold;
+    private final ImmutableBytesWritable ptr = new ImmutableBytesWritable();
     
     private PeekingResultIterator resultIterator;
+    private MappedByteBufferSortedQueue queueEntries;
     private long byteSize;
 
     protected ResultIterator getDelegate() {
@@ -114,16 +130,41 @@ public class OrderedResultIterator implements PeekingResultIterator {
 
     public OrderedResultIterator(ResultIterator delegate, List<OrderByExpression> orderByExpressions, 
             int thresholdBytes, Integer limit, int estimatedRowSize) {
+        this(delegate, orderByExpressions, thresholdBytes, limit, estimatedRowSize,
+                SpillCodec.getCodec(ReadOnlyProps.EMPTY_PROPS, SpillType.ORDER_BY));
+    }
+
+    public OrderedResultIterator(ResultIterator delegate, List<OrderByExpression> orderByExpressions, 
+            int thresholdBytes, Integer limit, int estimatedRowSize, SpillCodec spillCodec) {
+        this(delegate, orderByExpressions, thresholdBytes, limit, estimatedRowSize, spillCodec,
+                QueryServicesOptions.DEFAULT_SORT_MERGE_FAN_IN);
+    }
+
+    public OrderedResultIterator(ResultIterator delegate, List<OrderByExpression> orderByExpressions, 
+            int thresholdBytes, Integer limit, int estimatedRowSize, SpillCodec spillCodec, int mergeFanIn) {
+        this(delegate, orderByExpressions, thresholdBytes, limit, estimatedRowSize, spillCodec, mergeFanIn, null);
+    }
+
+    /**
+     * @param threshold if not null and there's a limit, set to the sort key of the worst row
+     * that would currently make it into the top N, each time it changes
+     */
+    public OrderedResultIterator(ResultIterator delegate, List<OrderByExpression> orderByExpressions, 
+            int thresholdBytes, Integer limit, int estimatedRowSize, SpillCodec spillCodec, int mergeFanIn,
+            TopNThreshold threshold) {
         checkArgument(!orderByExpressions.isEmpty());
         this.delegate = delegate;
         this.orderByExpressions = orderByExpressions;
         this.thresholdBytes = thresholdBytes;
         this.limit = limit;
+        this.spillCodec = spillCodec;
+        this.mergeFanIn = mergeFanIn;
+        this.threshold = limit == null ? null : threshold;
         long estimatedEntrySize =
             // ResultEntry
             SizedUtil.OBJECT_SIZE + 
-            // ImmutableBytesWritable[]
-            SizedUtil.ARRAY_SIZE + orderByExpressions.size() * SizedUtil.IMMUTABLE_BYTES_WRITABLE_SIZE +
+            // ImmutableBytesWritable of the normalized sort key
+            SizedUtil.IMMUTABLE_BYTES_WRITABLE_SIZE +
             // Tuple
             SizedUtil.OBJECT_SIZE + estimatedRowSize;
 
@@ -144,25 +185,6 @@ public class OrderedResultIterator implements PeekingResultIterator {
     public long getByteSize() {
         return byteSize;
     }
-    /**
-     * Builds a comparator from the list of columns in ORDER BY clause.
-     * @param orderByExpressions the columns in ORDER BY clause.
-     * @return the comparator built from the list of columns in ORDER BY clause.
-     */
-    // ImmutableBytesWritable.Comparator doesn't implement generics
-    @SuppressWarnings("unchecked")
-    private static Comparator<ResultEntry> buildComparator(List<OrderByExpression> orderByExpressions) {
-        Ordering<ResultEntry> ordering = null;
-        int pos = 0;
-        for (OrderByExpression col : orderByExpressions) {
-            Ordering<ImmutableBytesWritable> o = Ordering.from(new ImmutableBytesWritable.Comparator());
-            if(!col.isAscending()) o = o.reverse();
-            o = col.isNullsLast() ? o.nullsLast() : o.nullsFirst();
-            Ordering<ResultEntry> entryOrdering = o.onResultOf(new NthKey(pos++));
-            ordering = ordering == null ? entryOrdering : ordering.compound(entryOrdering);
-        }
-        return ordering;
-    }
 
     @Override
     public Tuple next() throws SQLException {
@@ -174,18 +196,19 @@ public class OrderedResultIterator implements PeekingResultIterator {
             return resultIterator;
         }
         
-        final int numSortKeys = orderByExpressions.size();
-        List<Expression> expressions = Lists.newArrayList(Collections2.transform(orderByExpressions, TO_EXPRESSION));
-        final Comparator<ResultEntry> comparator = buildComparator(orderByExpressions);
+        OrderByKeyEncoder encoder = new OrderByKeyEncoder(orderByExpressions);
+        boolean success = false;
         try{
-            final MappedByteBufferSortedQueue queueEntries = new MappedByteBufferSortedQueue(comparator, limit, thresholdBytes);
+            final MappedByteBufferSortedQueue queueEntries = new MappedByteBufferSortedQueue(COMPARATOR, limit, thresholdBytes, spillCodec, mergeFanIn);
+            this.queueEntries = queueEntries;
             resultIterator = new PeekingResultIterator() {
                 int count = 0;
                 @Override
                 public Tuple next() throws SQLException {
                     ResultEntry entry = queueEntries.poll();
                     if (entry == null || (limit != null && ++count > limit)) {
-                        resultIterator = PeekingResultIterator.EMPTY_ITERATOR;
+                        // Release the temp files and spill thread right away
+                        closeQueue();
                         return null;
                     }
                     return entry.getResult();
@@ -209,30 +232,57 @@ public class OrderedResultIterator implements PeekingResultIterator {
                 
                 @Override
                 public void close() throws SQLException {
-                    queueEntries.close();
+                    closeQueue();
                 }
             };
+            // Max heap of the sort keys of the best rows seen so far, the head being the threshold
+            PriorityQueue<ThresholdEntry> thresholdEntries = threshold == null ? null
+                    : new PriorityQueue<ThresholdEntry>(limit + 1, Collections.reverseOrder(THRESHOLD_COMPARATOR));
             for (Tuple result = delegate.next(); result != null; result = delegate.next()) {
-                int pos = 0;
-                ImmutableBytesWritable[] sortKeys = new ImmutableBytesWritable[numSortKeys];
-                for (Expression expression : expressions) {
-                    final ImmutableBytesWritable sortKey = new ImmutableBytesWritable();
-                    boolean evaluated = expression.evaluate(result, sortKey);
-                    // set the sort key that failed to get evaluated with null
-                    sortKeys[pos++] = evaluated && sortKey.getLength() > 0 ? sortKey : null;
+                ResultEntry entry = new ResultEntry(encoder.encode(result), result);
+                queueEntries.add(entry);
+                if (thresholdEntries != null) {
+                    updateThreshold(thresholdEntries, entry);
                 }
-                queueEntries.add(new ResultEntry(sortKeys, result));
             }
             this.byteSize = queueEntries.getByteSize();
+            success = true;
         } catch (IOException e) {
             throw new SQLException("", e);
         } finally {
-            delegate.close();
+            try {
+                delegate.close();
+            } finally {
+                if (!success) {
+                    closeQueue();
+                }
+            }
         }
         
         return resultIterator;
     }
 
+    private void updateThreshold(PriorityQueue<ThresholdEntry> thresholdEntries, ResultEntry entry) {
+        if (thresholdEntries.size() == limit) {
+            if (limit == 0 || OrderByKeyEncoder.KEY_COMPARATOR.compare(entry.getSortKey(), thresholdEntries.peek().sortKey) >= 0) {
+                return;
+            }
+            thresholdEntries.poll();
+        }
+        // Copy the key and the leading value, as they may point into the row, which
+        // isn't kept here
+        ImmutableBytesWritable leadingValue = null;
+        Expression leadingValueExpression = threshold.getLeadingValueExpression();
+        if (leadingValueExpression != null && leadingValueExpression.evaluate(entry.getResult(), ptr)) {
+            leadingValue = new ImmutableBytesWritable(ptr.copyBytes());
+        }
+        thresholdEntries.add(new ThresholdEntry(new ImmutableBytesWritable(entry.getSortKey().copyBytes()), leadingValue));
+        if (thresholdEntries.size() == limit) {
+            ThresholdEntry worst = thresholdEntries.peek();
+            threshold.set(worst.sortKey, worst.leadingValue);
+        }
+    }
+
     @Override
     public Tuple peek() throws SQLException {
         return getResultIterator().peek();
@@ -240,7 +290,15 @@ public class OrderedResultIterator implements PeekingResultIterator {
 
     @Override
     public void close()  {
+        closeQueue();
+    }
+
+    private void closeQueue() {
         resultIterator = PeekingResultIterator.EMPTY_ITERATOR;
+        if (queueEntries != null) {
+            queueEntries.close();
+            queueEntries = null;
+        }
     }
 
 
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.iterate;
+
+import static org.apache.phoenix.query.QueryConstants.AGG_TIMESTAMP;
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN;
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_FAMILY;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.phoenix.expression.aggregator.Aggregator;
+import org.apache.phoenix.expression.aggregator.ClientAggregators;
+import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
+import org.apache.phoenix.memory.MemoryManager;
+import org.apache.phoenix.memory.MemoryManager.ChunkType;
+import org.apache.phoenix.memory.MemoryManager.MemoryChunk;
+import org.apache.phoenix.schema.tuple.SingleKeyValueTuple;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.KeyValueUtil;
+import org.apache.phoenix.util.SQLCloseables;
+import org.apache.phoenix.util.ServerUtil;
+import org.apache.phoenix.util.SizedUtil;
+
+import com.google.common.collect.Maps;
+
+
+/**
+ *
+ * Result iterator that does the final aggregation of the partially aggregated rows
+ * returned by each region in parallel, without requiring the rows to be sorted.
+ * Each of a fixed number of threads takes the next region iterator not yet taken
+ * and aggregates its rows into the hash map of the partition of the hash of their
+ * group key. Each partition is only ever aggregated into under its own lock, so
+ * that every group is aggregated by a single set of aggregators and partial
+ * aggregates never need to be merged. The groups are then returned one partition
+ * after the other, in no particular order.
+ *
+ *
+ * @since 4.1
+ */
+public class ParallelHashAggregatingResultIterator implements AggregatingResultIterator {
+    // Number of new groups after which the memory allocation of a partition is adjusted
+    private static final int MIN_RESIZE_GROUPS = 1000;
+
+    private final ResultIterators resultIterators;
+    private final ClientAggregators aggregators;
+    private final MemoryManager memoryManager;
+    private final ExecutorService executor;
+    private final int threadCount;
+    // Index of the next region iterator to be taken by a thread
+    private final AtomicInteger nextIterator = new AtomicInteger();
+    private volatile boolean isStopped;
+    private List<PeekingResultIterator> iterators;
+    private List<Partition> partitions;
+    private Iterator<Map.Entry<ImmutableBytesPtr, Aggregator[]>> partitionIterator;
+    private int partitionIndex;
+
+    /**
+     * Groups of a partition of the hash of the group key, together with the aggregators
+     * and memory used for them. Only accessed while holding the lock of the partition.
+     */
+    private static class Partition {
+        private final Map<ImmutableBytesPtr, Aggregator[]> groups = Maps.newHashMap();
+        private final ClientAggregators aggregators;
+        private final MemoryChunk chunk;
+        private int allocatedGroupCount;
+
+        private Partition(ClientAggregators aggregators, MemoryChunk chunk) {
+            this.aggregators = aggregators;
+            this.chunk = chunk;
+        }
+    }
+
+    /**
+     * @param executor the executor on which all but one of the threads aggregate, the
+     * calling thread being the remaining one. It must not be the executor that runs the
+     * scans, as the threads wait for the rows of the scans.
+     */
+    public ParallelHashAggregatingResultIterator(ResultIterators resultIterators, ClientAggregators aggregators,
+            MemoryManager memoryManager, ExecutorService executor, int threadCount) {
+        if (resultIterators == null) throw new NullPointerException();
+        if (aggregators == null) throw new NullPointerException();
+        this.resultIterators = resultIterators;
+        this.aggregators = aggregators;
+        this.memoryManager = memoryManager;
+        this.executor = executor;
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    private int getPartition(ImmutableBytesPtr key) {
+        // Spread the hash, as the low order bits of the hash of similar keys vary little
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % threadCount;
+    }
+
+    private int sizeOfGroups(int nGroups) {
+        return SizedUtil.sizeOfMap(nGroups, SizedUtil.IMMUTABLE_BYTES_PTR_SIZE, aggregators.getEstimatedByteSize());
+    }
+
+    /**
+     * Aggregate the rows of the region iterators taken by a single thread into the
+     * partitions of their group keys.
+     */
+    private void aggregateIterators() throws SQLException {
+        ImmutableBytesPtr key = new ImmutableBytesPtr();
+        int index;
+        while (!isStopped && (index = nextIterator.getAndIncrement()) < iterators.size()) {
+            PeekingResultIterator iterator = iterators.get(index);
+            try {
+                for (Tuple result = iterator.next(); result != null; result = iterator.next()) {
+                    result.getKey(key);
+                    Partition partition = partitions.get(getPartition(key));
+                    synchronized (partition) {
+                        Aggregator[] rowAggregators = partition.groups.get(key);
+                        if (rowAggregators == null) {
+                            rowAggregators = partition.aggregators.newAggregators();
+                            partition.groups.put(new ImmutableBytesPtr(key.copyBytes()), rowAggregators);
+                            if (partition.groups.size() > partition.allocatedGroupCount) { // increase allocation
+                                partition.allocatedGroupCount = Math.max(MIN_RESIZE_GROUPS, (int)(partition.groups.size() * 1.5f));
+                                partition.chunk.resize(sizeOfGroups(partition.allocatedGroupCount));
+                            }
+                        }
+                        partition.aggregators.aggregate(rowAggregators, result);
+                    }
+                }
+            } finally {
+                iterator.close();
+            }
+        }
+    }
+
+    private void aggregate() throws SQLException {
+        iterators = resultIterators.getIterators();
+        partitions = new ArrayList<Partition>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            partitions.add(new Partition(aggregators.copy(), memoryManager.allocate(0, 0, ChunkType.GROUP_BY, null)));
+        }
+        int nHelpers = Math.min(threadCount, iterators.size()) - 1;
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(Math.max(0, nHelpers));
+        try {
+            for (int i = 0; i < nHelpers; i++) {
+                try {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            aggregateIterators();
+                            return null;
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    // The calling thread reads whatever region iterators remain
+                    break;
+                }
+            }
+            aggregateIterators();
+            for (Future<Void> future : futures) {
+                // A thread that hasn't started by now has no region iterator left to read
+                if (!future.cancel(false)) {
+                    future.get();
+                }
+            }
+        } catch (Exception e) {
+            isStopped = true;
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            throw ServerUtil.parseServerException(e);
+        }
+    }
+
+    @Override
+    public Tuple next() throws SQLException {
+        if (partitions == null) {
+            aggregate();
+        }
+        while (partitionIterator == null || !partitionIterator.hasNext()) {
+            if (partitionIndex >= partitions.size()) {
+                return null;
+            }
+            partitionIterator = partitions.get(partitionIndex++).groups.entrySet().iterator();
+        }
+        Map.Entry<ImmutableBytesPtr, Aggregator[]> entry = partitionIterator.next();
+        // Let go of the group, as it's only returned once
+        partitionIterator.remove();
+        byte[] value = aggregators.toBytes(entry.getValue());
+        return new SingleKeyValueTuple(KeyValueUtil.newKeyValue(entry.getKey(), SINGLE_COLUMN_FAMILY, SINGLE_COLUMN, AGG_TIMESTAMP, value, 0, value.length));
+    }
+
+    @Override
+    public void close() throws SQLException {
+        isStopped = true;
+        try {
+            // Iterators taken by a thread have already been closed by it
+            if (iterators != null && nextIterator.get() < iterators.size()) {
+                SQLCloseables.closeAll(iterators.subList(nextIterator.getAndSet(iterators.size()), iterators.size()));
+            }
+        } finally {
+            if (partitions != null) {
+                for (Partition partition : partitions) {
+                    synchronized (partition) {
+                        partition.groups.clear();
+                        partition.chunk.close();
+                    }
+                }
+                partitions.clear();
+            }
+            partitionIterator = null;
+        }
+    }
+
+    @Override
+    public void aggregate(Tuple result) {
+        Aggregator[] rowAggregators = aggregators.getAggregators();
+        aggregators.reset(rowAggregators);
+        aggregators.aggregate(rowAggregators, result);
+    }
+
+    @Override
+    public void explain(List<String> planSteps) {
+        resultIterators.explain(planSteps);
+        planSteps.add("CLIENT " + threadCount + "-WAY PARALLEL HASH AGGREGATE");
+    }
+}
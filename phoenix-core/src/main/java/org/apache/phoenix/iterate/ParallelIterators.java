@@ -33,6 +33,7 @@ import org.apache.phoenix.compile.*;
 import org.apache.phoenix.filter.ColumnProjectionFilter;
 import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
 import org.apache.phoenix.job.JobManager.JobCallable;
+import org.apache.phoenix.job.JobManager.JobGroup;
 import org.apache.phoenix.parse.*;
 import org.apache.phoenix.parse.HintNode.Hint;
 import org.apache.phoenix.query.*;
@@ -64,6 +65,45 @@ public class ParallelIterators extends ExplainTable implements ResultIterators {
 
     private static final int DEFAULT_THREAD_TIMEOUT_MS = 60000; // 1min
 
+    /**
+     * Job id under which the parallel scans of a query are scheduled, weighted according to
+     * the connection the query was issued on. Queries with few splits are given priority, so
+     * that point lookups don't wait behind large scans.
+     */
+    private static class ScanJobGroup implements JobGroup {
+        private final StatementContext context;
+        private final int weight;
+        private final int maxInFlight;
+        private final boolean isPriority;
+
+        private ScanJobGroup(StatementContext context, int weight, int maxInFlight, boolean isPriority) {
+            this.context = context;
+            this.weight = weight;
+            this.maxInFlight = maxInFlight;
+            this.isPriority = isPriority;
+        }
+
+        @Override
+        public int getWeight() {
+            return weight;
+        }
+
+        @Override
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        @Override
+        public boolean isPriority() {
+            return isPriority;
+        }
+
+        @Override
+        public void addQueueWaitTime(long waitTimeMs) {
+            context.addQueueWaitTime(waitTimeMs);
+        }
+    }
+
     static final Function<HRegionLocation, KeyRange> TO_KEY_RANGE = new Function<HRegionLocation, KeyRange>() {
         @Override
         public KeyRange apply(HRegionLocation region) {
@@ -209,6 +249,17 @@ public class ParallelIterators extends ExplainTable implements ResultIterators {
         return splits;
     }
 
+    /**
+     * Get the factory used to buffer the results of each parallel scan when no
+     * other factory is required by the query plan.
+     */
+    public static ParallelIteratorFactory getDefaultIteratorFactory(QueryServices services) {
+        if (services.getProps().getBoolean(QueryServices.STREAMING_SCAN_ATTRIB, QueryServicesOptions.DEFAULT_STREAMING_SCAN)) {
+            return new StreamingResultIterator.StreamingResultIteratorFactory(services);
+        }
+        return new SpoolingResultIterator.SpoolingResultIteratorFactory(services);
+    }
+
     /**
      * Executes the scan in parallel across all regions, blocking until all scans are complete.
      * @return the result iterators for the scan of each region
@@ -222,6 +273,11 @@ public class ParallelIterators extends ExplainTable implements ResultIterators {
         List<PeekingResultIterator> iterators = new ArrayList<PeekingResultIterator>(numSplits);
         List<Pair<byte[],Future<PeekingResultIterator>>> futures = new ArrayList<Pair<byte[],Future<PeekingResultIterator>>>(numSplits);
         final UUID scanId = UUID.randomUUID();
+        final JobGroup jobGroup = new ScanJobGroup(context,
+                props.getInt(QueryServices.SCHEDULER_WEIGHT_ATTRIB, QueryServicesOptions.DEFAULT_SCHEDULER_WEIGHT),
+                props.getInt(QueryServices.MAX_IN_FLIGHT_SPLITS_ATTRIB, QueryServicesOptions.DEFAULT_MAX_IN_FLIGHT_SPLITS),
+                numSplits <= props.getInt(QueryServices.SMALL_SCAN_MAX_SPLITS_ATTRIB, QueryServicesOptions.DEFAULT_SMALL_SCAN_MAX_SPLITS));
+        context.setJobGroup(jobGroup);
         try {
             ExecutorService executor = services.getExecutor();
             for (KeyRange split : splits) {
@@ -262,7 +318,7 @@ public class ParallelIterators extends ExplainTable implements ResultIterators {
                          */
                         @Override
                         public Object getJobId() {
-                            return ParallelIterators.this;
+                            return jobGroup;
                         }
                     });
                     futures.add(new Pair<byte[],Future<PeekingResultIterator>>(split.getLowerRange(),future));
@@ -282,6 +338,9 @@ public class ParallelIterators extends ExplainTable implements ResultIterators {
             for (Pair<byte[],Future<PeekingResultIterator>> future : futures) {
                 iterators.add(future.getSecond().get(timeoutMs, TimeUnit.MILLISECONDS));
             }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Id: " + scanId + ", Queue wait time: " + context.getQueueWaitTimeMs() + "ms");
+            }
 
             success = true;
             return iterators;
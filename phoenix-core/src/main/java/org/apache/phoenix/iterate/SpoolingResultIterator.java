@@ -17,43 +17,59 @@
  */
 package org.apache.phoenix.iterate;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.List;
 
-import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.phoenix.compile.StatementContext;
 import org.apache.phoenix.iterate.ParallelIterators.ParallelIteratorFactory;
 import org.apache.phoenix.memory.MemoryManager;
+import org.apache.phoenix.memory.MemoryManager.ChunkType;
 import org.apache.phoenix.memory.MemoryManager.MemoryChunk;
 import org.apache.phoenix.query.QueryServices;
 import org.apache.phoenix.query.QueryServicesOptions;
 import org.apache.phoenix.schema.tuple.ResultTuple;
 import org.apache.phoenix.schema.tuple.Tuple;
 import org.apache.phoenix.util.ByteUtil;
+import org.apache.phoenix.util.ReadOnlyProps;
 import org.apache.phoenix.util.ResultUtil;
 import org.apache.phoenix.util.ServerUtil;
+import org.apache.phoenix.util.SpillCodec;
+import org.apache.phoenix.util.SpillCodec.SpillType;
+import org.apache.phoenix.util.TrustedByteArrayOutputStream;
 import org.apache.phoenix.util.TupleUtil;
 
+import com.google.common.io.Closeables;
+
 
 
 /**
  * 
  * Result iterator that spools the results of a scan to disk once an in-memory threshold has been reached.
  * If the in-memory threshold is not reached, the results are held in memory with no disk writing perfomed.
+ * On disk, rows are grouped into length-prefixed blocks that are written with large sequential writes
+ * and read back through a memory mapping of the file, with rows deserialized in place from each block.
  *
  * 
  * @since 0.1
  */
 public class SpoolingResultIterator implements PeekingResultIterator {
+    // Target size of the blocks of rows written to the spool file
+    static final int SPOOL_BLOCK_SIZE = 1024 * 1024; // 1m
+    // Maximum size of a single memory mapping of the spool file when reading it back
+    private static final long MAX_MAPPED_SEGMENT_SIZE = 256L * 1024 * 1024; // 256m
+    
     private final PeekingResultIterator spoolFrom;
     
     public static class SpoolingResultIteratorFactory implements ParallelIteratorFactory {
@@ -72,7 +88,12 @@ public class SpoolingResultIterator implements PeekingResultIterator {
     public SpoolingResultIterator(ResultIterator scanner, QueryServices services) throws SQLException {
         this (scanner, services.getMemoryManager(), 
         		services.getProps().getInt(QueryServices.SPOOL_THRESHOLD_BYTES_ATTRIB, QueryServicesOptions.DEFAULT_SPOOL_THRESHOLD_BYTES),
-        		services.getProps().getLong(QueryServices.MAX_SPOOL_TO_DISK_BYTES_ATTRIB, QueryServicesOptions.DEFAULT_MAX_SPOOL_TO_DISK_BYTES));
+        		services.getProps().getLong(QueryServices.MAX_SPOOL_TO_DISK_BYTES_ATTRIB, QueryServicesOptions.DEFAULT_MAX_SPOOL_TO_DISK_BYTES),
+        		SpillCodec.getCodec(services.getProps(), SpillType.SPOOL));
+    }
+    
+    SpoolingResultIterator(ResultIterator scanner, MemoryManager mm, final int thresholdBytes, final long maxSpoolToDisk) throws SQLException {
+        this(scanner, mm, thresholdBytes, maxSpoolToDisk, SpillCodec.getCodec(ReadOnlyProps.EMPTY_PROPS, SpillType.SPOOL));
     }
     
     /**
@@ -82,44 +103,51 @@ public class SpoolingResultIterator implements PeekingResultIterator {
     * @param mm memory manager tracking memory usage across threads.
     * @param thresholdBytes the requested threshold.  Will be dialed down if memory usage (as determined by
     *  the memory manager) is exceeded.
+    * @param codec the codec used to encode the blocks written to disk
     * @throws SQLException
     */
-    SpoolingResultIterator(ResultIterator scanner, MemoryManager mm, final int thresholdBytes, final long maxSpoolToDisk) throws SQLException {
+    SpoolingResultIterator(ResultIterator scanner, MemoryManager mm, final int thresholdBytes, final long maxSpoolToDisk, SpillCodec codec) throws SQLException {
         boolean success = false;
         boolean usedOnDiskIterator = false;
-        final MemoryChunk chunk = mm.allocate(0, thresholdBytes);
-        File tempFile = null;
+        final MemoryChunk chunk = mm.allocate(0, thresholdBytes, ChunkType.SPOOL, null);
+        SpoolFile spoolFile = null;
         try {
             // Can't be bigger than int, since it's the max of the above allocation
             int size = (int)chunk.getSize();
-            tempFile = File.createTempFile("ResultSpooler",".bin");
-            DeferredFileOutputStream spoolTo = new DeferredFileOutputStream(size, tempFile) {
-                @Override
-                protected void thresholdReached() throws IOException {
-                    super.thresholdReached();
-                    chunk.close();
-                }
-            };
-            DataOutputStream out = new DataOutputStream(spoolTo);
+            TrustedByteArrayOutputStream buffer = new TrustedByteArrayOutputStream(Math.min(size, SPOOL_BLOCK_SIZE));
+            DataOutputStream out = new DataOutputStream(buffer);
             final long maxBytesAllowed = maxSpoolToDisk == -1 ? 
             		Long.MAX_VALUE : thresholdBytes + maxSpoolToDisk;
             long bytesWritten = 0L;
-            int maxSize = 0;
             for (Tuple result = scanner.next(); result != null; result = scanner.next()) {
                 int length = TupleUtil.write(result, out);
                 bytesWritten += length;
                 if(bytesWritten > maxBytesAllowed){
                 		throw new SpoolTooBigToDiskException("result too big, max allowed(bytes): " + maxBytesAllowed);
                 }
-                maxSize = Math.max(length, maxSize);
+                if (spoolFile == null) {
+                    if (buffer.size() > size) {
+                        // Threshold reached: release our memory and move what we have so far to disk
+                        spoolFile = new SpoolFile(codec);
+                        spoolFile.writeRows(buffer.getBuffer(), buffer.size());
+                        chunk.close();
+                        buffer = new TrustedByteArrayOutputStream(SPOOL_BLOCK_SIZE);
+                        out = new DataOutputStream(buffer);
+                    }
+                } else if (buffer.size() >= SPOOL_BLOCK_SIZE) {
+                    spoolFile.writeBlock(buffer.getBuffer(), 0, buffer.size());
+                    buffer.reset();
+                }
             }
-            spoolTo.close();
-            if (spoolTo.isInMemory()) {
-                byte[] data = spoolTo.getData();
+            if (spoolFile == null) {
+                byte[] data = buffer.toByteArray();
                 chunk.resize(data.length);
                 spoolFrom = new InMemoryResultIterator(data, chunk);
             } else {
-                spoolFrom = new OnDiskResultIterator(maxSize, spoolTo.getFile());
+                if (buffer.size() > 0) {
+                    spoolFile.writeBlock(buffer.getBuffer(), 0, buffer.size());
+                }
+                spoolFrom = new OnDiskResultIterator(spoolFile);
                 usedOnDiskIterator = true;
             }
             success = true;
@@ -130,8 +158,8 @@ public class SpoolingResultIterator implements PeekingResultIterator {
                 scanner.close();
             } finally {
                 try {
-                    if (!usedOnDiskIterator) {
-                        tempFile.delete();
+                    if (!usedOnDiskIterator && spoolFile != null) {
+                        spoolFile.close();
                     }
                 } finally {
                     if (!success) {
@@ -212,73 +240,171 @@ public class SpoolingResultIterator implements PeekingResultIterator {
     
     /**
      * 
-     * Backing result iterator if results were spooled to disk
+     * Temp file holding spooled rows as a sequence of blocks encoded by a {@link SpillCodec},
+     * each holding rows in the same format used in memory. The offset of each block
+     * is kept in a compact in-memory index so that the file may be mapped in segments
+     * that never split a block.
+     *
+     * 
+     * @since 4.1
+     */
+    private static class SpoolFile {
+        private final File file;
+        private final RandomAccessFile rndFile;
+        private final FileChannel channel;
+        private final OutputStream out;
+        private final SpillCodec codec;
+        private long[] blockOffsets = new long[16];
+        private int blockCount;
+        private int maxBlockSize;
+        private long length;
+        
+        private SpoolFile(SpillCodec codec) throws IOException {
+            this.codec = codec;
+            file = File.createTempFile("ResultSpooler",".bin");
+            try {
+                rndFile = new RandomAccessFile(file, "rw");
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            channel = rndFile.getChannel();
+            // Not closed, since that would close the channel
+            out = Channels.newOutputStream(channel);
+        }
+        
+        /**
+         * Write the rows serialized in the given buffer, cutting them into blocks
+         * at row boundaries.
+         */
+        private void writeRows(byte[] bytes, int length) throws IOException {
+            int blockStart = 0;
+            int offset = 0;
+            while (offset < length) {
+                int resultSize = ByteUtil.vintFromBytes(bytes, offset);
+                offset += WritableUtils.getVIntSize(resultSize) + resultSize;
+                if (offset - blockStart >= SPOOL_BLOCK_SIZE) {
+                    writeBlock(bytes, blockStart, offset - blockStart);
+                    blockStart = offset;
+                }
+            }
+            if (offset > blockStart) {
+                writeBlock(bytes, blockStart, offset - blockStart);
+            }
+        }
+        
+        private void writeBlock(byte[] bytes, int offset, int blockSize) throws IOException {
+            if (blockCount == blockOffsets.length) {
+                blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+            }
+            blockOffsets[blockCount++] = length;
+            maxBlockSize = Math.max(maxBlockSize, blockSize);
+            length += codec.encode(bytes, offset, blockSize, out);
+        }
+        
+        /**
+         * Map the segment of the file starting with the given block, covering as many
+         * whole blocks as fit within {@link #MAX_MAPPED_SEGMENT_SIZE}.
+         * @return the index of the first block past the mapped segment
+         */
+        private int map(int blockIndex, MappedByteBuffer[] segment) throws IOException {
+            long start = blockOffsets[blockIndex];
+            int endIndex = blockIndex + 1;
+            while (endIndex < blockCount && blockOffsets[endIndex] - start < MAX_MAPPED_SEGMENT_SIZE) {
+                endIndex++;
+            }
+            // Always include at least one block, even if it's bigger than the max segment size
+            if (endIndex > blockIndex + 1 && blockOffset(endIndex) - start > MAX_MAPPED_SEGMENT_SIZE) {
+                endIndex--;
+            }
+            segment[0] = channel.map(MapMode.READ_ONLY, start, blockOffset(endIndex) - start);
+            return endIndex;
+        }
+        
+        private long blockOffset(int blockIndex) {
+            return blockIndex == blockCount ? length : blockOffsets[blockIndex];
+        }
+        
+        private void close() {
+            Closeables.closeQuietly(channel);
+            Closeables.closeQuietly(rndFile);
+            file.delete();
+        }
+    }
+    
+    /**
+     * 
+     * Backing result iterator if results were spooled to disk. Each block is copied in
+     * bulk (and decompressed if need be) from the memory mapped file into one of two reusable buffers, and the
+     * rows of the block are deserialized in place as views over that buffer.
      *
      * 
      * @since 0.1
      */
     private static class OnDiskResultIterator implements PeekingResultIterator {
-        private final File file;
-        private DataInputStream spoolFrom;
+        private final SpoolFile spoolFile;
+        private final MappedByteBuffer[] segment = new MappedByteBuffer[1];
         private Tuple next;
-        private int maxSize;
+        private int nextBlockIndex;
+        private int segmentEndBlockIndex;
         private int bufferIndex;
         private byte[][] buffers = new byte[2][];
+        private byte[] buffer;
+        private int offset;
+        private int blockEnd;
+        private boolean isInitialized;
         private boolean isClosed;
         
-        private OnDiskResultIterator (int maxSize, File file) {
-            this.file = file;
-            this.maxSize = maxSize;
+        private OnDiskResultIterator (SpoolFile spoolFile) {
+            this.spoolFile = spoolFile;
         }
         
         private synchronized void init() throws IOException {
-            if (spoolFrom == null) {
-                spoolFrom = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (!isInitialized) {
+                isInitialized = true;
                 // We need two so that we can have a current and a next without them stomping on each other
-                buffers[0] = new byte[maxSize];
-                buffers[1] = new byte[maxSize];
+                buffers[0] = new byte[spoolFile.maxBlockSize];
+                buffers[1] = new byte[spoolFile.maxBlockSize];
                 advance();
             }
         }
     
-        private synchronized void reachedEnd() throws IOException {
+        private synchronized void reachedEnd() {
             next = null;
             isClosed = true;
-            try {
-                if (spoolFrom != null) {
-                    spoolFrom.close();
-                }
-            } finally {
-                file.delete();
+            segment[0] = null;
+            spoolFile.close();
+        }
+        
+        private boolean readBlock() throws IOException {
+            if (nextBlockIndex == spoolFile.blockCount) {
+                return false;
+            }
+            if (nextBlockIndex == segmentEndBlockIndex) {
+                segmentEndBlockIndex = spoolFile.map(nextBlockIndex, segment);
             }
+            // Alternate between buffers so that the current row is not affected by advancing
+            bufferIndex = (bufferIndex + 1) % 2;
+            buffer = buffers[bufferIndex];
+            int blockSize = spoolFile.codec.decode(segment[0], buffer);
+            offset = 0;
+            blockEnd = blockSize;
+            nextBlockIndex++;
+            return true;
         }
         
         private synchronized Tuple advance() throws IOException {
             if (isClosed) {
                 return next;
             }
-            int length;
-            try {
-                length = WritableUtils.readVInt(spoolFrom);
-            } catch (EOFException e) {
+            if (offset >= blockEnd && !readBlock()) {
                 reachedEnd();
                 return next;
             }
-            int totalBytesRead = 0;
-            int offset = 0;
-            // Alternate between buffers so that the current one is not affected by advancing
-            bufferIndex = (bufferIndex + 1) % 2;
-            byte[] buffer = buffers [bufferIndex];
-            while(totalBytesRead < length) {
-                int bytesRead = spoolFrom.read(buffer, offset, length);
-                if (bytesRead == -1) {
-                    reachedEnd();
-                    return next;
-                }
-                offset += bytesRead;
-                totalBytesRead += bytesRead;
-            }
-            next = new ResultTuple(ResultUtil.toResult(new ImmutableBytesWritable(buffer,0,length)));
+            int length = ByteUtil.vintFromBytes(buffer, offset);
+            offset += WritableUtils.getVIntSize(length);
+            next = new ResultTuple(ResultUtil.toResult(new ImmutableBytesWritable(buffer, offset, length)));
+            offset += length;
             return next;
         }
         
@@ -306,12 +432,8 @@ public class SpoolingResultIterator implements PeekingResultIterator {
         
         @Override
         public synchronized void close() throws SQLException {
-            try {
-                if (!isClosed) {
-                    reachedEnd();
-                }
-            } catch (IOException e) {
-                throw ServerUtil.parseServerException(e);
+            if (!isClosed) {
+                reachedEnd();
             }
         }
 
@@ -0,0 +1,398 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.iterate;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.hbase.CellUtil;
+
+import org.apache.phoenix.compile.StatementContext;
+import org.apache.phoenix.iterate.ParallelIterators.ParallelIteratorFactory;
+import org.apache.phoenix.job.JobManager.JobCallable;
+import org.apache.phoenix.job.JobManager.JobGroup;
+import org.apache.phoenix.memory.InsufficientMemoryException;
+import org.apache.phoenix.memory.MemoryManager.ChunkType;
+import org.apache.phoenix.memory.MemoryManager.MemoryChunk;
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.query.QueryServicesOptions;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.ServerUtil;
+import org.apache.phoenix.util.SizedUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *
+ * Result iterator that streams the results of a scan through a bounded queue filled
+ * by a task running on the query executor, so that rows are available to the consumer
+ * as soon as the scan produces them instead of after the entire scan has been spooled.
+ * If the consumer falls behind and the queue stays full for longer than
+ * {@link QueryServices#STREAMING_SPOOL_AFTER_MS_ATTRIB}, the producer stops and hands the
+ * rest of the scan over to the consumer, so that the executor thread is released right
+ * away. Once the consumer has read the queued rows, it spools the rest of the scan through
+ * a {@link SpoolingResultIterator} on its own thread, which releases the scan before the
+ * rows are processed. The rows in the queue are charged to the memory manager, and the
+ * rest of the scan is handed over as well if they don't fit.
+ *
+ *
+ * @since 4.1
+ */
+public class StreamingResultIterator implements PeekingResultIterator {
+    private static final Logger logger = LoggerFactory.getLogger(StreamingResultIterator.class);
+    // Marker placed on the queue by the producer once the scan is complete
+    private static final Object END_OF_SCAN = new Object();
+    private static final long OFFER_POLL_MS = 100;
+
+    private final BlockingQueue<Object> queue;
+    private final QueryServices services;
+    private final long timeoutMs;
+    // Holds the memory of the rows in the queue, grown by the producer up to the most ever queued
+    private final MemoryChunk chunk;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile boolean isClosed;
+    private volatile Throwable producerException;
+    // Rest of the scan handed over by the producer, closed by whichever of the producer and
+    // the consumer takes it out
+    private final AtomicReference<ResultIterator> remainder = new AtomicReference<ResultIterator>();
+    private PeekingResultIterator delegate;
+    private Tuple next;
+    private boolean hasNext;
+    private boolean isDone;
+
+    public static class StreamingResultIteratorFactory implements ParallelIteratorFactory {
+        private final QueryServices services;
+
+        public StreamingResultIteratorFactory(QueryServices services) {
+            this.services = services;
+        }
+
+        @Override
+        public PeekingResultIterator newIterator(StatementContext context, ResultIterator scanner) throws SQLException {
+            // Schedule the producer along with the other tasks of the query
+            Object jobId = context.getJobGroup() == null ? context : new ProducerJobGroup(context.getJobGroup());
+            return new StreamingResultIterator(scanner, services, jobId);
+        }
+    }
+
+    /**
+     * Job id of the producers of a query, scheduled with the weight and priority of the other
+     * tasks of the query but not counted against its limit of tasks executing at once. A producer
+     * waits on its full queue for as long as the consumer reads from other iterators, so it would
+     * otherwise keep the scans of those iterators from starting. All the producers of a query are
+     * the same job.
+     */
+    static class ProducerJobGroup implements JobGroup {
+        private final JobGroup group;
+
+        ProducerJobGroup(JobGroup group) {
+            this.group = group;
+        }
+
+        @Override
+        public int getWeight() {
+            return group.getWeight();
+        }
+
+        @Override
+        public int getMaxInFlight() {
+            return 0;
+        }
+
+        @Override
+        public boolean isPriority() {
+            return group.isPriority();
+        }
+
+        @Override
+        public void addQueueWaitTime(long waitTimeMs) {
+            group.addQueueWaitTime(waitTimeMs);
+        }
+
+        @Override
+        public int hashCode() {
+            return group.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ProducerJobGroup && group.equals(((ProducerJobGroup)obj).group);
+        }
+    }
+
+    public StreamingResultIterator(ResultIterator scanner, QueryServices services, Object jobId) {
+        this(scanner, services, services.getExecutor(), jobId,
+                services.getProps().getInt(QueryServices.STREAMING_QUEUE_SIZE_ATTRIB, QueryServicesOptions.DEFAULT_STREAMING_QUEUE_SIZE),
+                services.getProps().getLong(QueryServices.STREAMING_SPOOL_AFTER_MS_ATTRIB, QueryServicesOptions.DEFAULT_STREAMING_SPOOL_AFTER_MS),
+                services.getProps().getInt(QueryServices.THREAD_TIMEOUT_MS_ATTRIB, QueryServicesOptions.DEFAULT_THREAD_TIMEOUT_MS));
+    }
+
+    /**
+     * Create a result iterator that starts filling its queue from the scanner right away.
+     * The scanner is closed by the producer once the scan completes or this iterator is closed.
+     * @param scanner the results of a table scan
+     * @param services the query services used by the consumer to spool the scan should it fall
+     *  behind, and whose memory manager the queued rows are charged to
+     * @param executor the executor on which the scan is run
+     * @param jobId the round robin grouping of the producer task in the executor
+     * @param queueSize the maximum number of rows buffered ahead of the consumer
+     * @param spoolAfterMs the time the producer will wait for room in the queue before handing
+     *  the remainder of the scan over to be spooled, or -1 to never spool
+     * @param timeoutMs the maximum time the consumer waits for the next row
+     */
+    StreamingResultIterator(ResultIterator scanner, QueryServices services, ExecutorService executor, Object jobId,
+            int queueSize, long spoolAfterMs, long timeoutMs) {
+        this.queue = new ArrayBlockingQueue<Object>(queueSize);
+        this.services = services;
+        this.timeoutMs = timeoutMs;
+        this.chunk = services.getMemoryManager().allocate(0, 0, ChunkType.SPOOL, null);
+        executor.submit(new Producer(scanner, jobId, spoolAfterMs));
+    }
+
+    private class Producer implements JobCallable<Void> {
+        private final ResultIterator scanner;
+        private final Object jobId;
+        private final long spoolAfterMs;
+
+        private Producer(ResultIterator scanner, Object jobId, long spoolAfterMs) {
+            this.scanner = scanner;
+            this.jobId = jobId;
+            this.spoolAfterMs = spoolAfterMs;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            boolean isHandedOver = false;
+            try {
+                for (Tuple tuple = scanner.next(); tuple != null && !isClosed; tuple = scanner.next()) {
+                    if (!offer(tuple)) {
+                        if (isClosed) {
+                            break;
+                        }
+                        // Consumer has fallen too far behind or the queue is out of memory. Hand the
+                        // rest of the scan, starting with the row we were unable to queue, over to the
+                        // consumer to spool, rather than hold on to this thread while it's read.
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Handing remainder of scan over to consumer after waiting " + spoolAfterMs + "ms for it");
+                        }
+                        isHandedOver = true;
+                        remainder.set(new PrependingResultIterator(tuple, scanner));
+                        break;
+                    }
+                }
+            } catch (Throwable t) {
+                producerException = t;
+            } finally {
+                try {
+                    if (!isHandedOver) {
+                        scanner.close();
+                    }
+                } catch (Throwable t) {
+                    if (producerException == null) {
+                        producerException = t;
+                    }
+                } finally {
+                    // Block until the marker is queued, since the consumer cannot finish without it
+                    boolean isQueued = false;
+                    while (!isClosed && !(isQueued = queue.offer(END_OF_SCAN, OFFER_POLL_MS, TimeUnit.MILLISECONDS))) {
+                    }
+                    // If the consumer went away first, it will never pick up the rest of the scan
+                    if (!isQueued) {
+                        ResultIterator unread = remainder.getAndSet(null);
+                        if (unread != null) {
+                            unread.close();
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        private boolean offer(Tuple tuple) throws InterruptedException {
+            long size = sizeOf(tuple);
+            if (!reserve(size)) {
+                return false;
+            }
+            long startTime = System.currentTimeMillis();
+            while (!queue.offer(tuple, OFFER_POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (isClosed || (spoolAfterMs >= 0 && System.currentTimeMillis() - startTime >= spoolAfterMs)) {
+                    queuedBytes.addAndGet(-size);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Charge a row about to be queued to the memory manager
+         * @return false if the memory isn't available or the iterator is closed
+         */
+        private boolean reserve(long size) {
+            long nBytes = queuedBytes.addAndGet(size);
+            synchronized (chunk) {
+                // The chunk may not be grown again once closed by the consumer
+                if (isClosed) {
+                    return false;
+                }
+                if (nBytes > chunk.getSize()) {
+                    try {
+                        chunk.resize(Math.max(nBytes, 2 * chunk.getSize()));
+                    } catch (InsufficientMemoryException e) {
+                        queuedBytes.addAndGet(-size);
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Object getJobId() {
+            return jobId;
+        }
+    }
+
+    /**
+     * Iterator that returns a single tuple followed by the rows of another iterator.
+     */
+    private static class PrependingResultIterator implements ResultIterator {
+        private final ResultIterator iterator;
+        private Tuple first;
+
+        private PrependingResultIterator(Tuple first, ResultIterator iterator) {
+            this.first = first;
+            this.iterator = iterator;
+        }
+
+        @Override
+        public Tuple next() throws SQLException {
+            if (first != null) {
+                Tuple current = first;
+                first = null;
+                return current;
+            }
+            return iterator.next();
+        }
+
+        @Override
+        public void close() throws SQLException {
+            iterator.close();
+        }
+
+        @Override
+        public void explain(List<String> planSteps) {
+        }
+    }
+
+    private static long sizeOf(Tuple tuple) {
+        long size = SizedUtil.OBJECT_SIZE;
+        for (int i = 0; i < tuple.size(); i++) {
+            size += CellUtil.estimatedSizeOf(tuple.getValue(i));
+        }
+        return size;
+    }
+
+    private void releaseMemory() {
+        synchronized (chunk) {
+            chunk.close();
+        }
+    }
+
+    private Tuple advance() throws SQLException {
+        if (delegate != null) {
+            return next = delegate.next();
+        }
+        if (isDone) {
+            return next = null;
+        }
+        Object o;
+        try {
+            o = queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServerUtil.parseServerException(e);
+        }
+        if (o == null) {
+            throw new SQLException("Timed out after " + timeoutMs + "ms waiting for the next row of the scan");
+        }
+        if (o != END_OF_SCAN) {
+            next = (Tuple)o;
+            queuedBytes.addAndGet(-sizeOf(next));
+            return next;
+        }
+        // The producer is done, so nothing more will be queued
+        isDone = true;
+        releaseMemory();
+        if (producerException != null) {
+            throw ServerUtil.parseServerException(producerException);
+        }
+        ResultIterator unread = remainder.getAndSet(null);
+        if (unread != null) {
+            // Closes the scan once it's spooled, or if spooling fails
+            delegate = new SpoolingResultIterator(unread, services);
+            return next = delegate.next();
+        }
+        return next = null;
+    }
+
+    @Override
+    public Tuple peek() throws SQLException {
+        if (!hasNext) {
+            advance();
+            hasNext = true;
+        }
+        return next;
+    }
+
+    @Override
+    public Tuple next() throws SQLException {
+        Tuple current = peek();
+        // Don't fetch the following row until asked, so we don't block on the queue needlessly
+        hasNext = false;
+        return current;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        isClosed = true;
+        queue.clear();
+        releaseMemory();
+        try {
+            if (delegate != null) {
+                delegate.close();
+            }
+        } finally {
+            // Handed over by the producer after the end of the scan was queued, but not yet picked up
+            ResultIterator unread = remainder.getAndSet(null);
+            if (unread != null) {
+                unread.close();
+            }
+        }
+    }
+
+    @Override
+    public void explain(List<String> planSteps) {
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.iterate;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.phoenix.expression.Expression;
+
+/**
+ *
+ * Sort key of the worst of the rows currently kept by an {@link OrderedResultIterator}
+ * with a limit, once it has seen as many rows as its limit. Any row whose sort key does
+ * not compare less than the threshold can't make it into the top N, which lets the
+ * scanner feeding the iterator drop such rows before they are returned.
+ *
+ * The threshold is set and read by the thread running the scan and is not thread safe.
+ *
+ *
+ * @since 4.1
+ */
+public class TopNThreshold {
+    private Expression leadingValueExpression;
+    private ImmutableBytesWritable sortKey;
+    private ImmutableBytesWritable leadingValue;
+    private int version;
+
+    /**
+     * @return the expression evaluated against the threshold row to get its leading
+     * value, or null if the leading value isn't needed
+     */
+    public Expression getLeadingValueExpression() {
+        return leadingValueExpression;
+    }
+
+    public void setLeadingValueExpression(Expression leadingValueExpression) {
+        this.leadingValueExpression = leadingValueExpression;
+    }
+
+    /**
+     * @return the sort key, as encoded by {@link OrderByKeyEncoder}, or null if fewer rows
+     * than the limit have been seen so far
+     */
+    public ImmutableBytesWritable getSortKey() {
+        return sortKey;
+    }
+
+    /**
+     * @return the value of the leading value expression for the threshold row, or null
+     * if there's no such expression, the value is null or fewer rows than the limit have
+     * been seen so far
+     */
+    public ImmutableBytesWritable getLeadingValue() {
+        return leadingValue;
+    }
+
+    /**
+     * @return a number that changes each time the threshold is lowered
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public void set(ImmutableBytesWritable sortKey, ImmutableBytesWritable leadingValue) {
+        this.sortKey = sortKey;
+        this.leadingValue = leadingValue;
+        this.version++;
+    }
+}
@@ -203,6 +203,15 @@ public class PhoenixDatabaseMetaData implements DatabaseMetaData, org.apache.pho
     public static final String KEY_SEQ = "KEY_SEQ";
     public static final byte[] KEY_SEQ_BYTES = Bytes.toBytes(KEY_SEQ);
     public static final String SUPERTABLE_NAME = "SUPERTABLE_NAME";
+    
+    public static final String TYPE_STATS = "STATS";
+    public static final byte[] STATS_FAMILY_BYTES = QueryConstants.DEFAULT_COLUMN_FAMILY_BYTES;
+    public static final String STATS_TABLE_NAME = SYSTEM_CATALOG_SCHEMA + ".\"" + TYPE_STATS + "\"";
+    public static final byte[] STATS_TABLE_NAME_BYTES = SchemaUtil.getTableNameAsBytes(SYSTEM_CATALOG_SCHEMA, TYPE_STATS);
+    public static final String PHYSICAL_NAME = "PHYSICAL_NAME";
+    public static final String REGION_NAME = "REGION_NAME";
+    public static final String GUIDE_POSTS = "GUIDE_POSTS";
+    public static final byte[] GUIDE_POSTS_BYTES = Bytes.toBytes(GUIDE_POSTS);
     		
     public static final String TYPE_ID = "TYPE_ID";
     
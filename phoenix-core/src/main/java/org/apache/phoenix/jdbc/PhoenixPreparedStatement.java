@@ -129,6 +129,10 @@ public class PhoenixPreparedStatement extends PhoenixStatement implements Prepar
     }
     
     
+    CompilableStatement getCompilableStatement() {
+        return statement;
+    }
+    
     public QueryPlan compileQuery() throws SQLException {
         return compileQuery(statement, query);
     }
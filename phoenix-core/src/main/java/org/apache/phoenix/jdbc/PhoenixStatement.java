@@ -29,6 +29,7 @@ import java.text.Format;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -58,6 +59,7 @@ import org.apache.phoenix.exception.BatchUpdateExecution;
 import org.apache.phoenix.exception.SQLExceptionCode;
 import org.apache.phoenix.exception.SQLExceptionInfo;
 import org.apache.phoenix.execute.MutationState;
+import org.apache.phoenix.execute.PointLookupBatch;
 import org.apache.phoenix.expression.RowKeyColumnExpression;
 import org.apache.phoenix.iterate.MaterializedResultIterator;
 import org.apache.phoenix.iterate.ResultIterator;
@@ -84,6 +86,7 @@ import org.apache.phoenix.parse.NamedTableNode;
 import org.apache.phoenix.parse.OrderByNode;
 import org.apache.phoenix.parse.ParseNode;
 import org.apache.phoenix.parse.ParseNodeFactory;
+import org.apache.phoenix.parse.ParseTreeCache;
 import org.apache.phoenix.parse.PrimaryKeyConstraint;
 import org.apache.phoenix.parse.SQLParser;
 import org.apache.phoenix.parse.SelectStatement;
@@ -112,6 +115,7 @@ import org.apache.phoenix.util.SQLCloseable;
 import org.apache.phoenix.util.SQLCloseables;
 import org.apache.phoenix.util.ServerUtil;
 
+import com.google.common.collect.Iterators;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 
@@ -162,6 +166,8 @@ public class PhoenixStatement implements Statement, SQLCloseable, org.apache.pho
     private List<PhoenixResultSet> resultSets = new ArrayList<PhoenixResultSet>();
     private QueryPlan lastQueryPlan;
     private PhoenixResultSet lastResultSet;
+    // Results of the queries of the last executed batch not yet returned by getMoreResults()
+    private Iterator<PhoenixResultSet> batchResultSets = Iterators.emptyIterator();
     private int lastUpdateCount = NO_UPDATE;
     private Operation lastUpdateOperation;
     private boolean isClosed = false;
@@ -198,14 +204,7 @@ public class PhoenixStatement implements Statement, SQLCloseable, org.apache.pho
         try {
             QueryPlan plan = stmt.compilePlan(this);
             plan = connection.getQueryServices().getOptimizer().optimize(this, plan);
-            plan.getContext().getSequenceManager().validateSequences(stmt.getSequenceAction());;
-            PhoenixResultSet rs = newResultSet(plan.iterator(), plan.getProjector());
-            resultSets.add(rs);
-            setLastQueryPlan(plan);
-            setLastResultSet(rs);
-            setLastUpdateCount(NO_UPDATE);
-            setLastUpdateOperation(stmt.getOperation());
-            return rs;
+            return executeQuery(stmt, plan);
         } catch (RuntimeException e) {
             // FIXME: Expression.evaluate does not throw SQLException
             // so this will unwrap throws from that.
@@ -216,6 +215,22 @@ public class PhoenixStatement implements Statement, SQLCloseable, org.apache.pho
         }
     }
     
+    PhoenixResultSet executeQuery(CompilableStatement stmt, QueryPlan plan) throws SQLException {
+        plan.getContext().getSequenceManager().validateSequences(stmt.getSequenceAction());;
+        return addQueryResultSet(stmt, plan, plan.iterator());
+    }
+    
+    PhoenixResultSet addQueryResultSet(CompilableStatement stmt, QueryPlan plan, ResultIterator iterator) throws SQLException {
+        PhoenixResultSet rs = newResultSet(iterator, plan.getProjector());
+        resultSets.add(rs);
+        batchResultSets = Iterators.emptyIterator();
+        setLastQueryPlan(plan);
+        setLastResultSet(rs);
+        setLastUpdateCount(NO_UPDATE);
+        setLastUpdateOperation(stmt.getOperation());
+        return rs;
+    }
+    
     protected int executeMutation(CompilableStatement stmt) throws SQLException {
         // Note that the upsert select statements will need to commit any open transaction here,
         // since they'd update data directly from coprocessors, and should thus operate on
@@ -228,6 +243,7 @@ public class PhoenixStatement implements Statement, SQLCloseable, org.apache.pho
             if (connection.getAutoCommit()) {
                 connection.commit();
             }
+            batchResultSets = Iterators.emptyIterator();
             setLastResultSet(null);
             setLastQueryPlan(null);
             // Unfortunately, JDBC uses an int for update count, so we
@@ -796,16 +812,37 @@ public class PhoenixStatement implements Statement, SQLCloseable, org.apache.pho
      * Execute the current batch of statements. If any exception occurs
      * during execution, a {@link org.apache.phoenix.exception.BatchUpdateException}
      * is thrown which includes the index of the statement within the
-     * batch when the exception occurred.
+     * batch when the exception occurred. The results of the queries in
+     * the batch are returned in order by {@link #getResultSet()} and
+     * {@link #getMoreResults()}.
      */
     @Override
     public int[] executeBatch() throws SQLException {
         int i = 0;
         try {
             int[] returnCodes = new int [batch.size()];
-            for (i = 0; i < returnCodes.length; i++) {
+            List<PhoenixResultSet> batchResults = Lists.newArrayList();
+            while (i < returnCodes.length) {
+                int nStatements = executeBatchedQueries(i, batchResults);
+                if (nStatements > 0) {
+                    Arrays.fill(returnCodes, i, i + nStatements, Statement.SUCCESS_NO_INFO);
+                    i += nStatements;
+                    continue;
+                }
                 PhoenixPreparedStatement statement = batch.get(i);
-                returnCodes[i] = statement.execute(true) ? Statement.SUCCESS_NO_INFO : statement.getUpdateCount();
+                if (statement.execute(true)) {
+                    returnCodes[i] = Statement.SUCCESS_NO_INFO;
+                    batchResults.add((PhoenixResultSet)statement.getResultSet());
+                } else {
+                    returnCodes[i] = statement.getUpdateCount();
+                }
+                i++;
+            }
+            if (!batchResults.isEmpty()) {
+                // Closed along with this statement
+                resultSets.addAll(batchResults);
+                batchResultSets = batchResults.iterator();
+                setLastResultSet(batchResultSets.next());
             }
             // If we make it all the way through, clear the batch
             clearBatch();
@@ -815,6 +852,46 @@ public class PhoenixStatement implements Statement, SQLCloseable, org.apache.pho
         }
     }
 
+    /**
+     * Execute the batched statements with the same query starting at the given position. If
+     * each of them looks up rows by their full primary key, they're executed as a single scan
+     * over all their keys.
+     * @return the number of batched statements executed, or 0 if the statement at the given
+     * position is not a query repeated by the statement after it
+     */
+    private int executeBatchedQueries(int start, List<PhoenixResultSet> batchResults) throws SQLException {
+        CompilableStatement stmt = batch.get(start).getCompilableStatement();
+        if (!(stmt instanceof SelectStatement) || !connection.getQueryServices().getProps().getBoolean(
+                QueryServices.BATCH_POINT_LOOKUPS_ATTRIB, QueryServicesOptions.DEFAULT_BATCH_POINT_LOOKUPS)) {
+            return 0;
+        }
+        int end = start + 1;
+        while (end < batch.size() && batch.get(end).getCompilableStatement() == stmt) {
+            end++;
+        }
+        if (end - start == 1) {
+            return 0;
+        }
+        List<QueryPlan> plans = Lists.newArrayListWithExpectedSize(end - start);
+        boolean isCombinable = true;
+        for (int i = start; i < end; i++) {
+            QueryPlan plan = batch.get(i).optimizeQuery();
+            isCombinable &= PointLookupBatch.isPointLookup(plan) && (plans.isEmpty() || PointLookupBatch.isCombinable(plans.get(0), plan));
+            plans.add(plan);
+        }
+        if (isCombinable) {
+            List<ResultIterator> iterators = PointLookupBatch.execute(plans);
+            for (int i = start; i < end; i++) {
+                batchResults.add(batch.get(i).addQueryResultSet(stmt, plans.get(i - start), iterators.get(i - start)));
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                batchResults.add(batch.get(i).executeQuery(stmt, plans.get(i - start)));
+            }
+        }
+        return end - start;
+    }
+
     @Override
     public void cancel() throws SQLException {
         throw new SQLFeatureNotSupportedException();
@@ -847,6 +924,14 @@ public class PhoenixStatement implements Statement, SQLCloseable, org.apache.pho
     }
     
     protected CompilableStatement parseStatement(String sql) throws SQLException {
+        ParseTreeCache cache = connection.getQueryServices().getParseTreeCache();
+        if (cache.isEnabled()) {
+            CompilableStatement statement = (CompilableStatement) cache.get(sql);
+            if (statement != null) {
+                return statement;
+            }
+        }
+        long startTime = System.nanoTime();
         PhoenixStatementParser parser = null;
         try {
             parser = new PhoenixStatementParser(sql, new ExecutableNodeFactory());
@@ -854,6 +939,9 @@ public class PhoenixStatement implements Statement, SQLCloseable, org.apache.pho
             throw ServerUtil.parseServerException(e);
         }
         CompilableStatement statement = parser.parseStatement();
+        if (cache.isEnabled()) {
+            cache.put(sql, statement, System.nanoTime() - startTime);
+        }
         return statement;
     }
     
@@ -985,12 +1073,18 @@ public class PhoenixStatement implements Statement, SQLCloseable, org.apache.pho
 
     @Override
     public boolean getMoreResults() throws SQLException {
-        return false;
+        return getMoreResults(Statement.CLOSE_CURRENT_RESULT);
     }
 
     @Override
     public boolean getMoreResults(int current) throws SQLException {
-        return false;
+        // Only an executed batch of queries has more than one result
+        if (!batchResultSets.hasNext()) {
+            return false;
+        }
+        setLastResultSet(batchResultSets.next());
+        setLastUpdateCount(NO_UPDATE);
+        return true;
     }
 
     @Override
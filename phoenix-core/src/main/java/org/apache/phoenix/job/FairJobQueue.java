@@ -0,0 +1,340 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.job;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.phoenix.job.JobManager.JobFutureTask;
+import org.apache.phoenix.job.JobManager.JobGroup;
+
+/**
+ *
+ * Bounded blocking queue that shares the threads of an executor fairly between the jobs
+ * submitting tasks to it, where a job is identified by {@link JobManager.JobCallable#getJobId()}.
+ * Jobs take turns as with {@link AbstractRoundRobinQueue}, except that a job whose id is
+ * a {@link JobGroup} is given as many tasks in a row as its weight, is not given another
+ * task while its maximum number of tasks are executing, and, if it's a priority job, is
+ * served ahead of all other jobs.
+ *
+ * The executor must queue every task rather than handing some directly to new threads, and must
+ * report the start and end of each task through {@link #beforeExecute(Runnable)} and
+ * {@link #afterExecute(Runnable)}, as that's what frees up a job at its limit.
+ *
+ *
+ * @since 4.1
+ */
+public class FairJobQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private final Object lock = new Object();
+    private final int maxSize;
+    // Jobs with tasks queued or executing
+    private final Map<Object,Job> jobs = new HashMap<Object,Job>();
+    // Jobs with tasks queued, in the order in which they take turns
+    private final LinkedList<Job> priorityJobs = new LinkedList<Job>();
+    private final LinkedList<Job> otherJobs = new LinkedList<Job>();
+    private int size;
+
+    private static class Job {
+        private final Object jobId;
+        private final int weight;
+        private final int maxInFlight;
+        private final boolean isPriority;
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+        private int inFlight;
+        // Number of tasks the job may still take before its turn passes to the next job
+        private int credits;
+
+        private Job(Object jobId) {
+            this.jobId = jobId;
+            if (jobId instanceof JobGroup) {
+                JobGroup group = (JobGroup)jobId;
+                this.weight = Math.max(1, group.getWeight());
+                this.maxInFlight = group.getMaxInFlight();
+                this.isPriority = group.isPriority();
+            } else {
+                this.weight = 1;
+                this.maxInFlight = 0;
+                this.isPriority = false;
+            }
+            this.credits = weight;
+        }
+
+        private boolean isAtLimit() {
+            return maxInFlight > 0 && inFlight >= maxInFlight;
+        }
+    }
+
+    public FairJobQueue(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    private static Object getJobId(Runnable task) {
+        return task instanceof JobFutureTask ? ((JobFutureTask<?>)task).getJobId() : task;
+    }
+
+    private Job getJob(Object jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null) {
+            job = new Job(jobId);
+            jobs.put(jobId, job);
+        }
+        return job;
+    }
+
+    private void removeIfDone(Job job) {
+        if (job.tasks.isEmpty() && job.inFlight == 0) {
+            jobs.remove(job.jobId);
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        synchronized (lock) {
+            if (size == maxSize) {
+                return false;
+            }
+            Job job = getJob(getJobId(task));
+            if (job.tasks.isEmpty()) {
+                (job.isPriority ? priorityJobs : otherJobs).add(job);
+            }
+            job.tasks.add(task);
+            size++;
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        long endAt = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (lock) {
+            boolean taken;
+            long waitTime = endAt - System.currentTimeMillis();
+            while (!(taken = offer(task)) && waitTime > 0) {
+                lock.wait(waitTime);
+                waitTime = endAt - System.currentTimeMillis();
+            }
+            return taken;
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        synchronized (lock) {
+            while (!offer(task)) {
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * Take the next task of the first job in the lane that isn't at its limit, passing
+     * the turn to the next job once the job has used up its weight.
+     */
+    private Runnable poll(LinkedList<Job> lane) {
+        ListIterator<Job> iterator = lane.listIterator();
+        while (iterator.hasNext()) {
+            Job job = iterator.next();
+            if (job.isAtLimit()) {
+                continue;
+            }
+            Runnable task = job.tasks.removeFirst();
+            size--;
+            job.inFlight++;
+            if (job.tasks.isEmpty()) {
+                iterator.remove();
+                job.credits = job.weight;
+            } else if (--job.credits == 0) {
+                iterator.remove();
+                job.credits = job.weight;
+                lane.addLast(job);
+            }
+            lock.notifyAll();
+            return task;
+        }
+        return null;
+    }
+
+    @Override
+    public Runnable poll() {
+        synchronized (lock) {
+            Runnable task = poll(priorityJobs);
+            return task == null ? poll(otherJobs) : task;
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long endAt = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (lock) {
+            Runnable task;
+            long waitTime = endAt - System.currentTimeMillis();
+            // Tasks may be queued yet not available, as their jobs are at their limit
+            while ((task = poll()) == null && waitTime > 0) {
+                lock.wait(waitTime);
+                waitTime = endAt - System.currentTimeMillis();
+            }
+            return task;
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        synchronized (lock) {
+            Runnable task;
+            while ((task = poll()) == null) {
+                lock.wait();
+            }
+            return task;
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        synchronized (lock) {
+            for (Job job : priorityJobs) {
+                if (!job.isAtLimit()) {
+                    return job.tasks.getFirst();
+                }
+            }
+            for (Job job : otherJobs) {
+                if (!job.isAtLimit()) {
+                    return job.tasks.getFirst();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Called by the executor before a task taken from the queue starts executing.
+     */
+    public void beforeExecute(Runnable task) {
+        if (!(task instanceof JobFutureTask)) {
+            return;
+        }
+        JobFutureTask<?> jobTask = (JobFutureTask<?>)task;
+        if (jobTask.getJobId() instanceof JobGroup) {
+            ((JobGroup)jobTask.getJobId()).addQueueWaitTime(System.currentTimeMillis() - jobTask.getCreateTime());
+        }
+    }
+
+    /**
+     * Called by the executor once a task taken from the queue is done executing.
+     */
+    public void afterExecute(Runnable task) {
+        synchronized (lock) {
+            Job job = jobs.get(getJobId(task));
+            if (job != null) {
+                job.inFlight--;
+                removeIfDone(job);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Runnable)) {
+            return false;
+        }
+        synchronized (lock) {
+            Job job = jobs.get(getJobId((Runnable)o));
+            if (job == null || !job.tasks.remove(o)) {
+                return false;
+            }
+            size--;
+            if (job.tasks.isEmpty()) {
+                (job.isPriority ? priorityJobs : otherJobs).remove(job);
+                removeIfDone(job);
+            }
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    @Override
+    public Iterator<Runnable> iterator() {
+        synchronized (lock) {
+            List<Runnable> tasks = new ArrayList<Runnable>(size);
+            for (Job job : priorityJobs) {
+                tasks.addAll(job.tasks);
+            }
+            for (Job job : otherJobs) {
+                tasks.addAll(job.tasks);
+            }
+            return tasks.iterator();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes queued tasks regardless of the limits of their jobs, as used by the executor
+     * when it's shut down.
+     */
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        synchronized (lock) {
+            int count = 0;
+            Iterator<Runnable> iterator = iterator();
+            while (count < maxElements && iterator.hasNext()) {
+                Runnable task = iterator.next();
+                remove(task);
+                c.add(task);
+                count++;
+            }
+            return count;
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        synchronized (lock) {
+            return maxSize - size;
+        }
+    }
+
+    @Override
+    public int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+}
@@ -55,12 +55,23 @@ public class JobManager<T> extends AbstractRoundRobinQueue<T> {
     }
 
     public static ThreadPoolExecutor createThreadPoolExec(int keepAliveMs, int size, int queueSize) {
+        return createThreadPoolExec(keepAliveMs, size, queueSize, false);
+    }
+
+    /**
+     * @param isFairScheduling if true, tasks are queued in a {@link FairJobQueue}, which honors the
+     * weight, limit and priority of a {@link JobGroup}, instead of being handed out in plain round robin order.
+     */
+    public static ThreadPoolExecutor createThreadPoolExec(int keepAliveMs, int size, int queueSize, boolean isFairScheduling) {
         BlockingQueue<Runnable> queue;
         if (queueSize == 0) {
             queue = new SynchronousQueue<Runnable>(); // Specialized for 0 length.
+        } else if (isFairScheduling) {
+            queue = new FairJobQueue(queueSize);
         } else {
             queue = new JobManager<Runnable>(queueSize);
         }
+        final FairJobQueue fairQueue = queue instanceof FairJobQueue ? (FairJobQueue)queue : null;
         ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat(
 				"phoenix-" + PHOENIX_POOL_INDEX.getAndIncrement()
 						+ "-thread-%s").setDaemon(true).build();
@@ -76,6 +87,37 @@ public class JobManager<T> extends AbstractRoundRobinQueue<T> {
             protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
                 return new JobFutureTask<T>(runnable, value);
             }
+
+            @Override
+            public void execute(Runnable command) {
+                if (fairQueue == null) {
+                    super.execute(command);
+                    return;
+                }
+                // Always go through the queue, even while threads are being added to the pool,
+                // as a task handed directly to a new thread would bypass the limit of its job.
+                if (isShutdown() || !fairQueue.offer(command)) {
+                    getRejectedExecutionHandler().rejectedExecution(command, this);
+                    return;
+                }
+                prestartCoreThread();
+            }
+
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                super.beforeExecute(t, r);
+                if (fairQueue != null) {
+                    fairQueue.beforeExecute(r);
+                }
+            }
+
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                super.afterExecute(r, t);
+                if (fairQueue != null) {
+                    fairQueue.afterExecute(r);
+                }
+            }
             
         };
         
@@ -88,6 +130,7 @@ public class JobManager<T> extends AbstractRoundRobinQueue<T> {
      */
     static class JobFutureTask<T> extends FutureTask<T> {
         private final Object jobId;
+        private final long createTime = System.currentTimeMillis();
         
         public JobFutureTask(Runnable r, T t) {
             super(r, t);
@@ -111,6 +154,13 @@ public class JobManager<T> extends AbstractRoundRobinQueue<T> {
         public Object getJobId() {
             return jobId;
         }
+
+        /**
+         * Get the time at which the task was submitted to the executor
+         */
+        public long getCreateTime() {
+            return createTime;
+        }
     }
 
 
@@ -120,5 +170,28 @@ public class JobManager<T> extends AbstractRoundRobinQueue<T> {
     public static interface JobCallable<T> extends Callable<T> {
         public Object getJobId();
     }
+
+    /**
+     * Job id of the tasks of a query, that determines how they're scheduled by a {@link FairJobQueue}.
+     * The weight, limit and priority must not change while the query has tasks queued.
+     */
+    public static interface JobGroup {
+        /**
+         * Get the number of tasks taken in a row when it's this job's turn
+         */
+        public int getWeight();
+        /**
+         * Get the maximum number of tasks executing at once, or 0 for no limit
+         */
+        public int getMaxInFlight();
+        /**
+         * @return true if the tasks should run ahead of those of jobs that aren't priority jobs
+         */
+        public boolean isPriority();
+        /**
+         * Called as each task starts executing with the time it spent waiting in the queue
+         */
+        public void addQueueWaitTime(long waitTimeMs);
+    }
 }
 
@@ -21,6 +21,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -30,6 +31,7 @@ import org.apache.phoenix.cache.ServerCacheClient.ServerCache;
 import org.apache.phoenix.compile.ScanRanges;
 import org.apache.phoenix.expression.Expression;
 import org.apache.phoenix.expression.ExpressionType;
+import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
 import org.apache.phoenix.iterate.ResultIterator;
 import org.apache.phoenix.jdbc.PhoenixConnection;
 import org.apache.phoenix.query.QueryServices;
@@ -41,6 +43,8 @@ import org.apache.phoenix.util.TrustedByteArrayOutputStream;
 import org.apache.phoenix.util.TupleUtil;
 import org.xerial.snappy.Snappy;
 
+import com.google.common.collect.Sets;
+
 /**
  * 
  * Client for adding cache of one side of a join to region servers
@@ -50,6 +54,33 @@ import org.xerial.snappy.Snappy;
  */
 public class HashCacheClient  {
     private final ServerCacheClient serverCache;
+    
+    /**
+     * Distinct join keys of the rows of a hash cache, collected while the cache is
+     * serialized as long as there aren't more than a maximum number of them.
+     */
+    public static class JoinKeys {
+        private final int maxSize;
+        private Set<ImmutableBytesPtr> keys = Sets.newHashSet();
+        
+        public JoinKeys(int maxSize) {
+            this.maxSize = maxSize;
+        }
+        
+        private void add(ImmutableBytesPtr key) {
+            if (keys != null && keys.add(key) && keys.size() > maxSize) {
+                keys = null;
+            }
+        }
+        
+        /**
+         * @return the distinct join keys, or null if there were too many of them
+         */
+        public Set<ImmutableBytesPtr> getKeys() {
+            return keys;
+        }
+    }
+    
     /**
      * Construct client used to create a serialized cached snapshot of a table and send it to each region server
      * for caching during hash join processing.
@@ -70,15 +101,24 @@ public class HashCacheClient  {
      * size
      */
     public ServerCache addHashCache(ScanRanges keyRanges, ResultIterator iterator, long estimatedSize, List<Expression> onExpressions, TableRef cacheUsingTableRef) throws SQLException {
+        return addHashCache(keyRanges, iterator, estimatedSize, onExpressions, cacheUsingTableRef, null);
+    }
+    
+    /**
+     * Same as {@link #addHashCache(ScanRanges, ResultIterator, long, List, TableRef)}, also
+     * collecting the distinct join keys of the rows being cached.
+     * @param joinKeys where to collect the join keys, or null to not collect them
+     */
+    public ServerCache addHashCache(ScanRanges keyRanges, ResultIterator iterator, long estimatedSize, List<Expression> onExpressions, TableRef cacheUsingTableRef, JoinKeys joinKeys) throws SQLException {
         /**
          * Serialize and compress hashCacheTable
          */
         ImmutableBytesWritable ptr = new ImmutableBytesWritable();
-        serialize(ptr, iterator, estimatedSize, onExpressions);
+        serialize(ptr, iterator, estimatedSize, onExpressions, joinKeys);
         return serverCache.addServerCache(keyRanges, ptr, new HashCacheFactory(), cacheUsingTableRef);
     }
     
-    private void serialize(ImmutableBytesWritable ptr, ResultIterator iterator, long estimatedSize, List<Expression> onExpressions) throws SQLException {
+    private void serialize(ImmutableBytesWritable ptr, ResultIterator iterator, long estimatedSize, List<Expression> onExpressions, JoinKeys joinKeys) throws SQLException {
         long maxSize = serverCache.getConnection().getQueryServices().getProps().getLong(QueryServices.MAX_SERVER_CACHE_SIZE_ATTRIB, QueryServicesOptions.DEFAULT_MAX_SERVER_CACHE_SIZE);
         estimatedSize = Math.min(estimatedSize, maxSize);
         if (estimatedSize > Integer.MAX_VALUE) {
@@ -99,6 +139,10 @@ public class HashCacheClient  {
             out.writeInt(nRows); // In the end will be replaced with total number of rows            
             for (Tuple result = iterator.next(); result != null; result = iterator.next()) {
                 TupleUtil.write(result, out);
+                if (joinKeys != null) {
+                    ImmutableBytesPtr key = TupleUtil.getConcatenatedValue(result, onExpressions);
+                    joinKeys.add(new ImmutableBytesPtr(key.copyBytesIfNecessary()));
+                }
                 if (baOut.size() > maxSize) {
                     throw new MaxServerCacheSizeExceededException("Size of hash cache (" + baOut.size() + " bytes) exceeds the maximum allowed size (" + maxSize + " bytes)");
                 }
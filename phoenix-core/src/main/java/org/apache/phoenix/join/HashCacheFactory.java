@@ -64,17 +64,37 @@ public class HashCacheFactory implements ServerCacheFactory {
         }
     }
 
+    /**
+     * Hash cache that keeps the rows in the uncompressed bytes sent by the client rather
+     * than deserializing each of them. Each distinct join key is stored once in a key
+     * arena and is found through an open addressing table of entry indexes. The rows of
+     * an entry are grouped together in arrays of row offsets and lengths, so that a lookup
+     * returns a view over them from which a tuple is only created for the rows read.
+     */
     @Immutable
-    private class HashCacheImpl implements HashCache {
-        private final Map<ImmutableBytesPtr,List<Tuple>> hashCache;
+    private static class HashCacheImpl implements HashCache {
+        private static final int EMPTY_SLOT = -1;
+        
         private final MemoryChunk memoryChunk;
+        private final byte[] rowBytes;
+        // Offset and length of each row in rowBytes, grouped by entry
+        private final int[] rowOffsets;
+        private final int[] rowLengths;
+        // Concatenated key bytes of each distinct join key
+        private final byte[] keyBytes;
+        private final int[] keyOffsets;
+        private final int[] keyLengths;
+        // Index in rowOffsets of the first row of each entry. Has one more element than
+        // there are entries, so that the rows of entry i end where those of i+1 start.
+        private final int[] entryRowStarts;
+        private final int[] slots;
         
         private HashCacheImpl(byte[] hashCacheBytes, MemoryChunk memoryChunk) {
             try {
                 this.memoryChunk = memoryChunk;
-                byte[] hashCacheByteArray = hashCacheBytes;
+                this.rowBytes = hashCacheBytes;
                 int offset = 0;
-                ByteArrayInputStream input = new ByteArrayInputStream(hashCacheByteArray, offset, hashCacheBytes.length);
+                ByteArrayInputStream input = new ByteArrayInputStream(hashCacheBytes, offset, hashCacheBytes.length);
                 DataInputStream dataInput = new DataInputStream(input);
                 int nExprs = dataInput.readInt();
                 List<Expression> onExpressions = new ArrayList<Expression>(nExprs);
@@ -87,30 +107,96 @@ public class HashCacheFactory implements ServerCacheFactory {
                 int exprSize = dataInput.readInt();
                 offset += exprSize;
                 int nRows = dataInput.readInt();
-                int estimatedSize = SizedUtil.sizeOfMap(nRows, SizedUtil.IMMUTABLE_BYTES_WRITABLE_SIZE, SizedUtil.RESULT_SIZE) + hashCacheBytes.length;
-                this.memoryChunk.resize(estimatedSize);
-                HashMap<ImmutableBytesPtr,List<Tuple>> hashCacheMap = new HashMap<ImmutableBytesPtr,List<Tuple>>(nRows * 5 / 4);
+                int nSlots = getSlotCount(nRows);
+                // Every row having a distinct key is the worst case
+                this.memoryChunk.resize(hashCacheBytes.length + sizeOfIndex(nRows, nRows, nSlots));
                 offset += Bytes.SIZEOF_INT;
-                // Build Map with evaluated hash key as key and row as value
+                
+                int[] rowEntries = new int[nRows];
+                int[] unorderedRowOffsets = new int[nRows];
+                int[] unorderedRowLengths = new int[nRows];
+                int[] entryRowCounts = new int[nRows];
+                int[] keyOffsets = new int[nRows];
+                int[] keyLengths = new int[nRows];
+                TrustedByteArrayOutputStream keyOutput = new TrustedByteArrayOutputStream(nRows * 8);
+                int[] slots = new int[nSlots];
+                Arrays.fill(slots, EMPTY_SLOT);
+                int nEntries = 0;
+                ImmutableBytesWritable value = new ImmutableBytesWritable();
                 for (int i = 0; i < nRows; i++) {
-                    int resultSize = (int)Bytes.readVLong(hashCacheByteArray, offset);
-                    offset += WritableUtils.decodeVIntSize(hashCacheByteArray[offset]);
-                    ImmutableBytesWritable value = new ImmutableBytesWritable(hashCacheByteArray,offset,resultSize);
+                    int resultSize = (int)Bytes.readVLong(hashCacheBytes, offset);
+                    offset += WritableUtils.decodeVIntSize(hashCacheBytes[offset]);
+                    value.set(hashCacheBytes, offset, resultSize);
+                    // Only used to evaluate the join key, as the row is kept in hashCacheBytes
                     Tuple result = new ResultTuple(ResultUtil.toResult(value));
                     ImmutableBytesPtr key = TupleUtil.getConcatenatedValue(result, onExpressions);
-                    List<Tuple> tuples = hashCacheMap.get(key);
-                    if (tuples == null) {
-                        tuples = new LinkedList<Tuple>();
-                        hashCacheMap.put(key, tuples);
+                    int slot = findSlot(slots, key, keyOutput.getBuffer(), keyOffsets, keyLengths);
+                    int entry = slots[slot];
+                    if (entry == EMPTY_SLOT) {
+                        entry = nEntries++;
+                        keyOffsets[entry] = keyOutput.size();
+                        keyLengths[entry] = key.getLength();
+                        keyOutput.write(key.get(), key.getOffset(), key.getLength());
+                        slots[slot] = entry;
                     }
-                    tuples.add(result);
+                    rowEntries[i] = entry;
+                    entryRowCounts[entry]++;
+                    unorderedRowOffsets[i] = offset;
+                    unorderedRowLengths[i] = resultSize;
                     offset += resultSize;
                 }
-                this.hashCache = Collections.unmodifiableMap(hashCacheMap);
+                
+                // Group the rows of each entry together, keeping their original order
+                int[] entryRowStarts = new int[nEntries + 1];
+                for (int entry = 0; entry < nEntries; entry++) {
+                    entryRowStarts[entry + 1] = entryRowStarts[entry] + entryRowCounts[entry];
+                }
+                int[] entryRowNext = entryRowCounts; // Reuse as position of the next row of each entry
+                System.arraycopy(entryRowStarts, 0, entryRowNext, 0, nEntries);
+                this.rowOffsets = new int[nRows];
+                this.rowLengths = new int[nRows];
+                for (int i = 0; i < nRows; i++) {
+                    int position = entryRowNext[rowEntries[i]]++;
+                    rowOffsets[position] = unorderedRowOffsets[i];
+                    rowLengths[position] = unorderedRowLengths[i];
+                }
+                this.entryRowStarts = entryRowStarts;
+                this.keyBytes = keyOutput.size() == keyOutput.getBuffer().length ? keyOutput.getBuffer() : keyOutput.toByteArray();
+                this.keyOffsets = Arrays.copyOf(keyOffsets, nEntries);
+                this.keyLengths = Arrays.copyOf(keyLengths, nEntries);
+                this.slots = slots;
+                this.memoryChunk.resize(hashCacheBytes.length + keyBytes.length + sizeOfIndex(nRows, nEntries, nSlots));
             } catch (IOException e) { // Not possible with ByteArrayInputStream
                 throw new RuntimeException(e);
             }
         }
+        
+        private static int getSlotCount(int nRows) {
+            // Keep the table at most half full, with a power of two slots
+            return Integer.highestOneBit(Math.max(1, nRows) * 2 - 1) << 1;
+        }
+        
+        private static long sizeOfIndex(int nRows, int nEntries, int nSlots) {
+            return (long)SizedUtil.INT_SIZE * (2 * nRows + 3 * nEntries + nSlots) + 6 * SizedUtil.ARRAY_SIZE;
+        }
+        
+        /**
+         * @return the slot holding the entry for the key, or the empty slot where it belongs
+         */
+        private static int findSlot(int[] slots, ImmutableBytesPtr key, byte[] keyBytes, int[] keyOffsets, int[] keyLengths) {
+            int hash = key.hashCode();
+            hash ^= (hash >>> 16);
+            int mask = slots.length - 1;
+            int slot = hash & mask;
+            while (true) {
+                int entry = slots[slot];
+                if (entry == EMPTY_SLOT || Bytes.equals(keyBytes, keyOffsets[entry], keyLengths[entry], 
+                        key.get(), key.getOffset(), key.getLength())) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
 
         @Override
         public void close() {
@@ -119,7 +205,26 @@ public class HashCacheFactory implements ServerCacheFactory {
         
         @Override
         public List<Tuple> get(ImmutableBytesPtr hashKey) {
-            return hashCache.get(hashKey);
+            final int entry = slots[findSlot(slots, hashKey, keyBytes, keyOffsets, keyLengths)];
+            if (entry == EMPTY_SLOT) {
+                return null;
+            }
+            return new AbstractList<Tuple>() {
+                @Override
+                public Tuple get(int index) {
+                    int position = entryRowStarts[entry] + index;
+                    if (index < 0 || position >= entryRowStarts[entry + 1]) {
+                        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+                    }
+                    return new ResultTuple(ResultUtil.toResult(
+                            new ImmutableBytesWritable(rowBytes, rowOffsets[position], rowLengths[position])));
+                }
+
+                @Override
+                public int size() {
+                    return entryRowStarts[entry + 1] - entryRowStarts[entry];
+                }
+            };
         }
     }
 }
@@ -0,0 +1,346 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.join;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.cache.ServerCacheClient.ServerCache;
+import org.apache.phoenix.compile.QueryPlan;
+import org.apache.phoenix.compile.ScanRanges;
+import org.apache.phoenix.execute.BasicQueryPlan;
+import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.join.HashCacheClient.JoinKeys;
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.query.QueryServicesOptions;
+import org.apache.phoenix.schema.PTable;
+import org.apache.phoenix.schema.TableRef;
+import org.apache.phoenix.util.ReadOnlyProps;
+import org.apache.phoenix.util.SQLCloseable;
+import org.apache.phoenix.util.SQLCloseables;
+import org.apache.phoenix.util.ServerUtil;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ *
+ * Client side registry of the hash caches kept on the region servers after the join query
+ * that added them completes, so that later executions of a join with the same build side
+ * may use them instead of running the build side again and sending its results to the
+ * region servers. A cache is looked up by a key formed from the plan and the scan of the
+ * build side, which includes the keys and filter it scans with and the timestamp of the
+ * table it reads. A cache is removed from the region
+ * servers once it has expired or the table it was built from has changed, and no query
+ * is using it any longer.
+ *
+ *
+ * @since 4.1
+ */
+public class HashCacheRegistry {
+    private static final Log LOG = LogFactory.getLog(HashCacheRegistry.class);
+
+    private final long timeToLiveMs;
+    private final Map<String, Entry> entries = Maps.newHashMap();
+
+    private static class Entry {
+        private final ServerCache cache;
+        private final JoinKeys joinKeys;
+        private final Set<String> tableNames;
+        private final long expireTime;
+        private int refCount;
+        private boolean retired;
+
+        private Entry(ServerCache cache, JoinKeys joinKeys, Collection<String> tableNames, long expireTime) {
+            this.cache = cache;
+            this.joinKeys = joinKeys;
+            this.tableNames = ImmutableSet.copyOf(tableNames);
+            this.expireTime = expireTime;
+        }
+    }
+
+    /**
+     * Use of a hash cache by a single query. Closing it releases the cache, which
+     * is only removed from the region servers once it's no longer registered and
+     * no longer used by any query.
+     */
+    public class Lease implements SQLCloseable {
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public ServerCache getServerCache() {
+            return entry.cache;
+        }
+
+        /**
+         * @return the join keys collected when the cache was added, or null if they
+         * weren't collected
+         */
+        public JoinKeys getJoinKeys() {
+            return entry.joinKeys;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            release(entry);
+        }
+    }
+
+    public HashCacheRegistry(ReadOnlyProps props) {
+        this(getTimeToLiveMs(props));
+    }
+
+    public HashCacheRegistry(long timeToLiveMs) {
+        this.timeToLiveMs = timeToLiveMs;
+    }
+
+    private static long getTimeToLiveMs(ReadOnlyProps props) {
+        int timeToLiveMs = props.getInt(QueryServices.HASH_JOIN_CACHE_REUSE_TIME_TO_LIVE_MS_ATTRIB, QueryServicesOptions.DEFAULT_HASH_JOIN_CACHE_REUSE_TIME_TO_LIVE_MS);
+        int serverTimeToLiveMs = props.getInt(QueryServices.MAX_SERVER_CACHE_TIME_TO_LIVE_MS_ATTRIB, QueryServicesOptions.DEFAULT_MAX_SERVER_CACHE_TIME_TO_LIVE_MS);
+        // Region servers expire a cache that hasn't been used for their time to live, so
+        // stop handing out a cache well before that to leave time for the queries using it
+        return Math.min(timeToLiveMs, serverTimeToLiveMs / 2);
+    }
+
+    public boolean isEnabled() {
+        return timeToLiveMs > 0;
+    }
+
+    /**
+     * Get the key under which the hash cache built from the given plan is registered.
+     * @return the key, or null if the hash cache may not be reused
+     */
+    public static String getKey(QueryPlan hashPlan, List<Expression> onExpressions, TableRef cacheUsingTableRef) throws SQLException {
+        // Only reuse the results of a scan over a single table as of the latest time
+        if (!(hashPlan instanceof BasicQueryPlan)
+                || hashPlan.getContext().getSequenceManager().getSequenceCount() > 0
+                || hashPlan.getContext().getConnection().getSCN() != null) {
+            return null;
+        }
+        PTable table = hashPlan.getTableRef().getTable();
+        StringBuilder buf = new StringBuilder();
+        buf.append(cacheUsingTableRef.getTable().getPhysicalName().getString()).append('\n');
+        buf.append(table.getName().getString()).append('@').append(table.getTimeStamp()).append('\n');
+        buf.append(onExpressions).append('\n');
+        for (String step : hashPlan.getExplainPlan().getPlanSteps()) {
+            buf.append(step).append('\n');
+        }
+        // The explain plan doesn't show the projected columns, nor the values of the keys
+        // and filter that the scan looks for
+        Scan scan = hashPlan.getContext().getScan();
+        buf.append(Bytes.toStringBinary(scan.getStartRow())).append('-').append(Bytes.toStringBinary(scan.getStopRow())).append('\n');
+        buf.append(hashPlan.getContext().getScanRanges()).append('\n');
+        Filter filter = scan.getFilter();
+        if (filter != null) {
+            try {
+                buf.append(filter.getClass().getName()).append('=').append(Bytes.toStringBinary(filter.toByteArray())).append('\n');
+            } catch (IOException e) {
+                throw ServerUtil.parseServerException(e);
+            }
+        }
+        for (Map.Entry<byte[], NavigableSet<byte[]>> entry : scan.getFamilyMap().entrySet()) {
+            buf.append(Bytes.toStringBinary(entry.getKey()));
+            if (entry.getValue() != null) {
+                for (byte[] qualifier : entry.getValue()) {
+                    buf.append(':').append(Bytes.toStringBinary(qualifier));
+                }
+            }
+            buf.append('\n');
+        }
+        for (Map.Entry<String, byte[]> entry : new TreeMap<String, byte[]>(scan.getAttributesMap()).entrySet()) {
+            buf.append(entry.getKey()).append('=').append(Bytes.toStringBinary(entry.getValue())).append('\n');
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Get the names of the tables whose changes invalidate the hash cache built from the given plan.
+     */
+    public static Collection<String> getTableNames(QueryPlan hashPlan) {
+        PTable table = hashPlan.getTableRef().getTable();
+        return ImmutableSet.of(table.getName().getString(), table.getPhysicalName().getString());
+    }
+
+    /**
+     * Acquire the hash cache registered under the given key, if it has not expired and was
+     * sent to all the region servers that a scan over the key ranges will go to.
+     * @return the lease of the cache, or null if there's no such cache
+     */
+    public Lease acquire(String key, ScanRanges keyRanges, TableRef cacheUsingTableRef) throws SQLException {
+        Lease lease;
+        List<Entry> closeables = new ArrayList<Entry>();
+        synchronized (this) {
+            removeExpired(closeables);
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                lease = null;
+            } else {
+                entry.refCount++;
+                lease = new Lease(entry);
+            }
+        }
+        close(closeables);
+        if (lease != null && !lease.getServerCache().covers(keyRanges, cacheUsingTableRef)) {
+            // Regions have moved since the cache was sent, so let a new one take its place
+            synchronized (this) {
+                if (entries.get(key) == lease.entry) {
+                    entries.remove(key);
+                }
+                retire(lease.entry);
+            }
+            lease.close();
+            lease = null;
+        }
+        return lease;
+    }
+
+    /**
+     * Register a hash cache that was just added to the region servers.
+     * @return the lease of the cache for the query that added it. If a cache is already
+     * registered under the key, the new cache is not registered and is removed from the
+     * region servers when the lease is closed.
+     */
+    public Lease register(String key, Collection<String> tableNames, ServerCache cache, JoinKeys joinKeys) {
+        Entry entry = new Entry(cache, joinKeys, tableNames, System.currentTimeMillis() + timeToLiveMs);
+        entry.refCount = 1;
+        List<Entry> closeables = new ArrayList<Entry>();
+        synchronized (this) {
+            removeExpired(closeables);
+            if (entries.containsKey(key)) {
+                entry.retired = true;
+            } else {
+                entries.put(key, entry);
+            }
+        }
+        close(closeables);
+        return new Lease(entry);
+    }
+
+    /**
+     * Stop reusing the hash caches built from the given table.
+     */
+    public void invalidate(String tableName) {
+        List<Entry> closeables = new ArrayList<Entry>();
+        synchronized (this) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.tableNames.contains(tableName)) {
+                    iterator.remove();
+                    if (retire(entry)) {
+                        closeables.add(entry);
+                    }
+                }
+            }
+        }
+        close(closeables);
+    }
+
+    /**
+     * Stop reusing all hash caches.
+     */
+    public void clear() {
+        List<Entry> closeables = new ArrayList<Entry>();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                if (retire(entry)) {
+                    closeables.add(entry);
+                }
+            }
+            entries.clear();
+        }
+        close(closeables);
+    }
+
+    /**
+     * @return the number of hash caches currently registered
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void removeExpired(List<Entry> closeables) {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.expireTime <= now) {
+                iterator.remove();
+                if (retire(entry)) {
+                    closeables.add(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark an entry removed from the registry as no longer registered.
+     * @return true if the cache is no longer used by any query and should be removed
+     * from the region servers
+     */
+    private static boolean retire(Entry entry) {
+        entry.retired = true;
+        return entry.refCount == 0;
+    }
+
+    private void release(Entry entry) throws SQLException {
+        boolean close;
+        synchronized (this) {
+            close = --entry.refCount == 0 && entry.retired;
+        }
+        if (close) {
+            entry.cache.close();
+        }
+    }
+
+    private static void close(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<SQLCloseable> caches = new ArrayList<SQLCloseable>(entries.size());
+        for (Entry entry : entries) {
+            caches.add(entry.cache);
+        }
+        try {
+            SQLCloseables.closeAll(caches);
+        } catch (SQLException e) {
+            LOG.warn("Unable to remove hash caches from the region servers", e);
+        }
+    }
+}
@@ -39,6 +39,7 @@ import org.apache.phoenix.schema.PColumn;
 import org.apache.phoenix.schema.ValueBitSet;
 import org.apache.phoenix.schema.tuple.BaseTuple;
 import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.ByteUtil;
 import org.apache.phoenix.util.KeyValueUtil;
 import org.apache.phoenix.util.SchemaUtil;
 
@@ -238,4 +239,47 @@ public class ScanProjector {
     	ImmutableBytesWritable keyPtr = dest.getKeyPtr();
         return new ProjectedValueTuple(keyPtr.get(), keyPtr.getOffset(), keyPtr.getLength(), dest.getTimestamp(), merged, destBitSetLen);
     }
+    
+    /**
+     * Merge the projected values of two rows returned to the client, each encoded with the
+     * bit set of its own schema, into a row encoded with the bit set of the joined schema.
+     * @param dest the row of the left side of the join, whose key is retained
+     * @param src the row of the right side of the join, or null if there is none
+     * @param joinedBitSet the bit set of the joined schema
+     * @param offset the position of the first field of the right side in the joined schema
+     */
+    public static ProjectedValueTuple mergeProjectedValue(Tuple dest, KeyValueSchema destSchema, ValueBitSet destBitSet,
+            Tuple src, KeyValueSchema srcSchema, ValueBitSet srcBitSet, ValueBitSet joinedBitSet, int offset) throws IOException {
+        joinedBitSet.clear();
+        ImmutableBytesWritable destValue = new ImmutableBytesWritable();
+        decodeProjectedValue(dest, destValue);
+        destBitSet.clear();
+        destBitSet.or(destValue);
+        int destBitSetLen = destBitSet.getEstimatedLength();
+        for (int i = 0; i < destSchema.getFieldCount(); i++) {
+            if (destBitSet.get(i)) {
+                joinedBitSet.set(i);
+            }
+        }
+        ImmutableBytesWritable srcValue = new ImmutableBytesWritable(ByteUtil.EMPTY_BYTE_ARRAY);
+        int srcBitSetLen = 0;
+        if (src != null) {
+            decodeProjectedValue(src, srcValue);
+            srcBitSet.clear();
+            srcBitSet.or(srcValue);
+            srcBitSetLen = srcBitSet.getEstimatedLength();
+            for (int i = 0; i < srcSchema.getFieldCount(); i++) {
+                if (srcBitSet.get(i)) {
+                    joinedBitSet.set(offset + i);
+                }
+            }
+        }
+        int joinedBitSetLen = joinedBitSet.getEstimatedLength();
+        byte[] merged = new byte[destValue.getLength() - destBitSetLen + srcValue.getLength() - srcBitSetLen + joinedBitSetLen];
+        int o = Bytes.putBytes(merged, 0, destValue.get(), destValue.getOffset(), destValue.getLength() - destBitSetLen);
+        o = Bytes.putBytes(merged, o, srcValue.get(), srcValue.getOffset(), srcValue.getLength() - srcBitSetLen);
+        joinedBitSet.toBytes(merged, o);
+        Cell base = dest.getValue(0);
+        return new ProjectedValueTuple(base.getRowArray(), base.getRowOffset(), base.getRowLength(), base.getTimestamp(), merged, joinedBitSetLen);
+    }
 }
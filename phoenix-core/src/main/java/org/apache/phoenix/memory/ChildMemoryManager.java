@@ -34,15 +34,25 @@ import org.apache.http.annotation.ThreadSafe;
 public class ChildMemoryManager extends DelegatingMemoryManager {
     private final Object sync = new Object();
     private final int maxPercOfTotal;
+    private final String tenantId;
     @GuardedBy("sync")
     private long allocatedBytes;
     
     public ChildMemoryManager(MemoryManager mm, int maxPercOfTotal) {
+        this(mm, maxPercOfTotal, null);
+    }
+    
+    /**
+     * @param tenantId the tenant the memory is allocated for, with which the chunks
+     * allocated through a {@link GlobalMemoryManager} are tagged
+     */
+    public ChildMemoryManager(MemoryManager mm, int maxPercOfTotal, String tenantId) {
         super(mm);
         if (mm instanceof ChildMemoryManager) {
             throw new IllegalStateException("ChildMemoryManager cannot delegate to another ChildMemoryManager");
         }
         this.maxPercOfTotal = maxPercOfTotal;
+        this.tenantId = tenantId;
         if (maxPercOfTotal <= 0 || maxPercOfTotal > 100) {
             throw new IllegalArgumentException("Max percentage of total memory (" + maxPercOfTotal + "%) must be greater than zero and less than or equal to 100");
         }
@@ -62,9 +72,17 @@ public class ChildMemoryManager extends DelegatingMemoryManager {
     
     @Override
     public MemoryChunk allocate(long minBytes, long nBytes) {
+        return allocate(minBytes, nBytes, ChunkType.OTHER, null);
+    }
+    
+    @Override
+    public MemoryChunk allocate(long minBytes, long nBytes, ChunkType type, String owner) {
         synchronized (sync) {
             nBytes = adjustAllocation(minBytes, nBytes);
-            final MemoryChunk chunk = super.allocate(minBytes, nBytes);
+            MemoryManager parent = getParent();
+            final MemoryChunk chunk = parent instanceof GlobalMemoryManager
+                    ? ((GlobalMemoryManager)parent).allocate(minBytes, nBytes, type, owner, tenantId)
+                    : super.allocate(minBytes, nBytes, type, owner);
             allocatedBytes += chunk.getSize();
             // Instantiate delegate chunk to track allocatedBytes correctly
             return new MemoryChunk() {
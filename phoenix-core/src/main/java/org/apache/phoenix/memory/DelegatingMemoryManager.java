@@ -47,6 +47,11 @@ public class DelegatingMemoryManager implements MemoryManager {
     }
 
 
+    @Override
+    public MemoryChunk allocate(long minBytes, long reqBytes, ChunkType type, String owner) {
+        return parent.allocate(minBytes, reqBytes, type, owner);
+    }
+
     @Override
     public MemoryChunk allocate(long nBytes) {
         return allocate(nBytes, nBytes);
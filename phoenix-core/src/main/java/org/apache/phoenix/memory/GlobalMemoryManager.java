@@ -17,7 +17,21 @@
  */
 package org.apache.phoenix.memory;
 
-import org.apache.http.annotation.GuardedBy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,19 +39,171 @@ import org.slf4j.LoggerFactory;
 /**
  * 
  * Global memory manager to track course grained memory usage across all requests.
+ * The used memory is tracked through compare-and-set on a single counter, so that
+ * allocations and frees don't contend on a lock. Requests for which not enough memory
+ * is available wait in a queue. Freeing memory wakes the waiting requests in FIFO
+ * order, but only as many of them as the available memory may satisfy.
+ * 
+ * The chunks currently allocated are kept track of along with what they're allocated
+ * for, and metrics are kept of the memory usage and of the time spent waiting for
+ * memory, to help diagnose why requests run out of memory.
  *
  * 
  * @since 0.1
  */
 public class GlobalMemoryManager implements MemoryManager {
     private static final Logger logger = LoggerFactory.getLogger(GlobalMemoryManager.class);
+    private static final int MAX_LOGGED_CHUNKS = 10;
     
-    private final Object sync = new Object();
     private final long maxMemoryBytes;
     private final int maxWaitMs;
-    @GuardedBy("sync")
-    private volatile long usedMemoryBytes;
+    private final AtomicLong usedMemoryBytes = new AtomicLong();
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+    // Not the chunks themselves, so that orphaned chunks are still finalized
+    private final Set<ChunkInfo> chunkInfos = Collections.newSetFromMap(new ConcurrentHashMap<ChunkInfo,Boolean>());
+    private final MemoryMetrics metrics = new MemoryMetrics();
     
+    private static class Waiter {
+        private final Thread thread;
+        private final long minBytes;
+        
+        private Waiter(Thread thread, long minBytes) {
+            this.thread = thread;
+            this.minBytes = minBytes;
+        }
+    }
+    
+    /**
+     * What a chunk of memory is allocated for and its current size
+     */
+    public static class ChunkInfo {
+        private final ChunkType type;
+        private final String owner;
+        private final String tenantId;
+        private final long allocationTimeMs;
+        private volatile long size;
+
+        private ChunkInfo(ChunkType type, String owner, String tenantId, long size) {
+            this.type = type;
+            this.owner = owner;
+            this.tenantId = tenantId;
+            this.allocationTimeMs = System.currentTimeMillis();
+            this.size = size;
+        }
+
+        public ChunkType getType() {
+            return type;
+        }
+
+        /**
+         * @return the region, query or cache the chunk is allocated for, or null if not known
+         */
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * @return the tenant the chunk is allocated for, or null if not allocated for a tenant
+         */
+        public String getTenantId() {
+            return tenantId;
+        }
+
+        public long getAllocationTimeMs() {
+            return allocationTimeMs;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return type + " chunk of " + size + " bytes" + (owner == null ? "" : " for " + owner)
+                    + (tenantId == null ? "" : " of tenant " + tenantId)
+                    + " held for " + (System.currentTimeMillis() - allocationTimeMs) + "ms";
+        }
+    }
+
+    /**
+     * Metrics of the memory allocated through the memory manager since it was created
+     */
+    public static class MemoryMetrics {
+        private static final long[] WAIT_TIME_BUCKET_BOUNDS_MS = {1, 10, 100, 1000, 10000};
+
+        private final AtomicLong allocationCount = new AtomicLong();
+        private final AtomicLong peakUsedBytes = new AtomicLong();
+        private final AtomicLong waitCount = new AtomicLong();
+        private final AtomicLong waitTimeMs = new AtomicLong();
+        private final AtomicLongArray waitTimeHistogram = new AtomicLongArray(WAIT_TIME_BUCKET_BOUNDS_MS.length + 1);
+        private final AtomicLong insufficientMemoryCount = new AtomicLong();
+
+        private void updateUsedBytes(long usedBytes) {
+            long peakBytes;
+            while (usedBytes > (peakBytes = peakUsedBytes.get())) {
+                if (peakUsedBytes.compareAndSet(peakBytes, usedBytes)) {
+                    break;
+                }
+            }
+        }
+
+        private void updateWaitTime(long timeMs) {
+            waitCount.incrementAndGet();
+            waitTimeMs.addAndGet(timeMs);
+            int bucket = 0;
+            while (bucket < WAIT_TIME_BUCKET_BOUNDS_MS.length && timeMs >= WAIT_TIME_BUCKET_BOUNDS_MS[bucket]) {
+                bucket++;
+            }
+            waitTimeHistogram.incrementAndGet(bucket);
+        }
+
+        public long getAllocationCount() {
+            return allocationCount.get();
+        }
+
+        /**
+         * Get the highest number of bytes that were allocated at the same time
+         */
+        public long getPeakUsedBytes() {
+            return peakUsedBytes.get();
+        }
+
+        /**
+         * Get the number of allocations that had to wait for memory to be freed
+         */
+        public long getWaitCount() {
+            return waitCount.get();
+        }
+
+        public long getWaitTimeMs() {
+            return waitTimeMs.get();
+        }
+
+        /**
+         * Get the number of allocations that waited for memory in each of the ranges of time
+         * bounded by {@link #getWaitTimeBucketBoundsMs()}. The first count is of waits shorter
+         * than the first bound, and the last count is of waits at least as long as the last bound.
+         */
+        public long[] getWaitTimeHistogram() {
+            long[] histogram = new long[waitTimeHistogram.length()];
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = waitTimeHistogram.get(i);
+            }
+            return histogram;
+        }
+
+        public static long[] getWaitTimeBucketBoundsMs() {
+            return WAIT_TIME_BUCKET_BOUNDS_MS.clone();
+        }
+
+        /**
+         * Get the number of allocations that failed with an {@link InsufficientMemoryException}
+         */
+        public long getInsufficientMemoryCount() {
+            return insufficientMemoryCount.get();
+        }
+    }
+
     public GlobalMemoryManager(long maxBytes, int maxWaitMs) {
         if (maxBytes <= 0) {
             throw new IllegalStateException("Total number of available bytes (" + maxBytes + ") must be greater than zero");
@@ -47,14 +213,11 @@ public class GlobalMemoryManager implements MemoryManager {
         }
         this.maxMemoryBytes = maxBytes;
         this.maxWaitMs = maxWaitMs;
-        this.usedMemoryBytes = 0;
     }
     
     @Override
     public long getAvailableMemory() {
-        synchronized(sync) {
-            return maxMemoryBytes - usedMemoryBytes;
-        }
+        return maxMemoryBytes - usedMemoryBytes.get();
     }
 
     @Override
@@ -62,43 +225,154 @@ public class GlobalMemoryManager implements MemoryManager {
         return maxMemoryBytes;
     }
 
+    public MemoryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the chunks currently allocated, largest first
+     */
+    public List<ChunkInfo> getChunkInfos() {
+        List<ChunkInfo> infos = new ArrayList<ChunkInfo>(chunkInfos);
+        Collections.sort(infos, new Comparator<ChunkInfo>() {
+            @Override
+            public int compare(ChunkInfo info1, ChunkInfo info2) {
+                long size1 = info1.getSize();
+                long size2 = info2.getSize();
+                return size1 > size2 ? -1 : size1 < size2 ? 1 : 0;
+            }
+        });
+        return infos;
+    }
+
+    /**
+     * Get the number of bytes currently allocated for each type of chunk
+     */
+    public Map<ChunkType,Long> getUsedMemoryByType() {
+        Map<ChunkType,Long> usedBytes = new EnumMap<ChunkType,Long>(ChunkType.class);
+        for (ChunkInfo info : chunkInfos) {
+            Long bytes = usedBytes.get(info.getType());
+            usedBytes.put(info.getType(), (bytes == null ? 0 : bytes) + info.getSize());
+        }
+        return usedBytes;
+    }
 
-    // TODO: Work on fairness: One big memory request can cause all others to block here.
     private long allocateBytes(long minBytes, long reqBytes) {
         if (minBytes < 0 || reqBytes < 0) {
             throw new IllegalStateException("Minimum requested bytes (" + minBytes + ") and requested bytes (" + reqBytes + ") must be greater than zero");
         }
         if (minBytes > maxMemoryBytes) { // No need to wait, since we'll never have this much available
+            metrics.insufficientMemoryCount.incrementAndGet();
             throw new InsufficientMemoryException("Requested memory of " + minBytes + " bytes is larger than global pool of " + maxMemoryBytes + " bytes.");
         }
-        long startTimeMs = System.currentTimeMillis(); // Get time outside of sync block to account for waiting for lock
-        long nBytes;
-        synchronized(sync) {
-            while (usedMemoryBytes + minBytes > maxMemoryBytes) { // Only wait if minBytes not available
-                try {
-                    long remainingWaitTimeMs = maxWaitMs - (System.currentTimeMillis() - startTimeMs);
-                    if (remainingWaitTimeMs <= 0) { // Ran out of time waiting for some memory to get freed up
-                        throw new InsufficientMemoryException("Requested memory of " + minBytes + " bytes could not be allocated from remaining memory of " + usedMemoryBytes + " bytes from global pool of " + maxMemoryBytes + " bytes after waiting for " + maxWaitMs + "ms.");
-                    }
-                    sync.wait(remainingWaitTimeMs);
-                } catch (InterruptedException ie) {
-                    throw new RuntimeException("Interrupted allocation of " + minBytes + " bytes", ie);
+        long nBytes = tryAllocateBytes(minBytes, reqBytes);
+        if (nBytes >= 0) {
+            return nBytes;
+        }
+        return waitAndAllocateBytes(minBytes, reqBytes);
+    }
+
+    /**
+     * Allocate at most reqBytes, but at least minBytes, without waiting.
+     * @return the number of bytes allocated, or -1 if minBytes are not available
+     */
+    private long tryAllocateBytes(long minBytes, long reqBytes) {
+        while (true) {
+            long usedBytes = usedMemoryBytes.get();
+            long nBytes = Math.min(reqBytes, maxMemoryBytes - usedBytes);
+            if (nBytes < minBytes) {
+                return -1;
+            }
+            if (usedMemoryBytes.compareAndSet(usedBytes, usedBytes + nBytes)) {
+                metrics.updateUsedBytes(usedBytes + nBytes);
+                return nBytes;
+            }
+        }
+    }
+
+    private long waitAndAllocateBytes(long minBytes, long reqBytes) {
+        long startTimeNanos = System.nanoTime();
+        long deadlineNanos = startTimeNanos + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        // Enqueue before trying again, so that memory freed in between wakes us up
+        Waiter waiter = new Waiter(Thread.currentThread(), minBytes);
+        waiters.add(waiter);
+        boolean allocated = false;
+        try {
+            while (true) {
+                long nBytes = tryAllocateBytes(minBytes, reqBytes);
+                if (nBytes >= 0) {
+                    allocated = true;
+                    return nBytes;
+                }
+                long remainingWaitTimeNanos = deadlineNanos - System.nanoTime();
+                if (remainingWaitTimeNanos <= 0) { // Ran out of time waiting for some memory to get freed up
+                    metrics.insufficientMemoryCount.incrementAndGet();
+                    logChunkInfos(minBytes);
+                    throw new InsufficientMemoryException("Requested memory of " + minBytes + " bytes could not be allocated from remaining memory of " + usedMemoryBytes.get() + " bytes from global pool of " + maxMemoryBytes + " bytes after waiting for " + maxWaitMs + "ms.");
+                }
+                LockSupport.parkNanos(this, remainingWaitTimeNanos);
+                if (Thread.interrupted()) {
+                    throw new RuntimeException("Interrupted allocation of " + minBytes + " bytes", new InterruptedException());
                 }
             }
-            // Allocate at most reqBytes, but at least minBytes
-            nBytes = Math.min(reqBytes, maxMemoryBytes - usedMemoryBytes);
-            if (nBytes < minBytes) {
-                throw new IllegalStateException("Allocated bytes (" + nBytes + ") should be at least the minimum requested bytes (" + minBytes + ")");
+        } finally {
+            metrics.updateWaitTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNanos));
+            waiters.remove(waiter);
+            if (!allocated) {
+                // We may have been woken up in place of another request
+                wakeUpWaiters();
+            }
+        }
+    }
+
+    private void freeBytes(long nBytes) {
+        usedMemoryBytes.addAndGet(-nBytes);
+        wakeUpWaiters();
+    }
+
+    private void wakeUpWaiters() {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        // Wake up, in the order they started waiting, the requests that the available memory may satisfy
+        long availableBytes = getAvailableMemory();
+        for (Waiter waiter : waiters) {
+            if (waiter.minBytes <= availableBytes) {
+                availableBytes -= waiter.minBytes;
+                LockSupport.unpark(waiter.thread);
             }
-            usedMemoryBytes += nBytes;
         }
-        return nBytes;
+    }
+
+    private void logChunkInfos(long minBytes) {
+        if (!logger.isWarnEnabled()) {
+            return;
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append("Timed out waiting for ").append(minBytes).append(" bytes with ")
+            .append(usedMemoryBytes.get()).append(" bytes in use by ").append(getUsedMemoryByType())
+            .append(". Largest chunks:");
+        List<ChunkInfo> infos = getChunkInfos();
+        for (ChunkInfo info : infos.subList(0, Math.min(MAX_LOGGED_CHUNKS, infos.size()))) {
+            buf.append("\n    ").append(info);
+        }
+        logger.warn(buf.toString());
     }
 
     @Override
     public MemoryChunk allocate(long minBytes, long reqBytes) {
+        return allocate(minBytes, reqBytes, ChunkType.OTHER, null);
+    }
+
+    @Override
+    public MemoryChunk allocate(long minBytes, long reqBytes, ChunkType type, String owner) {
+        return allocate(minBytes, reqBytes, type, owner, null);
+    }
+
+    MemoryChunk allocate(long minBytes, long reqBytes, ChunkType type, String owner, String tenantId) {
         long nBytes = allocateBytes(minBytes, reqBytes);
-        return newMemoryChunk(nBytes);
+        metrics.allocationCount.incrementAndGet();
+        return newMemoryChunk(new ChunkInfo(type, owner, tenantId, nBytes));
     }
 
     @Override
@@ -106,42 +380,40 @@ public class GlobalMemoryManager implements MemoryManager {
         return allocate(nBytes,nBytes);
     }
 
-    protected MemoryChunk newMemoryChunk(long sizeBytes) {
-        return new GlobalMemoryChunk(sizeBytes);
+    protected MemoryChunk newMemoryChunk(ChunkInfo info) {
+        return new GlobalMemoryChunk(info);
     }
     
     private class GlobalMemoryChunk implements MemoryChunk {
+        private final ChunkInfo info;
         private volatile long size;
 
-        private GlobalMemoryChunk(long size) {
-            if (size < 0) {
-                throw new IllegalStateException("Size of memory chunk must be greater than zero, but instead is " + size);
+        private GlobalMemoryChunk(ChunkInfo info) {
+            if (info.size < 0) {
+                throw new IllegalStateException("Size of memory chunk must be greater than zero, but instead is " + info.size);
             }
-            this.size = size;
+            this.info = info;
+            this.size = info.size;
+            chunkInfos.add(info);
         }
 
         @Override
         public long getSize() {
-            synchronized(sync) {
-                return size; // TODO: does this need to be synchronized?
-            }
+            return size;
         }
         
         @Override
-        public void resize(long nBytes) {
+        public synchronized void resize(long nBytes) {
             if (nBytes < 0) {
                 throw new IllegalStateException("Number of bytes to resize to must be greater than zero, but instead is " + nBytes);
             }
-            synchronized(sync) {
-                long nAdditionalBytes = (nBytes - size);
-                if (nAdditionalBytes < 0) {
-                    usedMemoryBytes += nAdditionalBytes;
-                    size = nBytes;
-                    sync.notifyAll();
-                } else {
-                    allocateBytes(nAdditionalBytes, nAdditionalBytes);
-                    size = nBytes;
-                }
+            long nAdditionalBytes = (nBytes - size);
+            if (nAdditionalBytes < 0) {
+                size = info.size = nBytes;
+                freeBytes(-nAdditionalBytes);
+            } else if (nAdditionalBytes > 0) {
+                allocateBytes(nAdditionalBytes, nAdditionalBytes);
+                size = info.size = nBytes;
             }
         }
         
@@ -164,11 +436,12 @@ public class GlobalMemoryManager implements MemoryManager {
         }
         
         @Override
-        public void close() {
-            synchronized(sync) {
-                usedMemoryBytes -= size;
-                size = 0;
-                sync.notifyAll();
+        public synchronized void close() {
+            long nBytes = size;
+            size = info.size = 0;
+            chunkInfos.remove(info);
+            if (nBytes > 0) {
+                freeBytes(nBytes);
             }
         }
     }
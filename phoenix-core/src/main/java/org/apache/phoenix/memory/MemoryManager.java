@@ -29,6 +29,21 @@ import java.io.Closeable;
  * @since 0.1
  */
 public interface MemoryManager {
+    /**
+     * What a chunk of memory is allocated for
+     */
+    public static enum ChunkType {
+        /** Rows buffered on the client before spooling them to disk */
+        SPOOL,
+        /** Rows kept by a server side TopN */
+        ORDER_BY,
+        /** Groups kept by a client or server side GROUP BY */
+        GROUP_BY,
+        /** Cache sent to the region servers, such as a hash join cache or index metadata */
+        SERVER_CACHE,
+        OTHER
+    }
+    
     /**
      * Get the total amount of memory (in bytes) that may be allocated.
      */
@@ -53,6 +68,16 @@ public interface MemoryManager {
      */
     MemoryChunk allocate(long minBytes, long reqBytes);
 
+    /**
+     * Equivalent to calling {@link #allocate(long, long)}, tagging the
+     * chunk with what it's allocated for so that memory usage may be
+     * broken down by type and owner.
+     * @param type what the chunk is allocated for
+     * @param owner identifies the region, query or cache the chunk is
+     * allocated for, or null if not known
+     */
+    MemoryChunk allocate(long minBytes, long reqBytes, ChunkType type, String owner);
+
     /**
      * Equivalent to calling {@link #allocate(long, long)} where
      * minBytes and reqBytes being the same.
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.optimize;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.phoenix.compile.QueryPlan;
+import org.apache.phoenix.jdbc.PhoenixPreparedStatement;
+import org.apache.phoenix.jdbc.PhoenixStatement;
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.query.QueryServicesOptions;
+import org.apache.phoenix.schema.PTable;
+import org.apache.phoenix.util.ReadOnlyProps;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ *
+ * Client side cache of the table chosen by the {@link QueryOptimizer} for a prepared
+ * query, so that later executions of the query only compile the plan over the chosen
+ * table instead of compiling a plan over the data table and each of its indexes. The
+ * choice is looked up by the SQL of the query, the types of its bind values and the
+ * timestamps and states of the data table and its indexes, so a choice is no longer
+ * used once any of these tables has changed.
+ *
+ *
+ * @since 4.1
+ */
+public class IndexChoiceCache {
+    private final int maxSize;
+    private final Cache<String, Choice> choices;
+
+    private static class Choice {
+        private final String tableName;
+        private final Set<String> tableNames;
+
+        private Choice(String tableName, Collection<String> tableNames) {
+            this.tableName = tableName;
+            this.tableNames = ImmutableSet.copyOf(tableNames);
+        }
+    }
+
+    public IndexChoiceCache(ReadOnlyProps props) {
+        this(props.getInt(QueryServices.INDEX_CHOICE_CACHE_SIZE_ATTRIB, QueryServicesOptions.DEFAULT_INDEX_CHOICE_CACHE_SIZE));
+    }
+
+    public IndexChoiceCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.choices = CacheBuilder.newBuilder().maximumSize(Math.max(0, maxSize)).<String, Choice>build();
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Get the key under which the table chosen for the query of the given data plan is cached.
+     * @return the key, or null if the choice may not be cached
+     */
+    public static String getKey(PhoenixStatement statement, QueryPlan dataPlan) {
+        // Only prepared statements have their SQL at hand and are likely to be executed again
+        if (!(statement instanceof PhoenixPreparedStatement) || statement.toString() == null) {
+            return null;
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append(statement.toString()).append('\n');
+        // The types of the bind values determine how the query is compiled
+        List<Object> parameters = statement.getParameters();
+        for (Object parameter : parameters) {
+            buf.append(parameter == null ? "null" : parameter.getClass().getName()).append(',');
+        }
+        buf.append('\n');
+        PTable dataTable = dataPlan.getTableRef().getTable();
+        buf.append(dataTable.getName().getString()).append('@').append(dataTable.getTimeStamp()).append('\n');
+        for (PTable index : dataTable.getIndexes()) {
+            buf.append(index.getName().getString()).append('@').append(index.getTimeStamp())
+                .append(':').append(index.getIndexState()).append('\n');
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Get the names of the tables whose changes invalidate the choice made for the given data plan.
+     */
+    public static Collection<String> getTableNames(QueryPlan dataPlan) {
+        PTable dataTable = dataPlan.getTableRef().getTable();
+        ImmutableSet.Builder<String> tableNames = ImmutableSet.builder();
+        tableNames.add(dataTable.getName().getString());
+        for (PTable index : dataTable.getIndexes()) {
+            tableNames.add(index.getName().getString());
+        }
+        return tableNames.build();
+    }
+
+    /**
+     * @return the name of the table chosen for the query cached under the given key,
+     * or null if there's no such choice
+     */
+    public String get(String key) {
+        Choice choice = choices.getIfPresent(key);
+        return choice == null ? null : choice.tableName;
+    }
+
+    /**
+     * Cache the name of the table chosen for the query under the given key.
+     */
+    public void put(String key, String tableName, Collection<String> tableNames) {
+        choices.put(key, new Choice(tableName, tableNames));
+    }
+
+    /**
+     * Stop using the choice cached under the given key, as the table it names may no longer be used.
+     */
+    public void remove(String key) {
+        choices.invalidate(key);
+    }
+
+    /**
+     * Stop using the choices made for queries over the given table or one of its indexes.
+     */
+    public void invalidate(String tableName) {
+        Iterator<Choice> iterator = choices.asMap().values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().tableNames.contains(tableName)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Stop using all cached choices.
+     */
+    public void clear() {
+        choices.invalidateAll();
+    }
+
+    /**
+     * @return the number of choices currently cached
+     */
+    public long size() {
+        return choices.size();
+    }
+}
@@ -103,7 +103,28 @@ public class QueryOptimizer {
             targetColumns = targetDatums;
         }
         
+        // Reuse the choice made by an earlier execution of the same query, if any
+        IndexChoiceCache choiceCache = statement.getConnection().getQueryServices().getIndexChoiceCache();
+        String choiceKey = choiceCache.isEnabled() ? IndexChoiceCache.getKey(statement, dataPlan) : null;
+        String chosenTableName = choiceKey == null ? null : choiceCache.get(choiceKey);
+        if (chosenTableName != null && chosenTableName.equals(dataTable.getName().getString())) {
+            return dataPlan;
+        }
+        
         SelectStatement translatedIndexSelect = IndexStatementRewriter.translate(select, dataPlan.getContext().getResolver());
+        if (chosenTableName != null) {
+            for (PTable index : indexes) {
+                if (chosenTableName.equals(index.getName().getString())) {
+                    QueryPlan plan = addPlan(statement, translatedIndexSelect, index, targetColumns, parallelIteratorFactory, dataPlan);
+                    if (plan != null) {
+                        return plan;
+                    }
+                    break;
+                }
+            }
+            // The chosen index may no longer be used, so choose again
+            choiceCache.remove(choiceKey);
+        }
         List<QueryPlan> plans = Lists.newArrayListWithExpectedSize(1 + indexes.size());
         plans.add(dataPlan);
         QueryPlan hintedPlan = getHintedQueryPlan(statement, translatedIndexSelect, indexes, targetColumns, parallelIteratorFactory, plans);
@@ -121,7 +142,11 @@ public class QueryOptimizer {
             }
         }
         
-        return chooseBestPlan(select, plans);
+        QueryPlan bestPlan = chooseBestPlan(select, plans);
+        if (choiceKey != null) {
+            choiceCache.put(choiceKey, bestPlan.getTableRef().getTable().getName().getString(), IndexChoiceCache.getTableNames(dataPlan));
+        }
+        return bestPlan;
     }
     
     private static QueryPlan getHintedQueryPlan(PhoenixStatement statement, SelectStatement select, List<PTable> indexes, List<? extends PDatum> targetColumns, ParallelIteratorFactory parallelIteratorFactory, List<QueryPlan> plans) throws SQLException {
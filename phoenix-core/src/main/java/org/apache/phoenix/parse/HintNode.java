@@ -92,6 +92,11 @@ public class HintNode {
         * between 2 selected columns this will be give better performance.
         */
       NO_SEEK_TO_COLUMN,
+      /**
+       * Join the tables by merging both sides sorted on the join key, instead of
+       * broadcasting the right side of the join as a hash table to the region servers.
+       */
+      USE_SORT_MERGE_JOIN,
     };
 
     private final Map<Hint,String> hints;
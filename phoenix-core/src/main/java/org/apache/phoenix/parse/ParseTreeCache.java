@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.parse;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.query.QueryServicesOptions;
+import org.apache.phoenix.util.ReadOnlyProps;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ *
+ * Cache of the statements parsed from SQL text, so that executing the same SQL again
+ * doesn't lex and parse it again. The least recently used statements are removed once
+ * the cache is full. Only queries, upserts and deletes are cached, as their parse trees
+ * are never modified once parsed and may be compiled by many statements at once.
+ *
+ *
+ * @since 4.1
+ */
+public class ParseTreeCache {
+    private final int maxSize;
+    private final Cache<String, BindableStatement> statements;
+    private final ParseMetrics metrics = new ParseMetrics();
+
+    /**
+     * Lookups of the cache and the time spent parsing the SQL that wasn't found in it
+     */
+    public static class ParseMetrics {
+        private final AtomicLong hitCount = new AtomicLong();
+        private final AtomicLong missCount = new AtomicLong();
+        private final AtomicLong parseTimeNs = new AtomicLong();
+
+        public long getHitCount() {
+            return hitCount.get();
+        }
+
+        public long getMissCount() {
+            return missCount.get();
+        }
+
+        public long getParseTimeNs() {
+            return parseTimeNs.get();
+        }
+
+        /**
+         * Get the percentage of lookups that found the statement in the cache
+         */
+        public long getHitPerc() {
+            long hits = hitCount.get();
+            long lookups = hits + missCount.get();
+            return lookups == 0 ? 0 : hits * 100 / lookups;
+        }
+    }
+
+    public ParseTreeCache(ReadOnlyProps props) {
+        this(props.getInt(QueryServices.PARSE_TREE_CACHE_SIZE_ATTRIB, QueryServicesOptions.DEFAULT_PARSE_TREE_CACHE_SIZE));
+    }
+
+    public ParseTreeCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.statements = CacheBuilder.newBuilder().maximumSize(Math.max(0, maxSize)).<String, BindableStatement>build();
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * @return the statement parsed from the given SQL, or null if it's not cached
+     */
+    public BindableStatement get(String sql) {
+        BindableStatement statement = statements.getIfPresent(sql);
+        if (statement == null) {
+            metrics.missCount.incrementAndGet();
+        } else {
+            metrics.hitCount.incrementAndGet();
+        }
+        return statement;
+    }
+
+    /**
+     * Cache the statement parsed from the given SQL, if it may be shared.
+     * @param parseTimeNs the time spent parsing the SQL
+     */
+    public void put(String sql, BindableStatement statement, long parseTimeNs) {
+        metrics.parseTimeNs.addAndGet(parseTimeNs);
+        if (isCacheable(statement)) {
+            statements.put(sql, statement);
+        }
+    }
+
+    private static boolean isCacheable(BindableStatement statement) {
+        return statement instanceof SelectStatement || statement instanceof UpsertStatement || statement instanceof DeleteStatement;
+    }
+
+    public ParseMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of statements currently cached
+     */
+    public long size() {
+        return statements.size();
+    }
+
+    public void clear() {
+        statements.invalidateAll();
+    }
+}
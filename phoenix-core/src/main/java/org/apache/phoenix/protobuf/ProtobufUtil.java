@@ -121,8 +121,13 @@ public class ProtobufUtil {
     public static ServerCachingProtos.ImmutableBytesWritable toProto(ImmutableBytesWritable w) {
         ServerCachingProtos.ImmutableBytesWritable.Builder builder = 
         		ServerCachingProtos.ImmutableBytesWritable.newBuilder();
-        builder.setByteArray(HBaseZeroCopyByteString.wrap(w.get()));
-        builder.setOffset(w.getOffset());
+        if (w.getOffset() == 0 && w.getLength() == w.get().length) {
+            builder.setByteArray(HBaseZeroCopyByteString.wrap(w.get()));
+        } else {
+            // Only send the bytes in use, still without copying them
+            builder.setByteArray(HBaseZeroCopyByteString.wrap(w.get(), w.getOffset(), w.getLength()));
+        }
+        builder.setOffset(0);
         builder.setLength(w.getLength());
         return builder.build();
     }
@@ -23,6 +23,7 @@ import org.apache.phoenix.job.JobManager;
 import org.apache.phoenix.memory.GlobalMemoryManager;
 import org.apache.phoenix.memory.MemoryManager;
 import org.apache.phoenix.optimize.QueryOptimizer;
+import org.apache.phoenix.parse.ParseTreeCache;
 import org.apache.phoenix.util.ReadOnlyProps;
 
 
@@ -36,20 +37,39 @@ import org.apache.phoenix.util.ReadOnlyProps;
  */
 public abstract class BaseQueryServicesImpl implements QueryServices {
     private final ExecutorService executor;
+    private final ExecutorService clientAggregateExecutor;
+    private final ExecutorService commitExecutor;
+    private final ExecutorService mutationWriterExecutor;
     private final MemoryManager memoryManager;
     private final ReadOnlyProps props;
     private final QueryOptimizer queryOptimizer;
+    private final ParseTreeCache parseTreeCache;
     
     public BaseQueryServicesImpl(QueryServicesOptions options) {
         this.executor =  JobManager.createThreadPoolExec(
                 options.getKeepAliveMs(), 
                 options.getThreadPoolSize(), 
+                options.getQueueSize(),
+                options.isFairScheduling());
+        this.clientAggregateExecutor = JobManager.createThreadPoolExec(
+                options.getKeepAliveMs(),
+                options.getGroupByClientAggregatePoolSize(),
+                options.getQueueSize());
+        // No queue, so that a batch is sent on the committing thread rather than wait for a thread
+        this.commitExecutor = JobManager.createThreadPoolExec(
+                options.getKeepAliveMs(),
+                options.getCommitThreadPoolSize(),
+                0);
+        this.mutationWriterExecutor = JobManager.createThreadPoolExec(
+                options.getKeepAliveMs(),
+                options.getMutateWriterThreadPoolSize(),
                 options.getQueueSize());
         this.memoryManager = new GlobalMemoryManager(
                 Runtime.getRuntime().maxMemory() * options.getMaxMemoryPerc() / 100,
                 options.getMaxMemoryWaitMs());
         this.props = options.getProps();
         this.queryOptimizer = new QueryOptimizer(this);
+        this.parseTreeCache = new ParseTreeCache(props);
     }
     
     @Override
@@ -57,6 +77,21 @@ public abstract class BaseQueryServicesImpl implements QueryServices {
         return executor;
     }
 
+    @Override
+    public ExecutorService getClientAggregateExecutor() {
+        return clientAggregateExecutor;
+    }
+
+    @Override
+    public ExecutorService getCommitExecutor() {
+        return commitExecutor;
+    }
+
+    @Override
+    public ExecutorService getMutationWriterExecutor() {
+        return mutationWriterExecutor;
+    }
+
     @Override
     public MemoryManager getMemoryManager() {
         return memoryManager;
@@ -74,5 +109,10 @@ public abstract class BaseQueryServicesImpl implements QueryServices {
     @Override
     public QueryOptimizer getOptimizer() {
         return queryOptimizer;
-    }   
+    }
+
+    @Override
+    public ParseTreeCache getParseTreeCache() {
+        return parseTreeCache;
+    }
 }
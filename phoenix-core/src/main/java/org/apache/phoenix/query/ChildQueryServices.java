@@ -17,8 +17,10 @@
  */
 package org.apache.phoenix.query;
 
+import org.apache.phoenix.join.HashCacheRegistry;
 import org.apache.phoenix.memory.ChildMemoryManager;
 import org.apache.phoenix.memory.MemoryManager;
+import org.apache.phoenix.optimize.IndexChoiceCache;
 
 /**
  * 
@@ -30,16 +32,32 @@ import org.apache.phoenix.memory.MemoryManager;
  */
 public class ChildQueryServices extends DelegateConnectionQueryServices {
     private final MemoryManager memoryManager;
+    // Hash caches are added for a single tenant, so keep them apart from those of other tenants
+    private final HashCacheRegistry hashCacheRegistry;
+    // Tenants may see different views and indexes under the same name
+    private final IndexChoiceCache indexChoiceCache;
     private static final int DEFAULT_MAX_ORG_MEMORY_PERC = 30;
     
     public ChildQueryServices(ConnectionQueryServices services) {
         super(services);
         int maxOrgMemPerc = getProps().getInt(MAX_TENANT_MEMORY_PERC_ATTRIB, DEFAULT_MAX_ORG_MEMORY_PERC);
         this.memoryManager = new ChildMemoryManager(services.getMemoryManager(), maxOrgMemPerc);
+        this.hashCacheRegistry = new HashCacheRegistry(getProps());
+        this.indexChoiceCache = new IndexChoiceCache(getProps());
     }
 
     @Override
     public MemoryManager getMemoryManager() {
         return memoryManager;
     }
+
+    @Override
+    public HashCacheRegistry getHashCacheRegistry() {
+        return hashCacheRegistry;
+    }
+
+    @Override
+    public IndexChoiceCache getIndexChoiceCache() {
+        return indexChoiceCache;
+    }
 }
@@ -34,6 +34,8 @@ import org.apache.phoenix.coprocessor.MetaDataProtocol.MetaDataMutationResult;
 import org.apache.phoenix.execute.MutationState;
 import org.apache.phoenix.hbase.index.util.KeyValueBuilder;
 import org.apache.phoenix.jdbc.PhoenixConnection;
+import org.apache.phoenix.join.HashCacheRegistry;
+import org.apache.phoenix.optimize.IndexChoiceCache;
 import org.apache.phoenix.schema.PName;
 import org.apache.phoenix.schema.PTable;
 import org.apache.phoenix.schema.PTableType;
@@ -101,6 +103,16 @@ public interface ConnectionQueryServices extends QueryServices, MetaDataMutated
      */
     public KeyValueBuilder getKeyValueBuilder();
     
+    /**
+     * @return the registry of the hash caches kept on the region servers for reuse by later joins
+     */
+    public HashCacheRegistry getHashCacheRegistry();
+    
+    /**
+     * @return the cache of the tables chosen by the optimizer for prepared queries
+     */
+    public IndexChoiceCache getIndexChoiceCache();
+    
     public enum Feature {REVERSE_SCAN};
     public boolean supportsFeature(Feature feature);
 }
\ No newline at end of file
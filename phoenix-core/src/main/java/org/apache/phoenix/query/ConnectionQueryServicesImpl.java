@@ -102,6 +102,7 @@ import org.apache.phoenix.coprocessor.MetaDataProtocol.MutationCode;
 import org.apache.phoenix.coprocessor.MetaDataRegionObserver;
 import org.apache.phoenix.coprocessor.ScanRegionObserver;
 import org.apache.phoenix.coprocessor.SequenceRegionObserver;
+import org.apache.phoenix.coprocessor.StatisticsCollector;
 import org.apache.phoenix.coprocessor.ServerCachingEndpointImpl;
 import org.apache.phoenix.coprocessor.UngroupedAggregateRegionObserver;
 import org.apache.phoenix.coprocessor.generated.MetaDataProtos;
@@ -129,6 +130,8 @@ import org.apache.phoenix.index.PhoenixIndexCodec;
 import org.apache.phoenix.jdbc.PhoenixConnection;
 import org.apache.phoenix.jdbc.PhoenixDatabaseMetaData;
 import org.apache.phoenix.jdbc.PhoenixEmbeddedDriver.ConnectionInfo;
+import org.apache.phoenix.join.HashCacheRegistry;
+import org.apache.phoenix.optimize.IndexChoiceCache;
 import org.apache.phoenix.protobuf.ProtobufUtil;
 import org.apache.phoenix.schema.EmptySequenceCacheException;
 import org.apache.phoenix.schema.MetaDataSplitPolicy;
@@ -191,6 +194,8 @@ public class ConnectionQueryServicesImpl extends DelegateQueryServices implement
     private HConnection connection;
     private final StatsManager statsManager;
     private final ConcurrentHashMap<ImmutableBytesWritable,ConnectionQueryServices> childServices;
+    private final HashCacheRegistry hashCacheRegistry;
+    private final IndexChoiceCache indexChoiceCache;
     // Cache the latest meta data here for future connections
     private volatile PMetaData latestMetaData;
     private final Object latestMetaDataLock = new Object();
@@ -237,6 +242,8 @@ public class ConnectionQueryServicesImpl extends DelegateQueryServices implement
         int statsUpdateFrequencyMs = this.getProps().getInt(QueryServices.STATS_UPDATE_FREQ_MS_ATTRIB, QueryServicesOptions.DEFAULT_STATS_UPDATE_FREQ_MS);
         int maxStatsAgeMs = this.getProps().getInt(QueryServices.MAX_STATS_AGE_MS_ATTRIB, QueryServicesOptions.DEFAULT_MAX_STATS_AGE_MS);
         this.statsManager = new StatsManagerImpl(this, statsUpdateFrequencyMs, maxStatsAgeMs);
+        this.hashCacheRegistry = new HashCacheRegistry(this.props);
+        this.indexChoiceCache = new IndexChoiceCache(this.props);
         
         // find the HBase version and use that to determine the KeyValueBuilder that should be used
         String hbaseVersion = VersionInfo.getVersion();
@@ -299,6 +306,8 @@ public class ConnectionQueryServicesImpl extends DelegateQueryServices implement
         SQLException sqlE = null;
         try {
             try {
+                // Remove hash caches kept for reuse while we can still reach the region servers
+                hashCacheRegistry.clear();
                 // Clear Phoenix metadata cache before closing HConnection
                 clearCache();
             } finally {
@@ -602,6 +611,11 @@ public class ConnectionQueryServicesImpl extends DelegateQueryServices implement
                 }
                 descriptor.addCoprocessor(ServerCachingEndpointImpl.class.getName(), null, 1, null);
             }
+            // Collect guide posts during major compactions of all but the system tables
+            if (!SchemaUtil.isMetaTable(tableName) && !SchemaUtil.isSequenceTable(tableName) && !SchemaUtil.isStatsTable(tableName)
+                    && !isOldSysTable && !descriptor.hasCoprocessor(StatisticsCollector.class.getName())) {
+                descriptor.addCoprocessor(StatisticsCollector.class.getName(), null, 1, null);
+            }
             
             // Always try to remove, as this coprocessor doesn't exist anymore
             descriptor.removeCoprocessor("com.salesforce.phoenix.join.HashJoiningRegionObserver");
@@ -1388,6 +1402,12 @@ public class ConnectionQueryServicesImpl extends DelegateQueryServices implement
                 // Ignore, as this will happen if the SYSTEM.SEQUENCE already exists at this fixed timestamp.
                 // A TableAlreadyExistsException is not thrown, since the table only exists *after* this fixed timestamp.
             }
+            try {
+                metaConnection.createStatement().executeUpdate(QueryConstants.CREATE_STATS_TABLE_METADATA);
+            } catch (NewerTableAlreadyExistsException ignore) {
+                // Ignore, as this will happen if the SYSTEM.STATS already exists at this fixed timestamp.
+                // A TableAlreadyExistsException is not thrown, since the table only exists *after* this fixed timestamp.
+            }
         } catch (SQLException e) {
             sqlE = e;
         } finally {
@@ -1825,6 +1845,16 @@ public class ConnectionQueryServicesImpl extends DelegateQueryServices implement
         return this.kvBuilder;
     }
 
+    @Override
+    public HashCacheRegistry getHashCacheRegistry() {
+        return hashCacheRegistry;
+    }
+
+    @Override
+    public IndexChoiceCache getIndexChoiceCache() {
+        return indexChoiceCache;
+    }
+
     @Override
     public boolean supportsFeature(Feature feature) {
         // TODO: Keep map of Feature -> min HBase version
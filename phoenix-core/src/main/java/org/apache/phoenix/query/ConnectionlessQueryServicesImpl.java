@@ -48,6 +48,8 @@ import org.apache.phoenix.hbase.index.util.GenericKeyValueBuilder;
 import org.apache.phoenix.hbase.index.util.KeyValueBuilder;
 import org.apache.phoenix.jdbc.PhoenixConnection;
 import org.apache.phoenix.jdbc.PhoenixDatabaseMetaData;
+import org.apache.phoenix.join.HashCacheRegistry;
+import org.apache.phoenix.optimize.IndexChoiceCache;
 import org.apache.phoenix.schema.NewerTableAlreadyExistsException;
 import org.apache.phoenix.schema.PColumn;
 import org.apache.phoenix.schema.PIndexState;
@@ -86,10 +88,14 @@ public class ConnectionlessQueryServicesImpl extends DelegateQueryServices imple
     private PMetaData metaData;
     private final Map<SequenceKey, Long> sequenceMap = Maps.newHashMap();
     private KeyValueBuilder kvBuilder;
+    private final HashCacheRegistry hashCacheRegistry;
+    private final IndexChoiceCache indexChoiceCache;
     
     public ConnectionlessQueryServicesImpl(QueryServices queryServices) {
         super(queryServices);
         metaData = newEmptyMetaData();
+        this.hashCacheRegistry = new HashCacheRegistry(getProps());
+        this.indexChoiceCache = new IndexChoiceCache(getProps());
         // Use KeyValueBuilder that builds real KeyValues, as our test utils require this
         this.kvBuilder = GenericKeyValueBuilder.INSTANCE;
     }
@@ -124,6 +130,11 @@ public class ConnectionlessQueryServicesImpl extends DelegateQueryServices imple
                 return HConstants.EMPTY_END_ROW;
             }
 
+            @Override
+            public byte[][] getRegionGuidePosts(TableRef table, HRegionInfo region) {
+                return null;
+            }
+
             @Override
             public void updateStats(TableRef table) throws SQLException {
             }
@@ -224,6 +235,12 @@ public class ConnectionlessQueryServicesImpl extends DelegateQueryServices imple
                 // Ignore, as this will happen if the SYSTEM.SEQUENCE already exists at this fixed timestamp.
                 // A TableAlreadyExistsException is not thrown, since the table only exists *after* this fixed timestamp.
             }
+            try {
+                metaConnection.createStatement().executeUpdate(QueryConstants.CREATE_STATS_TABLE_METADATA);
+            } catch (NewerTableAlreadyExistsException ignore) {
+                // Ignore, as this will happen if the SYSTEM.STATS already exists at this fixed timestamp.
+                // A TableAlreadyExistsException is not thrown, since the table only exists *after* this fixed timestamp.
+            }
         } catch (SQLException e) {
             sqlE = e;
         } finally {
@@ -377,6 +394,16 @@ public class ConnectionlessQueryServicesImpl extends DelegateQueryServices imple
         return this.kvBuilder;
     }
 
+    @Override
+    public HashCacheRegistry getHashCacheRegistry() {
+        return hashCacheRegistry;
+    }
+
+    @Override
+    public IndexChoiceCache getIndexChoiceCache() {
+        return indexChoiceCache;
+    }
+
     @Override
     public boolean supportsFeature(Feature feature) {
         return false;
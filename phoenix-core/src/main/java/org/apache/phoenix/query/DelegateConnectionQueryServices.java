@@ -34,6 +34,8 @@ import org.apache.phoenix.coprocessor.MetaDataProtocol.MetaDataMutationResult;
 import org.apache.phoenix.execute.MutationState;
 import org.apache.phoenix.hbase.index.util.KeyValueBuilder;
 import org.apache.phoenix.jdbc.PhoenixConnection;
+import org.apache.phoenix.join.HashCacheRegistry;
+import org.apache.phoenix.optimize.IndexChoiceCache;
 import org.apache.phoenix.schema.PColumn;
 import org.apache.phoenix.schema.PMetaData;
 import org.apache.phoenix.schema.PName;
@@ -220,6 +222,16 @@ public class DelegateConnectionQueryServices extends DelegateQueryServices imple
         return getDelegate().getKeyValueBuilder();
     }
 
+    @Override
+    public HashCacheRegistry getHashCacheRegistry() {
+        return getDelegate().getHashCacheRegistry();
+    }
+
+    @Override
+    public IndexChoiceCache getIndexChoiceCache() {
+        return getDelegate().getIndexChoiceCache();
+    }
+
     @Override
     public boolean supportsFeature(Feature feature) {
         return getDelegate().supportsFeature(feature);
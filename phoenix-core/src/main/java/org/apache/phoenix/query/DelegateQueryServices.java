@@ -22,6 +22,7 @@ import java.util.concurrent.ExecutorService;
 
 import org.apache.phoenix.memory.MemoryManager;
 import org.apache.phoenix.optimize.QueryOptimizer;
+import org.apache.phoenix.parse.ParseTreeCache;
 import org.apache.phoenix.util.ReadOnlyProps;
 
 
@@ -50,6 +51,21 @@ public class DelegateQueryServices implements QueryServices {
         return parent.getExecutor();
     }
 
+    @Override
+    public ExecutorService getClientAggregateExecutor() {
+        return parent.getClientAggregateExecutor();
+    }
+
+    @Override
+    public ExecutorService getCommitExecutor() {
+        return parent.getCommitExecutor();
+    }
+
+    @Override
+    public ExecutorService getMutationWriterExecutor() {
+        return parent.getMutationWriterExecutor();
+    }
+
     @Override
     public MemoryManager getMemoryManager() {
         return parent.getMemoryManager();
@@ -69,4 +85,9 @@ public class DelegateQueryServices implements QueryServices {
     public QueryOptimizer getOptimizer() {
         return parent.getOptimizer();
     }
+
+    @Override
+    public ParseTreeCache getParseTreeCache() {
+        return parent.getParseTreeCache();
+    }
 }
@@ -23,6 +23,7 @@ import org.apache.http.annotation.Immutable;
 import org.apache.phoenix.iterate.SpoolTooBigToDiskException;
 import org.apache.phoenix.memory.MemoryManager;
 import org.apache.phoenix.optimize.QueryOptimizer;
+import org.apache.phoenix.parse.ParseTreeCache;
 import org.apache.phoenix.util.ReadOnlyProps;
 import org.apache.phoenix.util.SQLCloseable;
 
@@ -56,6 +57,78 @@ public interface QueryServices extends SQLCloseable {
 	 */
 	public static final String MAX_SPOOL_TO_DISK_BYTES_ATTRIB = "phoenix.query.maxSpoolToDiskBytes";
     
+    /**
+     * Whether parallel scans stream their rows to the client through bounded per-split queues
+     * instead of spooling each split in its entirety before returning the first row.
+     */
+    public static final String STREAMING_SCAN_ATTRIB = "phoenix.query.streamingScan";
+    public static final String STREAMING_QUEUE_SIZE_ATTRIB = "phoenix.query.streamingQueueSize";
+    /**
+     * Time a streaming scan will wait for the consumer to make room in its queue before
+     * spooling the remainder of the split. A value of -1 means never spool.
+     */
+    public static final String STREAMING_SPOOL_AFTER_MS_ATTRIB = "phoenix.query.streamingSpoolAfterMs";
+    /**
+     * Maximum number of sorted runs merged at once by an ORDER BY that spilled to disk.
+     * With more runs than this, runs are first merged into larger runs in multiple passes.
+     */
+    public static final String SORT_MERGE_FAN_IN_ATTRIB = "phoenix.query.sortMergeFanIn";
+    /**
+     * Whether the executor for parallel scans shares its threads fairly between concurrent
+     * queries according to their weight, instead of plain round robin between queries.
+     */
+    public static final String FAIR_SCHEDULING_ATTRIB = "phoenix.query.fairScheduling";
+    /**
+     * Relative share of the executor given to the queries of a connection under fair scheduling.
+     * May be set as a connection property to weight connections or tenants differently.
+     */
+    public static final String SCHEDULER_WEIGHT_ATTRIB = "phoenix.query.schedulerWeight";
+    /**
+     * Maximum number of parallel scans of a single query executing at once under fair
+     * scheduling. A value of 0 means no limit.
+     */
+    public static final String MAX_IN_FLIGHT_SPLITS_ATTRIB = "phoenix.query.maxInFlightSplits";
+    /**
+     * Queries scanning at most this many splits are executed ahead of larger queries under
+     * fair scheduling.
+     */
+    public static final String SMALL_SCAN_MAX_SPLITS_ATTRIB = "phoenix.query.smallScanMaxSplits";
+    /**
+     * Whether a client side UPSERT SELECT with auto commit on writes its batches in the
+     * background while the select continues, instead of pausing the select for each commit.
+     */
+    public static final String PIPELINED_UPSERT_SELECT_ATTRIB = "phoenix.mutate.pipelined";
+    /**
+     * Number of batches of a pipelined UPSERT SELECT written at once. The batches of a region
+     * are always written one after the other, so that its rows are written in order.
+     */
+    public static final String MUTATE_WRITER_THREADS_ATTRIB = "phoenix.mutate.writerThreads";
+    /**
+     * Size of the client thread pool shared by all pipelined UPSERT SELECTs to write their
+     * batches. A batch is written on the selecting thread when the queue of the pool is full.
+     */
+    public static final String MUTATE_WRITER_THREAD_POOL_SIZE_ATTRIB = "phoenix.mutate.writerThreadPoolSize";
+    /**
+     * Maximum number of region batches of a pipelined UPSERT SELECT waiting to be written
+     * before the select is paused.
+     */
+    public static final String MAX_PENDING_MUTATE_BATCHES_ATTRIB = "phoenix.mutate.maxPendingBatches";
+    /**
+     * Maximum number of batches sent at once by a commit, where a batch holds the mutations
+     * of a data or index table destined to a single region server.
+     */
+    public static final String MAX_COMMIT_PARALLELISM_ATTRIB = "phoenix.mutate.maxCommitParallelism";
+    /**
+     * Maximum estimated size in bytes of the batches sent at once by a commit. A single
+     * batch bigger than this is still sent, but on its own.
+     */
+    public static final String MAX_COMMIT_BYTES_IN_FLIGHT_ATTRIB = "phoenix.mutate.maxCommitBytesInFlight";
+    /**
+     * Size of the client thread pool shared by all commits to send their batches. A batch
+     * is sent on the committing thread when all the threads of the pool are busy.
+     */
+    public static final String COMMIT_THREAD_POOL_SIZE_ATTRIB = "phoenix.mutate.commitThreadPoolSize";
+    
     public static final String MAX_MEMORY_PERC_ATTRIB = "phoenix.query.maxGlobalMemoryPercentage";
     public static final String MAX_MEMORY_WAIT_MS_ATTRIB = "phoenix.query.maxGlobalMemoryWaitMs";
     public static final String MAX_TENANT_MEMORY_PERC_ATTRIB = "phoenix.query.maxTenantMemoryPercentage";
@@ -74,6 +147,23 @@ public interface QueryServices extends SQLCloseable {
     public static final String MAX_INTRA_REGION_PARALLELIZATION_ATTRIB  = "phoenix.query.maxIntraRegionParallelization";
     public static final String ROW_KEY_ORDER_SALTED_TABLE_ATTRIB  = "phoenix.query.rowKeyOrderSaltedTable";
     public static final String USE_INDEXES_ATTRIB  = "phoenix.query.useIndexes";
+    /**
+     * Maximum number of prepared queries for which the table chosen by the optimizer is
+     * cached, so that later executions only compile the plan over that table. The choice
+     * made for the first bind values is kept until the data table or one of its indexes
+     * changes. A value of 0 or less disables the cache.
+     */
+    public static final String INDEX_CHOICE_CACHE_SIZE_ATTRIB  = "phoenix.query.indexChoiceCacheSize";
+    /**
+     * Maximum number of statements parsed from SQL text that are cached, so that executing
+     * the same SQL again doesn't parse it again. A value of 0 or less disables the cache.
+     */
+    public static final String PARSE_TREE_CACHE_SIZE_ATTRIB  = "phoenix.query.parseTreeCacheSize";
+    /**
+     * Whether a batch of the same query looking up rows by their full primary key with
+     * different bind values is executed as a single scan over all the keys.
+     */
+    public static final String BATCH_POINT_LOOKUPS_ATTRIB  = "phoenix.query.batchPointLookups";
     public static final String IMMUTABLE_ROWS_ATTRIB  = "phoenix.mutate.immutableRows";
     public static final String INDEX_MUTATE_BATCH_SIZE_THRESHOLD_ATTRIB  = "phoenix.index.mutableBatchSizeThreshold";
     public static final String DROP_METADATA_ATTRIB  = "phoenix.schema.dropMetaData";
@@ -81,6 +171,77 @@ public interface QueryServices extends SQLCloseable {
     public static final String GROUPBY_SPILL_FILES_ATTRIB = "phoenix.groupby.spillFiles";
     public static final String GROUPBY_MAX_CACHE_SIZE_ATTRIB = "phoenix.groupby.maxCacheSize";
     public static final String GROUPBY_ESTIMATED_DISTINCT_VALUES_ATTRIB = "phoenix.groupby.estimatedDistinctValues";
+    /**
+     * Whether or not an unordered group by whose aggregators all have fixed width state
+     * aggregates into an off-heap hash table instead of the spillable or in-memory caches.
+     */
+    public static final String GROUPBY_OFF_HEAP_ATTRIB = "phoenix.groupby.offHeap";
+    /**
+     * Number of rows whose values are collected before being folded into the aggregators
+     * of an ungrouped aggregation. A value of 1 or less aggregates row by row.
+     */
+    public static final String AGGREGATE_CHUNK_SIZE_ATTRIB = "phoenix.coprocessor.aggregateChunkSize";
+    /**
+     * Estimated number of distinct groups of an unordered group by above which the server
+     * sends partial aggregates to the client whenever its group by cache is full, instead
+     * of spilling, leaving the final aggregation to the client. A group by on an expression
+     * whose type has an unbounded number of values is always above the threshold. A value
+     * of 0 or less, the default, disables partial flushing.
+     */
+    public static final String GROUPBY_PARTIAL_FLUSH_THRESHOLD_ATTRIB = "phoenix.groupby.partialFlushThreshold";
+    /**
+     * Number of client threads among which the final aggregation of an unordered group by
+     * is hash partitioned. A value of 1 or less merge sorts the groups returned by each
+     * region on a single thread instead.
+     */
+    public static final String GROUPBY_CLIENT_AGGREGATE_THREADS_ATTRIB = "phoenix.groupby.clientAggregateThreads";
+    /**
+     * Size of the client thread pool shared by the final aggregation of all unordered group
+     * bys. It is separate from the pool that runs the scans, as aggregating threads wait
+     * for the rows of the scans.
+     */
+    public static final String GROUPBY_CLIENT_AGGREGATE_POOL_SIZE_ATTRIB = "phoenix.groupby.clientAggregatePoolSize";
+    /**
+     * Maximum number of distinct keys of the build side of an inner hash join for which a
+     * Bloom filter of the keys is pushed into the scan of the probe side. A value of 0
+     * or less disables the filter.
+     */
+    public static final String HASH_JOIN_KEY_FILTER_MAX_KEYS_ATTRIB = "phoenix.join.keyFilterMaxKeys";
+    /**
+     * Number of bits per key of the Bloom filter pushed into the probe side of a hash join,
+     * 10 bits giving a false positive rate of about 1%.
+     */
+    public static final String HASH_JOIN_KEY_FILTER_BITS_PER_KEY_ATTRIB = "phoenix.join.keyFilterBitsPerKey";
+    /**
+     * Time in milliseconds for which the hash cache of the build side of a join is kept on
+     * the region servers after the query completes, to be reused by later executions of a
+     * join with the same build side as long as the tables it reads haven't changed. Only
+     * changes made through this client are detected, so rows written by other clients may
+     * not be seen until the cache expires. Capped at half of the server cache time to live.
+     * A value of 0 or less disables the reuse.
+     */
+    public static final String HASH_JOIN_CACHE_REUSE_TIME_TO_LIVE_MS_ATTRIB = "phoenix.join.cacheReuseTimeToLiveMs";
+    /**
+     * Maximum number of region servers a server cache is sent to at the same time. Each
+     * send in progress holds its own serialized copy of the cache on the client.
+     */
+    public static final String MAX_SERVER_CACHE_BROADCAST_CONCURRENCY_ATTRIB = "phoenix.query.maxServerCacheBroadcastConcurrency";
+    /**
+     * Name of the HBase compression algorithm (none, gz, snappy, lz4, ...) used for blocks
+     * of spooled and spilled data written to local temp files.
+     */
+    public static final String SPILL_COMPRESSION_ATTRIB = "phoenix.spill.compression";
+    public static final String SPILL_CHECKSUM_ATTRIB = "phoenix.spill.checksum";
+    /**
+     * Number of bytes of a region between the guide posts collected during major compaction,
+     * which bound the chunks of a region that are scanned in parallel.
+     */
+    public static final String STATS_GUIDEPOST_WIDTH_BYTES_ATTRIB = "phoenix.stats.guidepost.width";
+    /**
+     * Maximum number of chunks that the regions scanned by a query are split into at their
+     * guide posts, shared between the regions in proportion to their number of guide posts.
+     */
+    public static final String STATS_GUIDEPOST_MAX_SPLITS_ATTRIB = "phoenix.stats.guidepost.maxSplits";
 
     public static final String CALL_QUEUE_PRODUCER_ATTRIB_NAME = "CALL_QUEUE_PRODUCER";
     
@@ -104,6 +265,18 @@ public interface QueryServices extends SQLCloseable {
      * Get executor service used for parallel scans
      */
     public ExecutorService getExecutor();
+    /**
+     * Get executor service used for the final aggregation of unordered group bys on the client
+     */
+    public ExecutorService getClientAggregateExecutor();
+    /**
+     * Get executor service used to send the batches of a commit in parallel
+     */
+    public ExecutorService getCommitExecutor();
+    /**
+     * Get executor service used to write the batches of pipelined UPSERT SELECTs
+     */
+    public ExecutorService getMutationWriterExecutor();
     /**
      * Get the memory manager used to track memory usage
      */
@@ -119,4 +292,9 @@ public interface QueryServices extends SQLCloseable {
      * Get query optimizer used to choose the best query plan
      */
     public QueryOptimizer getOptimizer();
+    
+    /**
+     * Get the cache of statements parsed from SQL text
+     */
+    public ParseTreeCache getParseTreeCache();
 }
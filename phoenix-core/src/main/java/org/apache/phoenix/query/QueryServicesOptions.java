@@ -17,38 +17,69 @@
  */
 package org.apache.phoenix.query;
 
+import static org.apache.phoenix.query.QueryServices.AGGREGATE_CHUNK_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.BATCH_POINT_LOOKUPS_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.CALL_QUEUE_PRODUCER_ATTRIB_NAME;
 import static org.apache.phoenix.query.QueryServices.CALL_QUEUE_ROUND_ROBIN_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.COMMIT_THREAD_POOL_SIZE_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.DATE_FORMAT_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.DROP_METADATA_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.FAIR_SCHEDULING_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.GROUPBY_CLIENT_AGGREGATE_POOL_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.GROUPBY_CLIENT_AGGREGATE_THREADS_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.GROUPBY_MAX_CACHE_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.GROUPBY_OFF_HEAP_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.GROUPBY_PARTIAL_FLUSH_THRESHOLD_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.GROUPBY_SPILLABLE_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.GROUPBY_SPILL_FILES_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.HASH_JOIN_CACHE_REUSE_TIME_TO_LIVE_MS_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.HASH_JOIN_KEY_FILTER_BITS_PER_KEY_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.HASH_JOIN_KEY_FILTER_MAX_KEYS_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.IMMUTABLE_ROWS_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.INDEX_CHOICE_CACHE_SIZE_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.INDEX_MUTATE_BATCH_SIZE_THRESHOLD_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.KEEP_ALIVE_MS_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MASTER_INFO_PORT_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MAX_CLIENT_METADATA_CACHE_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.MAX_COMMIT_BYTES_IN_FLIGHT_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.MAX_COMMIT_PARALLELISM_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MAX_INTRA_REGION_PARALLELIZATION_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.MAX_IN_FLIGHT_SPLITS_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MAX_MEMORY_PERC_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MAX_MEMORY_WAIT_MS_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MAX_MUTATION_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.MAX_PENDING_MUTATE_BATCHES_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MAX_QUERY_CONCURRENCY_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.MAX_SERVER_CACHE_BROADCAST_CONCURRENCY_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MAX_SERVER_CACHE_SIZE_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MAX_SERVER_CACHE_TIME_TO_LIVE_MS_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MAX_SERVER_METADATA_CACHE_SIZE_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MAX_SPOOL_TO_DISK_BYTES_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MAX_TENANT_MEMORY_PERC_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.MUTATE_BATCH_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.MUTATE_WRITER_THREADS_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.MUTATE_WRITER_THREAD_POOL_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.PARSE_TREE_CACHE_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.PIPELINED_UPSERT_SELECT_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.QUEUE_SIZE_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.REGIONSERVER_INFO_PORT_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.REGIONSERVER_LEASE_PERIOD_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.ROW_KEY_ORDER_SALTED_TABLE_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.RPC_TIMEOUT_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.SCAN_CACHE_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.SCHEDULER_WEIGHT_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.SEQUENCE_CACHE_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.SMALL_SCAN_MAX_SPLITS_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.SORT_MERGE_FAN_IN_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.SPILL_CHECKSUM_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.SPILL_COMPRESSION_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.SPOOL_THRESHOLD_BYTES_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.STATS_GUIDEPOST_MAX_SPLITS_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.STATS_GUIDEPOST_WIDTH_BYTES_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.STATS_UPDATE_FREQ_MS_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.STREAMING_QUEUE_SIZE_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.STREAMING_SCAN_ATTRIB;
+import static org.apache.phoenix.query.QueryServices.STREAMING_SPOOL_AFTER_MS_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.TARGET_QUERY_CONCURRENCY_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.THREAD_POOL_SIZE_ATTRIB;
 import static org.apache.phoenix.query.QueryServices.THREAD_TIMEOUT_MS_ATTRIB;
@@ -89,6 +120,9 @@ public class QueryServicesOptions {
     public static final int DEFAULT_MAX_MUTATION_SIZE = 500000;
     public static final boolean DEFAULT_ROW_KEY_ORDER_SALTED_TABLE = true; // Merge sort on client to ensure salted tables are row key ordered
     public static final boolean DEFAULT_USE_INDEXES = true; // Use indexes
+    public static final int DEFAULT_INDEX_CHOICE_CACHE_SIZE = 0; // no caching
+    public static final int DEFAULT_PARSE_TREE_CACHE_SIZE = 1000; // statements
+    public static final boolean DEFAULT_BATCH_POINT_LOOKUPS = true;
     public static final boolean DEFAULT_IMMUTABLE_ROWS = false; // Tables rows may be updated
     public static final boolean DEFAULT_DROP_METADATA = true; // Drop meta data also.
     
@@ -100,6 +134,21 @@ public class QueryServicesOptions {
     public static final int DEFAULT_DISTINCT_VALUE_COMPRESS_THRESHOLD = 1024 * 1024 * 1; // 1 Mb
     public static final int DEFAULT_INDEX_MUTATE_BATCH_SIZE_THRESHOLD = 5;
     public static final long DEFAULT_MAX_SPOOL_TO_DISK_BYTES = 1024000000;
+    public static final boolean DEFAULT_STREAMING_SCAN = false;
+    public static final int DEFAULT_STREAMING_QUEUE_SIZE = 1000; // rows buffered per split
+    public static final long DEFAULT_STREAMING_SPOOL_AFTER_MS = 5000;
+    public static final int DEFAULT_SORT_MERGE_FAN_IN = 64; // sorted runs merged per pass
+    public static final boolean DEFAULT_FAIR_SCHEDULING = false;
+    public static final int DEFAULT_SCHEDULER_WEIGHT = 1;
+    public static final int DEFAULT_MAX_IN_FLIGHT_SPLITS = 0; // unlimited
+    public static final int DEFAULT_SMALL_SCAN_MAX_SPLITS = 1;
+    public static final boolean DEFAULT_PIPELINED_UPSERT_SELECT = false;
+    public static final int DEFAULT_MUTATE_WRITER_THREADS = 4;
+    public static final int DEFAULT_MUTATE_WRITER_THREAD_POOL_SIZE = 16;
+    public static final int DEFAULT_MAX_PENDING_MUTATE_BATCHES = 16;
+    public static final int DEFAULT_MAX_COMMIT_PARALLELISM = 8;
+    public static final int DEFAULT_MAX_COMMIT_BYTES_IN_FLIGHT = 1024 * 1024 * 64; // 64 Mb
+    public static final int DEFAULT_COMMIT_THREAD_POOL_SIZE = 32;
     
     // 
     // Spillable GroupBy - SPGBY prefix
@@ -111,6 +160,19 @@ public class QueryServicesOptions {
     public static final int DEFAULT_GROUPBY_SPILL_FILES = 2;
     // Max size of 1st level main memory cache in bytes --> upper bound
     public static final long DEFAULT_GROUPBY_MAX_CACHE_MAX = 1024L*1024L*100L;  // 100 Mb
+    // Aggregate into an off-heap hash table when possible
+    public static final boolean DEFAULT_GROUPBY_OFF_HEAP = false;
+    // Never flush partial aggregates of a group by unless enabled with a threshold
+    public static final long DEFAULT_GROUPBY_PARTIAL_FLUSH_THRESHOLD = 0;
+    // Merge sort the groups of an unordered group by on a single client thread
+    public static final int DEFAULT_GROUPBY_CLIENT_AGGREGATE_THREADS = 1;
+    public static final int DEFAULT_GROUPBY_CLIENT_AGGREGATE_POOL_SIZE = 16;
+    public static final int DEFAULT_HASH_JOIN_KEY_FILTER_MAX_KEYS = 1000000;
+    public static final int DEFAULT_HASH_JOIN_KEY_FILTER_BITS_PER_KEY = 10;
+    public static final int DEFAULT_HASH_JOIN_CACHE_REUSE_TIME_TO_LIVE_MS = 0; // no reuse
+    public static final int DEFAULT_MAX_SERVER_CACHE_BROADCAST_CONCURRENCY = 10;
+    
+    public static final int DEFAULT_AGGREGATE_CHUNK_SIZE = 1024; // rows per chunk of ungrouped aggregation
     
     public static final long DEFAULT_SEQUENCE_CACHE_SIZE = 100;  // reserve 100 sequences at a time
     public static final int DEFAULT_INDEX_MAX_FILESIZE_PERC = 50; // % of data table max file size for index table
@@ -118,6 +180,10 @@ public class QueryServicesOptions {
     public static final long DEFAULT_MAX_SERVER_METADATA_CACHE_SIZE =  1024L*1024L*20L; // 20 Mb
     public static final long DEFAULT_MAX_CLIENT_METADATA_CACHE_SIZE =  1024L*1024L*10L; // 10 Mb
     public static final int DEFAULT_GROUPBY_ESTIMATED_DISTINCT_VALUES = 1000;
+    public static final String DEFAULT_SPILL_COMPRESSION = "none";
+    public static final boolean DEFAULT_SPILL_CHECKSUM = true;
+    public static final long DEFAULT_STATS_GUIDEPOST_WIDTH_BYTES = 100 * 1024 * 1024; // 100 Mb
+    public static final int DEFAULT_STATS_GUIDEPOST_MAX_SPLITS = 4 * DEFAULT_MAX_QUERY_CONCURRENCY;
     
     private final Configuration config;
     
@@ -164,14 +230,45 @@ public class QueryServicesOptions {
             .setIfUnset(MAX_INTRA_REGION_PARALLELIZATION_ATTRIB, DEFAULT_MAX_INTRA_REGION_PARALLELIZATION)
             .setIfUnset(ROW_KEY_ORDER_SALTED_TABLE_ATTRIB, DEFAULT_ROW_KEY_ORDER_SALTED_TABLE)
             .setIfUnset(USE_INDEXES_ATTRIB, DEFAULT_USE_INDEXES)
+            .setIfUnset(INDEX_CHOICE_CACHE_SIZE_ATTRIB, DEFAULT_INDEX_CHOICE_CACHE_SIZE)
+            .setIfUnset(PARSE_TREE_CACHE_SIZE_ATTRIB, DEFAULT_PARSE_TREE_CACHE_SIZE)
+            .setIfUnset(BATCH_POINT_LOOKUPS_ATTRIB, DEFAULT_BATCH_POINT_LOOKUPS)
             .setIfUnset(IMMUTABLE_ROWS_ATTRIB, DEFAULT_IMMUTABLE_ROWS)
             .setIfUnset(INDEX_MUTATE_BATCH_SIZE_THRESHOLD_ATTRIB, DEFAULT_INDEX_MUTATE_BATCH_SIZE_THRESHOLD)
             .setIfUnset(MAX_SPOOL_TO_DISK_BYTES_ATTRIB, DEFAULT_MAX_SPOOL_TO_DISK_BYTES)
+            .setIfUnset(STREAMING_SCAN_ATTRIB, DEFAULT_STREAMING_SCAN)
+            .setIfUnset(STREAMING_QUEUE_SIZE_ATTRIB, DEFAULT_STREAMING_QUEUE_SIZE)
+            .setIfUnset(STREAMING_SPOOL_AFTER_MS_ATTRIB, DEFAULT_STREAMING_SPOOL_AFTER_MS)
+            .setIfUnset(SORT_MERGE_FAN_IN_ATTRIB, DEFAULT_SORT_MERGE_FAN_IN)
+            .setIfUnset(FAIR_SCHEDULING_ATTRIB, DEFAULT_FAIR_SCHEDULING)
+            .setIfUnset(SCHEDULER_WEIGHT_ATTRIB, DEFAULT_SCHEDULER_WEIGHT)
+            .setIfUnset(MAX_IN_FLIGHT_SPLITS_ATTRIB, DEFAULT_MAX_IN_FLIGHT_SPLITS)
+            .setIfUnset(SMALL_SCAN_MAX_SPLITS_ATTRIB, DEFAULT_SMALL_SCAN_MAX_SPLITS)
+            .setIfUnset(PIPELINED_UPSERT_SELECT_ATTRIB, DEFAULT_PIPELINED_UPSERT_SELECT)
+            .setIfUnset(MUTATE_WRITER_THREADS_ATTRIB, DEFAULT_MUTATE_WRITER_THREADS)
+            .setIfUnset(MUTATE_WRITER_THREAD_POOL_SIZE_ATTRIB, DEFAULT_MUTATE_WRITER_THREAD_POOL_SIZE)
+            .setIfUnset(MAX_PENDING_MUTATE_BATCHES_ATTRIB, DEFAULT_MAX_PENDING_MUTATE_BATCHES)
+            .setIfUnset(MAX_COMMIT_PARALLELISM_ATTRIB, DEFAULT_MAX_COMMIT_PARALLELISM)
+            .setIfUnset(MAX_COMMIT_BYTES_IN_FLIGHT_ATTRIB, DEFAULT_MAX_COMMIT_BYTES_IN_FLIGHT)
+            .setIfUnset(COMMIT_THREAD_POOL_SIZE_ATTRIB, DEFAULT_COMMIT_THREAD_POOL_SIZE)
             .setIfUnset(DROP_METADATA_ATTRIB, DEFAULT_DROP_METADATA)
             .setIfUnset(GROUPBY_SPILLABLE_ATTRIB, DEFAULT_GROUPBY_SPILLABLE)
             .setIfUnset(GROUPBY_MAX_CACHE_SIZE_ATTRIB, DEFAULT_GROUPBY_MAX_CACHE_MAX)
             .setIfUnset(GROUPBY_SPILL_FILES_ATTRIB, DEFAULT_GROUPBY_SPILL_FILES)
+            .setIfUnset(GROUPBY_OFF_HEAP_ATTRIB, DEFAULT_GROUPBY_OFF_HEAP)
+            .setIfUnset(GROUPBY_PARTIAL_FLUSH_THRESHOLD_ATTRIB, DEFAULT_GROUPBY_PARTIAL_FLUSH_THRESHOLD)
+            .setIfUnset(GROUPBY_CLIENT_AGGREGATE_THREADS_ATTRIB, DEFAULT_GROUPBY_CLIENT_AGGREGATE_THREADS)
+            .setIfUnset(GROUPBY_CLIENT_AGGREGATE_POOL_SIZE_ATTRIB, DEFAULT_GROUPBY_CLIENT_AGGREGATE_POOL_SIZE)
+            .setIfUnset(HASH_JOIN_KEY_FILTER_MAX_KEYS_ATTRIB, DEFAULT_HASH_JOIN_KEY_FILTER_MAX_KEYS)
+            .setIfUnset(HASH_JOIN_KEY_FILTER_BITS_PER_KEY_ATTRIB, DEFAULT_HASH_JOIN_KEY_FILTER_BITS_PER_KEY)
+            .setIfUnset(HASH_JOIN_CACHE_REUSE_TIME_TO_LIVE_MS_ATTRIB, DEFAULT_HASH_JOIN_CACHE_REUSE_TIME_TO_LIVE_MS)
+            .setIfUnset(MAX_SERVER_CACHE_BROADCAST_CONCURRENCY_ATTRIB, DEFAULT_MAX_SERVER_CACHE_BROADCAST_CONCURRENCY)
+            .setIfUnset(AGGREGATE_CHUNK_SIZE_ATTRIB, DEFAULT_AGGREGATE_CHUNK_SIZE)
             .setIfUnset(SEQUENCE_CACHE_SIZE_ATTRIB, DEFAULT_SEQUENCE_CACHE_SIZE)
+            .setIfUnset(SPILL_COMPRESSION_ATTRIB, DEFAULT_SPILL_COMPRESSION)
+            .setIfUnset(SPILL_CHECKSUM_ATTRIB, DEFAULT_SPILL_CHECKSUM)
+            .setIfUnset(STATS_GUIDEPOST_WIDTH_BYTES_ATTRIB, DEFAULT_STATS_GUIDEPOST_WIDTH_BYTES)
+            .setIfUnset(STATS_GUIDEPOST_MAX_SPLITS_ATTRIB, DEFAULT_STATS_GUIDEPOST_MAX_SPLITS)
             ;
         // HBase sets this to 1, so we reset it to something more appropriate.
         // Hopefully HBase will change this, because we can't know if a user set
@@ -230,6 +327,66 @@ public class QueryServicesOptions {
         return set(SPOOL_THRESHOLD_BYTES_ATTRIB, spoolThresholdBytes);
     }
     
+    public QueryServicesOptions setStreamingScan(boolean isStreamingScan) {
+        return set(STREAMING_SCAN_ATTRIB, isStreamingScan);
+    }
+    
+    public QueryServicesOptions setStreamingQueueSize(int streamingQueueSize) {
+        return set(STREAMING_QUEUE_SIZE_ATTRIB, streamingQueueSize);
+    }
+    
+    public QueryServicesOptions setStreamingSpoolAfterMs(long streamingSpoolAfterMs) {
+        return set(STREAMING_SPOOL_AFTER_MS_ATTRIB, streamingSpoolAfterMs);
+    }
+    
+    public QueryServicesOptions setSortMergeFanIn(int sortMergeFanIn) {
+        return set(SORT_MERGE_FAN_IN_ATTRIB, sortMergeFanIn);
+    }
+    
+    public QueryServicesOptions setFairScheduling(boolean isFairScheduling) {
+        return set(FAIR_SCHEDULING_ATTRIB, isFairScheduling);
+    }
+    
+    public QueryServicesOptions setSchedulerWeight(int schedulerWeight) {
+        return set(SCHEDULER_WEIGHT_ATTRIB, schedulerWeight);
+    }
+    
+    public QueryServicesOptions setMaxInFlightSplits(int maxInFlightSplits) {
+        return set(MAX_IN_FLIGHT_SPLITS_ATTRIB, maxInFlightSplits);
+    }
+    
+    public QueryServicesOptions setSmallScanMaxSplits(int smallScanMaxSplits) {
+        return set(SMALL_SCAN_MAX_SPLITS_ATTRIB, smallScanMaxSplits);
+    }
+    
+    public QueryServicesOptions setPipelinedUpsertSelect(boolean isPipelined) {
+        return set(PIPELINED_UPSERT_SELECT_ATTRIB, isPipelined);
+    }
+    
+    public QueryServicesOptions setMutateWriterThreads(int writerThreads) {
+        return set(MUTATE_WRITER_THREADS_ATTRIB, writerThreads);
+    }
+    
+    public QueryServicesOptions setMutateWriterThreadPoolSize(int writerThreadPoolSize) {
+        return set(MUTATE_WRITER_THREAD_POOL_SIZE_ATTRIB, writerThreadPoolSize);
+    }
+    
+    public QueryServicesOptions setMaxPendingMutateBatches(int maxPendingBatches) {
+        return set(MAX_PENDING_MUTATE_BATCHES_ATTRIB, maxPendingBatches);
+    }
+    
+    public QueryServicesOptions setMaxCommitParallelism(int maxCommitParallelism) {
+        return set(MAX_COMMIT_PARALLELISM_ATTRIB, maxCommitParallelism);
+    }
+    
+    public QueryServicesOptions setMaxCommitBytesInFlight(int maxCommitBytesInFlight) {
+        return set(MAX_COMMIT_BYTES_IN_FLIGHT_ATTRIB, maxCommitBytesInFlight);
+    }
+    
+    public QueryServicesOptions setCommitThreadPoolSize(int commitThreadPoolSize) {
+        return set(COMMIT_THREAD_POOL_SIZE_ATTRIB, commitThreadPoolSize);
+    }
+    
     public QueryServicesOptions setMaxMemoryPerc(int maxMemoryPerc) {
         return set(MAX_MEMORY_PERC_ATTRIB, maxMemoryPerc);
     }
@@ -309,6 +466,58 @@ public class QueryServicesOptions {
     public QueryServicesOptions setGroupBySpillNumSpillFiles(long num) {
         return set(GROUPBY_SPILL_FILES_ATTRIB, num);
     }
+    
+    public QueryServicesOptions setGroupByOffHeap(boolean enabled) {
+        return set(GROUPBY_OFF_HEAP_ATTRIB, enabled);
+    }
+    
+    public QueryServicesOptions setGroupByPartialFlushThreshold(long threshold) {
+        return set(GROUPBY_PARTIAL_FLUSH_THRESHOLD_ATTRIB, threshold);
+    }
+    
+    public QueryServicesOptions setGroupByClientAggregateThreads(int threads) {
+        return set(GROUPBY_CLIENT_AGGREGATE_THREADS_ATTRIB, threads);
+    }
+    
+    public QueryServicesOptions setGroupByClientAggregatePoolSize(int poolSize) {
+        return set(GROUPBY_CLIENT_AGGREGATE_POOL_SIZE_ATTRIB, poolSize);
+    }
+    
+    public QueryServicesOptions setHashJoinKeyFilterMaxKeys(int maxKeys) {
+        return set(HASH_JOIN_KEY_FILTER_MAX_KEYS_ATTRIB, maxKeys);
+    }
+    
+    public QueryServicesOptions setHashJoinKeyFilterBitsPerKey(int bitsPerKey) {
+        return set(HASH_JOIN_KEY_FILTER_BITS_PER_KEY_ATTRIB, bitsPerKey);
+    }
+    
+    public QueryServicesOptions setHashJoinCacheReuseTimeToLiveMs(int ttl) {
+        return set(HASH_JOIN_CACHE_REUSE_TIME_TO_LIVE_MS_ATTRIB, ttl);
+    }
+    
+    public QueryServicesOptions setMaxServerCacheBroadcastConcurrency(int concurrency) {
+        return set(MAX_SERVER_CACHE_BROADCAST_CONCURRENCY_ATTRIB, concurrency);
+    }
+    
+    public QueryServicesOptions setAggregateChunkSize(int chunkSize) {
+        return set(AGGREGATE_CHUNK_SIZE_ATTRIB, chunkSize);
+    }
+    
+    public QueryServicesOptions setSpillCompression(String algorithm) {
+        return set(SPILL_COMPRESSION_ATTRIB, algorithm);
+    }
+    
+    public QueryServicesOptions setSpillChecksum(boolean enabled) {
+        return set(SPILL_CHECKSUM_ATTRIB, enabled);
+    }
+    
+    public QueryServicesOptions setStatsGuidePostWidthBytes(long guidePostWidthBytes) {
+        return set(STATS_GUIDEPOST_WIDTH_BYTES_ATTRIB, guidePostWidthBytes);
+    }
+
+    public QueryServicesOptions setStatsGuidePostMaxSplits(int maxSplits) {
+        return set(STATS_GUIDEPOST_MAX_SPLITS_ATTRIB, maxSplits);
+    }
 
     
     private QueryServicesOptions set(String name, boolean value) {
@@ -343,6 +552,22 @@ public class QueryServicesOptions {
         return config.getInt(QUEUE_SIZE_ATTRIB, DEFAULT_QUEUE_SIZE);
     }
     
+    public int getCommitThreadPoolSize() {
+        return config.getInt(COMMIT_THREAD_POOL_SIZE_ATTRIB, DEFAULT_COMMIT_THREAD_POOL_SIZE);
+    }
+    
+    public int getMutateWriterThreadPoolSize() {
+        return config.getInt(MUTATE_WRITER_THREAD_POOL_SIZE_ATTRIB, DEFAULT_MUTATE_WRITER_THREAD_POOL_SIZE);
+    }
+    
+    public int getGroupByClientAggregatePoolSize() {
+        return config.getInt(GROUPBY_CLIENT_AGGREGATE_POOL_SIZE_ATTRIB, DEFAULT_GROUPBY_CLIENT_AGGREGATE_POOL_SIZE);
+    }
+    
+    public boolean isFairScheduling() {
+        return config.getBoolean(FAIR_SCHEDULING_ATTRIB, DEFAULT_FAIR_SCHEDULING);
+    }
+    
     public int getMaxMemoryPerc() {
         return config.getInt(MAX_MEMORY_PERC_ATTRIB, DEFAULT_MAX_MEMORY_PERC);
     }
@@ -411,6 +636,18 @@ public class QueryServicesOptions {
         return set(USE_INDEXES_ATTRIB, useIndexes);
     }
     
+    public QueryServicesOptions setIndexChoiceCacheSize(int size) {
+        return set(INDEX_CHOICE_CACHE_SIZE_ATTRIB, size);
+    }
+    
+    public QueryServicesOptions setParseTreeCacheSize(int size) {
+        return set(PARSE_TREE_CACHE_SIZE_ATTRIB, size);
+    }
+    
+    public QueryServicesOptions setBatchPointLookups(boolean batchPointLookups) {
+        return set(BATCH_POINT_LOOKUPS_ATTRIB, batchPointLookups);
+    }
+    
     public QueryServicesOptions setImmutableRows(boolean isImmutableRows) {
         return set(IMMUTABLE_ROWS_ATTRIB, isImmutableRows);
     }
@@ -19,6 +19,7 @@ package org.apache.phoenix.query;
 
 import java.sql.SQLException;
 
+import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.phoenix.schema.TableRef;
 
 
@@ -48,6 +49,15 @@ public interface StatsManager {
      */
     byte[] getMaxKey(TableRef table);
     
+    /**
+     * Get the guide posts collected for a region of the given table during its last
+     * major compaction, which split the region into chunks of roughly equal size
+     * @param table the table
+     * @param region the region
+     * @return the guide posts in ascending order or null if unknown
+     */
+    byte[][] getRegionGuidePosts(TableRef table, HRegionInfo region);
+    
     /**
      * Manually update the cached table statistics
      * @param table the table
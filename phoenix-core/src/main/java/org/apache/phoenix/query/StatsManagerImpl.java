@@ -20,20 +20,30 @@ package org.apache.phoenix.query;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.TableNotFoundException;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.phoenix.jdbc.PhoenixDatabaseMetaData;
 import org.apache.phoenix.schema.TableRef;
+import org.apache.phoenix.schema.stat.PTableStatsImpl;
+import org.apache.phoenix.schema.stat.StatisticsUtil;
+import org.apache.phoenix.util.ByteUtil;
 import org.apache.phoenix.util.SchemaUtil;
 import org.apache.phoenix.util.ServerUtil;
 
+import com.google.common.collect.Maps;
+
 
 /**
  * 
@@ -112,7 +122,8 @@ public class StatsManagerImpl implements StatsManager {
             if (r != null) {
                 maxKey = r.getRow();
             }
-            tableStatsMap.put(tableRef.getTable().getName().getString(), new PTableStats(timeKeeper.currentTimeMillis(),minKey,maxKey));
+            PTableStatsImpl guidePosts = getGuidePosts(tableRef);
+            tableStatsMap.put(tableRef.getTable().getName().getString(), new PTableStats(timeKeeper.currentTimeMillis(),minKey,maxKey,guidePosts));
         } catch (IOException e) {
             sqlE = ServerUtil.parseServerException(e);
         } finally {
@@ -132,6 +143,48 @@ public class StatsManagerImpl implements StatsManager {
         }
     }
     
+    /**
+     * Read the guide posts collected for each region of the table from the SYSTEM.STATS table.
+     * With multiple column families, the guide posts of the largest one are used.
+     */
+    private PTableStatsImpl getGuidePosts(TableRef tableRef) throws IOException, SQLException {
+        byte[] startKey = StatisticsUtil.getStartKey(tableRef.getTable().getPhysicalName().getBytes());
+        Map<String, byte[][]> guidePostsMap = Maps.newHashMap();
+        HTableInterface statsTable;
+        try {
+            statsTable = services.getTable(PhoenixDatabaseMetaData.STATS_TABLE_NAME_BYTES);
+        } catch (org.apache.phoenix.schema.TableNotFoundException e) {
+            // Stats table has not been created by a newer client yet
+            return new PTableStatsImpl(guidePostsMap);
+        }
+        try {
+            Scan scan = new Scan(startKey, ByteUtil.nextKey(startKey));
+            scan.addColumn(PhoenixDatabaseMetaData.STATS_FAMILY_BYTES, PhoenixDatabaseMetaData.GUIDE_POSTS_BYTES);
+            ResultScanner scanner = statsTable.getScanner(scan);
+            try {
+                for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                    Cell cell = r.getColumnLatestCell(PhoenixDatabaseMetaData.STATS_FAMILY_BYTES, PhoenixDatabaseMetaData.GUIDE_POSTS_BYTES);
+                    if (cell == null) {
+                        continue;
+                    }
+                    String regionName = StatisticsUtil.getRegionName(r.getRow(), startKey.length);
+                    byte[][] guidePosts = StatisticsUtil.toGuidePosts(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+                    byte[][] otherGuidePosts = guidePostsMap.get(regionName);
+                    if (otherGuidePosts == null || otherGuidePosts.length < guidePosts.length) {
+                        guidePostsMap.put(regionName, guidePosts);
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+        } catch (TableNotFoundException e) {
+            // Stats table has not been created by a newer client yet
+        } finally {
+            statsTable.close();
+        }
+        return new PTableStatsImpl(guidePostsMap);
+    }
+    
     private PTableStats getStats(final TableRef table) {
         PTableStats stats = tableStatsMap.get(table);
         if (stats == null) {
@@ -179,19 +232,27 @@ public class StatsManagerImpl implements StatsManager {
         return stats.getMaxKey();
     }
 
+    @Override
+    public byte[][] getRegionGuidePosts(TableRef table, HRegionInfo region) {
+        PTableStats stats = getStats(table);
+        return stats.getGuidePosts() == null ? null : stats.getGuidePosts().getRegionGuidePosts(region);
+    }
+
     private static class PTableStats {
         private static final PTableStats NO_STATS = new PTableStats();
         private long initiatedTime;
         private final long completedTime;
         private final byte[] minKey;
         private final byte[] maxKey;
+        private final PTableStatsImpl guidePosts;
         
         public PTableStats() {
-            this(-1,null,null);
+            this(-1,null,null,null);
         }
-        public PTableStats(long completedTime, byte[] minKey, byte[] maxKey) {
+        public PTableStats(long completedTime, byte[] minKey, byte[] maxKey, PTableStatsImpl guidePosts) {
             this.minKey = minKey;
             this.maxKey = maxKey;
+            this.guidePosts = guidePosts;
             this.completedTime = this.initiatedTime = completedTime;
         }
 
@@ -203,6 +264,10 @@ public class StatsManagerImpl implements StatsManager {
             return maxKey;
         }
 
+        private PTableStatsImpl getGuidePosts() {
+            return guidePosts;
+        }
+
         private long getCompletedTime() {
             return completedTime;
         }
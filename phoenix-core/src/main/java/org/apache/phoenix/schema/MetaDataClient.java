@@ -303,6 +303,12 @@ public class MetaDataClient {
                 // which is not really necessary unless you want to filter or add
                 // columns
                 connection.addTable(resultTable);
+                if (table != null) {
+                    // Stop reusing hash caches built from the old version of the table
+                    connection.getQueryServices().getHashCacheRegistry().invalidate(fullTableName);
+                    // Choose again among the tables a query may use
+                    connection.getQueryServices().getIndexChoiceCache().invalidate(fullTableName);
+                }
                 return result;
             } else {
                 // if (result.getMutationCode() == MutationCode.NEWER_TABLE_FOUND) {
@@ -319,6 +325,8 @@ public class MetaDataClient {
                     }
                     if (code == MutationCode.TABLE_NOT_FOUND && tryCount + 1 == maxTryCount) {
                         connection.removeTable(tenantId, fullTableName);
+                        connection.getQueryServices().getHashCacheRegistry().invalidate(fullTableName);
+                        connection.getQueryServices().getIndexChoiceCache().invalidate(fullTableName);
                     }
                 }
             }
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.schema.stat;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.phoenix.query.QueryConstants;
+import org.apache.phoenix.util.ByteUtil;
+import org.apache.phoenix.util.TrustedByteArrayOutputStream;
+
+
+/**
+ * Utilities for the rows of the SYSTEM.STATS table, keyed by the physical table name,
+ * region name and column family, with the guide posts of a region serialized as a
+ * single VARBINARY value.
+ */
+public class StatisticsUtil {
+
+    private StatisticsUtil() {
+    }
+
+    /**
+     * Get the row key of the stats for a column family of a region
+     */
+    public static byte[] getRowKey(byte[] physicalName, String regionName, byte[] family) {
+        return ByteUtil.concat(physicalName, QueryConstants.SEPARATOR_BYTE_ARRAY, Bytes.toBytes(regionName),
+                QueryConstants.SEPARATOR_BYTE_ARRAY, family);
+    }
+
+    /**
+     * Get the start row for a scan over the stats of all regions of a physical table
+     */
+    public static byte[] getStartKey(byte[] physicalName) {
+        return ByteUtil.concat(physicalName, QueryConstants.SEPARATOR_BYTE_ARRAY);
+    }
+
+    /**
+     * Get the region name from a row key of a physical table whose start key was
+     * produced by {@link #getStartKey(byte[])}
+     */
+    public static String getRegionName(byte[] rowKey, int startKeyLength) {
+        int endOffset = startKeyLength;
+        while (endOffset < rowKey.length && rowKey[endOffset] != QueryConstants.SEPARATOR_BYTE) {
+            endOffset++;
+        }
+        return Bytes.toString(rowKey, startKeyLength, endOffset - startKeyLength);
+    }
+
+    public static byte[] toBytes(List<byte[]> guidePosts) {
+        TrustedByteArrayOutputStream bytesOut = new TrustedByteArrayOutputStream(0);
+        DataOutputStream out = new DataOutputStream(bytesOut);
+        try {
+            WritableUtils.writeVInt(out, guidePosts.size());
+            for (byte[] guidePost : guidePosts) {
+                Bytes.writeByteArray(out, guidePost);
+            }
+            return bytesOut.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Impossible
+        }
+    }
+
+    public static byte[][] toGuidePosts(byte[] b, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(b, offset, length));
+        byte[][] guidePosts = new byte[WritableUtils.readVInt(in)][];
+        for (int i = 0; i < guidePosts.length; i++) {
+            guidePosts[i] = Bytes.readByteArray(in);
+        }
+        return guidePosts;
+    }
+}
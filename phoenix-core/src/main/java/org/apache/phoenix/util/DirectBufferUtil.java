@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Utilities for freeing the memory of direct buffers as soon as they're no longer used,
+ * rather than once they're garbage collected. As a direct buffer takes little heap space,
+ * the JVM may run out of direct memory long before a garbage collection frees it.
+ *
+ *
+ * @since 4.1
+ */
+public class DirectBufferUtil {
+    private static final Logger logger = LoggerFactory.getLogger(DirectBufferUtil.class);
+
+    // Unsafe.invokeCleaner(ByteBuffer) from Java 9 on
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    // DirectBuffer.cleaner() and Cleaner.clean() before Java 9
+    private static final Method CLEANER;
+    private static final Method CLEAN;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Throwable t) {
+            invokeCleaner = null;
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (Throwable t2) {
+                logger.warn("Unable to free direct buffers explicitly, leaving it to the garbage collector", t2);
+                cleaner = null;
+                clean = null;
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    private DirectBufferUtil() {
+    }
+
+    /**
+     * Free the memory of the given buffer, if it's a direct buffer. Neither the buffer nor
+     * any buffer sharing its memory may be used afterwards.
+     * @return true if the memory was freed, and false if it's left to be freed once the
+     * buffer is garbage collected
+     */
+    public static boolean free(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return false;
+        }
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return true;
+            }
+            if (CLEANER != null) {
+                Object cleaner = CLEANER.invoke(buffer);
+                // Slices and duplicates don't own their memory, so they have no cleaner
+                if (cleaner != null) {
+                    CLEAN.invoke(cleaner);
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Unable to free direct buffer", e);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.io.compress.Compression.Algorithm;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.query.QueryServicesOptions;
+
+/**
+ *
+ * Codec for the blocks of data that are spilled to local temp files. Each block is
+ * framed by a header holding its raw length, its stored length and an optional CRC32
+ * checksum of the stored bytes. Blocks are compressed with the HBase compression
+ * {@link Algorithm} configured through {@link QueryServices#SPILL_COMPRESSION_ATTRIB},
+ * and are stored uncompressed if compression doesn't make them any smaller.
+ *
+ * Instances hold a reusable buffer and are not thread safe.
+ *
+ *
+ * @since 4.1
+ */
+public class SpillCodec {
+    public static final int HEADER_SIZE = 3 * Bytes.SIZEOF_INT;
+
+    /**
+     * The components that spill to local temp files, for which metrics are kept
+     */
+    public enum SpillType {SPOOL, ORDER_BY, GROUP_BY};
+
+    private static final AtomicLong[] BYTES_BEFORE_ENCODING = new AtomicLong[SpillType.values().length];
+    private static final AtomicLong[] BYTES_AFTER_ENCODING = new AtomicLong[SpillType.values().length];
+    static {
+        for (int i = 0; i < BYTES_BEFORE_ENCODING.length; i++) {
+            BYTES_BEFORE_ENCODING[i] = new AtomicLong();
+            BYTES_AFTER_ENCODING[i] = new AtomicLong();
+        }
+    }
+
+    private final Algorithm algorithm;
+    private final boolean isChecksumEnabled;
+    private final SpillType type;
+    private final CRC32 crc = new CRC32();
+    private final TrustedByteArrayOutputStream compressed = new TrustedByteArrayOutputStream(0);
+    private byte[] stored = ByteUtil.EMPTY_BYTE_ARRAY;
+
+    public SpillCodec(Algorithm algorithm, boolean isChecksumEnabled, SpillType type) {
+        this.algorithm = algorithm == Algorithm.NONE ? null : algorithm;
+        this.isChecksumEnabled = isChecksumEnabled;
+        this.type = type;
+    }
+
+    public static SpillCodec getCodec(ReadOnlyProps props, SpillType type) {
+        return new SpillCodec(
+                Compression.getCompressionAlgorithmByName(props.get(QueryServices.SPILL_COMPRESSION_ATTRIB, QueryServicesOptions.DEFAULT_SPILL_COMPRESSION)),
+                props.getBoolean(QueryServices.SPILL_CHECKSUM_ATTRIB, QueryServicesOptions.DEFAULT_SPILL_CHECKSUM),
+                type);
+    }
+
+    public static SpillCodec getCodec(Configuration conf, SpillType type) {
+        return new SpillCodec(
+                Compression.getCompressionAlgorithmByName(conf.get(QueryServices.SPILL_COMPRESSION_ATTRIB, QueryServicesOptions.DEFAULT_SPILL_COMPRESSION)),
+                conf.getBoolean(QueryServices.SPILL_CHECKSUM_ATTRIB, QueryServicesOptions.DEFAULT_SPILL_CHECKSUM),
+                type);
+    }
+
+    public boolean isCompressionEnabled() {
+        return algorithm != null;
+    }
+
+    /**
+     * Get the total number of bytes passed to {@link #encode(byte[], int, int, OutputStream)}
+     * for the given type of spill across all codecs.
+     */
+    public static long getBytesBeforeEncoding(SpillType type) {
+        return BYTES_BEFORE_ENCODING[type.ordinal()].get();
+    }
+
+    /**
+     * Get the total number of bytes, including headers, written by
+     * {@link #encode(byte[], int, int, OutputStream)} for the given type of spill across all codecs.
+     */
+    public static long getBytesAfterEncoding(SpillType type) {
+        return BYTES_AFTER_ENCODING[type.ordinal()].get();
+    }
+
+    /**
+     * Encode a block, writing its header and stored bytes to the output stream.
+     * @return the number of bytes written
+     */
+    public int encode(byte[] b, int offset, int length, OutputStream out) throws IOException {
+        byte[] storedBytes = b;
+        int storedOffset = offset;
+        int storedLength = length;
+        if (algorithm != null) {
+            compressed.reset();
+            Compressor compressor = algorithm.getCompressor();
+            try {
+                OutputStream compressionStream = algorithm.createCompressionStream(compressed, compressor, 0);
+                compressionStream.write(b, offset, length);
+                compressionStream.flush();
+            } finally {
+                algorithm.returnCompressor(compressor);
+            }
+            // A stored length equal to the raw length means the block is not compressed
+            if (compressed.size() < length) {
+                storedBytes = compressed.getBuffer();
+                storedOffset = 0;
+                storedLength = compressed.size();
+            }
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        Bytes.putInt(header, 0, length);
+        Bytes.putInt(header, Bytes.SIZEOF_INT, storedLength);
+        Bytes.putInt(header, 2 * Bytes.SIZEOF_INT, checksum(storedBytes, storedOffset, storedLength));
+        out.write(header);
+        out.write(storedBytes, storedOffset, storedLength);
+        BYTES_BEFORE_ENCODING[type.ordinal()].addAndGet(length);
+        BYTES_AFTER_ENCODING[type.ordinal()].addAndGet(HEADER_SIZE + storedLength);
+        return HEADER_SIZE + storedLength;
+    }
+
+    /**
+     * Get the raw length of the block starting at the current position of the buffer
+     * without consuming it.
+     */
+    public static int getRawLength(ByteBuffer in) {
+        return in.getInt(in.position());
+    }
+
+    /**
+     * Decode the block starting at the current position of the buffer into the
+     * destination array, which must be at least the raw length of the block.
+     * @return the raw length of the block
+     * @throws IOException if the checksum of the block doesn't match
+     */
+    public int decode(ByteBuffer in, byte[] dest) throws IOException {
+        int length = in.getInt();
+        int storedLength = in.getInt();
+        int checksum = in.getInt();
+        boolean isCompressed = storedLength != length;
+        byte[] storedBytes = dest;
+        if (isCompressed) {
+            if (stored.length < storedLength) {
+                stored = new byte[storedLength];
+            }
+            storedBytes = stored;
+        }
+        in.get(storedBytes, 0, storedLength);
+        if (checksum(storedBytes, 0, storedLength) != checksum) {
+            throw new IOException("Checksum mismatch in spilled block of " + storedLength + " bytes");
+        }
+        if (isCompressed) {
+            if (algorithm == null) {
+                throw new IOException("Compressed spilled block found with no compression configured");
+            }
+            Decompressor decompressor = algorithm.getDecompressor();
+            try {
+                InputStream decompressionStream = algorithm.createDecompressionStream(
+                        new ByteArrayInputStream(storedBytes, 0, storedLength), decompressor, 0);
+                IOUtils.readFully(decompressionStream, dest, 0, length);
+            } finally {
+                algorithm.returnDecompressor(decompressor);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Compute the checksum for a block or page of spilled data, or 0 if checksums are disabled.
+     */
+    public int checksum(byte[] b, int offset, int length) {
+        if (!isChecksumEnabled) {
+            return 0;
+        }
+        crc.reset();
+        crc.update(b, offset, length);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Verify the checksum for a page of spilled data that isn't framed by {@link #encode(byte[], int, int, OutputStream)}.
+     * @throws IOException if the checksum doesn't match
+     */
+    public void verifyChecksum(byte[] b, int offset, int length, int checksum) throws IOException {
+        if (isChecksumEnabled && checksum(b, offset, length) != checksum) {
+            throw new IOException("Checksum mismatch in spilled page of " + length + " bytes");
+        }
+    }
+
+    /**
+     * Track the bytes written for spilled data that isn't framed by {@link #encode(byte[], int, int, OutputStream)}.
+     */
+    public void trackBytes(int bytesBefore, int bytesAfter) {
+        BYTES_BEFORE_ENCODING[type.ordinal()].addAndGet(bytesBefore);
+        BYTES_AFTER_ENCODING[type.ordinal()].addAndGet(bytesAfter);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.cache.aggcache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.expression.LiteralExpression;
+import org.apache.phoenix.expression.aggregator.Aggregator;
+import org.apache.phoenix.expression.aggregator.ServerAggregators;
+import org.apache.phoenix.expression.function.CountAggregateFunction;
+import org.apache.phoenix.expression.function.MinAggregateFunction;
+import org.apache.phoenix.expression.function.SingleAggregateFunction;
+import org.apache.phoenix.expression.function.SumAggregateFunction;
+import org.apache.phoenix.memory.GlobalMemoryManager;
+import org.apache.phoenix.schema.PDataType;
+import org.junit.Test;
+
+
+public class OffHeapGroupByCacheTest {
+    private static final int GROUP_COUNT = 100;
+    private static final int ROW_COUNT = 1000;
+
+    private static ServerAggregators newAggregators() {
+        List<Expression> longChild = Collections.<Expression>singletonList(LiteralExpression.newConstant(1L));
+        List<Expression> intChild = Collections.<Expression>singletonList(LiteralExpression.newConstant(1));
+        List<SingleAggregateFunction> functions = Arrays.<SingleAggregateFunction>asList(
+                new CountAggregateFunction(longChild),
+                new SumAggregateFunction(longChild),
+                new MinAggregateFunction(intChild, null));
+        return ServerAggregators.deserialize(ServerAggregators.serialize(functions, functions.size()), null);
+    }
+
+    private static ImmutableBytesWritable getKey(int group) {
+        return new ImmutableBytesWritable(Bytes.toBytes("key" + group));
+    }
+
+    private static long evaluateLong(Aggregator aggregator) {
+        ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+        assertTrue(aggregator.evaluate(null, ptr));
+        return ((Number)aggregator.getDataType().toObject(ptr)).longValue();
+    }
+
+    @Test
+    public void testAggregateAcrossGrowth() throws Exception {
+        GlobalMemoryManager memoryManager = new GlobalMemoryManager(10 * 1024 * 1024, 1);
+        ServerAggregators aggregators = newAggregators();
+        assertTrue(OffHeapGroupByCache.isSupported(aggregators.getAggregators()));
+        // Start small so that both the hash table and the entries have to grow
+        OffHeapGroupByCache cache = new OffHeapGroupByCache(memoryManager, aggregators, aggregators.newAggregators(null), 1);
+        ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            Aggregator[] rowAggregators = cache.cache(getKey(i % GROUP_COUNT));
+            rowAggregators[0].aggregate(null, ptr);
+            ptr.set(PDataType.LONG.toBytes((long)i));
+            rowAggregators[1].aggregate(null, ptr);
+            ptr.set(PDataType.INTEGER.toBytes(ROW_COUNT - i));
+            rowAggregators[2].aggregate(null, ptr);
+        }
+        assertEquals(GROUP_COUNT, cache.size());
+        assertEquals(memoryManager.getMaxMemory() - cache.getChargedSize(), memoryManager.getAvailableMemory());
+
+        for (int group = 0; group < GROUP_COUNT; group++) {
+            Aggregator[] rowAggregators = cache.cache(getKey(group));
+            int rowsPerGroup = ROW_COUNT / GROUP_COUNT;
+            long expectedSum = (long)group * rowsPerGroup + (long)GROUP_COUNT * rowsPerGroup * (rowsPerGroup - 1) / 2;
+            assertEquals(rowsPerGroup, evaluateLong(rowAggregators[0]));
+            assertEquals(expectedSum, evaluateLong(rowAggregators[1]));
+            assertEquals(ROW_COUNT - (group + GROUP_COUNT * (rowsPerGroup - 1)), evaluateLong(rowAggregators[2]));
+        }
+        assertEquals(GROUP_COUNT, cache.size());
+
+        RegionScanner scanner = cache.getScanner(null);
+        int rowCount = 0;
+        boolean hasMore;
+        do {
+            List<Cell> results = new ArrayList<Cell>();
+            hasMore = scanner.next(results);
+            rowCount += results.size();
+        } while (hasMore);
+        assertEquals(GROUP_COUNT, rowCount);
+        assertFalse(scanner.next(new ArrayList<Cell>()));
+
+        cache.close();
+        assertEquals(memoryManager.getMaxMemory(), memoryManager.getAvailableMemory());
+    }
+
+    @Test
+    public void testNullStateKept() throws Exception {
+        GlobalMemoryManager memoryManager = new GlobalMemoryManager(1024 * 1024, 1);
+        ServerAggregators aggregators = newAggregators();
+        OffHeapGroupByCache cache = new OffHeapGroupByCache(memoryManager, aggregators, aggregators.newAggregators(null), 10);
+        ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+        Aggregator[] rowAggregators = cache.cache(getKey(0));
+        rowAggregators[0].aggregate(null, ptr);
+        // A second group that sees a value, so the aggregators hold a value when switching back
+        rowAggregators = cache.cache(getKey(1));
+        ptr.set(PDataType.LONG.toBytes(5L));
+        rowAggregators[1].aggregate(null, ptr);
+        ptr.set(PDataType.INTEGER.toBytes(5));
+        rowAggregators[2].aggregate(null, ptr);
+
+        rowAggregators = cache.cache(getKey(0));
+        assertEquals(1, evaluateLong(rowAggregators[0]));
+        assertFalse(rowAggregators[1].evaluate(null, ptr));
+        assertFalse(rowAggregators[2].evaluate(null, ptr));
+        rowAggregators = cache.cache(getKey(1));
+        assertEquals(5, evaluateLong(rowAggregators[1]));
+        assertEquals(5, evaluateLong(rowAggregators[2]));
+        cache.close();
+    }
+
+    @Test
+    public void testCloseAfterGrowth() throws Exception {
+        GlobalMemoryManager memoryManager = new GlobalMemoryManager(10 * 1024 * 1024, 1);
+        ServerAggregators aggregators = newAggregators();
+        OffHeapGroupByCache cache = new OffHeapGroupByCache(memoryManager, aggregators, aggregators.newAggregators(null), 1);
+        ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            cache.cache(getKey(i))[0].aggregate(null, ptr);
+        }
+        // The buffers replaced while growing were freed, and closing frees the current ones
+        cache.close();
+        cache.close();
+        assertEquals(0, cache.getChargedSize());
+        assertEquals(memoryManager.getMaxMemory(), memoryManager.getAvailableMemory());
+    }
+}
@@ -27,6 +27,7 @@ import static org.apache.phoenix.util.TestUtil.JOIN_SUPPLIER_TABLE_DISPLAY_NAME;
 import static org.apache.phoenix.util.TestUtil.JOIN_SUPPLIER_TABLE_FULL_NAME;
 import static org.apache.phoenix.util.TestUtil.TEST_PROPERTIES;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -71,6 +72,29 @@ public class JoinQueryCompilerTest extends BaseConnectionlessQueryTest {
         		"    AFTER-JOIN SERVER FILTER BY I.NAME LIKE 'T%'", QueryUtil.getExplainPlan(rs));
     }
 
+    @Test
+    public void testSortMergeJoinExplainPlan() throws Exception {
+        Connection conn = DriverManager.getConnection(getUrl());
+        String query = "EXPLAIN SELECT /*+ USE_SORT_MERGE_JOIN */ \"order_id\", i.name FROM " + JOIN_ORDER_TABLE_FULL_NAME + " o JOIN " 
+        + JOIN_ITEM_TABLE_FULL_NAME + " i ON o.\"item_id\" = i.\"item_id\"";
+        ResultSet rs = conn.createStatement().executeQuery(query);
+        String plan = QueryUtil.getExplainPlan(rs);
+        assertTrue(plan, plan.startsWith(
+                "SORT-MERGE-JOIN (INNER) TABLES\n" +
+                "    CLIENT PARALLEL 1-WAY FULL SCAN OVER " + JOIN_ORDER_TABLE_DISPLAY_NAME + "\n"));
+        // The item table is read in the order of its row key, which is the join key
+        assertTrue(plan, plan.endsWith(
+                "AND\n" +
+                "    CLIENT PARALLEL 1-WAY FULL SCAN OVER " + JOIN_ITEM_TABLE_DISPLAY_NAME));
+        
+        query = "EXPLAIN SELECT /*+ USE_SORT_MERGE_JOIN */ \"order_id\", i.name FROM " + JOIN_ORDER_TABLE_FULL_NAME + " o LEFT JOIN " 
+        + JOIN_ITEM_TABLE_FULL_NAME + " i ON o.\"item_id\" = i.\"item_id\" ORDER BY i.name";
+        rs = conn.createStatement().executeQuery(query);
+        plan = QueryUtil.getExplainPlan(rs);
+        assertTrue(plan, plan.startsWith("SORT-MERGE-JOIN (LEFT) TABLES\n"));
+        assertTrue(plan, plan.endsWith("CLIENT SORTED BY [I.NAME]"));
+    }
+
     @Test
     public void testWhereClauseOptimization() throws Exception {
         PhoenixConnection pconn = DriverManager.getConnection(getUrl(), TEST_PROPERTIES).unwrap(PhoenixConnection.class);
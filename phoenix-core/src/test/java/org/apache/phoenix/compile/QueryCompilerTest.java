@@ -46,8 +46,10 @@ import org.apache.phoenix.expression.aggregator.ServerAggregators;
 import org.apache.phoenix.expression.function.TimeUnit;
 import org.apache.phoenix.jdbc.PhoenixConnection;
 import org.apache.phoenix.jdbc.PhoenixPreparedStatement;
+import org.apache.phoenix.jdbc.PhoenixStatement;
 import org.apache.phoenix.query.BaseConnectionlessQueryTest;
 import org.apache.phoenix.query.QueryConstants;
+import org.apache.phoenix.query.QueryServices;
 import org.apache.phoenix.schema.AmbiguousColumnException;
 import org.apache.phoenix.schema.ColumnAlreadyExistsException;
 import org.apache.phoenix.schema.ColumnNotFoundException;
@@ -641,6 +643,47 @@ public class QueryCompilerTest extends BaseConnectionlessQueryTest {
         }
     }
     
+    private static boolean isPartialFlush(String query, Long partialFlushThreshold) throws SQLException {
+        Properties props = new Properties();
+        props.putAll(TestUtil.TEST_PROPERTIES);
+        if (partialFlushThreshold != null) {
+            props.setProperty(QueryServices.GROUPBY_PARTIAL_FLUSH_THRESHOLD_ATTRIB, Long.toString(partialFlushThreshold));
+        }
+        Connection conn = DriverManager.getConnection(getUrl(), props);
+        try {
+            QueryPlan plan = conn.createStatement().unwrap(PhoenixStatement.class).compileQuery(query);
+            return plan.getContext().getScan().getAttribute(BaseScannerRegionObserver.GROUP_BY_PARTIAL_FLUSH) != null;
+        } finally {
+            conn.close();
+        }
+    }
+    
+    @Test
+    public void testGroupByPartialFlush() throws Exception {
+        String[] queries = new String[] {
+            "SELECT count(1) FROM atable GROUP BY entity_id",
+            "SELECT count(1) FROM atable GROUP BY a_byte,a_short",
+            "SELECT count(1) FROM atable GROUP BY a_byte",
+            "SELECT count(1) FROM atable GROUP BY a_short",
+            "SELECT count(1) FROM atable GROUP BY organization_id",
+        };
+        // Disabled unless a threshold is set
+        for (String query : queries) {
+            assertFalse(query, isPartialFlush(query, null));
+        }
+        // Groups of an unbounded type or of both a_byte and a_short are above the threshold,
+        // while those of a_byte (257 values with null) or a_short alone are below it
+        long threshold = 1000000;
+        assertTrue(isPartialFlush(queries[0], threshold));
+        assertTrue(isPartialFlush(queries[1], threshold));
+        assertFalse(isPartialFlush(queries[2], threshold));
+        assertFalse(isPartialFlush(queries[3], threshold));
+        // Ordered by the row key, so never flushed
+        assertFalse(isPartialFlush(queries[4], threshold));
+        assertTrue(isPartialFlush(queries[2], 256L));
+        assertFalse(isPartialFlush(queries[2], 257L));
+    }
+    
     @Test
     public void testFunkyColumnNames() throws Exception {
         // Select columns in PK
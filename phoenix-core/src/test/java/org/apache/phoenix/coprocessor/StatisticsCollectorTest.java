@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.coprocessor;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
+import org.apache.hadoop.hbase.regionserver.ScanType;
+import org.apache.hadoop.hbase.regionserver.Store;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+
+public class StatisticsCollectorTest {
+    private static final TableName TABLE_NAME = TableName.valueOf("T");
+
+    private static HRegionInfo newRegion(String startKey, String endKey, long regionId) {
+        return new HRegionInfo(TABLE_NAME, startKey == null ? HConstants.EMPTY_START_ROW : Bytes.toBytes(startKey),
+                endKey == null ? HConstants.EMPTY_END_ROW : Bytes.toBytes(endKey), false, regionId);
+    }
+
+    @Test
+    public void testSplitParent() throws Exception {
+        HRegionInfo parent = newRegion("c", "m", 1);
+        HRegionInfo left = newRegion("c", "g", 2);
+        HRegionInfo right = newRegion("g", "m", 2);
+        assertTrue(StatisticsCollector.isParentRegion(left, parent.getRegionNameAsString()));
+        // The left daughter deletes the guide posts of the parent
+        assertFalse(StatisticsCollector.isParentRegion(right, parent.getRegionNameAsString()));
+        assertFalse(StatisticsCollector.isParentRegion(left, left.getRegionNameAsString()));
+        assertFalse(StatisticsCollector.isParentRegion(left, right.getRegionNameAsString()));
+    }
+
+    @Test
+    public void testMergeParents() throws Exception {
+        HRegionInfo first = newRegion(null, "g", 1);
+        HRegionInfo second = newRegion("g", null, 1);
+        HRegionInfo merged = newRegion(null, null, 2);
+        assertTrue(StatisticsCollector.isParentRegion(merged, first.getRegionNameAsString()));
+        assertTrue(StatisticsCollector.isParentRegion(merged, second.getRegionNameAsString()));
+        assertFalse(StatisticsCollector.isParentRegion(first, second.getRegionNameAsString()));
+    }
+
+    private static RegionCoprocessorEnvironment newEnvironment(HTableInterface statsTable) throws Exception {
+        RegionCoprocessorEnvironment env = mock(RegionCoprocessorEnvironment.class);
+        HRegion region = mock(HRegion.class);
+        when(region.getRegionInfo()).thenReturn(newRegion(null, null, 1));
+        when(env.getRegion()).thenReturn(region);
+        when(env.getConfiguration()).thenReturn(new Configuration(false));
+        when(env.getTable(any(TableName.class))).thenReturn(statsTable);
+        return env;
+    }
+
+    private static HTableInterface newStatsTable() throws Exception {
+        HTableInterface statsTable = mock(HTableInterface.class);
+        when(statsTable.getScanner(any(Scan.class))).thenReturn(mock(ResultScanner.class));
+        return statsTable;
+    }
+
+    private static void compact(StatisticsCollector collector, ObserverContext<RegionCoprocessorEnvironment> c,
+            Store store, boolean readAll, boolean completed) throws Exception {
+        InternalScanner delegate = mock(InternalScanner.class);
+        when(delegate.next(anyListOf(Cell.class))).thenReturn(!readAll);
+        InternalScanner scanner = collector.preCompact(c, store, delegate, ScanType.COMPACT_DROP_DELETES);
+        scanner.next(new ArrayList<Cell>());
+        scanner.close();
+        if (completed) {
+            collector.postCompact(c, store, null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void assertGuidePostsWritten(boolean readAll, boolean completed, boolean written) throws Exception {
+        HTableInterface statsTable = newStatsTable();
+        ObserverContext<RegionCoprocessorEnvironment> c = mock(ObserverContext.class);
+        when(c.getEnvironment()).thenReturn(newEnvironment(statsTable));
+        Store store = mock(Store.class);
+        when(store.getFamily()).thenReturn(new HColumnDescriptor("0"));
+        compact(new StatisticsCollector(), c, store, readAll, completed);
+        if (written) {
+            verify(statsTable).put(any(Put.class));
+        } else {
+            verify(statsTable, never()).put(any(Put.class));
+        }
+    }
+
+    @Test
+    public void testGuidePostsWrittenOnceCompacted() throws Exception {
+        assertGuidePostsWritten(true, true, true);
+    }
+
+    @Test
+    public void testGuidePostsNotWrittenIfCompactionFails() throws Exception {
+        assertGuidePostsWritten(true, false, false);
+    }
+
+    @Test
+    public void testGuidePostsNotWrittenIfStoreNotRead() throws Exception {
+        assertGuidePostsWritten(false, true, false);
+    }
+}
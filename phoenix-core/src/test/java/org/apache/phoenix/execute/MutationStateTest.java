@@ -0,0 +1,350 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.execute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.coprocessor.MetaDataProtocol.MetaDataMutationResult;
+import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
+import org.apache.phoenix.jdbc.PhoenixConnection;
+import org.apache.phoenix.query.BaseConnectionlessQueryTest;
+import org.apache.phoenix.query.DelegateConnectionQueryServices;
+import org.apache.phoenix.schema.PColumn;
+import org.apache.phoenix.schema.PName;
+import org.apache.phoenix.schema.PTable;
+import org.apache.phoenix.schema.PTableKey;
+import org.apache.phoenix.schema.TableRef;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+public class MutationStateTest extends BaseConnectionlessQueryTest {
+    private static final TableName TABLE_NAME = TableName.valueOf("T");
+
+    private static List<HRegionLocation> newRegions(String... splitKeys) {
+        return newRegions(TABLE_NAME, splitKeys);
+    }
+
+    private static List<HRegionLocation> newRegions(TableName tableName, String... splitKeys) {
+        List<HRegionLocation> regions = new ArrayList<HRegionLocation>();
+        byte[] startKey = HConstants.EMPTY_START_ROW;
+        for (int i = 0; i <= splitKeys.length; i++) {
+            byte[] endKey = i == splitKeys.length ? HConstants.EMPTY_END_ROW : Bytes.toBytes(splitKeys[i]);
+            regions.add(new HRegionLocation(new HRegionInfo(tableName, startKey, endKey),
+                    ServerName.valueOf("host" + (i % 2), HConstants.DEFAULT_REGIONSERVER_PORT, 0), -1));
+            startKey = endKey;
+        }
+        return regions;
+    }
+
+    private static int getRegionIndex(List<HRegionLocation> regions, String row) {
+        byte[] b = Bytes.toBytes(row);
+        return MutationState.getRegionIndex(regions, b, 0, b.length);
+    }
+
+    @Test
+    public void testGetRegionIndex() {
+        List<HRegionLocation> regions = newRegions("c", "f", "k");
+        assertEquals(0, getRegionIndex(regions, ""));
+        assertEquals(0, getRegionIndex(regions, "b"));
+        assertEquals(1, getRegionIndex(regions, "c"));
+        assertEquals(1, getRegionIndex(regions, "ezz"));
+        assertEquals(2, getRegionIndex(regions, "f"));
+        assertEquals(3, getRegionIndex(regions, "k"));
+        assertEquals(3, getRegionIndex(regions, "zzz"));
+    }
+
+    @Test
+    public void testGetRegionIndexSingleRegion() {
+        List<HRegionLocation> regions = newRegions();
+        assertEquals(0, getRegionIndex(regions, "a"));
+    }
+
+    /**
+     * Services whose tables record the batches sent to them, in the order they're sent,
+     * with every table split into two regions on different servers.
+     */
+    private static class RecordingQueryServices extends DelegateConnectionQueryServices {
+        private final List<String> batchTableNames = Collections.synchronizedList(new ArrayList<String>());
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        private final AtomicInteger regionLookupCount = new AtomicInteger();
+        private final List<String> tableLookupThreadNames = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> dataRowKeys = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> dataBatchThreadNames = Collections.synchronizedList(new ArrayList<String>());
+        private volatile String failingTableName;
+        private volatile ExecutorService mutationWriterExecutor;
+
+        private RecordingQueryServices(PhoenixConnection conn) {
+            super(conn.getQueryServices());
+        }
+
+        @Override
+        public HTableInterface getTable(final byte[] tableName) throws SQLException {
+            HTableInterface hTable = mock(HTableInterface.class);
+            try {
+                doAnswer(new Answer<Object[]>() {
+                    @Override
+                    public Object[] answer(InvocationOnMock invocation) throws Throwable {
+                        String name = Bytes.toString(tableName);
+                        if (name.equals(failingTableName)) {
+                            throw new IOException("Failed batch of " + name);
+                        }
+                        List<?> mutations = (List<?>)invocation.getArguments()[0];
+                        batchTableNames.add(name);
+                        batchSizes.add(mutations.size());
+                        if (name.equals("T")) {
+                            for (Object mutation : mutations) {
+                                dataRowKeys.add(Bytes.toString(((Mutation)mutation).getRow()));
+                            }
+                            dataBatchThreadNames.add(Thread.currentThread().getName());
+                        }
+                        return new Object[mutations.size()];
+                    }
+                }).when(hTable).batch(Matchers.<List<Row>>any());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return hTable;
+        }
+
+        @Override
+        public List<HRegionLocation> getAllTableRegions(byte[] tableName) throws SQLException {
+            regionLookupCount.incrementAndGet();
+            return newRegions(TableName.valueOf(tableName), "m");
+        }
+
+        @Override
+        public MetaDataMutationResult getTable(PName tenantId, byte[] schemaBytes, byte[] tableBytes, long tableTimestamp, long clientTimestamp) throws SQLException {
+            tableLookupThreadNames.add(Thread.currentThread().getName());
+            return super.getTable(tenantId, schemaBytes, tableBytes, tableTimestamp, clientTimestamp);
+        }
+
+        @Override
+        public ExecutorService getMutationWriterExecutor() {
+            return mutationWriterExecutor == null ? super.getMutationWriterExecutor() : mutationWriterExecutor;
+        }
+    }
+
+    private static Connection newCommitConnection(RecordingQueryServices services, PhoenixConnection conn) throws SQLException {
+        Connection commitConn = new PhoenixConnection(services, conn.getURL(), conn.getClientInfo(), conn.getMetaDataCache());
+        commitConn.setAutoCommit(false);
+        return commitConn;
+    }
+
+    private static void upsertRows(Connection conn, int rowCount) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("UPSERT INTO T VALUES(?, ?)");
+        for (int i = 0; i < rowCount; i++) {
+            // Half of the keys sort before the region boundary and half after it
+            String key = (i % 2 == 0 ? "a" : "x") + i;
+            stmt.setString(1, key);
+            stmt.setString(2, key);
+            stmt.execute();
+        }
+    }
+
+    private static PhoenixConnection createTables() throws SQLException {
+        PhoenixConnection conn = DriverManager.getConnection(getUrl()).unwrap(PhoenixConnection.class);
+        conn.createStatement().execute("CREATE TABLE IF NOT EXISTS T (k VARCHAR PRIMARY KEY, v VARCHAR) IMMUTABLE_ROWS=true");
+        conn.createStatement().execute("CREATE INDEX IF NOT EXISTS I ON T (v)");
+        return conn;
+    }
+
+    @Test
+    public void testCommitDataBeforeIndex() throws Exception {
+        PhoenixConnection conn = createTables();
+        try {
+            RecordingQueryServices services = new RecordingQueryServices(conn);
+            Connection commitConn = newCommitConnection(services, conn);
+            upsertRows(commitConn, MutationState.MIN_SPLIT_MUTATION_COUNT);
+            commitConn.commit();
+
+            // A batch per server for the data table, and then for the index
+            assertEquals(4, services.batchTableNames.size());
+            assertEquals("T", services.batchTableNames.get(0));
+            assertEquals("T", services.batchTableNames.get(1));
+            assertEquals("I", services.batchTableNames.get(2));
+            assertEquals("I", services.batchTableNames.get(3));
+            int rowCount = 0;
+            for (int size : services.batchSizes) {
+                rowCount += size;
+            }
+            assertEquals(2 * MutationState.MIN_SPLIT_MUTATION_COUNT, rowCount);
+            commitConn.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testSmallCommitNotSplit() throws Exception {
+        PhoenixConnection conn = createTables();
+        try {
+            RecordingQueryServices services = new RecordingQueryServices(conn);
+            Connection commitConn = newCommitConnection(services, conn);
+            upsertRows(commitConn, 2);
+            commitConn.commit();
+
+            assertEquals(0, services.regionLookupCount.get());
+            assertEquals(2, services.batchTableNames.size());
+            assertEquals("T", services.batchTableNames.get(0));
+            assertEquals("I", services.batchTableNames.get(1));
+            commitConn.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testIndexNotWrittenWhenDataFails() throws Exception {
+        PhoenixConnection conn = createTables();
+        try {
+            RecordingQueryServices services = new RecordingQueryServices(conn);
+            services.failingTableName = "T";
+            Connection commitConn = newCommitConnection(services, conn);
+            upsertRows(commitConn, MutationState.MIN_SPLIT_MUTATION_COUNT);
+            try {
+                commitConn.commit();
+                fail();
+            } catch (CommitException e) {
+                assertTrue(services.batchTableNames.isEmpty());
+            }
+            commitConn.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Write batches of a row on each side of the region boundary, with keys made of the side,
+     * the given tag and the batch number
+     */
+    private static void writeBatches(PipelinedMutationWriter writer, PColumn column, String tag, int batchCount) throws SQLException {
+        for (int i = 0; i < batchCount; i++) {
+            Map<ImmutableBytesPtr,Map<PColumn,byte[]>> rows = Maps.newHashMap();
+            for (String key : new String[] {"a" + tag + "-" + i, "x" + tag + "-" + i}) {
+                Map<PColumn,byte[]> values = Maps.newHashMap();
+                values.put(column, Bytes.toBytes(key));
+                rows.put(new ImmutableBytesPtr(Bytes.toBytes(key)), values);
+            }
+            writer.write(rows);
+        }
+    }
+
+    @Test
+    public void testPipelinedWriterValidatesOnce() throws Exception {
+        PhoenixConnection conn = createTables();
+        try {
+            RecordingQueryServices services = new RecordingQueryServices(conn);
+            // Not auto commit, so that validating the table looks it up
+            PhoenixConnection commitConn = newCommitConnection(services, conn).unwrap(PhoenixConnection.class);
+            PTable table = commitConn.getMetaDataCache().getTable(new PTableKey(null, "T"));
+            PColumn column = table.getColumn("V");
+            PipelinedMutationWriter writer = new PipelinedMutationWriter(commitConn, new TableRef(table), Integer.MAX_VALUE);
+            int batchCount = 10;
+            writeBatches(writer, column, "", batchCount);
+            writer.close();
+
+            // The table was only looked up by the constructor, on the caller thread
+            assertEquals(Collections.singletonList(Thread.currentThread().getName()), services.tableLookupThreadNames);
+            int rowCount = 0;
+            for (int size : services.batchSizes) {
+                rowCount += size;
+            }
+            // Each row written to the data table and its index
+            assertEquals(2 * 2 * batchCount, rowCount);
+            commitConn.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testPipelinedWritersShareThreadPool() throws Exception {
+        PhoenixConnection conn = createTables();
+        ExecutorService executor = Executors.newFixedThreadPool(2,
+                new ThreadFactoryBuilder().setNameFormat("shared-writer-%s").setDaemon(true).build());
+        try {
+            RecordingQueryServices services = new RecordingQueryServices(conn);
+            services.mutationWriterExecutor = executor;
+            PhoenixConnection commitConn = newCommitConnection(services, conn).unwrap(PhoenixConnection.class);
+            PTable table = commitConn.getMetaDataCache().getTable(new PTableKey(null, "T"));
+            PColumn column = table.getColumn("V");
+            int batchCount = 20;
+            // Two statements writing at the same time
+            PipelinedMutationWriter writer1 = new PipelinedMutationWriter(commitConn, new TableRef(table), Integer.MAX_VALUE);
+            PipelinedMutationWriter writer2 = new PipelinedMutationWriter(commitConn, new TableRef(table), Integer.MAX_VALUE);
+            writeBatches(writer1, column, "1", batchCount);
+            writeBatches(writer2, column, "2", batchCount);
+            writer1.close();
+            writer2.close();
+
+            for (String threadName : services.dataBatchThreadNames) {
+                assertTrue(threadName, threadName.startsWith("shared-writer-"));
+            }
+            // The batches of each statement to a region are written in order
+            for (String prefix : new String[] {"a1-", "x1-", "a2-", "x2-"}) {
+                List<String> expectedKeys = new ArrayList<String>();
+                for (int i = 0; i < batchCount; i++) {
+                    expectedKeys.add(prefix + i);
+                }
+                List<String> keys = new ArrayList<String>();
+                for (String key : services.dataRowKeys) {
+                    if (key.startsWith(prefix)) {
+                        keys.add(key);
+                    }
+                }
+                assertEquals(expectedKeys, keys);
+            }
+            commitConn.close();
+        } finally {
+            executor.shutdown();
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.execute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.Filter.ReturnCode;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.compile.QueryPlan;
+import org.apache.phoenix.compile.StatementContext;
+import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
+import org.apache.phoenix.iterate.MaterializedResultIterator;
+import org.apache.phoenix.iterate.ResultIterator;
+import org.apache.phoenix.jdbc.PhoenixConnection;
+import org.apache.phoenix.jdbc.PhoenixPreparedStatement;
+import org.apache.phoenix.query.BaseConnectionlessQueryTest;
+import org.apache.phoenix.query.DelegateConnectionQueryServices;
+import org.apache.phoenix.query.KeyRange;
+import org.apache.phoenix.query.QueryConstants;
+import org.apache.phoenix.schema.SaltingUtil;
+import org.apache.phoenix.schema.tuple.SingleKeyValueTuple;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.ByteUtil;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+public class PointLookupBatchTest extends BaseConnectionlessQueryTest {
+
+    private static QueryPlan optimizeQuery(Connection conn, String query, Object... binds) throws Exception {
+        PhoenixPreparedStatement stmt = conn.prepareStatement(query).unwrap(PhoenixPreparedStatement.class);
+        for (int i = 0; i < binds.length; i++) {
+            stmt.setObject(i + 1, binds[i]);
+        }
+        return stmt.optimizeQuery();
+    }
+
+    @Test
+    public void testPointLookup() throws Exception {
+        Connection conn = DriverManager.getConnection(getUrl());
+        try {
+            conn.createStatement().execute("CREATE TABLE t (k1 VARCHAR NOT NULL, k2 INTEGER NOT NULL, v VARCHAR CONSTRAINT pk PRIMARY KEY (k1, k2))");
+            String query = "SELECT v FROM t WHERE k1 = ? AND k2 = ?";
+            QueryPlan plan1 = optimizeQuery(conn, query, "a", 1);
+            QueryPlan plan2 = optimizeQuery(conn, query, "b", 2);
+            assertTrue(PointLookupBatch.isPointLookup(plan1));
+            assertTrue(PointLookupBatch.isPointLookup(plan2));
+            assertTrue(PointLookupBatch.isCombinable(plan1, plan2));
+
+            assertTrue(PointLookupBatch.isPointLookup(optimizeQuery(conn, "SELECT v FROM t WHERE k1 IN (?, ?) AND k2 = ?", "a", "b", 1)));
+            // Not the full primary key
+            assertFalse(PointLookupBatch.isPointLookup(optimizeQuery(conn, "SELECT v FROM t WHERE k1 = ?", "a")));
+            // Filter that depends on the bind values
+            assertFalse(PointLookupBatch.isPointLookup(optimizeQuery(conn, query + " AND v = ?", "a", 1, "x")));
+            assertFalse(PointLookupBatch.isPointLookup(optimizeQuery(conn, "SELECT count(*) FROM t WHERE k1 = ? AND k2 = ?", "a", 1)));
+            assertFalse(PointLookupBatch.isPointLookup(optimizeQuery(conn, query + " LIMIT 1", "a", 1)));
+
+            conn.createStatement().execute("CREATE TABLE u (k1 VARCHAR NOT NULL, k2 INTEGER NOT NULL, v VARCHAR CONSTRAINT pk PRIMARY KEY (k1, k2))");
+            assertFalse(PointLookupBatch.isCombinable(plan1, optimizeQuery(conn, "SELECT v FROM u WHERE k1 = ? AND k2 = ?", "a", 1)));
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static final byte[] V = Bytes.toBytes("V");
+    private static final String[] TABLE_KEYS = {"a", "b", "c", "d", "e"};
+
+    private static byte[] getRowKey(String k, Integer nBuckets) {
+        byte[] key = Bytes.toBytes(k);
+        if (nBuckets == null) {
+            return key;
+        }
+        return ByteUtil.concat(new byte[] {SaltingUtil.getSaltingByte(key, 0, key.length, nBuckets)}, key);
+    }
+
+    /**
+     * @return a row of a table with primary key k and column v, both set to the given key
+     */
+    private static KeyValue newRow(String k, Integer nBuckets) {
+        return new KeyValue(getRowKey(k, nBuckets), QueryConstants.DEFAULT_COLUMN_FAMILY_BYTES, V, Bytes.toBytes(k));
+    }
+
+    /**
+     * @return the rows of the table with the given keys, in row key order
+     */
+    private static List<KeyValue> newRows(Integer nBuckets, String... keys) {
+        List<KeyValue> rows = Lists.newArrayList();
+        for (String key : keys) {
+            rows.add(newRow(key, nBuckets));
+        }
+        Collections.sort(rows, KeyValue.COMPARATOR);
+        return rows;
+    }
+
+    /**
+     * @return the values of the rows with the given keys, in row key order
+     */
+    private static List<String> getValues(Integer nBuckets, String... keys) {
+        List<String> values = Lists.newArrayList();
+        for (KeyValue row : newRows(nBuckets, keys)) {
+            values.add(Bytes.toString(CellUtil.cloneValue(row)));
+        }
+        return values;
+    }
+
+    private static List<String> getValues(ResultIterator iterator) throws SQLException {
+        List<String> values = Lists.newArrayList();
+        try {
+            for (Tuple tuple = iterator.next(); tuple != null; tuple = iterator.next()) {
+                values.add(Bytes.toString(CellUtil.cloneValue(tuple.getValue(0))));
+            }
+        } finally {
+            iterator.close();
+        }
+        return values;
+    }
+
+    /**
+     * @return a plan with the context of the given plan whose iterator returns the given rows
+     * looked up by the scan ranges of the context
+     */
+    private static QueryPlan newLookupPlan(QueryPlan plan, final List<KeyValue> rows) throws SQLException {
+        final StatementContext context = plan.getContext();
+        QueryPlan lookupPlan = mock(QueryPlan.class);
+        when(lookupPlan.getContext()).thenReturn(context);
+        when(lookupPlan.iterator()).thenAnswer(new Answer<ResultIterator>() {
+            @Override
+            public ResultIterator answer(InvocationOnMock invocation) throws Throwable {
+                Set<ImmutableBytesPtr> keys = Sets.newHashSet();
+                for (KeyRange key : context.getScanRanges().getRanges().get(0)) {
+                    assertTrue(key.isSingleKey());
+                    keys.add(new ImmutableBytesPtr(key.getLowerRange()));
+                }
+                List<Tuple> tuples = Lists.newArrayList();
+                for (KeyValue row : rows) {
+                    if (keys.contains(new ImmutableBytesPtr(CellUtil.cloneRow(row)))) {
+                        tuples.add(new SingleKeyValueTuple(row));
+                    }
+                }
+                return new MaterializedResultIterator(tuples);
+            }
+        });
+        return lookupPlan;
+    }
+
+    private static void assertExecute(String tableName, Integer nBuckets) throws Exception {
+        Connection conn = DriverManager.getConnection(getUrl());
+        try {
+            conn.createStatement().execute("CREATE TABLE IF NOT EXISTS " + tableName + " (k VARCHAR PRIMARY KEY, v VARCHAR)"
+                    + (nBuckets == null ? "" : " SALT_BUCKETS=" + nBuckets));
+            String query = "SELECT v FROM " + tableName + " WHERE k IN (?, ?)";
+            List<QueryPlan> plans = Lists.newArrayList(
+                    optimizeQuery(conn, query, "b", "a"),
+                    // Key shared with the first plan
+                    optimizeQuery(conn, query, "c", "a"),
+                    // Missing keys
+                    optimizeQuery(conn, query, "x", "y"),
+                    optimizeQuery(conn, query, "x", "d"));
+            for (QueryPlan plan : plans) {
+                assertTrue(PointLookupBatch.isPointLookup(plan));
+            }
+            StatementContext context = plans.get(0).getContext();
+            plans.set(0, newLookupPlan(plans.get(0), newRows(nBuckets, TABLE_KEYS)));
+            List<ResultIterator> iterators = PointLookupBatch.execute(plans);
+
+            // Each distinct key is looked up once
+            assertEquals(6, context.getScanRanges().getPointLookupCount());
+            assertEquals(plans.size(), iterators.size());
+            // The rows of each plan are in row key order, as a scan would return them
+            assertEquals(getValues(nBuckets, "a", "b"), getValues(iterators.get(0)));
+            assertEquals(getValues(nBuckets, "a", "c"), getValues(iterators.get(1)));
+            assertEquals(Collections.<String>emptyList(), getValues(iterators.get(2)));
+            assertEquals(Arrays.asList("d"), getValues(iterators.get(3)));
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+        assertExecute("LOOKUP_T", null);
+    }
+
+    @Test
+    public void testExecuteSalted() throws Exception {
+        assertExecute("SALTED_LOOKUP_T", 4);
+    }
+
+    /**
+     * Services whose tables hold the given rows, scanned the way a region server would scan
+     * them: between the start and stop row of the scan, with its filter.
+     */
+    private static class ScanningQueryServices extends DelegateConnectionQueryServices {
+        private final Map<String, List<KeyValue>> tableRows = Maps.newHashMap();
+
+        private ScanningQueryServices(PhoenixConnection conn) {
+            super(conn.getQueryServices());
+        }
+
+        @Override
+        public HTableInterface getTable(final byte[] tableName) throws SQLException {
+            HTableInterface hTable = mock(HTableInterface.class);
+            try {
+                when(hTable.getScanner(Matchers.any(Scan.class))).thenAnswer(new Answer<ResultScanner>() {
+                    @Override
+                    public ResultScanner answer(InvocationOnMock invocation) throws Throwable {
+                        List<KeyValue> rows = tableRows.get(Bytes.toString(tableName));
+                        return newScanner(scan(rows, (Scan)invocation.getArguments()[0]));
+                    }
+                });
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return hTable;
+        }
+
+        private static List<Result> scan(List<KeyValue> rows, Scan scan) throws IOException {
+            List<Result> results = Lists.newArrayList();
+            Filter filter = scan.getFilter();
+            if (filter != null) {
+                // Serialized as it would be when sent to a region server, as the scans of the
+                // splits of a query share the filter
+                filter = ProtobufUtil.toFilter(ProtobufUtil.toFilter(filter));
+            }
+            byte[] seekKey = scan.getStartRow();
+            for (KeyValue row : rows) {
+                byte[] key = CellUtil.cloneRow(row);
+                if (Bytes.compareTo(key, seekKey) < 0) {
+                    continue;
+                }
+                if (scan.getStopRow().length > 0 && Bytes.compareTo(key, scan.getStopRow()) >= 0) {
+                    break;
+                }
+                if (filter != null) {
+                    if (filter.filterAllRemaining()) {
+                        break;
+                    }
+                    filter.reset();
+                    ReturnCode code = filter.filterKeyValue(row);
+                    if (code == ReturnCode.SEEK_NEXT_USING_HINT) {
+                        seekKey = CellUtil.cloneRow(filter.getNextKeyHint(row));
+                        continue;
+                    } else if (code != ReturnCode.INCLUDE) {
+                        continue;
+                    }
+                }
+                results.add(Result.create(new Cell[] {row}));
+            }
+            return results;
+        }
+
+        private static ResultScanner newScanner(List<Result> results) throws IOException {
+            final Iterator<Result> iterator = results.iterator();
+            ResultScanner scanner = mock(ResultScanner.class);
+            when(scanner.next()).thenAnswer(new Answer<Result>() {
+                @Override
+                public Result answer(InvocationOnMock invocation) throws Throwable {
+                    return iterator.hasNext() ? iterator.next() : null;
+                }
+            });
+            return scanner;
+        }
+    }
+
+    private static List<String> getValues(ResultSet rs) throws SQLException {
+        List<String> values = Lists.newArrayList();
+        while (rs.next()) {
+            values.add(rs.getString(1));
+        }
+        rs.close();
+        return values;
+    }
+
+    private static void assertExecuteBatch(String tableName, Integer nBuckets) throws Exception {
+        PhoenixConnection conn = DriverManager.getConnection(getUrl()).unwrap(PhoenixConnection.class);
+        try {
+            conn.createStatement().execute("CREATE TABLE IF NOT EXISTS " + tableName + " (k VARCHAR PRIMARY KEY, v VARCHAR)"
+                    + (nBuckets == null ? "" : " SALT_BUCKETS=" + nBuckets));
+            ScanningQueryServices services = new ScanningQueryServices(conn);
+            services.tableRows.put(tableName, newRows(nBuckets, TABLE_KEYS));
+            Connection batchConn = new PhoenixConnection(services, conn.getURL(), conn.getClientInfo(), conn.getMetaDataCache());
+            try {
+                PreparedStatement stmt = batchConn.prepareStatement("SELECT v FROM " + tableName + " WHERE k IN (?, ?)");
+                String[][] binds = {{"b", "a"}, {"c", "a"}, {"x", "y"}, {"x", "d"}};
+                for (String[] bind : binds) {
+                    stmt.setString(1, bind[0]);
+                    stmt.setString(2, bind[1]);
+                    stmt.addBatch();
+                }
+                int[] returnCodes = stmt.executeBatch();
+                assertEquals(binds.length, returnCodes.length);
+                for (int returnCode : returnCodes) {
+                    assertEquals(Statement.SUCCESS_NO_INFO, returnCode);
+                }
+                // The results are returned in the order of the statements of the batch
+                assertEquals(getValues(nBuckets, "a", "b"), getValues(stmt.getResultSet()));
+                assertTrue(stmt.getMoreResults());
+                assertEquals(getValues(nBuckets, "a", "c"), getValues(stmt.getResultSet()));
+                assertTrue(stmt.getMoreResults());
+                assertEquals(Collections.<String>emptyList(), getValues(stmt.getResultSet()));
+                assertTrue(stmt.getMoreResults());
+                assertEquals(Arrays.asList("d"), getValues(stmt.getResultSet()));
+                assertFalse(stmt.getMoreResults());
+            } finally {
+                batchConn.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testExecuteBatch() throws Exception {
+        assertExecuteBatch("BATCH_LOOKUP_T", null);
+    }
+
+    @Test
+    public void testExecuteBatchSalted() throws Exception {
+        assertExecuteBatch("SALTED_BATCH_LOOKUP_T", 4);
+    }
+
+    @Test
+    public void testExecuteBatchNotCombinable() throws Exception {
+        PhoenixConnection conn = DriverManager.getConnection(getUrl()).unwrap(PhoenixConnection.class);
+        try {
+            conn.createStatement().execute("CREATE TABLE IF NOT EXISTS RANGE_LOOKUP_T (k VARCHAR PRIMARY KEY, v VARCHAR)");
+            ScanningQueryServices services = new ScanningQueryServices(conn);
+            services.tableRows.put("RANGE_LOOKUP_T", newRows(null, TABLE_KEYS));
+            Connection batchConn = new PhoenixConnection(services, conn.getURL(), conn.getClientInfo(), conn.getMetaDataCache());
+            try {
+                // A range scan and a point lookup, which are each executed on their own
+                PreparedStatement stmt = batchConn.prepareStatement("SELECT v FROM RANGE_LOOKUP_T WHERE k >= ? AND k <= ?");
+                String[][] binds = {{"b", "c"}, {"a", "a"}, {"x", "z"}};
+                for (String[] bind : binds) {
+                    stmt.setString(1, bind[0]);
+                    stmt.setString(2, bind[1]);
+                    stmt.addBatch();
+                }
+                assertEquals(binds.length, stmt.executeBatch().length);
+                assertEquals(Arrays.asList("b", "c"), getValues(stmt.getResultSet()));
+                assertTrue(stmt.getMoreResults());
+                assertEquals(Arrays.asList("a"), getValues(stmt.getResultSet()));
+                assertTrue(stmt.getMoreResults());
+                assertEquals(Collections.<String>emptyList(), getValues(stmt.getResultSet()));
+                assertFalse(stmt.getMoreResults());
+            } finally {
+                batchConn.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+}
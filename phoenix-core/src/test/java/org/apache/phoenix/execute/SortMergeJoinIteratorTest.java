@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.execute;
+
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN;
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_FAMILY;
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.expression.CoerceExpression;
+import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.expression.RowKeyColumnExpression;
+import org.apache.phoenix.expression.RowKeyExpression;
+import org.apache.phoenix.iterate.MaterializedResultIterator;
+import org.apache.phoenix.iterate.ResultIterator;
+import org.apache.phoenix.parse.JoinTableNode.JoinType;
+import org.apache.phoenix.schema.PColumn;
+import org.apache.phoenix.schema.PColumnImpl;
+import org.apache.phoenix.schema.PDataType;
+import org.apache.phoenix.schema.PNameFactory;
+import org.apache.phoenix.schema.RowKeyValueAccessor;
+import org.apache.phoenix.schema.SortOrder;
+import org.apache.phoenix.schema.tuple.SingleKeyValueTuple;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.junit.Test;
+
+public class SortMergeJoinIteratorTest {
+    private static final List<Expression> ROW_KEY = Collections.<Expression>singletonList(RowKeyExpression.INSTANCE);
+
+    /**
+     * @param key the join key, an empty key being a null key
+     * @param id identifies the row in the joined rows
+     */
+    private static Tuple newTuple(byte[] key, String id) {
+        return new SingleKeyValueTuple(new KeyValue(key, SINGLE_COLUMN_FAMILY, SINGLE_COLUMN, Bytes.toBytes(id)));
+    }
+
+    private static Tuple newTuple(String key, String id) {
+        return newTuple(Bytes.toBytes(key), id);
+    }
+
+    private static String getId(Tuple tuple) {
+        return tuple == null ? null : Bytes.toString(CellUtil.cloneValue(tuple.getValue(0)));
+    }
+
+    /**
+     * @return the ids of the joined rows, in the order they were returned
+     */
+    private static List<String> join(List<Tuple> lhs, List<Tuple> rhs, List<Expression> lhsKeyExpressions,
+            List<Expression> rhsKeyExpressions, JoinType type) throws SQLException {
+        ResultIterator iterator = new SortMergeJoinPlan.SortMergeJoinIterator(new MaterializedResultIterator(lhs),
+                new MaterializedResultIterator(rhs), lhsKeyExpressions, rhsKeyExpressions, type) {
+            @Override
+            protected Tuple join(Tuple lhs, Tuple rhs) {
+                return newTuple(Bytes.toBytes("x"), getId(lhs) + ":" + getId(rhs));
+            }
+        };
+        List<String> ids = new ArrayList<String>();
+        try {
+            for (Tuple tuple = iterator.next(); tuple != null; tuple = iterator.next()) {
+                ids.add(getId(tuple));
+            }
+        } finally {
+            iterator.close();
+        }
+        return ids;
+    }
+
+    @Test
+    public void testInnerJoin() throws Exception {
+        List<Tuple> lhs = Arrays.asList(newTuple("a", "l1"), newTuple("b", "l2"), newTuple("d", "l3"), newTuple("e", "l4"));
+        List<Tuple> rhs = Arrays.asList(newTuple("b", "r1"), newTuple("c", "r2"), newTuple("d", "r3"), newTuple("f", "r4"));
+        assertEquals(Arrays.asList("l2:r1", "l3:r3"), join(lhs, rhs, ROW_KEY, ROW_KEY, JoinType.Inner));
+    }
+
+    @Test
+    public void testLeftJoin() throws Exception {
+        List<Tuple> lhs = Arrays.asList(newTuple("a", "l1"), newTuple("b", "l2"), newTuple("d", "l3"), newTuple("e", "l4"));
+        List<Tuple> rhs = Arrays.asList(newTuple("b", "r1"), newTuple("c", "r2"), newTuple("d", "r3"));
+        assertEquals(Arrays.asList("l1:null", "l2:r1", "l3:r3", "l4:null"), join(lhs, rhs, ROW_KEY, ROW_KEY, JoinType.Left));
+    }
+
+    @Test
+    public void testDuplicateKeys() throws Exception {
+        List<Tuple> lhs = Arrays.asList(newTuple("a", "l1"), newTuple("b", "l2"), newTuple("b", "l3"), newTuple("c", "l4"));
+        List<Tuple> rhs = Arrays.asList(newTuple("b", "r1"), newTuple("b", "r2"), newTuple("c", "r3"), newTuple("c", "r4"));
+        assertEquals(Arrays.asList("l2:r1", "l2:r2", "l3:r1", "l3:r2", "l4:r3", "l4:r4"),
+                join(lhs, rhs, ROW_KEY, ROW_KEY, JoinType.Inner));
+        assertEquals(Arrays.asList("l1:null", "l2:r1", "l2:r2", "l3:r1", "l3:r2", "l4:r3", "l4:r4"),
+                join(lhs, rhs, ROW_KEY, ROW_KEY, JoinType.Left));
+    }
+
+    @Test
+    public void testNullKeys() throws Exception {
+        // Null keys sort first and never match, not even other null keys
+        List<Tuple> lhs = Arrays.asList(newTuple(new byte[0], "l1"), newTuple(new byte[0], "l2"), newTuple("a", "l3"));
+        List<Tuple> rhs = Arrays.asList(newTuple(new byte[0], "r1"), newTuple("a", "r2"));
+        assertEquals(Arrays.asList("l3:r2"), join(lhs, rhs, ROW_KEY, ROW_KEY, JoinType.Inner));
+        assertEquals(Arrays.asList("l1:null", "l2:null", "l3:r2"), join(lhs, rhs, ROW_KEY, ROW_KEY, JoinType.Left));
+    }
+
+    @Test
+    public void testDescKeys() throws Exception {
+        PColumn column = new PColumnImpl(PNameFactory.newName("K"), null, PDataType.INTEGER, null, null,
+                false, 0, SortOrder.DESC, null, null);
+        Expression descKey = new RowKeyColumnExpression(column, new RowKeyValueAccessor(Collections.singletonList(column), 0));
+        // Both sides are ordered by the value of the key, which is the reverse of the order of its bytes
+        List<Expression> keyExpressions = Collections.singletonList(
+                CoerceExpression.create(descKey, PDataType.INTEGER, SortOrder.ASC, null));
+        List<Tuple> lhs = new ArrayList<Tuple>();
+        List<Tuple> rhs = new ArrayList<Tuple>();
+        for (int i = 1; i <= 4; i++) {
+            lhs.add(newTuple(PDataType.INTEGER.toBytes(i, SortOrder.DESC), "l" + i));
+            if (i % 2 == 0) {
+                rhs.add(newTuple(PDataType.INTEGER.toBytes(i, SortOrder.DESC), "r" + i));
+            }
+        }
+        assertEquals(Arrays.asList("l2:r2", "l4:r4"), join(lhs, rhs, keyExpressions, keyExpressions, JoinType.Inner));
+        assertEquals(Arrays.asList("l1:null", "l2:r2", "l3:null", "l4:r4"), join(lhs, rhs, keyExpressions, keyExpressions, JoinType.Left));
+    }
+
+    @Test
+    public void testFilteredRows() throws Exception {
+        List<Tuple> lhs = Arrays.asList(newTuple("a", "l1"), newTuple("b", "l2"));
+        List<Tuple> rhs = Arrays.asList(newTuple("a", "r1"), newTuple("b", "r2"));
+        ResultIterator iterator = new SortMergeJoinPlan.SortMergeJoinIterator(new MaterializedResultIterator(lhs),
+                new MaterializedResultIterator(rhs), ROW_KEY, ROW_KEY, JoinType.Inner) {
+            @Override
+            protected Tuple join(Tuple lhs, Tuple rhs) {
+                // Filter out the first joined row
+                return "l1".equals(getId(lhs)) ? null : lhs;
+            }
+        };
+        assertEquals("l2", getId(iterator.next()));
+        assertEquals(null, iterator.next());
+        iterator.close();
+    }
+}
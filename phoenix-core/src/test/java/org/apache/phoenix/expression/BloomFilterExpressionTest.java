@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.expression;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
+import org.apache.phoenix.schema.PColumnImpl;
+import org.apache.phoenix.schema.PDataType;
+import org.apache.phoenix.schema.PNameFactory;
+import org.apache.phoenix.schema.SortOrder;
+import org.apache.phoenix.schema.tuple.SingleKeyValueTuple;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class BloomFilterExpressionTest {
+    private static final byte[] CF = Bytes.toBytes("CF");
+    private static final byte[] CQ = Bytes.toBytes("V");
+    private static final List<Expression> CHILDREN = Collections.<Expression>singletonList(
+            new KeyValueColumnExpression(new PColumnImpl(PNameFactory.newName("V"), PNameFactory.newName("CF"),
+                    PDataType.VARCHAR, null, null, true, 0, SortOrder.getDefault(), null, null)));
+
+    private static Set<ImmutableBytesPtr> newKeys(String... keys) {
+        Set<ImmutableBytesPtr> keySet = Sets.newHashSet();
+        for (String key : keys) {
+            keySet.add(new ImmutableBytesPtr(Bytes.toBytes(key)));
+        }
+        return keySet;
+    }
+
+    private static boolean mightContain(Expression expression, String value) {
+        Tuple tuple = new SingleKeyValueTuple(new KeyValue(Bytes.toBytes("r"), CF, CQ, Bytes.toBytes(value)));
+        ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+        assertTrue(expression.evaluate(tuple, ptr));
+        return (Boolean)PDataType.BOOLEAN.toObject(ptr);
+    }
+
+    @Test
+    public void testMightContain() {
+        Expression expression = new BloomFilterExpression(CHILDREN, newKeys("b", "d", "f"), 10);
+        assertTrue(mightContain(expression, "b"));
+        assertTrue(mightContain(expression, "d"));
+        assertTrue(mightContain(expression, "f"));
+        // Outside of the range of the keys
+        assertFalse(mightContain(expression, "a"));
+        assertFalse(mightContain(expression, "g"));
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        Set<ImmutableBytesPtr> keys = Sets.newHashSet();
+        for (int i = 0; i < 1000; i++) {
+            keys.add(new ImmutableBytesPtr(Bytes.toBytes("k" + (i * 2))));
+        }
+        Expression expression = new BloomFilterExpression(CHILDREN, keys, 10);
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(mightContain(expression, "k" + (i * 2)));
+            if (mightContain(expression, "k" + (i * 2 + 1))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 50);
+    }
+
+    @Test
+    public void testNoKeys() {
+        Expression expression = new BloomFilterExpression(CHILDREN, newKeys(), 10);
+        assertFalse(mightContain(expression, "a"));
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        Expression expression = new BloomFilterExpression(CHILDREN, newKeys("b", "d", "f"), 10);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dOut = new DataOutputStream(baos);
+        expression.write(dOut);
+        dOut.flush();
+
+        Expression expression2 = new BloomFilterExpression();
+        byte[] bytes = baos.toByteArray();
+        DataInputStream dIn = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length));
+        expression2.readFields(dIn);
+        assertTrue(mightContain(expression2, "b"));
+        assertTrue(mightContain(expression2, "d"));
+        assertTrue(mightContain(expression2, "f"));
+        assertFalse(mightContain(expression2, "a"));
+        assertFalse(mightContain(expression2, "g"));
+    }
+}
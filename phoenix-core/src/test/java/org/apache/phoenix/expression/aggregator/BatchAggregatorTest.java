@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.expression.aggregator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.expression.LiteralExpression;
+import org.apache.phoenix.expression.function.CountAggregateFunction;
+import org.apache.phoenix.expression.function.MaxAggregateFunction;
+import org.apache.phoenix.expression.function.SingleAggregateFunction;
+import org.apache.phoenix.expression.function.SumAggregateFunction;
+import org.junit.Test;
+
+
+public class BatchAggregatorTest {
+
+    private static byte[] newSerializedAggregators() {
+        List<Expression> longChild = Collections.<Expression>singletonList(LiteralExpression.newConstant(3L));
+        List<Expression> doubleChild = Collections.<Expression>singletonList(LiteralExpression.newConstant(1.5d));
+        List<SingleAggregateFunction> functions = Arrays.<SingleAggregateFunction>asList(
+                new CountAggregateFunction(longChild),
+                new SumAggregateFunction(longChild),
+                new SumAggregateFunction(doubleChild),
+                new MaxAggregateFunction(longChild, null));
+        return ServerAggregators.serialize(functions, functions.size());
+    }
+
+    @Test
+    public void testSameResultAsRowByRow() {
+        byte[] serialized = newSerializedAggregators();
+        ServerAggregators rowAggregators = ServerAggregators.deserialize(serialized, null);
+        ServerAggregators chunkAggregators = ServerAggregators.deserialize(serialized, null);
+        Aggregator[] rowState = rowAggregators.newAggregators(null);
+        Aggregator[] chunkState = chunkAggregators.newAggregators(null);
+        // A chunk size that leaves a partial chunk to be flushed at the end
+        BatchAggregator batchAggregator = chunkAggregators.newBatchAggregator(chunkState, 4);
+        for (int i = 0; i < 10; i++) {
+            rowAggregators.aggregate(rowState, null);
+            batchAggregator.aggregate(null);
+        }
+        batchAggregator.flush();
+        assertArrayEquals(rowAggregators.toBytes(rowState), chunkAggregators.toBytes(chunkState));
+
+        ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+        assertTrue(chunkState[0].evaluate(null, ptr));
+        assertEquals(10L, chunkState[0].getDataType().toObject(ptr));
+        assertTrue(chunkState[1].evaluate(null, ptr));
+        assertEquals(30L, chunkState[1].getDataType().toObject(ptr));
+        assertTrue(chunkState[2].evaluate(null, ptr));
+        assertEquals(15d, chunkState[2].getDataType().toObject(ptr));
+    }
+
+    @Test
+    public void testNoRows() {
+        byte[] serialized = newSerializedAggregators();
+        ServerAggregators rowAggregators = ServerAggregators.deserialize(serialized, null);
+        ServerAggregators chunkAggregators = ServerAggregators.deserialize(serialized, null);
+        Aggregator[] rowState = rowAggregators.newAggregators(null);
+        Aggregator[] chunkState = chunkAggregators.newAggregators(null);
+        chunkAggregators.newBatchAggregator(chunkState, 4).flush();
+        assertArrayEquals(rowAggregators.toBytes(rowState), chunkAggregators.toBytes(chunkState));
+    }
+}
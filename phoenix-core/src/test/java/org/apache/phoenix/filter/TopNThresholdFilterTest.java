@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.filter;
+
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN;
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_FAMILY;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.expression.OrderByExpression;
+import org.apache.phoenix.expression.RowKeyExpression;
+import org.apache.phoenix.iterate.TopNThreshold;
+import org.junit.Test;
+
+public class TopNThresholdFilterTest {
+
+    private static KeyValue newKeyValue(int key) {
+        return new KeyValue(Bytes.toBytes(key), SINGLE_COLUMN_FAMILY, SINGLE_COLUMN, Bytes.toBytes(key));
+    }
+
+    private static boolean filterRow(TopNThresholdFilter filter, int key) {
+        filter.reset();
+        filter.filterKeyValue(newKeyValue(key));
+        return filter.filterRow();
+    }
+
+    @Test
+    public void testFilterRow() throws Exception {
+        TopNThreshold threshold = new TopNThreshold();
+        TopNThresholdFilter filter = new TopNThresholdFilter(
+                Collections.singletonList(new OrderByExpression(RowKeyExpression.INSTANCE, false, true)), threshold, false);
+        // No threshold until the TopN has seen as many rows as its limit
+        assertFalse(filterRow(filter, 7));
+        threshold.set(new ImmutableBytesWritable(Bytes.toBytes(5)), null);
+        assertTrue(filterRow(filter, 7));
+        assertTrue(filterRow(filter, 5));
+        assertFalse(filterRow(filter, 3));
+        // The whole row key isn't the leading row key column
+        assertNull(threshold.getLeadingValueExpression());
+        assertFalse(filter.filterAllRemaining());
+    }
+}
@@ -17,30 +17,44 @@
  */
 package org.apache.phoenix.iterate;
 
+import static org.apache.phoenix.query.QueryConstants.AGG_TIMESTAMP;
 import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN;
 import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_FAMILY;
 import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_FAMILY_NAME;
 import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_NAME;
 import static org.apache.phoenix.util.TestUtil.TEST_PROPERTIES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.phoenix.compile.AggregationManager;
+import org.apache.phoenix.compile.QueryPlan;
 import org.apache.phoenix.compile.StatementContext;
+import org.apache.phoenix.coprocessor.BaseScannerRegionObserver;
 import org.apache.phoenix.expression.Expression;
 import org.apache.phoenix.expression.KeyValueColumnExpression;
+import org.apache.phoenix.expression.aggregator.Aggregator;
 import org.apache.phoenix.expression.aggregator.ClientAggregators;
+import org.apache.phoenix.expression.aggregator.DistinctCountClientAggregator;
+import org.apache.phoenix.expression.aggregator.ServerAggregators;
+import org.apache.phoenix.expression.aggregator.StddevPopAggregator;
 import org.apache.phoenix.expression.function.SingleAggregateFunction;
 import org.apache.phoenix.expression.function.SumAggregateFunction;
 import org.apache.phoenix.jdbc.PhoenixConnection;
@@ -53,8 +67,11 @@ import org.apache.phoenix.schema.SortOrder;
 import org.apache.phoenix.schema.tuple.SingleKeyValueTuple;
 import org.apache.phoenix.schema.tuple.Tuple;
 import org.apache.phoenix.util.AssertResults;
+import org.apache.phoenix.util.KeyValueUtil;
 import org.junit.Test;
 
+import com.google.common.collect.Maps;
+
 
 
 public class AggregateResultScannerTest extends BaseConnectionlessQueryTest {
@@ -63,6 +80,15 @@ public class AggregateResultScannerTest extends BaseConnectionlessQueryTest {
 
     @Test
     public void testAggregatingMergeSort() throws Throwable {
+        testAggregation(false);
+    }
+
+    @Test
+    public void testParallelHashAggregation() throws Throwable {
+        testAggregation(true);
+    }
+
+    private void testAggregation(boolean isHashAggregation) throws Throwable {
         Tuple[] results1 = new Tuple[] {
                 new SingleKeyValueTuple(new KeyValue(A, SINGLE_COLUMN_FAMILY, SINGLE_COLUMN, PDataType.LONG.toBytes(1L))),
             };
@@ -120,7 +146,19 @@ public class AggregateResultScannerTest extends BaseConnectionlessQueryTest {
             }
         })), null);
         aggregationManager.setAggregators(new ClientAggregators(Collections.<SingleAggregateFunction>singletonList(func), 1));
-        ResultIterators iterators = new ResultIterators() {
+        ResultIterators iterators = newResultIterators(results);
+        if (isHashAggregation) {
+            ResultIterator scanner = new ParallelHashAggregatingResultIterator(iterators, aggregationManager.getAggregators(),
+                    pconn.getQueryServices().getMemoryManager(), pconn.getQueryServices().getClientAggregateExecutor(), 3);
+            AssertResults.assertUnorderedResults(scanner, expectedResults);
+        } else {
+            ResultIterator scanner = new GroupedAggregatingResultIterator(new MergeSortRowKeyResultIterator(iterators), aggregationManager.getAggregators());
+            AssertResults.assertResults(scanner, expectedResults);
+        }
+    }
+
+    private static ResultIterators newResultIterators(final List<PeekingResultIterator> results) {
+        return new ResultIterators() {
 
             @Override
             public List<PeekingResultIterator> getIterators() throws SQLException {
@@ -137,7 +175,98 @@ public class AggregateResultScannerTest extends BaseConnectionlessQueryTest {
             }
             
         };
-        ResultIterator scanner = new GroupedAggregatingResultIterator(new MergeSortRowKeyResultIterator(iterators), aggregationManager.getAggregators());
-        AssertResults.assertResults(scanner, expectedResults);
+    }
+
+    /**
+     * Aggregate the given values of column V on the server for each of the given group keys,
+     * returning a partially aggregated row per group as a region would.
+     */
+    private static List<Tuple> aggregateRegion(ServerAggregators serverAggregators, Configuration conf,
+            byte[][] groups, int[][] values) {
+        List<Tuple> rows = new ArrayList<Tuple>(groups.length);
+        for (int i = 0; i < groups.length; i++) {
+            Aggregator[] rowAggregators = serverAggregators.newAggregators(conf);
+            for (int value : values[i]) {
+                serverAggregators.aggregate(rowAggregators, new SingleKeyValueTuple(new KeyValue(groups[i],
+                        Bytes.toBytes("0"), Bytes.toBytes("V"), PDataType.INTEGER.toBytes(value))));
+            }
+            byte[] value = serverAggregators.toBytes(rowAggregators);
+            rows.add(new SingleKeyValueTuple(KeyValueUtil.newKeyValue(groups[i], SINGLE_COLUMN_FAMILY, SINGLE_COLUMN,
+                    AGG_TIMESTAMP, value, 0, value.length)));
+        }
+        return rows;
+    }
+
+    private static Map<String, Object[]> getDistinctCountAndStddev(ResultIterator scanner, ClientAggregators aggregators) throws SQLException {
+        Map<String, Object[]> groups = Maps.newHashMap();
+        ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+        try {
+            for (Tuple tuple = scanner.next(); tuple != null; tuple = scanner.next()) {
+                Object[] values = new Object[2];
+                Aggregator[] rowAggregators = aggregators.newAggregators();
+                aggregators.aggregate(rowAggregators, tuple);
+                for (Aggregator aggregator : rowAggregators) {
+                    aggregator.evaluate(tuple, ptr);
+                    if (aggregator instanceof DistinctCountClientAggregator) {
+                        values[0] = aggregator.getDataType().toObject(ptr);
+                    } else if (aggregator instanceof StddevPopAggregator) {
+                        values[1] = aggregator.getDataType().toObject(ptr);
+                    }
+                }
+                tuple.getKey(ptr);
+                groups.put(Bytes.toString(ptr.get(), ptr.getOffset(), ptr.getLength()), values);
+            }
+        } finally {
+            scanner.close();
+        }
+        return groups;
+    }
+
+    @Test
+    public void testParallelHashAggregationOfDistinctValues() throws Throwable {
+        Connection conn = DriverManager.getConnection(getUrl(), TEST_PROPERTIES);
+        try {
+            conn.createStatement().execute("CREATE TABLE t (k VARCHAR NOT NULL PRIMARY KEY, v INTEGER)");
+            PhoenixStatement stmt = conn.createStatement().unwrap(PhoenixStatement.class);
+            QueryPlan plan = stmt.optimizeQuery("SELECT k, COUNT(DISTINCT v), STDDEV_POP(v) FROM t GROUP BY k");
+            StatementContext context = plan.getContext();
+            ClientAggregators aggregators = context.getAggregationManager().getAggregators();
+            Configuration conf = HBaseConfiguration.create();
+            ServerAggregators serverAggregators = ServerAggregators.deserialize(
+                    context.getScan().getAttribute(BaseScannerRegionObserver.AGGREGATORS), conf);
+
+            // Group a is in every region, with values seen by more than one region
+            byte[][] groups = new byte[][] {A, B};
+            List<List<Tuple>> regions = Arrays.asList(
+                    aggregateRegion(serverAggregators, conf, groups, new int[][] {{1, 2}, {5}}),
+                    aggregateRegion(serverAggregators, conf, new byte[][] {A}, new int[][] {{2, 3}}),
+                    aggregateRegion(serverAggregators, conf, groups, new int[][] {{3, 3}, {5, 7}}),
+                    aggregateRegion(serverAggregators, conf, new byte[][] {A}, new int[][] {{1}}));
+
+            List<PeekingResultIterator> sortedIterators = new ArrayList<PeekingResultIterator>();
+            List<PeekingResultIterator> hashIterators = new ArrayList<PeekingResultIterator>();
+            for (List<Tuple> region : regions) {
+                sortedIterators.add(new MaterializedResultIterator(region));
+                hashIterators.add(new MaterializedResultIterator(region));
+            }
+            Map<String, Object[]> expected = getDistinctCountAndStddev(new GroupedAggregatingResultIterator(
+                    new MergeSortRowKeyResultIterator(newResultIterators(sortedIterators)), aggregators), aggregators.copy());
+            PhoenixConnection pconn = conn.unwrap(PhoenixConnection.class);
+            Map<String, Object[]> actual = getDistinctCountAndStddev(new ParallelHashAggregatingResultIterator(
+                    newResultIterators(hashIterators), aggregators, pconn.getQueryServices().getMemoryManager(),
+                    pconn.getQueryServices().getClientAggregateExecutor(), 3), aggregators.copy());
+
+            assertEquals(2, actual.size());
+            assertEquals(3L, ((Number)actual.get("a")[0]).longValue());
+            assertEquals(2L, ((Number)actual.get("b")[0]).longValue());
+            for (Map.Entry<String, Object[]> entry : expected.entrySet()) {
+                Object[] values = actual.get(entry.getKey());
+                assertNotNull(values);
+                assertEquals(entry.getValue()[0], values[0]);
+                assertEquals(entry.getValue()[1], values[1]);
+            }
+        } finally {
+            conn.close();
+        }
     }
 }
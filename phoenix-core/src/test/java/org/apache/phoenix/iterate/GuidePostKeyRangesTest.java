@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.iterate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.query.KeyRange;
+import org.apache.phoenix.schema.stat.StatisticsUtil;
+import org.junit.Test;
+
+
+public class GuidePostKeyRangesTest {
+    private static final TableName TABLE_NAME = TableName.valueOf("T");
+
+    private static byte[][] newGuidePosts(String... keys) {
+        byte[][] guidePosts = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            guidePosts[i] = Bytes.toBytes(keys[i]);
+        }
+        return guidePosts;
+    }
+
+    private static void assertKeyRanges(List<KeyRange> keyRanges, String... boundaries) {
+        assertEquals(boundaries.length - 1, keyRanges.size());
+        for (int i = 0; i < keyRanges.size(); i++) {
+            assertArrayEquals(Bytes.toBytes(boundaries[i]), keyRanges.get(i).getLowerRange());
+            assertArrayEquals(Bytes.toBytes(boundaries[i + 1]), keyRanges.get(i).getUpperRange());
+        }
+    }
+
+    @Test
+    public void testSplitAtEveryGuidePost() {
+        HRegionInfo region = new HRegionInfo(TABLE_NAME, Bytes.toBytes("a"), Bytes.toBytes("z"));
+        List<KeyRange> keyRanges = DefaultParallelIteratorRegionSplitter.getGuidePostKeyRanges(region, newGuidePosts("c", "f", "k"), 4);
+        assertKeyRanges(keyRanges, "a", "c", "f", "k", "z");
+    }
+
+    @Test
+    public void testSplitLimitedToMaxSplits() {
+        HRegionInfo region = new HRegionInfo(TABLE_NAME, HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW);
+        List<KeyRange> keyRanges = DefaultParallelIteratorRegionSplitter.getGuidePostKeyRanges(region,
+                newGuidePosts("b", "c", "d", "e", "f", "g", "h", "i", "j", "k"), 4);
+        assertKeyRanges(keyRanges, "", "d", "g", "j", "");
+    }
+
+    @Test
+    public void testGuidePostsOutsideRegionIgnored() {
+        // Guide posts left over from before the region was split
+        HRegionInfo region = new HRegionInfo(TABLE_NAME, Bytes.toBytes("d"), Bytes.toBytes("h"));
+        List<KeyRange> keyRanges = DefaultParallelIteratorRegionSplitter.getGuidePostKeyRanges(region,
+                newGuidePosts("b", "d", "f", "h", "j"), 4);
+        assertKeyRanges(keyRanges, "d", "f", "h");
+    }
+
+    @Test
+    public void testMaxSplitsSharedByGuidePosts() {
+        // A region with most of the guide posts gets most of the splits, however many regions there are
+        assertEquals(40, DefaultParallelIteratorRegionSplitter.getMaxGuidePostSplits(500, 1000, 80, 1, 64));
+        assertEquals(1, DefaultParallelIteratorRegionSplitter.getMaxGuidePostSplits(5, 1000, 80, 1, 64));
+        // Capped by the max intra region parallelization
+        assertEquals(64, DefaultParallelIteratorRegionSplitter.getMaxGuidePostSplits(1000, 1000, 256, 1, 64));
+        // No fewer splits than without guide posts
+        assertEquals(8, DefaultParallelIteratorRegionSplitter.getMaxGuidePostSplits(1, 4, 4, 8, 64));
+    }
+
+    @Test
+    public void testGuidePostsRoundTrip() throws Exception {
+        List<byte[]> guidePosts = new ArrayList<byte[]>(Arrays.asList(newGuidePosts("a", "", "bcd")));
+        byte[] b = StatisticsUtil.toBytes(guidePosts);
+        byte[][] deserialized = StatisticsUtil.toGuidePosts(b, 0, b.length);
+        assertEquals(guidePosts.size(), deserialized.length);
+        for (int i = 0; i < deserialized.length; i++) {
+            assertArrayEquals(guidePosts.get(i), deserialized[i]);
+        }
+    }
+
+    @Test
+    public void testRegionNameFromRowKey() {
+        byte[] physicalName = Bytes.toBytes("T");
+        String regionName = "T,a,1234.abcd.";
+        byte[] rowKey = StatisticsUtil.getRowKey(physicalName, regionName, Bytes.toBytes("0"));
+        assertEquals(regionName, StatisticsUtil.getRegionName(rowKey, StatisticsUtil.getStartKey(physicalName).length));
+    }
+}
@@ -24,12 +24,14 @@ import java.sql.SQLException;
 import java.util.*;
 
 import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Test;
 
 import org.apache.phoenix.schema.tuple.SingleKeyValueTuple;
 import org.apache.phoenix.schema.tuple.Tuple;
 import org.apache.phoenix.util.AssertResults;
+import org.apache.phoenix.util.TupleUtil;
 
 
 public class MergeSortResultIteratorTest {
@@ -78,4 +80,55 @@ public class MergeSortResultIteratorTest {
         AssertResults.assertResults(scanner, expectedResults);
     }
 
+    @Test
+    public void testMergeSortManyIterators() throws Throwable {
+        int nIterators = 64;
+        int nRowsPerIterator = 20;
+        Random random = new Random(12345);
+        List<Tuple> allResults = new ArrayList<Tuple>();
+        final List<PeekingResultIterator> results = new ArrayList<PeekingResultIterator>();
+        for (int i = 0; i < nIterators; i++) {
+            // Leave some of the iterators empty
+            int nRows = i % 7 == 0 ? 0 : random.nextInt(nRowsPerIterator);
+            int[] keys = new int[nRows];
+            for (int j = 0; j < nRows; j++) {
+                keys[j] = random.nextInt(1000);
+            }
+            Arrays.sort(keys);
+            List<Tuple> iteratorResults = new ArrayList<Tuple>(nRows);
+            for (int j = 0; j < nRows; j++) {
+                Tuple tuple = new SingleKeyValueTuple(new KeyValue(Bytes.toBytes(keys[j]), SINGLE_COLUMN_FAMILY, SINGLE_COLUMN, Bytes.toBytes(1)));
+                iteratorResults.add(tuple);
+                allResults.add(tuple);
+            }
+            results.add(new MaterializedResultIterator(iteratorResults));
+        }
+        Collections.sort(allResults, new Comparator<Tuple>() {
+            private final ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+            @Override
+            public int compare(Tuple t1, Tuple t2) {
+                return TupleUtil.compare(t1, t2, ptr);
+            }
+        });
+
+        ResultIterators iterators = new ResultIterators() {
+
+            @Override
+            public List<PeekingResultIterator> getIterators() throws SQLException {
+                return results;
+            }
+
+            @Override
+            public int size() {
+                return results.size();
+            }
+
+            @Override
+            public void explain(List<String> planSteps) {
+            }
+            
+        };
+        ResultIterator scanner = new MergeSortRowKeyResultIterator(iterators);
+        AssertResults.assertResults(scanner, allResults.toArray(new Tuple[allResults.size()]));
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.iterate;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.expression.OrderByExpression;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+
+public class OrderByKeyEncoderTest {
+    private static final byte[] VALUE_BYTES = new byte[] {0, 1, 'a', (byte)0xFE, (byte)0xFF};
+
+    /**
+     * Expression that evaluates to a column of the values held for each tuple, with an empty value being null
+     */
+    private static Expression newColumnExpression(final Map<Tuple, byte[][]> rows, final int column) {
+        Expression expression = mock(Expression.class);
+        when(expression.evaluate(any(Tuple.class), any(ImmutableBytesWritable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                byte[] value = rows.get(invocation.getArguments()[0])[column];
+                ((ImmutableBytesWritable)invocation.getArguments()[1]).set(value);
+                return value.length > 0;
+            }
+        });
+        return expression;
+    }
+
+    private static void testOrdering(boolean[] isAscending, boolean[] isNullsLast) {
+        Random random = new Random(Arrays.hashCode(isAscending) * 31 + Arrays.hashCode(isNullsLast));
+        final Map<Tuple, byte[][]> rows = new IdentityHashMap<Tuple, byte[][]>();
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 500; i++) {
+            byte[][] row = new byte[isAscending.length][];
+            for (int j = 0; j < row.length; j++) {
+                row[j] = new byte[random.nextInt(4)];
+                for (int k = 0; k < row[j].length; k++) {
+                    row[j][k] = VALUE_BYTES[random.nextInt(VALUE_BYTES.length)];
+                }
+            }
+            Tuple tuple = mock(Tuple.class);
+            rows.put(tuple, row);
+            tuples.add(tuple);
+        }
+        List<OrderByExpression> orderByExpressions = new ArrayList<OrderByExpression>();
+        for (int j = 0; j < isAscending.length; j++) {
+            orderByExpressions.add(new OrderByExpression(newColumnExpression(rows, j), isNullsLast[j], isAscending[j]));
+        }
+        final OrderByKeyEncoder encoder = new OrderByKeyEncoder(orderByExpressions);
+        final boolean[] ascending = isAscending;
+        final boolean[] nullsLast = isNullsLast;
+        // Column by column comparison of the values, as the ORDER BY defines it
+        Comparator<Tuple> expected = new Comparator<Tuple>() {
+            @Override
+            public int compare(Tuple t1, Tuple t2) {
+                byte[][] row1 = rows.get(t1);
+                byte[][] row2 = rows.get(t2);
+                for (int j = 0; j < row1.length; j++) {
+                    boolean isNull1 = row1[j].length == 0;
+                    boolean isNull2 = row2[j].length == 0;
+                    if (isNull1 && isNull2) {
+                        continue;
+                    } else if (isNull1) {
+                        return nullsLast[j] ? 1 : -1;
+                    } else if (isNull2) {
+                        return nullsLast[j] ? -1 : 1;
+                    }
+                    int cmp = Bytes.compareTo(row1[j], row2[j]);
+                    if (cmp != 0) {
+                        return ascending[j] ? cmp : -cmp;
+                    }
+                }
+                return 0;
+            }
+        };
+        for (int i = 1; i < tuples.size(); i++) {
+            Tuple t1 = tuples.get(i - 1);
+            Tuple t2 = tuples.get(i);
+            int expectedCmp = Integer.signum(expected.compare(t1, t2));
+            int actualCmp = Integer.signum(OrderByKeyEncoder.KEY_COMPARATOR.compare(encoder.encode(t1), encoder.encode(t2)));
+            assertEquals(expectedCmp, actualCmp);
+        }
+    }
+
+    @Test
+    public void testSingleAscendingKey() {
+        testOrdering(new boolean[] {true}, new boolean[] {false});
+    }
+
+    @Test
+    public void testSingleDescendingNullsLastKey() {
+        testOrdering(new boolean[] {false}, new boolean[] {true});
+    }
+
+    @Test
+    public void testMultipleKeys() {
+        testOrdering(new boolean[] {true, true}, new boolean[] {false, false});
+        testOrdering(new boolean[] {true, false}, new boolean[] {true, false});
+        testOrdering(new boolean[] {false, true}, new boolean[] {false, true});
+        testOrdering(new boolean[] {false, false, true}, new boolean[] {true, true, false});
+    }
+}
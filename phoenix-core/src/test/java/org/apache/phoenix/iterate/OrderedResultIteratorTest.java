@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.iterate;
+
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN;
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_FAMILY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.expression.OrderByExpression;
+import org.apache.phoenix.expression.RowKeyExpression;
+import org.apache.phoenix.iterate.OrderedResultIterator.ResultEntry;
+import org.apache.phoenix.schema.tuple.SingleKeyValueTuple;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.AssertResults;
+import org.apache.phoenix.util.ReadOnlyProps;
+import org.apache.phoenix.util.SpillCodec;
+import org.apache.phoenix.util.SpillCodec.SpillType;
+import org.junit.Test;
+
+
+public class OrderedResultIteratorTest {
+    private static final List<OrderByExpression> ORDER_BY_ROW_KEY =
+            Collections.singletonList(new OrderByExpression(RowKeyExpression.INSTANCE, false, true));
+
+    private static Tuple newTuple(int key) {
+        return new SingleKeyValueTuple(new KeyValue(Bytes.toBytes(key), SINGLE_COLUMN_FAMILY, SINGLE_COLUMN, Bytes.toBytes(key)));
+    }
+
+    private static void testSort(int nRows, int thresholdBytes, Integer limit, int mergeFanIn) throws Throwable {
+        Random random = new Random(nRows);
+        List<Tuple> results = new ArrayList<Tuple>(nRows);
+        int[] keys = new int[nRows];
+        for (int i = 0; i < nRows; i++) {
+            // Non negative, so that the byte order matches the int order
+            keys[i] = random.nextInt(Integer.MAX_VALUE);
+            results.add(newTuple(keys[i]));
+        }
+        Arrays.sort(keys);
+        Tuple[] expectedResults = new Tuple[limit == null ? nRows : Math.min(limit, nRows)];
+        for (int i = 0; i < expectedResults.length; i++) {
+            expectedResults[i] = newTuple(keys[i]);
+        }
+        ResultIterator iterator = new OrderedResultIterator(new MaterializedResultIterator(results), ORDER_BY_ROW_KEY,
+                thresholdBytes, limit, 0, SpillCodec.getCodec(ReadOnlyProps.EMPTY_PROPS, SpillType.ORDER_BY), mergeFanIn);
+        AssertResults.assertResults(iterator, expectedResults);
+    }
+
+    @Test
+    public void testInMemorySort() throws Throwable {
+        testSort(1000, 1024 * 1024, null, 2);
+    }
+
+    @Test
+    public void testExternalSortSingleMergePass() throws Throwable {
+        testSort(1000, 4096, null, 100);
+    }
+
+    @Test
+    public void testExternalSortMultipleMergePasses() throws Throwable {
+        // Runs of only a few rows with a fan-in of 3 require several intermediate merge passes
+        testSort(1000, 512, null, 3);
+    }
+
+    @Test
+    public void testExternalSortWithLimit() throws Throwable {
+        testSort(1000, 512, 50, 3);
+    }
+
+    @Test
+    public void testTopNThreshold() throws Throwable {
+        List<Tuple> results = new ArrayList<Tuple>();
+        for (int key : new int[] {9, 3, 7, 1, 8, 5}) {
+            results.add(newTuple(key));
+        }
+        TopNThreshold threshold = new TopNThreshold();
+        threshold.setLeadingValueExpression(RowKeyExpression.INSTANCE);
+        OrderedResultIterator iterator = new OrderedResultIterator(new MaterializedResultIterator(results), ORDER_BY_ROW_KEY,
+                1024 * 1024, 3, 0, SpillCodec.getCodec(ReadOnlyProps.EMPTY_PROPS, SpillType.ORDER_BY), 2, threshold);
+        assertNull(threshold.getSortKey());
+        AssertResults.assertResults(iterator, new Tuple[] {newTuple(1), newTuple(3), newTuple(5)});
+        assertEquals(new ImmutableBytesWritable(Bytes.toBytes(5)), threshold.getSortKey());
+        assertEquals(new ImmutableBytesWritable(Bytes.toBytes(5)), threshold.getLeadingValue());
+        // Set when the 3rd row was seen, then lowered by the 4th and the 6th rows
+        assertEquals(3, threshold.getVersion());
+    }
+
+    /**
+     * @return the temp files of the sorted runs currently in the temp directory
+     */
+    private static Set<String> getRunFiles() {
+        Set<String> files = new HashSet<String>();
+        for (String name : new File(System.getProperty("java.io.tmpdir")).list()) {
+            if (name.matches("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}-?\\d+\\.tmp")) {
+                files.add(name);
+            }
+        }
+        return files;
+    }
+
+    private static List<Tuple> newTuples(int nRows) {
+        List<Tuple> results = new ArrayList<Tuple>(nRows);
+        for (int i = nRows; i > 0; i--) {
+            results.add(newTuple(i));
+        }
+        return results;
+    }
+
+    private static OrderedResultIterator newSpillingIterator(ResultIterator delegate) {
+        return new OrderedResultIterator(delegate, ORDER_BY_ROW_KEY, 512, null, 0,
+                SpillCodec.getCodec(ReadOnlyProps.EMPTY_PROPS, SpillType.ORDER_BY), 3);
+    }
+
+    @Test
+    public void testRunsDeletedWhenExhausted() throws Throwable {
+        Set<String> files = getRunFiles();
+        OrderedResultIterator iterator = newSpillingIterator(new MaterializedResultIterator(newTuples(1000)));
+        int count = 0;
+        while (iterator.next() != null) {
+            count++;
+        }
+        assertEquals(1000, count);
+        // Not closed, but nothing is left to read
+        assertEquals(files, getRunFiles());
+    }
+
+    @Test
+    public void testRunsDeletedOnClose() throws Throwable {
+        Set<String> files = getRunFiles();
+        OrderedResultIterator iterator = newSpillingIterator(new MaterializedResultIterator(newTuples(1000)));
+        ImmutableBytesWritable key = new ImmutableBytesWritable();
+        iterator.next().getKey(key);
+        assertEquals(new ImmutableBytesWritable(Bytes.toBytes(1)), key);
+        assertTrue(getRunFiles().size() > files.size());
+        iterator.close();
+        assertEquals(files, getRunFiles());
+        assertNull(iterator.next());
+    }
+
+    @Test
+    public void testRunsDeletedOnFailure() throws Throwable {
+        Set<String> files = getRunFiles();
+        final ResultIterator rows = new MaterializedResultIterator(newTuples(1000));
+        ResultIterator delegate = new DelegateResultIterator(rows) {
+            int count = 0;
+            @Override
+            public Tuple next() throws SQLException {
+                if (++count > 500) {
+                    throw new SQLException("Scan failed");
+                }
+                return super.next();
+            }
+        };
+        OrderedResultIterator iterator = newSpillingIterator(delegate);
+        try {
+            iterator.next();
+            fail();
+        } catch (SQLException e) {
+            assertEquals("Scan failed", e.getMessage());
+        }
+        assertEquals(files, getRunFiles());
+    }
+
+    @Test
+    public void testByteSizeIncludesFlushingRun() throws Throwable {
+        int thresholdBytes = 512;
+        MappedByteBufferSortedQueue queue = new MappedByteBufferSortedQueue(new Comparator<ResultEntry>() {
+            @Override
+            public int compare(ResultEntry entry1, ResultEntry entry2) {
+                return OrderByKeyEncoder.KEY_COMPARATOR.compare(entry1.getSortKey(), entry2.getSortKey());
+            }
+        }, null, thresholdBytes, SpillCodec.getCodec(ReadOnlyProps.EMPTY_PROPS, SpillType.ORDER_BY), 3);
+        try {
+            long maxByteSize = 0;
+            for (Tuple tuple : newTuples(1000)) {
+                ImmutableBytesWritable key = new ImmutableBytesWritable();
+                tuple.getKey(key);
+                queue.add(new ResultEntry(key, tuple));
+                maxByteSize = Math.max(maxByteSize, queue.getByteSize());
+            }
+            // The run being filled and the run being flushed together stay within the
+            // threshold, give or take the entry that fills the run
+            assertTrue(maxByteSize > 0);
+            assertTrue(Long.toString(maxByteSize), maxByteSize < thresholdBytes + 100);
+            assertEquals(1000, queue.size());
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testRunsReadInSegments() throws Throwable {
+        int nRows = 20000;
+        // Runs of several blocks each, mapped in segments smaller than a block, so that a
+        // segment holds a single block, as well as in segments of a few blocks
+        for (long maxMappedSegmentSize : new long[] {1, 200 * 1024}) {
+            MappedByteBufferSortedQueue queue = new MappedByteBufferSortedQueue(new Comparator<ResultEntry>() {
+                @Override
+                public int compare(ResultEntry entry1, ResultEntry entry2) {
+                    return OrderByKeyEncoder.KEY_COMPARATOR.compare(entry1.getSortKey(), entry2.getSortKey());
+                }
+            }, null, 256 * 1024, SpillCodec.getCodec(ReadOnlyProps.EMPTY_PROPS, SpillType.ORDER_BY), 2, maxMappedSegmentSize);
+            try {
+                for (Tuple tuple : newTuples(nRows)) {
+                    ImmutableBytesWritable key = new ImmutableBytesWritable();
+                    tuple.getKey(key);
+                    queue.add(new ResultEntry(key, tuple));
+                }
+                for (int i = 1; i <= nRows; i++) {
+                    ResultEntry entry = queue.poll();
+                    assertEquals(new ImmutableBytesWritable(Bytes.toBytes(i)), entry.getSortKey());
+                }
+                assertNull(queue.poll());
+            } finally {
+                queue.close();
+            }
+        }
+    }
+}
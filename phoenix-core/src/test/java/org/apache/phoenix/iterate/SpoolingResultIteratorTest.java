@@ -20,7 +20,9 @@ package org.apache.phoenix.iterate;
 import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN;
 import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_FAMILY;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -65,6 +67,22 @@ public class SpoolingResultIteratorTest {
         testSpooling(1, QueryServicesOptions.DEFAULT_MAX_SPOOL_TO_DISK_BYTES);
     }
 
+    @Test
+    public void testOnDiskSpoolingMultipleBlocks() throws Throwable {
+        // Enough rows to span several blocks of the spool file
+        int nRows = 3 * SpoolingResultIterator.SPOOL_BLOCK_SIZE / 100;
+        byte[] value = new byte[100];
+        List<Tuple> results = new ArrayList<Tuple>(nRows);
+        for (int i = 0; i < nRows; i++) {
+            results.add(new SingleKeyValueTuple(new KeyValue(Bytes.toBytes(i), SINGLE_COLUMN_FAMILY, SINGLE_COLUMN, value)));
+        }
+        PeekingResultIterator iterator = new MaterializedResultIterator(results);
+        int threshold = 1024;
+        MemoryManager memoryManager = new DelegatingMemoryManager(new GlobalMemoryManager(threshold, 0));
+        ResultIterator scanner = new SpoolingResultIterator(iterator, memoryManager, threshold, QueryServicesOptions.DEFAULT_MAX_SPOOL_TO_DISK_BYTES);
+        AssertResults.assertResults(scanner, results.toArray(new Tuple[results.size()]));
+    }
+
     @Test(expected = SpoolTooBigToDiskException.class)
     public void testFailToSpool() throws Throwable{
     		testSpooling(1, 0L);
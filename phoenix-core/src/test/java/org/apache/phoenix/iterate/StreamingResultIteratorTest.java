@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.iterate;
+
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN;
+import static org.apache.phoenix.query.QueryConstants.SINGLE_COLUMN_FAMILY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.job.JobManager;
+import org.apache.phoenix.job.JobManager.JobCallable;
+import org.apache.phoenix.job.JobManager.JobGroup;
+import org.apache.phoenix.memory.GlobalMemoryManager;
+import org.apache.phoenix.query.QueryServices;
+import org.apache.phoenix.schema.tuple.SingleKeyValueTuple;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.AssertResults;
+import org.apache.phoenix.util.ReadOnlyProps;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class StreamingResultIteratorTest {
+    private static final long MAX_MEMORY = 1024 * 1024;
+    private ExecutorService executor;
+    private GlobalMemoryManager memoryManager;
+    private QueryServices services;
+
+    @Before
+    public void setup() {
+        executor = Executors.newSingleThreadExecutor();
+        memoryManager = new GlobalMemoryManager(MAX_MEMORY, 0);
+        services = mock(QueryServices.class);
+        when(services.getMemoryManager()).thenReturn(memoryManager);
+        when(services.getProps()).thenReturn(ReadOnlyProps.EMPTY_PROPS);
+    }
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+    private static Tuple[] newResults(int nRows) {
+        Tuple[] results = new Tuple[nRows];
+        for (int i = 0; i < nRows; i++) {
+            results[i] = new SingleKeyValueTuple(new KeyValue(Bytes.toBytes(i), SINGLE_COLUMN_FAMILY, SINGLE_COLUMN, Bytes.toBytes(1)));
+        }
+        return results;
+    }
+
+    private static PeekingResultIterator newScanner(Tuple[] results) {
+        List<Tuple> list = new ArrayList<Tuple>(results.length);
+        for (Tuple result : results) {
+            list.add(result);
+        }
+        return new MaterializedResultIterator(list);
+    }
+
+    @Test
+    public void testStreaming() throws Throwable {
+        Tuple[] results = newResults(100);
+        ResultIterator iterator = new StreamingResultIterator(newScanner(results), services, executor, this, 2, -1, 10000);
+        AssertResults.assertResults(iterator, results);
+    }
+
+    @Test
+    public void testEmptyScan() throws Throwable {
+        Tuple[] results = newResults(0);
+        ResultIterator iterator = new StreamingResultIterator(newScanner(results), services, executor, this, 2, -1, 10000);
+        AssertResults.assertResults(iterator, results);
+    }
+
+    @Test
+    public void testSpoolingWhenConsumerFallsBehind() throws Throwable {
+        Tuple[] results = newResults(100);
+        PeekingResultIterator iterator = new StreamingResultIterator(newScanner(results), services, executor, this, 2, 0, 10000);
+        // Give the producer time to fill the queue and hand the rest of the scan over
+        Thread.sleep(1000);
+        AssertResults.assertResults(iterator, results);
+    }
+
+    @Test
+    public void testRemainderReadByConsumer() throws Throwable {
+        Tuple[] results = newResults(100);
+        final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+        final PeekingResultIterator scanner = newScanner(results);
+        ResultIterator recordingScanner = new ResultIterator() {
+            @Override
+            public Tuple next() throws SQLException {
+                threadNames.add(Thread.currentThread().getName());
+                return scanner.next();
+            }
+
+            @Override
+            public void close() throws SQLException {
+                scanner.close();
+            }
+
+            @Override
+            public void explain(List<String> planSteps) {
+            }
+        };
+        PeekingResultIterator iterator = new StreamingResultIterator(recordingScanner, services, executor, this, 2, 0, 10000);
+        // Give the producer time to fill the queue and hand the rest of the scan over
+        Thread.sleep(1000);
+        // The producer stopped reading the scan, so its thread is free for other tasks
+        int producerReads = threadNames.size();
+        assertTrue(producerReads < results.length);
+        assertTrue(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, true).get(10, TimeUnit.SECONDS));
+        AssertResults.assertResults(iterator, results);
+        // The rest of the scan was spooled by the consumer
+        for (String threadName : threadNames.subList(producerReads, threadNames.size())) {
+            assertEquals(Thread.currentThread().getName(), threadName);
+        }
+    }
+
+    @Test
+    public void testQueuedRowsChargedToMemory() throws Throwable {
+        Tuple[] results = newResults(100);
+        PeekingResultIterator iterator = new StreamingResultIterator(newScanner(results), services, executor, this, 10, -1, 10000);
+        // Give the producer time to fill the queue
+        Thread.sleep(1000);
+        assertTrue(memoryManager.getAvailableMemory() < MAX_MEMORY);
+        AssertResults.assertResults(iterator, results);
+        assertEquals(MAX_MEMORY, memoryManager.getAvailableMemory());
+    }
+
+    @Test
+    public void testSpoolOutOfMemory() throws Throwable {
+        // Not even a single row fits in the queue's memory, so the entire scan is spooled
+        memoryManager = new GlobalMemoryManager(1, 0);
+        when(services.getMemoryManager()).thenReturn(memoryManager);
+        Tuple[] results = newResults(100);
+        PeekingResultIterator iterator = new StreamingResultIterator(newScanner(results), services, executor, this, 10, -1, 10000);
+        AssertResults.assertResults(iterator, results);
+    }
+
+    @Test
+    public void testCloseWithUnreadRemainder() throws Throwable {
+        Tuple[] results = newResults(100);
+        PeekingResultIterator iterator = new StreamingResultIterator(newScanner(results), services, executor, this, 2, 0, 10000);
+        // Give the producer time to hand the rest of the scan over, then make room for the end of the scan
+        Thread.sleep(1000);
+        iterator.next();
+        Thread.sleep(500);
+        assertTrue(memoryManager.getAvailableMemory() < MAX_MEMORY);
+        iterator.close();
+        // The queue has released its memory, and the rest of the scan was never spooled
+        assertEquals(MAX_MEMORY, memoryManager.getAvailableMemory());
+    }
+
+    @Test
+    public void testProducersNotCountedAgainstLimit() throws Throwable {
+        ExecutorService fairExecutor = JobManager.createThreadPoolExec(60000, 4, 100, true);
+        try {
+            final JobGroup group = mock(JobGroup.class);
+            when(group.getWeight()).thenReturn(1);
+            when(group.getMaxInFlight()).thenReturn(1);
+            Tuple[] results1 = newResults(10);
+            Tuple[] results2 = newResults(10);
+            // Producers never spool, so the first one waits until its rows are read
+            PeekingResultIterator iterator1 = new StreamingResultIterator(newScanner(results1), services, fairExecutor,
+                    new StreamingResultIterator.ProducerJobGroup(group), 1, -1, 10000);
+            PeekingResultIterator iterator2 = new StreamingResultIterator(newScanner(results2), services, fairExecutor,
+                    new StreamingResultIterator.ProducerJobGroup(group), 1, -1, 10000);
+            // Other tasks of the query are not held up by the waiting producers either
+            Future<Boolean> task = fairExecutor.submit(new JobCallable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return true;
+                }
+
+                @Override
+                public Object getJobId() {
+                    return group;
+                }
+            });
+            assertTrue(task.get(10, TimeUnit.SECONDS));
+            AssertResults.assertResults(iterator2, results2);
+            AssertResults.assertResults(iterator1, results1);
+        } finally {
+            fairExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.phoenix.job.JobManager.JobCallable;
+import org.apache.phoenix.job.JobManager.JobFutureTask;
+import org.apache.phoenix.job.JobManager.JobGroup;
+import org.junit.Test;
+
+
+public class FairJobQueueTest {
+
+    private static class TestJobGroup implements JobGroup {
+        private final int weight;
+        private final int maxInFlight;
+        private final boolean isPriority;
+        private final AtomicLong queueWaitTimeMs = new AtomicLong(-1);
+
+        private TestJobGroup(int weight, int maxInFlight, boolean isPriority) {
+            this.weight = weight;
+            this.maxInFlight = maxInFlight;
+            this.isPriority = isPriority;
+        }
+
+        @Override
+        public int getWeight() {
+            return weight;
+        }
+
+        @Override
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        @Override
+        public boolean isPriority() {
+            return isPriority;
+        }
+
+        @Override
+        public void addQueueWaitTime(long waitTimeMs) {
+            queueWaitTimeMs.set(waitTimeMs);
+        }
+    }
+
+    private static JobFutureTask<Object> newTask(final Object jobId) {
+        return new JobFutureTask<Object>(new JobCallable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return null;
+            }
+
+            @Override
+            public Object getJobId() {
+                return jobId;
+            }
+        });
+    }
+
+    @Test
+    public void testWeightedTurns() {
+        FairJobQueue queue = new FairJobQueue(100);
+        JobGroup heavy = new TestJobGroup(2, 0, false);
+        JobGroup light = new TestJobGroup(1, 0, false);
+        for (int i = 0; i < 4; i++) {
+            queue.offer(newTask(heavy));
+        }
+        for (int i = 0; i < 2; i++) {
+            queue.offer(newTask(light));
+        }
+        Object[] expectedJobIds = new Object[] {heavy, heavy, light, heavy, heavy, light};
+        for (Object expectedJobId : expectedJobIds) {
+            assertSame(expectedJobId, ((JobFutureTask<?>)queue.poll()).getJobId());
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testPriorityJobFirst() {
+        FairJobQueue queue = new FairJobQueue(100);
+        JobGroup large = new TestJobGroup(1, 0, false);
+        JobGroup small = new TestJobGroup(1, 0, true);
+        queue.offer(newTask(large));
+        queue.offer(newTask(large));
+        queue.offer(newTask(small));
+        assertSame(small, ((JobFutureTask<?>)queue.poll()).getJobId());
+        assertSame(large, ((JobFutureTask<?>)queue.poll()).getJobId());
+    }
+
+    @Test
+    public void testMaxInFlight() throws Exception {
+        FairJobQueue queue = new FairJobQueue(100);
+        JobGroup limited = new TestJobGroup(1, 1, false);
+        Runnable task1 = newTask(limited);
+        Runnable task2 = newTask(limited);
+        queue.offer(task1);
+        queue.offer(task2);
+        assertSame(task1, queue.poll());
+        queue.beforeExecute(task1);
+        // Queued, but unavailable until the first task completes
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.size());
+        queue.afterExecute(task1);
+        assertSame(task2, queue.poll());
+    }
+
+    @Test
+    public void testMaxSize() {
+        FairJobQueue queue = new FairJobQueue(1);
+        assertTrue(queue.offer(newTask(new Object())));
+        assertFalse(queue.offer(newTask(new Object())));
+        assertEquals(0, queue.remainingCapacity());
+    }
+
+    @Test
+    public void testExecutorHonorsMaxInFlight() throws Exception {
+        ThreadPoolExecutor executor = JobManager.createThreadPoolExec(1000, 4, 10, true);
+        try {
+            final TestJobGroup group = new TestJobGroup(1, 1, false);
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(executor.submit(new JobCallable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        int count = running.incrementAndGet();
+                        maxRunning.set(Math.max(maxRunning.get(), count));
+                        Thread.sleep(10);
+                        running.decrementAndGet();
+                        return null;
+                    }
+
+                    @Override
+                    public Object getJobId() {
+                        return group;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(1, maxRunning.get());
+            assertTrue(group.queueWaitTimeMs.get() >= 0);
+            Callable<Object> plainTask = new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return Boolean.TRUE;
+                }
+            };
+            assertEquals(Boolean.TRUE, executor.submit(plainTask).get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.join;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataOutputStream;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.phoenix.cache.HashCache;
+import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.expression.ExpressionType;
+import org.apache.phoenix.expression.KeyValueColumnExpression;
+import org.apache.phoenix.hbase.index.util.ImmutableBytesPtr;
+import org.apache.phoenix.memory.GlobalMemoryManager;
+import org.apache.phoenix.schema.PColumnImpl;
+import org.apache.phoenix.schema.PDataType;
+import org.apache.phoenix.schema.PNameFactory;
+import org.apache.phoenix.schema.SortOrder;
+import org.apache.phoenix.schema.tuple.SingleKeyValueTuple;
+import org.apache.phoenix.schema.tuple.Tuple;
+import org.apache.phoenix.util.TrustedByteArrayOutputStream;
+import org.apache.phoenix.util.TupleUtil;
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+
+
+public class HashCacheFactoryTest {
+    private static final byte[] CF = Bytes.toBytes("CF");
+    private static final byte[] CQ = Bytes.toBytes("V");
+
+    private static ImmutableBytesWritable serialize(String[][] rows) throws Exception {
+        Expression onExpression = new KeyValueColumnExpression(new PColumnImpl(PNameFactory.newName("V"),
+                PNameFactory.newName("CF"), PDataType.VARCHAR, null, null, true, 0, SortOrder.getDefault(), null, null));
+        TrustedByteArrayOutputStream baOut = new TrustedByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(baOut);
+        out.writeInt(1);
+        WritableUtils.writeVInt(out, ExpressionType.valueOf(onExpression).ordinal());
+        onExpression.write(out);
+        out.writeInt(baOut.size() + Bytes.SIZEOF_INT);
+        out.writeInt(rows.length);
+        for (String[] row : rows) {
+            Tuple tuple = new SingleKeyValueTuple(new KeyValue(Bytes.toBytes(row[0]), CF, CQ, Bytes.toBytes(row[1])));
+            TupleUtil.write(tuple, out);
+        }
+        out.close();
+        byte[] compressed = new byte[Snappy.maxCompressedLength(baOut.size())];
+        int compressedSize = Snappy.compress(baOut.getBuffer(), 0, baOut.size(), compressed, 0);
+        return new ImmutableBytesWritable(compressed, 0, compressedSize);
+    }
+
+    private static String getRow(Tuple tuple) {
+        ImmutableBytesWritable ptr = new ImmutableBytesWritable();
+        tuple.getKey(ptr);
+        return Bytes.toString(ptr.copyBytes());
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        String[][] rows = new String[][] {
+                {"r1", "a"}, {"r2", "b"}, {"r3", "a"}, {"r4", "c"}, {"r5", "a"},
+        };
+        GlobalMemoryManager memoryManager = new GlobalMemoryManager(1024 * 1024, 1);
+        HashCache cache = (HashCache)new HashCacheFactory().newCache(serialize(rows), memoryManager.allocate(0));
+
+        List<Tuple> tuples = cache.get(new ImmutableBytesPtr(Bytes.toBytes("a")));
+        assertEquals(3, tuples.size());
+        assertEquals("r1", getRow(tuples.get(0)));
+        assertEquals("r3", getRow(tuples.get(1)));
+        assertEquals("r5", getRow(tuples.get(2)));
+        tuples = cache.get(new ImmutableBytesPtr(Bytes.toBytes("c")));
+        assertEquals(1, tuples.size());
+        assertEquals("r4", getRow(tuples.get(0)));
+        assertNull(cache.get(new ImmutableBytesPtr(Bytes.toBytes("d"))));
+
+        cache.close();
+        assertEquals(memoryManager.getMaxMemory(), memoryManager.getAvailableMemory());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        GlobalMemoryManager memoryManager = new GlobalMemoryManager(1024 * 1024, 1);
+        HashCache cache = (HashCache)new HashCacheFactory().newCache(serialize(new String[0][]), memoryManager.allocate(0));
+        assertNull(cache.get(new ImmutableBytesPtr(Bytes.toBytes("a"))));
+        cache.close();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.join;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Collections;
+
+import org.apache.phoenix.cache.ServerCacheClient.ServerCache;
+import org.apache.phoenix.compile.QueryPlan;
+import org.apache.phoenix.compile.ScanRanges;
+import org.apache.phoenix.expression.Expression;
+import org.apache.phoenix.jdbc.PhoenixPreparedStatement;
+import org.apache.phoenix.join.HashCacheClient.JoinKeys;
+import org.apache.phoenix.join.HashCacheRegistry.Lease;
+import org.apache.phoenix.query.BaseConnectionlessQueryTest;
+import org.apache.phoenix.schema.TableRef;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+public class HashCacheRegistryTest extends BaseConnectionlessQueryTest {
+    private static final String KEY = "T\nCLIENT PARALLEL 1-WAY FULL SCAN OVER T\n";
+
+    private static ServerCache newServerCache(boolean covers) throws Exception {
+        ServerCache cache = mock(ServerCache.class);
+        when(cache.covers(Matchers.<ScanRanges>any(), Matchers.<TableRef>any())).thenReturn(covers);
+        return cache;
+    }
+
+    private static String getKey(Connection conn, String query, Object... binds) throws Exception {
+        PhoenixPreparedStatement stmt = conn.prepareStatement(query).unwrap(PhoenixPreparedStatement.class);
+        for (int i = 0; i < binds.length; i++) {
+            stmt.setObject(i + 1, binds[i]);
+        }
+        QueryPlan plan = stmt.optimizeQuery();
+        return HashCacheRegistry.getKey(plan, Collections.<Expression>emptyList(), plan.getTableRef());
+    }
+
+    @Test
+    public void testKeyOfBoundValues() throws Exception {
+        Connection conn = DriverManager.getConnection(getUrl());
+        try {
+            conn.createStatement().execute("CREATE TABLE t (k1 VARCHAR NOT NULL, k2 INTEGER NOT NULL, v VARCHAR CONSTRAINT pk PRIMARY KEY (k1, k2))");
+            String pointLookup = "SELECT k2, v FROM t WHERE k1 = ? AND k2 = ?";
+            assertEquals(getKey(conn, pointLookup, "a", 1), getKey(conn, pointLookup, "a", 1));
+            assertFalse(getKey(conn, pointLookup, "a", 1).equals(getKey(conn, pointLookup, "a", 2)));
+            String rangeScan = "SELECT k2, v FROM t WHERE k1 = ?";
+            assertFalse(getKey(conn, rangeScan, "a").equals(getKey(conn, rangeScan, "b")));
+            String skipScan = "SELECT k2, v FROM t WHERE k1 IN (?, ?)";
+            assertFalse(getKey(conn, skipScan, "a", "b").equals(getKey(conn, skipScan, "a", "c")));
+            String filter = "SELECT k2, v FROM t WHERE v = ?";
+            assertFalse(getKey(conn, filter, "x").equals(getKey(conn, filter, "y")));
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        HashCacheRegistry registry = new HashCacheRegistry(60000);
+        ServerCache cache = newServerCache(true);
+        JoinKeys joinKeys = new JoinKeys(10);
+        Lease lease1 = registry.register(KEY, Collections.singleton("T"), cache, joinKeys);
+        Lease lease2 = registry.acquire(KEY, null, null);
+        assertNotNull(lease2);
+        assertSame(cache, lease2.getServerCache());
+        assertSame(joinKeys, lease2.getJoinKeys());
+        assertNull(registry.acquire("OTHER", null, null));
+        lease1.close();
+        lease2.close();
+        assertEquals(1, registry.size());
+        verify(cache, never()).close();
+
+        registry.clear();
+        assertEquals(0, registry.size());
+        verify(cache, times(1)).close();
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        HashCacheRegistry registry = new HashCacheRegistry(60000);
+        ServerCache cache = newServerCache(true);
+        Lease lease = registry.register(KEY, Collections.singleton("T"), cache, null);
+        registry.invalidate("OTHER");
+        assertEquals(1, registry.size());
+        registry.invalidate("T");
+        assertEquals(0, registry.size());
+        assertNull(registry.acquire(KEY, null, null));
+        // Still in use by the query that added it
+        verify(cache, never()).close();
+        lease.close();
+        lease.close();
+        verify(cache, times(1)).close();
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        HashCacheRegistry registry = new HashCacheRegistry(1);
+        ServerCache cache = newServerCache(true);
+        registry.register(KEY, Collections.singleton("T"), cache, null).close();
+        Thread.sleep(10);
+        assertNull(registry.acquire(KEY, null, null));
+        assertEquals(0, registry.size());
+        verify(cache, times(1)).close();
+    }
+
+    @Test
+    public void testAlreadyRegistered() throws Exception {
+        HashCacheRegistry registry = new HashCacheRegistry(60000);
+        ServerCache cache1 = newServerCache(true);
+        ServerCache cache2 = newServerCache(true);
+        Lease lease1 = registry.register(KEY, Collections.singleton("T"), cache1, null);
+        Lease lease2 = registry.register(KEY, Collections.singleton("T"), cache2, null);
+        lease2.close();
+        verify(cache2, times(1)).close();
+        lease1.close();
+        verify(cache1, never()).close();
+        assertSame(cache1, registry.acquire(KEY, null, null).getServerCache());
+    }
+
+    @Test
+    public void testNotCovered() throws Exception {
+        HashCacheRegistry registry = new HashCacheRegistry(60000);
+        ServerCache cache = newServerCache(false);
+        Lease lease = registry.register(KEY, Collections.singleton("T"), cache, null);
+        assertNull(registry.acquire(KEY, null, null));
+        assertEquals(0, registry.size());
+        verify(cache, never()).close();
+        lease.close();
+        verify(cache, times(1)).close();
+    }
+}
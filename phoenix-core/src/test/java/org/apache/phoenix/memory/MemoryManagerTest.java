@@ -17,12 +17,20 @@
  */
 package org.apache.phoenix.memory;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.junit.Ignore;
 import org.junit.Test;
 
+import org.apache.phoenix.memory.GlobalMemoryManager.ChunkInfo;
+import org.apache.phoenix.memory.GlobalMemoryManager.MemoryMetrics;
+import org.apache.phoenix.memory.MemoryManager.ChunkType;
 import org.apache.phoenix.memory.MemoryManager.MemoryChunk;
 
 
@@ -264,4 +272,132 @@ public class MemoryManagerTest {
         assertTrue(rmm3.getAvailableMemory() == rmm3.getMaxMemory());
         assertTrue(rmm4.getAvailableMemory() == rmm4.getMaxMemory());
     }
+
+    private static Thread startAllocation(final MemoryManager mm, final long nBytes, final List<MemoryChunk> chunks) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                chunks.add(mm.allocate(nBytes));
+            }
+        };
+        t.start();
+        // Wait until the allocation is waiting for memory
+        while (t.getState() != Thread.State.TIMED_WAITING) {
+            Thread.yield();
+        }
+        return t;
+    }
+
+    @Test
+    public void testWaitersWokenUpInOrder() throws Exception {
+        GlobalMemoryManager gmm = new GlobalMemoryManager(100,8000);
+        List<MemoryChunk> chunks = Collections.synchronizedList(new ArrayList<MemoryChunk>());
+        MemoryChunk c1 = gmm.allocate(50);
+        MemoryChunk c2 = gmm.allocate(50);
+        Thread t1 = startAllocation(gmm, 50, chunks);
+        Thread t2 = startAllocation(gmm, 50, chunks);
+        c1.close();
+        // Only the first waiter is woken up, as the freed memory can't satisfy both
+        t1.join();
+        assertEquals(1, chunks.size());
+        assertEquals(Thread.State.TIMED_WAITING, t2.getState());
+        c2.close();
+        t2.join();
+        assertEquals(2, chunks.size());
+        for (MemoryChunk chunk : chunks) {
+            chunk.close();
+        }
+        assertTrue(gmm.getAvailableMemory() == gmm.getMaxMemory());
+    }
+
+    @Test
+    public void testSmallerWaiterNotBlockedByLargerWaiter() throws Exception {
+        GlobalMemoryManager gmm = new GlobalMemoryManager(100,8000);
+        List<MemoryChunk> chunks = Collections.synchronizedList(new ArrayList<MemoryChunk>());
+        MemoryChunk c1 = gmm.allocate(50);
+        MemoryChunk c2 = gmm.allocate(50);
+        Thread t1 = startAllocation(gmm, 80, chunks);
+        Thread t2 = startAllocation(gmm, 30, chunks);
+        c1.close();
+        t2.join();
+        assertEquals(1, chunks.size());
+        assertEquals(Thread.State.TIMED_WAITING, t1.getState());
+        chunks.get(0).close();
+        c2.close();
+        t1.join();
+        assertEquals(2, chunks.size());
+        chunks.get(1).close();
+        assertTrue(gmm.getAvailableMemory() == gmm.getMaxMemory());
+    }
+
+    @Test
+    public void testConcurrentAllocations() throws Exception {
+        final GlobalMemoryManager gmm = new GlobalMemoryManager(100,8000);
+        final ChildMemoryManager rmm = new ChildMemoryManager(gmm,50);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        // More memory than available is requested, so some threads wait for others to free theirs,
+        // while the child memory manager is never asked for more than its maximum
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final MemoryManager mm = i % 2 == 0 ? gmm : rmm;
+            final long reqBytes = i % 2 == 0 ? 20 : 10;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 10000; j++) {
+                            MemoryChunk chunk = mm.allocate(5, reqBytes);
+                            chunk.resize(5);
+                            chunk.close();
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue(gmm.getAvailableMemory() == gmm.getMaxMemory());
+        assertTrue(rmm.getAvailableMemory() == rmm.getMaxMemory());
+    }
+
+    @Test
+    public void testChunkInfosAndMetrics() throws Exception {
+        GlobalMemoryManager gmm = new GlobalMemoryManager(100,1);
+        ChildMemoryManager rmm = new ChildMemoryManager(gmm,50,"T1");
+        MemoryChunk c1 = gmm.allocate(20, 20, ChunkType.SPOOL, null);
+        MemoryChunk c2 = rmm.allocate(30, 30, ChunkType.GROUP_BY, "R1");
+        List<ChunkInfo> infos = gmm.getChunkInfos();
+        assertEquals(2, infos.size());
+        assertEquals(ChunkType.GROUP_BY, infos.get(0).getType());
+        assertEquals("R1", infos.get(0).getOwner());
+        assertEquals("T1", infos.get(0).getTenantId());
+        assertEquals(30, infos.get(0).getSize());
+        assertEquals(ChunkType.SPOOL, infos.get(1).getType());
+        assertEquals(Long.valueOf(30), gmm.getUsedMemoryByType().get(ChunkType.GROUP_BY));
+        c1.resize(60);
+        assertEquals(60, gmm.getChunkInfos().get(0).getSize());
+        try {
+            gmm.allocate(20);
+            fail();
+        } catch (InsufficientMemoryException e) { // expected
+        }
+        c1.close();
+        c2.close();
+        assertTrue(gmm.getChunkInfos().isEmpty());
+        MemoryMetrics metrics = gmm.getMetrics();
+        assertEquals(2, metrics.getAllocationCount());
+        assertEquals(90, metrics.getPeakUsedBytes());
+        assertEquals(1, metrics.getWaitCount());
+        assertEquals(1, metrics.getInsufficientMemoryCount());
+        long waitCount = 0;
+        for (long count : metrics.getWaitTimeHistogram()) {
+            waitCount += count;
+        }
+        assertEquals(1, waitCount);
+    }
 }
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.optimize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class IndexChoiceCacheTest {
+    private static final String KEY = "SELECT * FROM T WHERE K = ?\njava.lang.String,\nT@1\nI@1:ACTIVE\n";
+
+    @Test
+    public void testChoice() throws Exception {
+        IndexChoiceCache cache = new IndexChoiceCache(10);
+        assertTrue(cache.isEnabled());
+        assertNull(cache.get(KEY));
+        cache.put(KEY, "I", Arrays.asList("T", "I"));
+        assertEquals("I", cache.get(KEY));
+        assertNull(cache.get("OTHER"));
+        cache.remove(KEY);
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        IndexChoiceCache cache = new IndexChoiceCache(10);
+        cache.put(KEY, "T", Arrays.asList("T", "I"));
+        cache.put("OTHER", "U", Arrays.asList("U"));
+        cache.invalidate("X");
+        assertEquals(2, cache.size());
+        // A change to an index invalidates the choice even if the data table was chosen
+        cache.invalidate("I");
+        assertNull(cache.get(KEY));
+        assertEquals("U", cache.get("OTHER"));
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        IndexChoiceCache cache = new IndexChoiceCache(0);
+        assertFalse(cache.isEnabled());
+        cache.put(KEY, "I", Arrays.asList("T", "I"));
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        IndexChoiceCache cache = new IndexChoiceCache(2);
+        for (int i = 0; i < 10; i++) {
+            cache.put(KEY + i, "I", Arrays.asList("T", "I"));
+        }
+        assertTrue(cache.size() <= 2);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.parse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ParseTreeCacheTest {
+
+    private static BindableStatement parse(String sql) throws Exception {
+        return new SQLParser(sql).parseStatement();
+    }
+
+    @Test
+    public void testCacheStatement() throws Exception {
+        ParseTreeCache cache = new ParseTreeCache(10);
+        String sql = "select a from t where b = ?";
+        assertNull(cache.get(sql));
+        BindableStatement statement = parse(sql);
+        cache.put(sql, statement, 1000);
+        assertSame(statement, cache.get(sql));
+        assertSame(statement, cache.get(sql));
+        assertNull(cache.get("select a from t"));
+
+        ParseTreeCache.ParseMetrics metrics = cache.getMetrics();
+        assertEquals(2, metrics.getHitCount());
+        assertEquals(2, metrics.getMissCount());
+        assertEquals(50, metrics.getHitPerc());
+        assertEquals(1000, metrics.getParseTimeNs());
+    }
+
+    @Test
+    public void testDdlNotCached() throws Exception {
+        ParseTreeCache cache = new ParseTreeCache(10);
+        String sql = "create table t (k varchar primary key, v integer)";
+        cache.put(sql, parse(sql), 1000);
+        assertNull(cache.get(sql));
+        assertEquals(0, cache.size());
+        String upsert = "upsert into t values('a', 1)";
+        cache.put(upsert, parse(upsert), 1000);
+        String delete = "delete from t where k = 'a'";
+        cache.put(delete, parse(delete), 1000);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        ParseTreeCache cache = new ParseTreeCache(2);
+        for (int i = 0; i < 10; i++) {
+            String sql = "select a from t where b = " + i;
+            cache.put(sql, parse(sql), 1000);
+        }
+        assertTrue(cache.size() <= 2);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.protobuf;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.coprocessor.generated.ServerCachingProtos;
+import org.junit.Test;
+
+public class ProtobufUtilTest {
+
+    @Test
+    public void testImmutableBytesWritable() throws Exception {
+        ImmutableBytesWritable ptr = new ImmutableBytesWritable(Bytes.toBytes("abc"));
+        ServerCachingProtos.ImmutableBytesWritable proto = ProtobufUtil.toProto(ptr);
+        assertEquals(3, proto.getByteArray().size());
+        assertEquals(ptr, ProtobufUtil.toImmutableBytesWritable(proto));
+    }
+
+    @Test
+    public void testOnlyBytesInUseSent() throws Exception {
+        byte[] buffer = Bytes.toBytes("xxabcxxxxxxxxxxx");
+        ImmutableBytesWritable ptr = new ImmutableBytesWritable(buffer, 2, 3);
+        ServerCachingProtos.ImmutableBytesWritable proto = ProtobufUtil.toProto(ptr);
+        assertEquals(3, proto.getByteArray().size());
+        // Round trip through the serialized form, as sent to the region servers
+        proto = ServerCachingProtos.ImmutableBytesWritable.parseFrom(proto.toByteArray());
+        ImmutableBytesWritable result = ProtobufUtil.toImmutableBytesWritable(proto);
+        assertEquals("abc", Bytes.toString(result.get(), result.getOffset(), result.getLength()));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.phoenix.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.io.compress.Compression.Algorithm;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.phoenix.util.SpillCodec.SpillType;
+import org.junit.Test;
+
+
+public class SpillCodecTest {
+
+    private static byte[] newBlock() {
+        byte[] block = new byte[10000];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte)(i % 10);
+        }
+        return block;
+    }
+
+    private static void assertRoundTrip(SpillCodec codec, byte[] block) throws IOException {
+        TrustedByteArrayOutputStream out = new TrustedByteArrayOutputStream(0);
+        int encodedLength = codec.encode(block, 0, block.length, out);
+        assertEquals(out.size(), encodedLength);
+        ByteBuffer in = ByteBuffer.wrap(out.getBuffer(), 0, out.size());
+        assertEquals(block.length, SpillCodec.getRawLength(in));
+        byte[] decoded = new byte[block.length];
+        assertEquals(block.length, codec.decode(in, decoded));
+        assertArrayEquals(block, decoded);
+        assertEquals(0, in.remaining());
+    }
+
+    @Test
+    public void testUncompressedRoundTrip() throws Exception {
+        SpillCodec codec = new SpillCodec(Algorithm.NONE, true, SpillType.SPOOL);
+        byte[] block = newBlock();
+        long bytesAfter = SpillCodec.getBytesAfterEncoding(SpillType.SPOOL);
+        assertRoundTrip(codec, block);
+        assertEquals(SpillCodec.HEADER_SIZE + block.length, SpillCodec.getBytesAfterEncoding(SpillType.SPOOL) - bytesAfter);
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws Exception {
+        SpillCodec codec = new SpillCodec(Algorithm.GZ, true, SpillType.ORDER_BY);
+        byte[] block = newBlock();
+        long bytesBefore = SpillCodec.getBytesBeforeEncoding(SpillType.ORDER_BY);
+        long bytesAfter = SpillCodec.getBytesAfterEncoding(SpillType.ORDER_BY);
+        assertRoundTrip(codec, block);
+        assertEquals(block.length, SpillCodec.getBytesBeforeEncoding(SpillType.ORDER_BY) - bytesBefore);
+        assertTrue(SpillCodec.getBytesAfterEncoding(SpillType.ORDER_BY) - bytesAfter < block.length);
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        SpillCodec codec = new SpillCodec(Algorithm.NONE, true, SpillType.SPOOL);
+        byte[] block = Bytes.toBytes("spilled data");
+        TrustedByteArrayOutputStream out = new TrustedByteArrayOutputStream(0);
+        codec.encode(block, 0, block.length, out);
+        byte[] encoded = out.toByteArray();
+        encoded[encoded.length - 1]++;
+        try {
+            codec.decode(ByteBuffer.wrap(encoded), new byte[block.length]);
+            fail();
+        } catch (IOException e) {
+        }
+    }
+}